@@ -0,0 +1,142 @@
+package com.scythe.ant;
+
+import com.scythe.instrumenter.instrumentation.InstrumentedClass;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * What an incremental {@link InstrumentTask} wrote to its destination directory: the hash of the
+ * class each output was instrumented from and what was registered for it, along with the options
+ * every class was instrumented with.
+ */
+class InstrumentManifest {
+
+  static final String PATH = "META-INF/scythe/manifest";
+  private static final int MAGIC = 0x5343494d;
+  private static final int VERSION = 1;
+
+  static final class Entry {
+    private final String hash;
+    // null for classes that were not instrumented
+    private final InstrumentedClass instrumented;
+
+    Entry(String hash, InstrumentedClass instrumented) {
+      this.hash = hash;
+      this.instrumented = instrumented;
+    }
+
+    String getHash() {
+      return hash;
+    }
+
+    InstrumentedClass getInstrumented() {
+      return instrumented;
+    }
+  }
+
+  private final String options;
+  private final Map<String, Entry> entries = new LinkedHashMap<>();
+
+  InstrumentManifest(String options) {
+    this.options = options;
+  }
+
+  String getOptions() {
+    return options;
+  }
+
+  Entry get(String className) {
+    return entries.get(className);
+  }
+
+  void put(String className, Entry entry) {
+    entries.put(className, entry);
+  }
+
+  Set<String> getClassNames() {
+    return entries.keySet();
+  }
+
+  Collection<Entry> getEntries() {
+    return entries.values();
+  }
+
+  /**
+   * @return the manifest in file, or null if there is none
+   */
+  static InstrumentManifest read(File file) throws IOException {
+    if (!file.exists()) {
+      return null;
+    }
+    try (DataInputStream in = new DataInputStream(
+        new BufferedInputStream(new FileInputStream(file)))) {
+      if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+        return null;
+      }
+      InstrumentManifest manifest = new InstrumentManifest(in.readUTF());
+      for (int i = in.readInt(); i > 0; i--) {
+        String className = in.readUTF();
+        String hash = in.readUTF();
+        InstrumentedClass instrumented = in.readBoolean() ? InstrumentedClass.read(in) : null;
+        manifest.put(className, new Entry(hash, instrumented));
+      }
+      return manifest;
+    }
+  }
+
+  void write(File file) throws IOException {
+    file.getParentFile().mkdirs();
+    File temp = File.createTempFile("manifest", ".tmp", file.getParentFile());
+    try (DataOutputStream out = new DataOutputStream(
+        new BufferedOutputStream(new FileOutputStream(temp)))) {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeUTF(options);
+      out.writeInt(entries.size());
+      for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+        out.writeUTF(entry.getKey());
+        out.writeUTF(entry.getValue().hash);
+        InstrumentedClass instrumented = entry.getValue().instrumented;
+        out.writeBoolean(instrumented != null);
+        if (instrumented != null) {
+          instrumented.write(out);
+        }
+      }
+    }
+    // a build stopped part way leaves the previous manifest, so changed classes are redone
+    Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+        StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /**
+   * @return the hex SHA-1 of the bytes of a class
+   */
+  static String hash(byte[] bytes) {
+    try {
+      byte[] hash = MessageDigest.getInstance("SHA-1").digest(bytes);
+      StringBuilder hex = new StringBuilder(hash.length * 2);
+      for (byte b : hash) {
+        hex.append(Character.forDigit((b >>> 4) & 0xF, 16));
+        hex.append(Character.forDigit(b & 0xF, 16));
+      }
+      return hex.toString();
+    } catch (NoSuchAlgorithmException e) {
+      // every JVM has SHA-1
+      throw new IllegalStateException(e);
+    }
+  }
+}
@@ -1,16 +1,26 @@
 package com.scythe.ant;
 
 import com.scythe.instrumenter.InstrumentationProperties;
+import com.scythe.instrumenter.analysis.ClassAnalyzer;
+import com.scythe.instrumenter.instrumentation.InstrumentedClass;
 import com.scythe.instrumenter.instrumentation.InstrumentingClassLoader;
+import com.scythe.instrumenter.instrumentation.OfflineInstrumenter;
 import com.scythe.util.ClassNameUtils;
 import com.scythe.util.Util;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.lang.instrument.IllegalClassFormatException;
+import java.nio.file.Files;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import org.apache.commons.io.IOUtils;
 import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.DirectoryScanner;
 import org.apache.tools.ant.Task;
 import org.apache.tools.ant.types.FileSet;
 import org.apache.tools.ant.types.Resource;
@@ -20,6 +30,9 @@ public class InstrumentTask extends Task {
   private InstrumentingClassLoader icl;
   private List<FileSet> files = new ArrayList<>();
   private File bytecodeDir;
+  private File destFile;
+  private int threads = Runtime.getRuntime().availableProcessors();
+  private boolean incremental = false;
 
   public void init() {
     icl = InstrumentingClassLoader.getInstance();
@@ -29,13 +42,33 @@ public class InstrumentTask extends Task {
     this.bytecodeDir = bytecodeDir;
   }
 
+  /**
+   * Writes every class in the filesets, instrumented in parallel, to one jar that can be run
+   * without an agent, rather than writing loose classes to the destination directory.
+   */
+  public void setDestfile(File destFile) {
+    this.destFile = destFile;
+  }
+
+  public void setThreads(int threads) {
+    this.threads = threads;
+  }
+
+  /**
+   * Only instruments classes that are new or have changed since the last build into the
+   * destination directory, and removes the outputs of classes that no longer exist.
+   */
+  public void setIncremental(boolean incremental) {
+    this.incremental = incremental;
+  }
+
   public void addFileset(FileSet files) {
     this.files.add(files);
   }
 
   public void validate() {
-    if (bytecodeDir == null) {
-      throw new BuildException("Destination directory must be supplied", getLocation());
+    if (bytecodeDir == null && destFile == null) {
+      throw new BuildException("Destination directory or file must be supplied", getLocation());
     }
     if (files.size() < 1) {
       throw new BuildException("There is no target filesets", getLocation());
@@ -47,6 +80,10 @@ public class InstrumentTask extends Task {
 
   public void execute() throws BuildException {
     validate();
+    if (destFile != null) {
+      instrumentOffline();
+      return;
+    }
     if (!bytecodeDir.exists()) {
       bytecodeDir.mkdirs();
     }
@@ -54,6 +91,24 @@ public class InstrumentTask extends Task {
     InstrumentationProperties.WRITE_CLASS = true;
     InstrumentationProperties.BYTECODE_DIR = bytecodeDir.getAbsolutePath();
 
+    File manifest = new File(bytecodeDir, InstrumentManifest.PATH);
+    if (incremental && InstrumentedClass.isPortable()) {
+      try {
+        instrumentIncrementally(manifest);
+      } catch (IOException e) {
+        throw new BuildException("Could not update " + bytecodeDir, e, getLocation());
+      }
+      return;
+    }
+    if (incremental) {
+      log("Classes instrumented with the " + InstrumentationProperties.INSTRUMENTATION_APPROACH
+          + " approach and the " + InstrumentationProperties.COUNTER_LAYOUT
+          + " counter layout cannot be kept between builds, instrumenting every class");
+    }
+    // the outputs are about to stop matching them
+    manifest.delete();
+    new File(bytecodeDir, InstrumentedClass.RESOURCE).delete();
+
     files.forEach(path -> {
       for (Resource includedFile : path) {
         try {
@@ -78,4 +133,113 @@ public class InstrumentTask extends Task {
       }
     });
   }
+
+  /**
+   * Instruments the classes that have changed since the manifest was written. Unchanged classes
+   * are registered from the manifest first, so that classes instrumented now are given ids that
+   * do not clash with the ids baked into the outputs that are kept.
+   */
+  private void instrumentIncrementally(File manifestFile) throws IOException {
+    String options = InstrumentedClass.options();
+    InstrumentManifest previous = InstrumentManifest.read(manifestFile);
+    boolean reuse = previous != null && previous.getOptions().equals(options);
+    if (previous != null && !reuse) {
+      log("Instrumentation options have changed, instrumenting every class");
+    }
+    InstrumentManifest manifest = new InstrumentManifest(options);
+    List<String> changed = new ArrayList<>();
+    List<byte[]> changedBytes = new ArrayList<>();
+    Set<String> classNames = new HashSet<>();
+    int maxClassId = -1;
+    for (FileSet fileSet : files) {
+      File dir = fileSet.getDir(getProject());
+      for (String path : fileSet.getDirectoryScanner(getProject()).getIncludedFiles()) {
+        if (!path.endsWith(".class")) {
+          continue;
+        }
+        String className = ClassNameUtils.standardise(
+            path.substring(0, path.length() - ".class".length()).replace(File.separatorChar, '/'));
+        if (!classNames.add(className)) {
+          continue;
+        }
+        byte[] bytes = Files.readAllBytes(new File(dir, path).toPath());
+        String hash = InstrumentManifest.hash(bytes);
+        InstrumentManifest.Entry entry = reuse ? previous.get(className) : null;
+        if (entry != null && entry.getHash().equals(hash) && output(className).exists()
+            && (entry.getInstrumented() == null || entry.getInstrumented().register())) {
+          manifest.put(className, entry);
+          if (entry.getInstrumented() != null) {
+            maxClassId = Math.max(maxClassId, entry.getInstrumented().getClassId());
+          }
+        } else {
+          changed.add(className);
+          changedBytes.add(bytes);
+        }
+      }
+    }
+    ClassAnalyzer.reserveClassIds(maxClassId);
+
+    for (int i = 0; i < changed.size(); i++) {
+      String className = changed.get(i);
+      byte[] bytes = changedBytes.get(i);
+      List<InstrumentedClass> registered = new ArrayList<>(1);
+      byte[] instrumented;
+      try {
+        instrumented = icl.modifyBytes(className, bytes, registered::add);
+      } catch (IllegalClassFormatException | ClassNotFoundException e) {
+        // the previous manifest is left in place, so the class is tried again next time
+        throw new BuildException("Could not instrument " + className, e, getLocation());
+      }
+      File output = output(className);
+      output.getParentFile().mkdirs();
+      Files.write(output.toPath(), instrumented);
+      manifest.put(className, new InstrumentManifest.Entry(InstrumentManifest.hash(bytes),
+          registered.isEmpty() ? null : registered.get(0)));
+    }
+
+    int removed = 0;
+    if (previous != null) {
+      for (String className : previous.getClassNames()) {
+        if (!classNames.contains(className) && output(className).delete()) {
+          removed++;
+        }
+      }
+    }
+
+    List<InstrumentedClass> instrumented = new ArrayList<>();
+    for (InstrumentManifest.Entry entry : manifest.getEntries()) {
+      if (entry.getInstrumented() != null && entry.getInstrumented().isInstrumented()) {
+        instrumented.add(entry.getInstrumented());
+      }
+    }
+    File classes = new File(bytecodeDir, InstrumentedClass.RESOURCE);
+    classes.getParentFile().mkdirs();
+    try (DataOutputStream out = new DataOutputStream(new FileOutputStream(classes))) {
+      InstrumentedClass.writeAll(out, instrumented);
+    }
+    manifest.write(manifestFile);
+    log("Instrumented " + changed.size() + " new or changed classes, kept "
+        + (classNames.size() - changed.size()) + " unchanged and removed " + removed
+        + " in " + bytecodeDir);
+  }
+
+  private File output(String className) {
+    return new File(bytecodeDir, className + ".class");
+  }
+
+  private void instrumentOffline() throws BuildException {
+    OfflineInstrumenter instrumenter = new OfflineInstrumenter();
+    instrumenter.setParallelism(threads);
+    for (FileSet fileSet : files) {
+      DirectoryScanner scanner = fileSet.getDirectoryScanner(getProject());
+      instrumenter.addFiles(fileSet.getDir(getProject()),
+          Arrays.asList(scanner.getIncludedFiles()), destFile);
+    }
+    try {
+      int classes = instrumenter.run();
+      log("Instrumented " + classes + " classes into " + destFile);
+    } catch (IOException e) {
+      throw new BuildException("Could not write " + destFile, e, getLocation());
+    }
+  }
 }
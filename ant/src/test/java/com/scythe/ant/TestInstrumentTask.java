@@ -0,0 +1,185 @@
+package com.scythe.ant;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.scythe.instrumenter.InstrumentationProperties;
+import com.scythe.instrumenter.analysis.ClassAnalyzer;
+import com.scythe.instrumenter.instrumentation.InstrumentedClass;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import org.apache.commons.io.FileUtils;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.types.FileSet;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+public class TestInstrumentTask {
+
+  private String options;
+  private boolean writeClass;
+  private String bytecodeDir;
+  private File dir;
+  private File classes;
+  private File output;
+
+  @Before
+  public void setup() throws IOException {
+    options = InstrumentedClass.options();
+    writeClass = InstrumentationProperties.WRITE_CLASS;
+    bytecodeDir = InstrumentationProperties.BYTECODE_DIR;
+    ClassAnalyzer.reset();
+    dir = Files.createTempDirectory("incremental").toFile();
+    classes = new File(dir, "classes");
+    output = new File(dir, "instrumented");
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    InstrumentedClass.setOptions(options);
+    InstrumentationProperties.WRITE_CLASS = writeClass;
+    InstrumentationProperties.BYTECODE_DIR = bytecodeDir;
+    ClassAnalyzer.reset();
+    FileUtils.deleteDirectory(dir);
+  }
+
+  @Test
+  public void testManifestIsReadAsWritten() throws IOException {
+    writeClass("incremental/Kept", 1);
+    writeClass("incremental/Other", 2);
+    build();
+
+    File file = new File(output, InstrumentManifest.PATH);
+    InstrumentManifest manifest = InstrumentManifest.read(file);
+    assertNotNull(manifest);
+    File copy = new File(dir, "manifest");
+    manifest.write(copy);
+    InstrumentManifest read = InstrumentManifest.read(copy);
+
+    assertEquals(manifest.getOptions(), read.getOptions());
+    assertEquals(new ArrayList<>(manifest.getClassNames()), new ArrayList<>(read.getClassNames()));
+    for (String className : manifest.getClassNames()) {
+      InstrumentManifest.Entry entry = manifest.get(className);
+      assertEquals(entry.getHash(), read.get(className).getHash());
+      assertEquals(entry.getInstrumented().getClassId(),
+          read.get(className).getInstrumented().getClassId());
+    }
+    assertArrayEquals(Files.readAllBytes(file.toPath()), Files.readAllBytes(copy.toPath()));
+  }
+
+  @Test
+  public void testManifestWithoutMagicIsIgnored() throws IOException {
+    File file = new File(dir, "manifest");
+    FileUtils.writeStringToFile(file, "not a manifest", "UTF-8");
+    assertNull(InstrumentManifest.read(file));
+    assertNull(InstrumentManifest.read(new File(dir, "missing")));
+  }
+
+  @Test
+  public void testOnlyChangedClassesAreInstrumentedAgain() throws IOException {
+    writeClass("incremental/Unchanged", 1);
+    writeClass("incremental/Changed", 2);
+    writeClass("incremental/Removed", 3);
+    build();
+    InstrumentManifest first = InstrumentManifest.read(new File(output, InstrumentManifest.PATH));
+    byte[] changed = Files.readAllBytes(output("incremental/Changed").toPath());
+    // an output that is written again gets a new time
+    assertTrue(output("incremental/Unchanged").setLastModified(0));
+
+    // a later build runs in a new JVM
+    ClassAnalyzer.reset();
+    writeClass("incremental/Changed", 4);
+    assertTrue(new File(classes, "incremental/Removed.class").delete());
+    writeClass("incremental/Added", 5);
+    build();
+    InstrumentManifest second = InstrumentManifest.read(new File(output, InstrumentManifest.PATH));
+
+    assertEquals(0, output("incremental/Unchanged").lastModified());
+    assertEquals(first.get("incremental/Unchanged").getHash(),
+        second.get("incremental/Unchanged").getHash());
+    assertEquals(first.get("incremental/Unchanged").getInstrumented().getClassId(),
+        second.get("incremental/Unchanged").getInstrumented().getClassId());
+
+    assertNotEquals(first.get("incremental/Changed").getHash(),
+        second.get("incremental/Changed").getHash());
+    assertFalse(Arrays.equals(changed, Files.readAllBytes(output("incremental/Changed").toPath())));
+
+    assertFalse(output("incremental/Removed").exists());
+    assertNull(second.get("incremental/Removed"));
+
+    assertTrue(output("incremental/Added").exists());
+    assertNotNull(second.get("incremental/Added").getInstrumented());
+
+    Set<Integer> ids = new HashSet<>();
+    for (InstrumentManifest.Entry entry : second.getEntries()) {
+      assertTrue("class id " + entry.getInstrumented().getClassId() + " given out twice",
+          ids.add(entry.getInstrumented().getClassId()));
+    }
+    assertEquals(3, ids.size());
+  }
+
+  private void build() {
+    Project project = new Project();
+    project.init();
+    FileSet fileSet = new FileSet();
+    fileSet.setProject(project);
+    fileSet.setDir(classes);
+    fileSet.setIncludes("**/*.class");
+
+    InstrumentTask task = new InstrumentTask();
+    task.setProject(project);
+    task.init();
+    task.setDestdir(output);
+    task.setIncremental(true);
+    task.addFileset(fileSet);
+    task.execute();
+  }
+
+  private File output(String className) {
+    return new File(output, className + ".class");
+  }
+
+  /**
+   * Writes a class with a method that returns value when its argument is not 0, so that classes
+   * written with different values differ.
+   */
+  private void writeClass(String className, int value) throws IOException {
+    ClassWriter writer = new ClassWriter(ClassWriter.COMPUTE_FRAMES | ClassWriter.COMPUTE_MAXS);
+    writer.visit(Opcodes.V1_8, Opcodes.ACC_PUBLIC, className, null, "java/lang/Object", null);
+    MethodVisitor mv = writer.visitMethod(Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC, "run", "(I)I",
+        null, null);
+    mv.visitCode();
+    Label start = new Label();
+    mv.visitLabel(start);
+    mv.visitLineNumber(1, start);
+    Label zero = new Label();
+    mv.visitVarInsn(Opcodes.ILOAD, 0);
+    mv.visitJumpInsn(Opcodes.IFEQ, zero);
+    mv.visitLdcInsn(value);
+    mv.visitInsn(Opcodes.IRETURN);
+    mv.visitLabel(zero);
+    mv.visitLineNumber(2, zero);
+    mv.visitInsn(Opcodes.ICONST_0);
+    mv.visitInsn(Opcodes.IRETURN);
+    mv.visitMaxs(0, 0);
+    mv.visitEnd();
+    writer.visitEnd();
+    FileUtils.writeByteArrayToFile(new File(classes, className + ".class"), writer.toByteArray());
+  }
+}
@@ -7,6 +7,7 @@ import com.scythe.instrumenter.InstrumentationProperties;
 import com.scythe.instrumenter.analysis.ClassAnalyzer;
 import com.scythe.instrumenter.instrumentation.ClassReplacementTransformer;
 import com.scythe.instrumenter.instrumentation.InstrumentingClassLoader;
+import com.scythe.instrumenter.instrumentation.OfflineInstrumenter;
 import com.scythe.instrumenter.instrumentation.objectrepresentation.Line;
 import com.scythe.instrumenter.instrumentation.objectrepresentation.LineHit;
 
@@ -17,6 +18,7 @@ import java.lang.instrument.Instrumentation;
 import java.lang.reflect.Type;
 import java.security.Permission;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -179,6 +181,17 @@ public class Scythe {
   }
 
   public static void main(String... args) {
+    if (args.length > 0 && args[0].equals("instrument")) {
+      for (String s : forbiddenPackages) {
+        ClassReplacementTransformer.addForbiddenPackage(s);
+      }
+      try {
+        OfflineInstrumenter.main(Arrays.copyOfRange(args, 1, args.length));
+      } catch (IOException e) {
+        e.printStackTrace(ClassAnalyzer.out);
+      }
+      return;
+    }
     InstrumentationProperties.instance().setOptions(args);
     ClassAnalyzer.out.println(NAME);
     for (char c : NAME.substring(1).toCharArray()) {
@@ -44,7 +44,15 @@ public class InstrumentationProperties implements PropertySource {
   }
 
   public enum InstrumentationApproach {
-    STATIC, ARRAY, NONE
+    STATIC, ARRAY, BOOLEAN, PROFILE, NONE
+  }
+
+  public enum ProbePlacement {
+    GOAL, SPANNING_TREE
+  }
+
+  public enum CounterLayout {
+    CLASS, STRIPED, MAPPED, GLOBAL
   }
 
   @Parameter(key = "source_dir", description = "Source code directory",
@@ -73,15 +81,42 @@ public class InstrumentationProperties implements PropertySource {
   @Parameter(key = "log_filename", description = "Select the file name for the log file. Files are divided into folders for coverage etc", category = "Logging")
   public static String LOG_FILENAME = "";
 
-  @Parameter(key = "instrumentation_approach", description = "Determines the approach to be used during class instrumentation. A static approach inserts calls to ClassAnalyzer.lineFound etc to track which lines/branches have been covered. Using an array stores all line/branch executions in an array of integers and has a method to get all the values", hasArgs = true, category = "Instrumentation")
+  @Parameter(key = "instrumentation_approach", description = "Determines the approach to be used during class instrumentation. A static approach inserts calls to ClassAnalyzer.lineExecuted etc to track which lines/branches have been covered. The calls count hits per thread without locking, and the counts are read by ClassAnalyzer.collectHitCounters like those of the array approach. Using an array stores all line/branch executions in an array of integers and has a method to get all the values. BOOLEAN stores a single covered flag per line/branch in a boolean array, so hit counts are reported as 0 or 1 but probes are smaller and cheaper. PROFILE does not record coverage, but times every method with System.nanoTime, recording its invocation count and its total and maximum self and inclusive time in a long[] per class, read by ClassAnalyzer.getMethodProfiles", hasArgs = true, category = "Instrumentation")
   public static InstrumentationApproach INSTRUMENTATION_APPROACH = InstrumentationApproach.ARRAY;
 
+  @Parameter(key = "counter_layout", description = "Determines how hit counters are stored when using the array approach. CLASS uses one shared int[] per class. STRIPED gives every thread its own int[] per class, which keeps counts exact and avoids cache-line contention under heavy multi-threaded load at the cost of one array per class per live thread. MAPPED keeps the counters in the memory mapped file given by coverage_map_file, so they survive the JVM being killed and can be read by another process at any time. GLOBAL gives each class a constant offset into one array shared by all classes, so coverage is collected with a single array copy. GLOBAL offsets only hold for the JVM that instrumented the class, so it cannot be used for classes written to disk", hasArgs = true, category = "Instrumentation")
+  public static CounterLayout COUNTER_LAYOUT = CounterLayout.CLASS;
+
+  @Parameter(key = "coverage_map_file", description = "File holding the hit counters when counter_layout is MAPPED. Records written by earlier JVMs are kept and new ones added after them, unless the file is not a coverage file of this version, when it is started again. It can be read with com.scythe.instrumenter.analysis.MappedCoverageReader", hasArgs = true, category = "Instrumentation")
+  public static String COVERAGE_MAP_FILE = "scythe.coverage.map";
+
+  @Parameter(key = "epoch_interval", description = "When greater than 0, a background thread appends the hits of every interval of this many seconds to the time series in epoch_file, without resetting any counters. Only used by the array and boolean approaches", hasArgs = true, category = "Instrumentation")
+  public static int EPOCH_INTERVAL = 0;
+
+  @Parameter(key = "epoch_file", description = "File the epoch_interval time series is appended to. It can be queried with com.scythe.instrumenter.analysis.EpochSeries, e.g. for the lines executed in the last 24 hours or never executed since the file was created", hasArgs = true, category = "Instrumentation")
+  public static String EPOCH_FILE = "scythe.epochs";
+
+  @Parameter(key = "checkpoint_interval", description = "When greater than 0, a background thread appends the hits made in every interval of this many seconds to the coverage log in checkpoint_file, so a JVM that dies badly loses at most one interval of coverage. With use_changed_flag only the classes hit since the last checkpoint are read. The log is compacted into a single snapshot when the JVM exits normally. Only used by the array and boolean approaches", hasArgs = true, category = "Instrumentation")
+  public static int CHECKPOINT_INTERVAL = 0;
+
+  @Parameter(key = "checkpoint_file", description = "File the checkpoint_interval coverage log is appended to. It can be read and compacted with com.scythe.instrumenter.analysis.CoverageLog", hasArgs = true, category = "Instrumentation")
+  public static String CHECKPOINT_FILE = "scythe.coverage.log";
+
+  @Parameter(key = "checkpoint_fsync", description = "Whether every checkpoint is forced to disk before the next one is taken. Without it a checkpoint survives the JVM dying, but not the machine", hasArgs = true, category = "Instrumentation")
+  public static boolean CHECKPOINT_FSYNC = true;
+
+  @Parameter(key = "sample_rate", description = "When greater than 1, array approach probes with the CLASS or GLOBAL counter layout always record the first hit of each line and branch, then only count the later hits made in one in sample_rate method invocations and loop iterations, picked with a countdown held by each thread. Off by default, as the countdown costs more than the increments it saves unless many cores run the same code. Coverage is exact, while hit counts are estimates scaled back up when coverage is collected. Turns off SPANNING_TREE probe placement, which needs exact counts", hasArgs = true, category = "Instrumentation")
+  public static int SAMPLE_RATE = 1;
+
   @Parameter(key = "instrument_lines", description = "Switch on line instrumentation", hasArgs = true, category = "Instrumentation")
   public static boolean INSTRUMENT_LINES = true;
 
   @Parameter(key = "instrument_branches", description = "Switch on branch instrumentation", hasArgs = true, category = "Instrumentation")
   public static boolean INSTRUMENT_BRANCHES = true;
 
+  @Parameter(key = "instrument_allocations", description = "Count the objects and arrays allocated by each NEW, NEWARRAY, ANEWARRAY and MULTIANEWARRAY instruction, and the number of elements of the arrays, in the hit counters of the array and boolean approaches. Read with ClassAnalyzer.getAllocationSites", hasArgs = true, category = "Instrumentation")
+  public static boolean INSTRUMENT_ALLOCATIONS = false;
+
   @Parameter(key = "null_output", description = "Value to output to CSV for" +
       " null objects", category = "Output")
   private static final String NULL_VALUE_OUTPUT = "NA";
@@ -104,7 +139,19 @@ public class InstrumentationProperties implements PropertySource {
   @Parameter(key = "use_changed_flag", description = "It is possible to add a flag through instrumentation that will tell the ClassAnalyzer that a class has changed in some way. This creates a form of hybrid approach to instrumentation, but saves work at the time of collecting coverage data", hasArgs = true, category = "Instrumentation")
   public static boolean USE_CHANGED_FLAG = true;
 
-  @Parameter(key = "track_active_testcase", description = "When collecting coverage information, it is possible to include information about which test case covered each line. If this argument is true, use ClassAnalyzer.setActiveTest(TestCase), and then each line/branch object will have a list of test cases that cover it, accessed by CoverableGoal.getCoveringTests", hasArgs = true, category = "Testing")
+  @Parameter(key = "probe_placement", description = "Determines where probes are placed when using the array approach. GOAL increments a counter at every line and branch. SPANNING_TREE only probes the control flow edges that are not on a maximum spanning tree of each method, favouring edges inside loops for the tree, and rebuilds line and branch counts from the edge counts when coverage is collected. Branch distances are not recorded, methods with exception handlers use GOAL, and lines in a block left by an exception may be under counted", hasArgs = true, category = "Instrumentation")
+  public static ProbePlacement PROBE_PLACEMENT = ProbePlacement.GOAL;
+
+  @Parameter(key = "init_counters_in_clinit", description = "Create the hit and distance counter arrays once in the static initializer of each instrumented class and hold them in static final fields, so the JIT compiler can drop the null check at the start of every method once the class is initialised, and the changed flag is not checked. A method that runs before the static initializer, from the initializer of a super class, creates the counters itself. Counters are then reset in place, and the collector reads every initialised class rather than relying on use_changed_flag", hasArgs = true, category = "Instrumentation")
+  public static boolean INIT_COUNTERS_IN_CLINIT = false;
+
+  @Parameter(key = "use_bytecode_cache", description = "Keep the bytecode produced for each class by the array and boolean approaches, keyed by a hash of the original class and the instrumentation options, so a class loaded again (in this JVM, or in a later one through bytecode_cache_dir) skips instrumentation. Frames are computed from the class hierarchy of the JVM that instrumented the class, so the cache should be cleared when dependencies change. Not used with the GLOBAL counter layout, mutation, dependency trees, super class replacements or ClassInstrumentingInterceptors", hasArgs = true, category = "Instrumentation")
+  public static boolean USE_BYTECODE_CACHE = false;
+
+  @Parameter(key = "bytecode_cache_dir", description = "Directory use_bytecode_cache keeps instrumented classes in between JVMs. If empty, classes are only cached in memory. Classes cached by other builds or superseded by a newer version of the class are deleted when the directory is opened", hasArgs = true, category = "Instrumentation")
+  public static String BYTECODE_CACHE_DIR = System.getProperty("user.home") + "/.scythe/bytecode-cache/";
+
+  @Parameter(key = "track_active_testcase", description = "When collecting coverage information, it is possible to include information about which test case covered each line. If this argument is true, use ClassAnalyzer.setActiveTest(TestCase), and then the test cases that hit each line/branch are recorded when coverage is collected, once per test, accessed by CoverableGoal.getCoveringTests, or the other way round by com.scythe.instrumenter.analysis.CoverageMatrix.getCoveredGoals", hasArgs = true, category = "Testing")
   public static boolean TRACK_ACTIVE_TESTCASE = false;
 
   protected Map<String, Field> parameterMap = new HashMap<String, Field>();
@@ -151,6 +198,16 @@ public class InstrumentationProperties implements PropertySource {
     return parameterMap.keySet();
   }
 
+  /**
+   * @return the current value of a parameter, in the form {@link #setParameter} accepts
+   */
+  public String getParameter(String key) throws IllegalAccessException {
+    if (!parameterMap.containsKey(key)) {
+      throw new IllegalArgumentException("Key "+key+" not found in parameter map!");
+    }
+    return String.valueOf(parameterMap.get(key).get(null));
+  }
+
   private static InstrumentationProperties instance;
 
   public static InstrumentationProperties instance() {
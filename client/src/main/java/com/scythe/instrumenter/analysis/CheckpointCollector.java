@@ -0,0 +1,170 @@
+package com.scythe.instrumenter.analysis;
+
+import com.scythe.instrumenter.InstrumentationProperties;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+
+/**
+ * Appends the hits made since the last checkpoint to a coverage log (see {@link CoverageLog}) at
+ * a fixed interval, so a JVM that dies without running its shutdown hooks loses at most one
+ * interval of coverage. The log is compacted into a single snapshot when the JVM exits normally.
+ *
+ * Classes that mark themselves in {@link DirtyClasses} when hit have their changed flag cleared by
+ * each checkpoint, so the next checkpoint only reads the classes hit since, and an idle program
+ * writes nothing. Classes instrumented without a changed flag are all read at every checkpoint.
+ * The counters each class had at its last checkpoint are the only state kept.
+ */
+public class CheckpointCollector {
+
+  private static CheckpointCollector instance;
+
+  private final File file;
+  private final FileOutputStream out;
+  private final boolean sync;
+  private final HitDeltas deltas = new HitDeltas();
+  private final Timer timer;
+  private boolean stopped = false;
+
+  private CheckpointCollector(File file, long interval, boolean sync) throws IOException {
+    if (file.getParentFile() != null && !file.getParentFile().exists()) {
+      file.getParentFile().mkdirs();
+    }
+    this.file = file;
+    this.sync = sync;
+    boolean created = !file.exists() || file.length() == 0;
+    if (!created) {
+      CoverageLog.recover(file);
+    }
+    out = new FileOutputStream(file, true);
+    if (created) {
+      CoverageLog.writeHeader(out);
+    }
+    ByteArrayOutputStream session = new ByteArrayOutputStream();
+    DataOutputStream records = new DataOutputStream(session);
+    records.writeByte(CoverageLog.SESSION);
+    records.writeLong(System.currentTimeMillis());
+    CoverageLog.writeBatch(out, session, sync);
+
+    timer = new Timer("scythe-checkpoint-collector", true);
+    timer.scheduleAtFixedRate(new TimerTask() {
+      @Override
+      public void run() {
+        checkpoint();
+      }
+    }, interval, interval);
+    Runtime.getRuntime().addShutdownHook(new Thread(() -> stop()));
+  }
+
+  /**
+   * Starts writing checkpoints every {@link InstrumentationProperties#CHECKPOINT_INTERVAL} seconds
+   * to {@link InstrumentationProperties#CHECKPOINT_FILE}, if it is not already running.
+   */
+  public static synchronized void start() {
+    if (instance != null || InstrumentationProperties.CHECKPOINT_INTERVAL <= 0) {
+      return;
+    }
+    try {
+      instance = new CheckpointCollector(new File(InstrumentationProperties.CHECKPOINT_FILE),
+          InstrumentationProperties.CHECKPOINT_INTERVAL * 1000L,
+          InstrumentationProperties.CHECKPOINT_FSYNC);
+    } catch (IOException e) {
+      e.printStackTrace(ClassAnalyzer.out);
+    }
+  }
+
+  public static synchronized CheckpointCollector getInstance() {
+    return instance;
+  }
+
+  /**
+   * Writes a checkpoint if a collector is running, before the counters are reset, so that no
+   * hits are lost from counters that go back to zero on reset (see {@link HitDeltas}).
+   */
+  public static void beforeReset() {
+    CheckpointCollector collector = getInstance();
+    if (collector != null) {
+      collector.checkpointBeforeReset();
+    }
+  }
+
+  private synchronized void checkpointBeforeReset() {
+    checkpoint();
+    deltas.beforeReset();
+  }
+
+  /**
+   * Appends the hits made since the last checkpoint to the log as one batch.
+   */
+  public synchronized void checkpoint() {
+    if (stopped) {
+      return;
+    }
+    long time = System.currentTimeMillis();
+    Map<Integer, int[]> current;
+    if (ClassAnalyzer.marksHitClasses()) {
+      current = new HashMap<Integer, int[]>();
+      for (int classId : DirtyClasses.drainUnsaved()) {
+        // cleared before reading, so a hit made while reading marks the class again
+        ProbeArrays.clearChanged(classId);
+        int[] counters = ClassAnalyzer.readHitCounters(classId);
+        if (counters != null) {
+          current.put(classId, counters);
+        }
+      }
+    } else {
+      current = ClassAnalyzer.readHitCounters();
+    }
+    try {
+      ByteArrayOutputStream batch = new ByteArrayOutputStream();
+      DataOutputStream records = new DataOutputStream(batch);
+      ByteArrayOutputStream checkpoint = new ByteArrayOutputStream();
+      DataOutputStream hits = new DataOutputStream(checkpoint);
+      int classes = 0;
+      for (Map.Entry<Integer, int[]> entry : current.entrySet()) {
+        int classId = entry.getKey();
+        if (deltas.write(hits, classId, entry.getValue(), true)) {
+          if (deltas.isNew(classId)) {
+            CoverageLog.writeClass(records, classId, ClassAnalyzer.getClassName(classId),
+                ClassAnalyzer.getCounterLines(classId, entry.getValue().length));
+          }
+          classes++;
+        }
+      }
+      if (classes == 0) {
+        return;
+      }
+      records.writeByte(CoverageLog.HITS);
+      records.writeLong(time);
+      EpochSeries.writeVarInt(records, classes);
+      checkpoint.writeTo(records);
+      CoverageLog.writeBatch(out, batch, sync);
+    } catch (IOException e) {
+      e.printStackTrace(ClassAnalyzer.out);
+    }
+  }
+
+  /**
+   * Writes a last checkpoint, closes the log and compacts it.
+   */
+  public synchronized void stop() {
+    if (stopped) {
+      return;
+    }
+    timer.cancel();
+    checkpoint();
+    stopped = true;
+    try {
+      out.close();
+      CoverageLog.compact(file);
+    } catch (IOException e) {
+      e.printStackTrace(ClassAnalyzer.out);
+    }
+  }
+}
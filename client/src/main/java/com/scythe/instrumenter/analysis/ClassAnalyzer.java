@@ -6,17 +6,22 @@ import com.google.gson.stream.JsonReader;
 import com.google.gson.stream.JsonWriter;
 import com.scythe.instrumenter.FileHandler;
 import com.scythe.instrumenter.InstrumentationProperties;
+import com.scythe.instrumenter.InstrumentationProperties.CounterLayout;
 import com.scythe.instrumenter.InstrumentationProperties.InstrumentationApproach;
 import com.scythe.instrumenter.analysis.task.AbstractTask;
 import com.scythe.instrumenter.analysis.task.Task;
 import com.scythe.instrumenter.analysis.task.TaskTimer;
 import com.scythe.instrumenter.instrumentation.ClassStore;
+import com.scythe.instrumenter.instrumentation.InstrumentedClass;
 import com.scythe.instrumenter.instrumentation.LoggingUncaughtExceptionHandler;
+import com.scythe.instrumenter.instrumentation.objectrepresentation.AllocationSite;
 import com.scythe.instrumenter.instrumentation.objectrepresentation.Branch;
 import com.scythe.instrumenter.instrumentation.objectrepresentation.BranchHit;
 import com.scythe.instrumenter.instrumentation.objectrepresentation.Line;
 import com.scythe.instrumenter.instrumentation.objectrepresentation.LineHit;
+import com.scythe.instrumenter.instrumentation.objectrepresentation.MethodProfile;
 import com.scythe.instrumenter.instrumentation.visitors.ArrayClassVisitor;
+import com.scythe.instrumenter.instrumentation.visitors.ProfileClassVisitor;
 import com.scythe.instrumenter.testcase.TestCaseWrapper;
 import com.scythe.output.Csv;
 import com.scythe.util.ClassNameUtils;
@@ -25,6 +30,7 @@ import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.PrintStream;
+import java.lang.reflect.Array;
 import java.lang.reflect.Field;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
@@ -34,6 +40,7 @@ import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
@@ -53,6 +60,10 @@ public class ClassAnalyzer {
 
   private static ConcurrentHashMap<Integer, Map<Integer, BranchHit>> branches;
 
+  private static ConcurrentHashMap<Integer, List<MethodProfile>> profiles;
+
+  private static ConcurrentHashMap<Integer, List<AllocationSite>> allocations;
+
   private static Map<Integer, String> classIds;
   private static Map<String, Integer> classNames;
 
@@ -85,11 +96,13 @@ public class ClassAnalyzer {
     branches = new ConcurrentHashMap<Integer, Map<Integer, BranchHit>>();
 
     branchesDistance = new ArrayList<String>();
-    classIds = new HashMap<Integer, String>();
-    classNames = new HashMap<String, Integer>();
+    classIds = new ConcurrentHashMap<Integer, String>();
+    classNames = new ConcurrentHashMap<String, Integer>();
     branchTypes = new HashMap<String, BranchType>();
     branchDistance = new HashMap<String, Float>();
     lines = new ConcurrentHashMap<Integer, Map<Integer, LineHit>>();
+    profiles = new ConcurrentHashMap<Integer, List<MethodProfile>>();
+    allocations = new ConcurrentHashMap<Integer, List<AllocationSite>>();
     distancesWaiting = new ArrayList<String>();
 
     callFrequencies = new HashMap<String, Integer>();
@@ -98,6 +111,7 @@ public class ClassAnalyzer {
   }
 
   public static ArrayList<LineHit> getTotalLines() {
+    materializeGoals();
 
     ArrayList<LineHit> lin = new ArrayList<LineHit>();
     HashMap<Integer, Map<Integer, LineHit>> linesCopy = new HashMap<Integer, Map<Integer, LineHit>>(
@@ -115,17 +129,25 @@ public class ClassAnalyzer {
    */
   @Deprecated
   public static Map<Integer, Map<Integer, BranchHit>> getTotalBranches() {
+    materializeGoals();
     return branches;
   }
 
   public static Map<Integer, Map<Integer, LineHit>> getRawLines() {
+    materializeGoals();
+    keepCoveringTests();
     return new HashMap<>(lines);
   }
 
   public static Map<Integer, Map<Integer, BranchHit>> getRawBranches() {
+    materializeGoals();
+    keepCoveringTests();
     return new HashMap<>(branches);
   }
 
+  /**
+   * Forgets every class and goal, along with their coverage.
+   */
   public static void reset() {
     List<Field> fields = Arrays.asList(ClassAnalyzer.class.getDeclaredFields()).stream().filter(
         f -> Collection.class.isAssignableFrom(f.getType()) ||
@@ -144,9 +166,27 @@ public class ClassAnalyzer {
         e.printStackTrace();
       }
     }
+    ClassGoals.clear();
+    CoverageMatrix.clear();
+    ClassStore.clearInitialised();
+    // every class has been forgotten, so ids are given out from the start again, and nothing may
+    // be left registered under them. Classes instrumented before the reset keep their old ids
+    // and should not be run after it
+    ProbeArrays.clear();
+    DirtyClasses.clear();
+    GlobalCounters.clear();
+    StaticCounters.clear();
+    FlowGraph.clear();
+    synchronized (ClassAnalyzer.class) {
+      classId = -1;
+      branchId = 0;
+      InstrumentedClass.forgetOffline();
+    }
   }
 
   public static void softReset() {
+    EpochCollector.beforeReset();
+    CheckpointCollector.beforeReset();
     for (Map<Integer, BranchHit> mb : branches.values()) {
       for (BranchHit b : mb.values()) {
         b.reset();
@@ -158,14 +198,38 @@ public class ClassAnalyzer {
         l.reset();
       }
     }
+    ClassGoals.resetAll();
 
-    ArrayList<Class<?>> changed = new ArrayList<Class<?>>(changedClasses);
+    List<Class<?>> changed = takeChangedClasses(true);
+    if (InstrumentationProperties.INIT_COUNTERS_IN_CLINIT) {
+      changed = ClassStore.getInitialised();
+    }
 
     for (int i = 0; i < changed.size(); i++) {
       resetHitCounters(changed.get(i));
     }
+    if (usesGlobalCounters()) {
+      GlobalCounters.reset();
+    }
+    if (usesStaticCounters()) {
+      StaticCounters.resetAll();
+    }
 
-    changedClasses.clear();
+    for (List<MethodProfile> mp : profiles.values()) {
+      for (MethodProfile p : mp) {
+        p.reset();
+      }
+    }
+    for (List<AllocationSite> sites : allocations.values()) {
+      for (AllocationSite site : sites) {
+        site.reset();
+      }
+    }
+    if (usesProfiling()) {
+      for (Class<?> cl : ClassStore.getInitialised()) {
+        resetProfileCounters(cl);
+      }
+    }
   }
 
   public static void setBranches(Map<Integer, Map<Integer, BranchHit>> b) {
@@ -188,6 +252,7 @@ public class ClassAnalyzer {
   }
 
   public static void setLines(Map<Integer, Map<Integer, LineHit>> l) {
+    detachGoals();
     ConcurrentHashMap<Integer, Map<Integer, LineHit>> newLines = new ConcurrentHashMap<>();
     for (Integer i : l.keySet()) {
       Map<Integer, LineHit> b2 = l.get(i);
@@ -215,19 +280,36 @@ public class ClassAnalyzer {
         lh.reset();
       }
     }
-    if (InstrumentationProperties.INSTRUMENTATION_APPROACH == InstrumentationApproach.ARRAY
-        && InstrumentationProperties.USE_CHANGED_FLAG) {
-      for (Class<?> cl : changedClasses) {
+    ClassGoals.resetAll();
+
+    for (List<MethodProfile> mp : profiles.values()) {
+      for (MethodProfile p : mp) {
+        p.reset();
+      }
+    }
+    for (List<AllocationSite> sites : allocations.values()) {
+      for (AllocationSite site : sites) {
+        site.reset();
+      }
+    }
+    if (usesStaticCounters()) {
+      StaticCounters.resetAll();
+    }
+    List<Class<?>> changedSinceReset = takeChangedClasses(false);
+    if (usesCounterArrays() && usesChangedFlag()) {
+      // classes instrumented before changed flags were held in ProbeArrays
+      for (Class<?> cl : changedSinceReset) {
         try {
           Field changed = cl.getDeclaredField("__changed");
           changed.setAccessible(true);
           changed.set(cl, false);
+        } catch (NoSuchFieldException e) {
+          ProbeArrays.clearChanged(getClassId(cl.getName()));
         } catch (Exception e) {
           e.printStackTrace(out);
         }
       }
     }
-    changedClasses.clear();
   }
 
   public static void addThrowableListener(ThrowableListener tl) {
@@ -251,12 +333,31 @@ public class ClassAnalyzer {
   }
 
   private static int classId = -1;
-
-  public static int registerClass(String className) {
-    return registerClass(className, ++classId);
+  // ids kept for classes that may be registered later without one, by class name and by id
+  private static final Map<String, Integer> reservedIds = new HashMap<String, Integer>();
+  private static final Map<Integer, String> reservedClasses = new HashMap<Integer, String>();
+
+  public static synchronized int registerClass(String className) {
+    // ids baked into classes instrumented ahead of time are taken before any are given out
+    InstrumentedClass.registerOffline();
+    // a class registered again keeps its id without using up another, so ids given out in order
+    // do not depend on how many times each class was registered
+    String clazz = ClassNameUtils.standardise(className);
+    Integer registered = classNames.get(clazz);
+    if (registered != null) {
+      return registered;
+    }
+    Integer reserved = reservedIds.get(clazz);
+    if (reserved != null && !classIds.containsKey(reserved)) {
+      return registerClass(className, reserved);
+    }
+    do {
+      classId++;
+    } while (reservedClasses.containsKey(classId));
+    return registerClass(className, classId);
   }
 
-  public static int registerClass(String className, int classId) {
+  public static synchronized int registerClass(String className, int classId) {
 
     String clazz = ClassNameUtils.standardise(className);
 
@@ -273,6 +374,28 @@ public class ClassAnalyzer {
     return classId;
   }
 
+  /**
+   * Makes sure classes registered from now on without an id are given ids above maxClassId, so
+   * they cannot take the ids baked into bytecode instrumented by an earlier JVM.
+   */
+  public static synchronized void reserveClassIds(int maxClassId) {
+    classId = Math.max(classId, maxClassId);
+  }
+
+  /**
+   * Keeps an id for a class that may be registered later, such as one whose instrumented bytecode
+   * was cached by an earlier JVM. The class is given the id when it registers without one, and
+   * other classes registering without one are not.
+   */
+  public static synchronized void reserveClassId(String className, int classId) {
+    String clazz = ClassNameUtils.standardise(className);
+    if (!classIds.containsKey(classId) && !reservedClasses.containsKey(classId)
+        && !reservedIds.containsKey(clazz)) {
+      reservedIds.put(clazz, classId);
+      reservedClasses.put(classId, clazz);
+    }
+  }
+
   public static int branchFound(int classId, int lineNumber) {
     return branchFound(classId, lineNumber, getNewBranchId());
   }
@@ -301,7 +424,22 @@ public class ClassAnalyzer {
 
   }
 
-  public static synchronized void branchExecuted(boolean hit, int classId, int branchId) {
+  /**
+   * Called by branches instrumented with the STATIC approach. Classes instrumented in this JVM
+   * count the hit in their {@link StaticCounters} without taking a lock.
+   */
+  public static void branchExecuted(boolean hit, int classId, int branchId) {
+    StaticCounters counters = StaticCounters.get(classId);
+    if (counters == null || !counters.branchExecuted(branchId)) {
+      untrackedBranchExecuted(classId, branchId);
+    }
+  }
+
+  /**
+   * Records a hit of a class instrumented in another JVM, such as one written out with
+   * {@link InstrumentationProperties#WRITE_CLASS}, creating its goal on the first hit.
+   */
+  private static synchronized void untrackedBranchExecuted(int classId, int branchId) {
     if (branches.get(classId) == null) {
       branches.put(classId, new HashMap<Integer, BranchHit>());
     }
@@ -319,10 +457,7 @@ public class ClassAnalyzer {
       if (InstrumentationProperties.TRACK_ACTIVE_TESTCASE) {
         bh.getBranch().addCoveringTest(activeTestCase);
       }
-      Class<?> cl = ClassStore.get(bh.getBranch().getClassName());
-      if (!changedClasses.contains(cl)) {
-        changedClasses.add(cl);
-      }
+      DirtyClasses.mark(classId);
     }
   }
 
@@ -364,6 +499,7 @@ public class ClassAnalyzer {
   }
 
   public static double getBranchCoverage() {
+    materializeGoals();
     int branchesTotal = 0;
     int branchesExecuted = 0;
     Set<Integer> keys = new HashMap<>(branches).keySet();
@@ -431,6 +567,7 @@ public class ClassAnalyzer {
   }
 
   public static synchronized List<BranchHit> getBranchesExecuted() {
+    materializeGoals();
     List<BranchHit> branchesHit = new ArrayList<BranchHit>();
 
     Iterator<Integer> iter = new HashMap<>(branches).keySet().iterator();
@@ -447,6 +584,7 @@ public class ClassAnalyzer {
   }
 
   public static synchronized List<BranchHit> getBranchesNotExecuted() {
+    materializeGoals();
     List<BranchHit> branchesHit = new ArrayList<BranchHit>();
     for (int classId : branches.keySet()) {
       for (BranchHit b : branches.get(classId).values()) {
@@ -459,6 +597,7 @@ public class ClassAnalyzer {
   }
 
   public static synchronized List<BranchHit> getAllBranches() {
+    materializeGoals();
     List<BranchHit> branchesHit = new ArrayList<BranchHit>();
     for (int classId : branches.keySet()) {
       for (BranchHit b : branches.get(classId).values()) {
@@ -484,7 +623,18 @@ public class ClassAnalyzer {
     lines.get(classId).get(lineNumber).getLine().setGoalId(lineNumber);
   }
 
+  /**
+   * Called by lines instrumented with the STATIC approach. Classes instrumented in this JVM count
+   * the hit in their {@link StaticCounters} without taking a lock.
+   */
   public static void lineExecuted(int classId, int lineNumber) {
+    StaticCounters counters = StaticCounters.get(classId);
+    if (counters == null || !counters.lineExecuted(lineNumber)) {
+      untrackedLineExecuted(classId, lineNumber);
+    }
+  }
+
+  private static synchronized void untrackedLineExecuted(int classId, int lineNumber) {
     if (!lines.containsKey(classId)) {
       lines.put(classId, new HashMap<Integer, LineHit>());
     }
@@ -496,9 +646,67 @@ public class ClassAnalyzer {
     if (InstrumentationProperties.TRACK_ACTIVE_TESTCASE) {
       lh.getLine().addCoveringTest(activeTestCase);
     }
-    Class<?> cl = ClassStore.get(lh.getLine().getClassName());
-    if (!changedClasses.contains(cl)) {
-      changedClasses.add(cl);
+    DirtyClasses.mark(classId);
+  }
+
+  /**
+   * Called once a class has been instrumented with the STATIC approach, when all of its lines and
+   * branches have been found, to create its counters.
+   */
+  public static void staticClassAnalyzed(int classId) {
+    int lineCount = 0;
+    if (lines.containsKey(classId)) {
+      for (int lineNumber : lines.get(classId).keySet()) {
+        lineCount = Math.max(lineCount, lineNumber + 1);
+      }
+    }
+    int firstBranch = 0;
+    int lastBranch = -1;
+    if (branches.containsKey(classId) && !branches.get(classId).isEmpty()) {
+      firstBranch = Collections.min(branches.get(classId).keySet());
+      lastBranch = Collections.max(branches.get(classId).keySet());
+    }
+    StaticCounters.register(classId, lineCount, firstBranch, lastBranch - firstBranch + 1);
+  }
+
+  private static void collectStaticCounters(boolean reset) {
+    for (int classId : new ArrayList<Integer>(classIds.keySet())) {
+      StaticCounters counters = StaticCounters.get(classId);
+      if (counters == null) {
+        continue;
+      }
+      int[] counts = counters.sum();
+      if (reset) {
+        counters.reset();
+      }
+      Map<Integer, LineHit> classLines = lines.get(classId);
+      if (classLines != null) {
+        for (Map.Entry<Integer, LineHit> entry : classLines.entrySet()) {
+          if (entry.getKey() < counters.getLineCount() && counts[entry.getKey()] > 0) {
+            Line line = entry.getValue().getLine();
+            line.hit(counts[entry.getKey()]);
+            if (InstrumentationProperties.TRACK_ACTIVE_TESTCASE) {
+              line.addCoveringTest(activeTestCase);
+            }
+          }
+        }
+      }
+      Map<Integer, BranchHit> classBranches = branches.get(classId);
+      if (classBranches != null) {
+        for (Map.Entry<Integer, BranchHit> entry : classBranches.entrySet()) {
+          int index = entry.getKey() - counters.getFirstBranch();
+          if (index >= 0 && index < counters.getBranchCount()
+              && counts[counters.getLineCount() + index] > 0) {
+            Branch branch = entry.getValue().getBranch();
+            // branch hits are added up, so set them by resetting first
+            branch.reset();
+            branch.hit(counts[counters.getLineCount() + index]);
+            if (InstrumentationProperties.TRACK_ACTIVE_TESTCASE) {
+              branch.addCoveringTest(activeTestCase);
+            }
+          }
+        }
+      }
     }
   }
 
@@ -566,6 +774,7 @@ public class ClassAnalyzer {
   }
 
   public static float getLineCoverage() {
+    materializeGoals();
     int totalLines = 0;
     int coveredLines = 0;
     Set<Integer> keys = new HashMap<>(lines).keySet();
@@ -589,6 +798,7 @@ public class ClassAnalyzer {
 
   public static double getLineCoverage(String className) {
     int classId = classNames.get(ClassNameUtils.standardise(className));
+    materializeGoals(classId);
     Map<Integer, LineHit> classLines = lines.get(classId);
     int linesCovered = 0;
     int totalLines = classLines.size();
@@ -604,6 +814,7 @@ public class ClassAnalyzer {
 
   public static double getBranchCoverage(String className) {
     int classId = classNames.get(ClassNameUtils.standardise(className));
+    materializeGoals(classId);
     Map<Integer, BranchHit> classBranches = branches.get(classId);
     int branchesCovered = 0;
     int totalBranches = classBranches.size();
@@ -629,6 +840,8 @@ public class ClassAnalyzer {
       forbid[i] = ClassNameUtils.standardise(forbid[i]);
     }
 
+    materializeGoals();
+    keepCoveringTests();
     try {
 
       HashMap<Integer, Map<Integer, BranchHit>> outputBranches = new HashMap<Integer, Map<Integer, BranchHit>>();
@@ -664,60 +877,228 @@ public class ClassAnalyzer {
     }
   }
 
-  public static void classAnalyzed(int classId, List<BranchHit> branchHitCounterIds,
+  /**
+   * Called once a class has been instrumented with counter arrays. Its goals are held in
+   * {@link ClassGoals} rather than as objects until they are asked for.
+   */
+  public static synchronized void classAnalyzed(int classId, List<BranchHit> branchHitCounterIds,
       List<LineHit> lineHitCounterIds) {
-    lines.put(classId, new HashMap<Integer, LineHit>());
-    for (LineHit lh : lineHitCounterIds) {
-      lh.getLine().setGoalId(lh.getLine().getLineNumber());
-      lines.get(classId).put(lh.getCounterId(), lh);
+    int[] branchIds = new int[branchHitCounterIds.size()];
+    for (int i = 0; i < branchIds.length; i++) {
+      branchIds[i] = getNewBranchId();
     }
-    branches.put(classId, new HashMap<Integer, BranchHit>());
-    for (BranchHit b : branchHitCounterIds) {
-      int branchId = getNewBranchId();
-      b.getBranch().setGoalId(branchId);
-      branches.get(classId).put(branchId, b);
+    ClassGoals.register(classId, lineHitCounterIds, branchHitCounterIds, branchIds);
+    lines.remove(classId);
+    branches.remove(classId);
+  }
+
+  /**
+   * Brings the goal objects of every class held in {@link ClassGoals} up to date, creating them
+   * if they have not been asked for before.
+   */
+  private static void materializeGoals() {
+    InstrumentedClass.registerOffline();
+    for (ClassGoals goals : ClassGoals.getAll()) {
+      materializeGoals(goals.getClassId());
     }
   }
 
-  private static Line findLineWithCounterId(int classId, int i) {
-    if (!lines.containsKey(classId)) {
-      lines.put(classId, new HashMap<>());
+  private static void materializeGoals(int classId) {
+    ClassGoals goals = ClassGoals.get(classId);
+    if (goals != null) {
+      lines.put(classId, goals.getLines());
+      branches.put(classId, goals.getBranches());
     }
-    return lines.get(classId).containsKey(i) ? lines.get(classId).get(i).getLine() : null;
   }
 
-  private static BranchHit findBranchWithCounterId(int classId, int i) {
-    if (!branches.containsKey(classId)) {
-      branches.put(classId, new HashMap<>());
+  /**
+   * Copies the tests covering every goal into the goal objects, which are about to be written out.
+   */
+  private static void keepCoveringTests() {
+    if (CoverageMatrix.getGoalCount() == 0) {
+      return;
     }
-    for (BranchHit bh : branches.get(classId).values()) {
-      if (bh.getCounterId() == i) {
-        return bh;
+    for (Map<Integer, LineHit> classLines : lines.values()) {
+      for (LineHit line : classLines.values()) {
+        line.getLine().keepCoveringTests();
+      }
+    }
+    for (Map<Integer, BranchHit> classBranches : branches.values()) {
+      for (BranchHit branch : classBranches.values()) {
+        branch.getBranch().keepCoveringTests();
       }
     }
-    return null;
   }
 
-  private static BranchHit findBranchDistanceWithCounterId(int classId, int
-      i) {
-    if (!branches.containsKey(classId)) {
-      branches.put(classId, new HashMap<>());
+  /**
+   * Moves every goal into the goal objects, for when the objects are about to be replaced. Later
+   * collections record into the objects directly.
+   */
+  private static void detachGoals() {
+    materializeGoals();
+    ClassGoals.clear();
+  }
+
+  /**
+   * Called when a class is instrumented with the PROFILE approach.
+   *
+   * @param methods profile of each instrumented method, in the order of their counters
+   */
+  public static void methodsProfiled(int classId, List<MethodProfile> methods) {
+    profiles.put(classId, methods);
+  }
+
+  public static List<MethodProfile> getMethodProfiles() {
+    List<MethodProfile> methods = new ArrayList<MethodProfile>();
+    for (List<MethodProfile> mp : profiles.values()) {
+      methods.addAll(mp);
     }
-    for (BranchHit bh : branches.get(classId).values()) {
-      if (bh.getDistanceId() == i) {
-        return bh;
+    return methods;
+  }
+
+  public static List<MethodProfile> getMethodProfiles(String className) {
+    int classId = getClassId(className);
+    if (!profiles.containsKey(classId)) {
+      return new ArrayList<MethodProfile>();
+    }
+    return new ArrayList<MethodProfile>(profiles.get(classId));
+  }
+
+  /**
+   * Called when a class is instrumented with
+   * {@link InstrumentationProperties#INSTRUMENT_ALLOCATIONS}.
+   */
+  public static void allocationSitesFound(int classId, List<AllocationSite> sites) {
+    if (sites.isEmpty()) {
+      allocations.remove(classId);
+    } else {
+      allocations.put(classId, sites);
+    }
+  }
+
+  /**
+   * @return every allocation site, those that allocated the most elements (or objects, for
+   *     object allocations) first
+   */
+  public static List<AllocationSite> getAllocationSites() {
+    collectHitCounters(false);
+    List<AllocationSite> sites = new ArrayList<AllocationSite>();
+    for (List<AllocationSite> classSites : allocations.values()) {
+      sites.addAll(classSites);
+    }
+    sites.sort((a, b) -> Long.compare(allocationWeight(b), allocationWeight(a)));
+    return sites;
+  }
+
+  private static long allocationWeight(AllocationSite site) {
+    return site.countsElements() ? site.getElements() : site.getAllocations();
+  }
+
+  public static List<AllocationSite> getAllocationSites(String className) {
+    int classId = getClassId(className);
+    if (!allocations.containsKey(classId)) {
+      return new ArrayList<AllocationSite>();
+    }
+    return new ArrayList<AllocationSite>(allocations.get(classId));
+  }
+
+  /**
+   * Called after a MULTIANEWARRAY instruction instrumented with
+   * {@link InstrumentationProperties#INSTRUMENT_ALLOCATIONS}.
+   *
+   * @return the number of elements of every array allocated for the given dimensions
+   */
+  public static int arrayElements(Object array, int dimensions) {
+    int length = Array.getLength(array);
+    int elements = length;
+    if (dimensions > 1) {
+      for (int i = 0; i < length; i++) {
+        Object element = Array.get(array, i);
+        if (element != null) {
+          elements += arrayElements(element, dimensions - 1);
+        }
       }
     }
-    return null;
+    return elements;
   }
 
+  /**
+   * Indexes the lines of a class held as objects by counter id, so a collection finds the line of
+   * each counter without a map lookup.
+   */
+  private static LineHit[] indexLines(int classId, int length) {
+    LineHit[] index = new LineHit[length];
+    for (Map.Entry<Integer, LineHit> entry : classGoals(lines, classId).entrySet()) {
+      if (entry.getKey() >= 0 && entry.getKey() < length) {
+        index[entry.getKey()] = entry.getValue();
+      }
+    }
+    return index;
+  }
+
+  /**
+   * Indexes the branches of a class held as objects by counter id, or by distance id, so a
+   * collection takes time linear in the counters and branches of the class rather than scanning
+   * every branch for every counter. Where branches share an id the first one found is used.
+   */
+  private static BranchHit[] indexBranches(int classId, int length, boolean byDistance) {
+    BranchHit[] index = new BranchHit[length];
+    for (BranchHit bh : classGoals(branches, classId).values()) {
+      int id = byDistance ? bh.getDistanceId() : bh.getCounterId();
+      if (id >= 0 && id < length && index[id] == null) {
+        index[id] = bh;
+      }
+    }
+    return index;
+  }
+
+  private static <T> Map<Integer, T> classGoals(ConcurrentHashMap<Integer, Map<Integer, T>> goals,
+      int classId) {
+    if (!goals.containsKey(classId)) {
+      goals.put(classId, new HashMap<Integer, T>());
+    }
+    return goals.get(classId);
+  }
+
+  /**
+   * Called by classes instrumented with {@link InstrumentationProperties#USE_CHANGED_FLAG} the
+   * first time they are hit after a reset.
+   */
+  public static void classChanged(int classId) {
+    DirtyClasses.mark(classId);
+    ProbeArrays.setChanged(classId);
+  }
+
+  /**
+   * Called by classes instrumented before changed classes were marked by class id.
+   */
   public static void classChanged(String changedClass) {
 
     changedClass = ClassNameUtils.standardise(changedClass);
 
+    int classId = getClassId(changedClass);
+    if (classId >= 0) {
+      DirtyClasses.mark(classId);
+      return;
+    }
     Class<?> cl = ClassStore.get(changedClass);
     if (cl != null) {
-      changedClasses.add(cl);
+      synchronized (ClassAnalyzer.class) {
+        if (!changedClasses.contains(cl)) {
+          changedClasses.add(cl);
+        }
+      }
+    }
+  }
+
+  /**
+   * Called from the static initializer of classes instrumented with
+   * {@link InstrumentationProperties#INIT_COUNTERS_IN_CLINIT}, which have no changed flag.
+   */
+  public static void classInitialised(String initialisedClass) {
+    Class<?> cl = ClassStore.get(ClassNameUtils.standardise(initialisedClass));
+    if (cl != null) {
+      ClassStore.initialised(cl);
     }
   }
 
@@ -739,14 +1120,52 @@ public class ClassAnalyzer {
 //                e.printStackTrace();
 //            }
 //        }
+    InstrumentedClass.registerOffline();
     Task timerTask = new CollectHitCountersTimer();
-    if (InstrumentationProperties.INSTRUMENTATION_APPROACH == InstrumentationApproach.ARRAY) {
+    if (reset) {
+      EpochCollector.beforeReset();
+      CheckpointCollector.beforeReset();
+    }
+    if (usesStaticCounters()) {
       collectingHitCounters = true;
       if (InstrumentationProperties.LOG) {
         TaskTimer.taskStart(timerTask);
       }
-      List<Class<?>> classes = new ArrayList<Class<?>>(changedClasses);
-      if (!InstrumentationProperties.USE_CHANGED_FLAG) {
+      collectStaticCounters(reset);
+      if (InstrumentationProperties.LOG) {
+        TaskTimer.taskEnd(timerTask);
+      }
+      collectingHitCounters = false;
+    } else if (usesGlobalCounters()) {
+      collectingHitCounters = true;
+      if (InstrumentationProperties.LOG) {
+        TaskTimer.taskStart(timerTask);
+      }
+      collectGlobalHitCounters(reset);
+      if (InstrumentationProperties.LOG) {
+        TaskTimer.taskEnd(timerTask);
+      }
+      collectingHitCounters = false;
+    } else if (usesProfiling()) {
+      collectingHitCounters = true;
+      if (InstrumentationProperties.LOG) {
+        TaskTimer.taskStart(timerTask);
+      }
+      collectProfileCounters(reset);
+      if (InstrumentationProperties.LOG) {
+        TaskTimer.taskEnd(timerTask);
+      }
+      collectingHitCounters = false;
+    } else if (usesCounterArrays()) {
+      collectingHitCounters = true;
+      if (InstrumentationProperties.LOG) {
+        TaskTimer.taskStart(timerTask);
+      }
+      List<Class<?>> classes;
+      if (InstrumentationProperties.INIT_COUNTERS_IN_CLINIT) {
+        classes = ClassStore.getInitialised();
+        setChangedClasses(classes);
+      } else if (!InstrumentationProperties.USE_CHANGED_FLAG) {
         classes = new ArrayList<Class<?>>();
         for (int classId : classIds.keySet()) {
           Class<?> c = ClassStore.get(classIds.get(classId));
@@ -759,11 +1178,26 @@ public class ClassAnalyzer {
           }
           classes.add(c);
         }
-        changedClasses.addAll(classes);
-
+        setChangedClasses(classes);
+      } else {
+        // classes that registered their probe arrays are collected by id, without reflection
+        classes = new ArrayList<Class<?>>();
+        for (int classId : DirtyClasses.marked()) {
+          try {
+            if (!collectProbeArrays(classId, reset)) {
+              Class<?> c = ClassStore.get(classIds.get(classId));
+              if (c != null) {
+                classes.add(c);
+              }
+            }
+          } catch (Exception e) {
+            e.printStackTrace(out);
+          }
+        }
+        classes.addAll(getUnmarkedChangedClasses());
       }
 
-      for (Class<?> c : changedClasses) {
+      for (Class<?> c : classes) {
         try {
           collectHitCountersForClass(c, reset);
 
@@ -783,90 +1217,307 @@ public class ClassAnalyzer {
   public static void collectHitCountersForClass(Class<?> cl, boolean reset)
       throws NoSuchMethodException, InvocationTargetException,
       IllegalAccessException {
+    Integer id = classNames.get(cl.getName());
+    if (id == null) {
+      id = classNames.get(ClassNameUtils.standardise(cl.getName()));
+    }
+
+    if (id == null) {
+      registerClass(ClassNameUtils.standardise(cl.getName()));
+      id = classNames.get(ClassNameUtils.standardise(cl.getName()));
+    }
+    if (id != null && collectProbeArrays(id, reset)) {
+      return;
+    }
     Method getCounters = cl
         .getDeclaredMethod(ArrayClassVisitor.COUNTER_METHOD_NAME, new Class<?>[]{});
     getCounters.setAccessible(true);
-    int[] counters = (int[]) getCounters.invoke(null, new Object[]{});
-    if (counters != null) {
-      for (int i = 0; i < counters.length; i++) {
+    int[] counters = toHitCounts(getCounters.invoke(null, new Object[]{}));
+    if (counters != null && id != null) {
+      recordHitCounters(id, counters, 0, counters.length);
+    }
 
-        Object o = classNames.get(cl.getName());
-        if (o == null) {
-          o = classNames.get(ClassNameUtils.standardise(cl.getName()));
-        }
+    Method getDistance = cl
+        .getDeclaredMethod(ArrayClassVisitor.DISTANCE_METHOD_NAME, new Class<?>[]{});
+    getDistance.setAccessible(true);
+    float[] distances = (float[]) getDistance.invoke(null, new
+        Object[]{});
+    if (distances != null && id != null) {
+      recordDistances(id, distances, 0, distances.length);
+    }
+    if (reset) {
+      resetHitCounters(cl);
+    }
+  }
 
-        if (o == null) {
-          registerClass(ClassNameUtils.standardise(cl.getName()));
-          o = classNames.get(ClassNameUtils.standardise(cl.getName()));
-        }
+  /**
+   * Collects a class that registered its probe arrays with {@link ProbeArrays}. Counters are read
+   * and reset in one snapshot, so hits made while collecting are kept for the next collection.
+   *
+   * @return false if the class has not registered its arrays
+   */
+  private static boolean collectProbeArrays(int classId, boolean reset) {
+    int[] counters = ProbeArrays.snapshot(classId, reset);
+    if (counters == null) {
+      return false;
+    }
+    recordHitCounters(classId, counters, 0, counters.length);
+    float[] distances = ProbeArrays.getDistances(classId);
+    if (distances != null) {
+      recordDistances(classId, distances, 0, distances.length);
+    }
+    return true;
+  }
 
-        if (o == null) {
-          continue;
+  /**
+   * Collects every class using {@link CounterLayout#GLOBAL} counters from a single copy of the
+   * global arrays. Classes without any hits since the last reset are skipped, as they would not
+   * have been marked as changed.
+   */
+  private static void collectGlobalHitCounters(boolean reset) {
+    int[] counters = GlobalCounters.snapshot(reset);
+    float[] distances = GlobalCounters.copyDistances();
+    for (Map.Entry<Integer, int[]> entry : GlobalCounters.getOffsets().entrySet()) {
+      int[] offsets = entry.getValue();
+      boolean hit = false;
+      for (int i = offsets[0]; i < offsets[0] + offsets[1] && !hit; i++) {
+        hit = counters[i] != 0;
+      }
+      if (hit) {
+        recordHitCounters(entry.getKey(), counters, offsets[0], offsets[1]);
+        recordDistances(entry.getKey(), distances, offsets[2], offsets[3]);
+      }
+    }
+  }
+
+  /**
+   * Collects the profile counters of every class instrumented with the PROFILE approach whose
+   * static initializer has run.
+   */
+  private static void collectProfileCounters(boolean reset) {
+    for (Class<?> cl : ClassStore.getInitialised()) {
+      Integer id = classNames.get(ClassNameUtils.standardise(cl.getName()));
+      if (id == null || !profiles.containsKey(id)) {
+        continue;
+      }
+      try {
+        Method getCounters = cl.getDeclaredMethod(ProfileClassVisitor.PROFILE_METHOD_NAME,
+            new Class<?>[]{});
+        getCounters.setAccessible(true);
+        long[] counters = (long[]) getCounters.invoke(null, new Object[]{});
+        List<MethodProfile> methods = profiles.get(id);
+        for (int i = 0; i < methods.size() && (i + 1) * Profiler.FIELDS <= counters.length; i++) {
+          methods.get(i).set(counters, i * Profiler.FIELDS);
         }
+      } catch (Exception e) {
+        e.printStackTrace(out);
+      }
+      if (reset) {
+        resetProfileCounters(cl);
+      }
+    }
+  }
 
-        int classId = (Integer) o;
-        Line line = findLineWithCounterId(classId, i);
-        if (line != null) {
-          line.hit(counters[i]);
+  private static void resetProfileCounters(Class<?> cl) {
+    try {
+      Method resetCounters = cl.getDeclaredMethod(ProfileClassVisitor.RESET_PROFILE_METHOD_NAME,
+          new Class[]{});
+      resetCounters.setAccessible(true);
+      resetCounters.invoke(null, new Object[]{});
+    } catch (NoSuchMethodException e) {
+      // not profiled
+    } catch (Exception e) {
+      e.printStackTrace(out);
+    }
+  }
 
-          if (InstrumentationProperties.TRACK_ACTIVE_TESTCASE) {
+  private static void recordHitCounters(int classId, int[] counters, int offset, int length) {
+    if (FlowGraph.hasGraphs(classId)) {
+      counters = FlowGraph.expand(classId, Arrays.copyOfRange(counters, offset, offset + length));
+      offset = 0;
+    }
+    boolean sampled = usesSampling();
+    ClassGoals goals = ClassGoals.get(classId);
+    if (goals != null) {
+      goals.recordHits(counters, offset, length, sampled);
+      if (InstrumentationProperties.TRACK_ACTIVE_TESTCASE) {
+        goals.addCoveringTest(activeTestCase, counters, offset, length);
+      }
+    } else {
+      LineHit[] counterLines = indexLines(classId, length);
+      BranchHit[] counterBranches = indexBranches(classId, length, false);
+      for (int i = 0; i < length; i++) {
+        int count = sampled ? Sampler.scale(counters[offset + i]) : counters[offset + i];
+        if (counterLines[i] != null) {
+          Line line = counterLines[i].getLine();
+          line.hit(count);
+
+          if (InstrumentationProperties.TRACK_ACTIVE_TESTCASE && count != 0) {
             line.addCoveringTest(activeTestCase);
           }
         }
-        BranchHit branch = findBranchWithCounterId(classId, i);
+        BranchHit branch = counterBranches[i];
         if (branch != null) {
-          if (branch.getCounterId() == i) {
-            branch.getBranch().hit(counters[i]);
-            // if (superClassId >= 0) {
-            // for (BranchHit bh : branches.get(superClassId)){
-            // if (bh)
-            // }
-            // }
-          }
-          if (InstrumentationProperties.TRACK_ACTIVE_TESTCASE) {
+          branch.getBranch().hit(count);
+          if (InstrumentationProperties.TRACK_ACTIVE_TESTCASE && count != 0) {
             branch.getBranch().addCoveringTest(activeTestCase);
           }
         }
-
       }
     }
-
-    Method getDistance = cl
-        .getDeclaredMethod(ArrayClassVisitor.DISTANCE_METHOD_NAME, new Class<?>[]{});
-    getDistance.setAccessible(true);
-    float[] distances = (float[]) getDistance.invoke(null, new
-        Object[]{});
-    if (distances != null) {
-      for (int i = 0; i < distances.length; i++) {
-
-        Object o = classNames.get(cl.getName());
-        if (o == null) {
-          o = classNames.get(ClassNameUtils.standardise(cl.getName()));
+    // allocation counters are never sampled, so they are read as they are. They are read as
+    // unsigned, which doubles the number of elements counted before they wrap
+    if (allocations.containsKey(classId)) {
+      for (AllocationSite site : allocations.get(classId)) {
+        if (site.getCounterId() >= length) {
+          continue;
         }
+        int elements = site.getElementCounterId() >= 0 && site.getElementCounterId() < length
+            ? counters[offset + site.getElementCounterId()] : 0;
+        site.hit(counters[offset + site.getCounterId()] & 0xFFFFFFFFL, elements & 0xFFFFFFFFL);
+      }
+    }
+  }
 
-        if (o == null) {
-          registerClass(ClassNameUtils.standardise(cl.getName()));
-          o = classNames.get(ClassNameUtils.standardise(cl.getName()));
-        }
+  private static void recordDistances(int classId, float[] distances, int offset, int length) {
+    ClassGoals goals = ClassGoals.get(classId);
+    if (goals != null) {
+      goals.recordDistances(distances, offset, length);
+      return;
+    }
+    BranchHit[] distanceBranches = indexBranches(classId, length, true);
+    for (int i = 0; i < length; i++) {
+      BranchHit branch = distanceBranches[i];
+      if (branch != null) {
+        branch.setDistance(Math.abs(distances[offset + i]));
+      }
+    }
+  }
 
-        if (o == null) {
-          continue;
+  /**
+   * Reads the current counter values of every loaded class, without resetting them or adding
+   * them to the coverage held here. Used by collectors that track counts over time, such as
+   * {@link EpochCollector}.
+   *
+   * @return copies of the counters of each class, keyed by class id, with spanning tree and
+   *     sampled counts already turned into line and branch counts
+   */
+  public static Map<Integer, int[]> readHitCounters() {
+    Map<Integer, int[]> counts = new HashMap<Integer, int[]>();
+    if (usesGlobalCounters()) {
+      int[] counters = GlobalCounters.copyTotalCounters();
+      for (Map.Entry<Integer, int[]> entry : GlobalCounters.getOffsets().entrySet()) {
+        int[] offsets = entry.getValue();
+        counts.put(entry.getKey(), toGoalCounts(entry.getKey(),
+            Arrays.copyOfRange(counters, offsets[0], offsets[0] + offsets[1])));
+      }
+    } else if (usesCounterArrays()) {
+      for (int classId : new HashMap<Integer, String>(classIds).keySet()) {
+        int[] counters = readHitCounters(classId);
+        if (counters != null) {
+          counts.put(classId, counters);
         }
+      }
+    }
+    return counts;
+  }
 
-        int classId = (Integer) o;
-        BranchHit branch = findBranchDistanceWithCounterId
-            (classId, i);
-        if (branch != null) {
-          branch.setDistance(Math.abs(distances[i]));
-        }
+  /**
+   * Reads the current counter values of a class using counter arrays, as
+   * {@link #readHitCounters()} does for every class. Counters that
+   * {@link ProbeArrays#keepsCounters(int) resets leave alone} are read as counted since they
+   * were created, and others as counted since the last reset.
+   *
+   * @return a copy of the counters of the class, or null if it has none to read
+   */
+  public static int[] readHitCounters(int classId) {
+    int[] registered = ProbeArrays.getTotalCounters(classId);
+    if (registered == null) {
+      registered = ProbeArrays.getCounters(classId);
+    }
+    if (registered != null) {
+      return toGoalCounts(classId, registered);
+    }
+    // only classes loaded through the instrumenting loader have counters to read
+    String className = classIds.get(classId);
+    if (className == null || !ClassStore.containsKey(className)) {
+      return null;
+    }
+    try {
+      Method getCounters = ClassStore.get(className)
+          .getDeclaredMethod(ArrayClassVisitor.COUNTER_METHOD_NAME, new Class<?>[]{});
+      getCounters.setAccessible(true);
+      int[] counters = toHitCounts(getCounters.invoke(null, new Object[]{}));
+      if (counters != null) {
+        return toGoalCounts(classId, Arrays.copyOf(counters, counters.length));
+      }
+    } catch (NoSuchMethodException e) {
+      // not instrumented, e.g. an interface
+    } catch (Exception e) {
+      e.printStackTrace(out);
+    }
+    return null;
+  }
 
+  static int[] toGoalCounts(int classId, int[] counters) {
+    counters = FlowGraph.expand(classId, counters);
+    if (usesSampling()) {
+      for (int i = 0; i < counters.length; i++) {
+        counters[i] = Sampler.scale(counters[i]);
       }
     }
-    if (reset) {
-      resetHitCounters(cl);
+    return counters;
+  }
+
+  /**
+   * Records a test as covering every goal hit in the counters of a class, such as those read from
+   * a {@link CoverageScope}, without adding the hits to the coverage held here.
+   */
+  public static void addCoveringTest(TestCaseWrapper test, int classId, int[] counters) {
+    ClassGoals goals = ClassGoals.get(classId);
+    if (goals != null) {
+      goals.addCoveringTest(test, counters, 0, counters.length);
+      return;
+    }
+    LineHit[] counterLines = indexLines(classId, counters.length);
+    BranchHit[] counterBranches = indexBranches(classId, counters.length, false);
+    for (int i = 0; i < counters.length; i++) {
+      if (counters[i] == 0) {
+        continue;
+      }
+      if (counterLines[i] != null) {
+        counterLines[i].getLine().addCoveringTest(test);
+      }
+      if (counterBranches[i] != null) {
+        counterBranches[i].getBranch().addCoveringTest(test);
+      }
     }
   }
 
+  /**
+   * @return the line number of each counter of a class, or 0 for counters that are not lines
+   */
+  public static int[] getCounterLines(int classId, int counters) {
+    ClassGoals goals = ClassGoals.get(classId);
+    if (goals != null) {
+      return goals.getCounterLines(counters);
+    }
+    int[] counterLines = new int[counters];
+    Map<Integer, LineHit> classLines = lines.get(classId);
+    if (classLines != null) {
+      for (LineHit lh : classLines.values()) {
+        if (lh.getCounterId() < counters) {
+          counterLines[lh.getCounterId()] = lh.getLine().getLineNumber();
+        }
+      }
+    }
+    return counterLines;
+  }
+
+  public static String getClassName(int classId) {
+    return classIds.get(classId);
+  }
+
   public static int getClassId(String className) {
 
     className = ClassNameUtils.standardise(className);
@@ -879,6 +1530,7 @@ public class ClassAnalyzer {
 
   public static ArrayList<LineHit> getLinesCovered() {
     collectHitCounters(false);
+    materializeGoals();
 
     ArrayList<LineHit> coveredLines = new ArrayList<LineHit>();
 
@@ -901,7 +1553,66 @@ public class ClassAnalyzer {
 
   }
 
+  private static boolean usesChangedFlag() {
+    return InstrumentationProperties.USE_CHANGED_FLAG
+        && !InstrumentationProperties.INIT_COUNTERS_IN_CLINIT;
+  }
+
+  /**
+   * @return true if classes mark themselves in {@link DirtyClasses} the first time they are hit
+   *     after their changed flag is cleared, so only those classes need to be read
+   */
+  public static boolean marksHitClasses() {
+    return usesCounterArrays() && usesChangedFlag() && !usesGlobalCounters();
+  }
+
+  private static boolean usesGlobalCounters() {
+    return InstrumentationProperties.INSTRUMENTATION_APPROACH == InstrumentationApproach.ARRAY
+        && InstrumentationProperties.COUNTER_LAYOUT == CounterLayout.GLOBAL;
+  }
+
+  private static boolean usesSampling() {
+    return InstrumentationProperties.INSTRUMENTATION_APPROACH == InstrumentationApproach.ARRAY
+        && InstrumentationProperties.SAMPLE_RATE > 1
+        && (InstrumentationProperties.COUNTER_LAYOUT == CounterLayout.CLASS
+        || InstrumentationProperties.COUNTER_LAYOUT == CounterLayout.GLOBAL);
+  }
+
+  private static boolean usesStaticCounters() {
+    return InstrumentationProperties.INSTRUMENTATION_APPROACH == InstrumentationApproach.STATIC;
+  }
+
+  private static boolean usesProfiling() {
+    return InstrumentationProperties.INSTRUMENTATION_APPROACH == InstrumentationApproach.PROFILE;
+  }
+
+  private static boolean usesCounterArrays() {
+    return InstrumentationProperties.INSTRUMENTATION_APPROACH == InstrumentationApproach.ARRAY
+        || InstrumentationProperties.INSTRUMENTATION_APPROACH == InstrumentationApproach.BOOLEAN;
+  }
+
+  /**
+   * Boolean probes only record whether a counter was covered, so each one is reported as a hit
+   * count of 0 or 1.
+   */
+  private static int[] toHitCounts(Object probes) {
+    if (!(probes instanceof boolean[])) {
+      return (int[]) probes;
+    }
+    boolean[] covered = (boolean[]) probes;
+    int[] counters = new int[covered.length];
+    for (int i = 0; i < covered.length; i++) {
+      counters[i] = covered[i] ? 1 : 0;
+    }
+    return counters;
+  }
+
   public static void resetHitCounters(Class<?> cl) {
+    int classId = getClassId(cl.getName());
+    if (ProbeArrays.isRegistered(classId)) {
+      ProbeArrays.reset(classId);
+      return;
+    }
     try {
       Method resetCounters = cl
           .getDeclaredMethod(ArrayClassVisitor.RESET_COUNTER_METHOD_NAME, new Class[]{});
@@ -929,6 +1640,7 @@ public class ClassAnalyzer {
     }
 
     int classId = classNames.get(className);
+    materializeGoals(classId);
 
     List<Line> coverableLines = new ArrayList<Line>();
     if (lines.get(classId) == null) {
@@ -961,6 +1673,7 @@ public class ClassAnalyzer {
     }
 
     int classId = classNames.get(className);
+    materializeGoals(classId);
 
     if (!lines.containsKey(classId)) {
       return Collections.<Line>emptyList();
@@ -986,6 +1699,7 @@ public class ClassAnalyzer {
     }
 
     int classId = classNames.get(className);
+    materializeGoals(classId);
 
     if (!branches.containsKey(classId)) {
       return Collections.<Branch>emptyList();
@@ -1009,6 +1723,7 @@ public class ClassAnalyzer {
     }
 
     int classId = classNames.get(className);
+    materializeGoals(classId);
 
     if (!branches.containsKey(classId)) {
       return Collections.<BranchHit>emptyList();
@@ -1039,6 +1754,7 @@ public class ClassAnalyzer {
     }
 
     int classId = classNames.get(className);
+    materializeGoals(classId);
 
     if (!branches.containsKey(classId)) {
       return Collections.<Branch>emptyList();
@@ -1052,8 +1768,71 @@ public class ClassAnalyzer {
     return coverableBranches;
   }
 
-  public static List<Class<?>> getChangedClasses() {
-    return new ArrayList<Class<?>>(changedClasses);
+  /**
+   * @return the classes hit since coverage was last reset
+   */
+  public static synchronized List<Class<?>> getChangedClasses() {
+    return withChangedClasses(DirtyClasses.marked());
+  }
+
+  private static synchronized void setChangedClasses(List<Class<?>> classes) {
+    changedClasses.clear();
+    changedClasses.addAll(classes);
+  }
+
+  /**
+   * Unmarks every class hit since coverage was last reset. Classes that registered their probe
+   * arrays have their changed flag cleared, and their counters reset if resetCounters is set.
+   *
+   * @return the other classes hit since coverage was last reset
+   */
+  private static synchronized List<Class<?>> takeChangedClasses(boolean resetCounters) {
+    List<Class<?>> changed = new ArrayList<Class<?>>();
+    for (int classId : DirtyClasses.drain()) {
+      if (!ProbeArrays.isRegistered(classId)) {
+        Class<?> cl = ClassStore.get(classIds.get(classId));
+        if (cl != null) {
+          changed.add(cl);
+        }
+      } else if (resetCounters) {
+        ProbeArrays.reset(classId);
+      } else {
+        ProbeArrays.clearChanged(classId);
+      }
+    }
+    Set<Class<?>> found = new HashSet<Class<?>>(changed);
+    for (Class<?> cl : changedClasses) {
+      if (cl != null && found.add(cl)) {
+        changed.add(cl);
+      }
+    }
+    changedClasses.clear();
+    return changed;
+  }
+
+  /**
+   * @return the changed classes that are not marked as hit, such as those read back from a file
+   */
+  private static synchronized List<Class<?>> getUnmarkedChangedClasses() {
+    List<Class<?>> unmarked = new ArrayList<Class<?>>();
+    for (Class<?> cl : changedClasses) {
+      if (cl == null || !DirtyClasses.isMarked(getClassId(cl.getName()))) {
+        unmarked.add(cl);
+      }
+    }
+    return unmarked;
+  }
+
+  private static List<Class<?>> withChangedClasses(int[] marked) {
+    List<Class<?>> changed = new ArrayList<Class<?>>(changedClasses);
+    Set<Class<?>> found = new HashSet<Class<?>>(changedClasses);
+    for (int classId : marked) {
+      Class<?> cl = ClassStore.get(classIds.get(classId));
+      if (cl != null && found.add(cl)) {
+        changed.add(cl);
+      }
+    }
+    return changed;
   }
 
   private static final class CollectHitCountersTimer extends AbstractTask {
@@ -1073,6 +1852,10 @@ public class ClassAnalyzer {
   }
 
   public static void serialize(File destination) {
+    materializeGoals();
+    keepCoveringTests();
+    // marked classes are written out with the rest of the changed classes
+    setChangedClasses(getChangedClasses());
     Gson gson = getGson();
     try {
       JsonWriter writer = new JsonWriter(new FileWriter(destination));
@@ -1084,12 +1867,23 @@ public class ClassAnalyzer {
   }
 
   public static void deserialize(File source) {
+    detachGoals();
     Gson gson = getGson();
     try {
       gson.fromJson(new JsonReader(new FileReader(source)), ClassAnalyzer.class);
     } catch (IOException e) {
       e.printStackTrace();
     }
+    for (Map<Integer, LineHit> classLines : lines.values()) {
+      for (LineHit line : classLines.values()) {
+        line.getLine().restoreCoveringTests();
+      }
+    }
+    for (Map<Integer, BranchHit> classBranches : branches.values()) {
+      for (BranchHit branch : classBranches.values()) {
+        branch.getBranch().restoreCoveringTests();
+      }
+    }
 
   }
 
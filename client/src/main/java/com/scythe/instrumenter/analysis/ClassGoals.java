@@ -0,0 +1,295 @@
+package com.scythe.instrumenter.analysis;
+
+import com.scythe.instrumenter.instrumentation.objectrepresentation.Branch;
+import com.scythe.instrumenter.instrumentation.objectrepresentation.BranchHit;
+import com.scythe.instrumenter.instrumentation.objectrepresentation.Line;
+import com.scythe.instrumenter.instrumentation.objectrepresentation.LineHit;
+import com.scythe.instrumenter.testcase.TestCaseWrapper;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Lines and branches of a class instrumented with counter arrays, held in primitive arrays indexed
+ * by goal and registered by class id. Collecting coverage writes counts and distances straight
+ * into the arrays, so it neither looks goals up through boxed ids nor touches a goal object.
+ *
+ * The {@link LineHit} and {@link BranchHit} objects of a class are only created the first time
+ * its goals are asked for through {@link ClassAnalyzer}, and are brought up to date from the
+ * arrays whenever the arrays change after that. Until then a goal costs a few array slots, and
+ * method names are shared by every goal of a method.
+ */
+public class ClassGoals {
+
+  private static volatile ClassGoals[] classes = new ClassGoals[256];
+
+  private final int classId;
+  private final String className;
+  private final String[] methods;
+
+  private final int[] lineCounters;
+  private final int[] lineNumbers;
+  private final int[] lineMethods;
+  private final long[] lineHits;
+
+  private final int[] branchIds;
+  private final int[] branchCounters;
+  private final int[] branchDistanceIds;
+  private final int[] branchLines;
+  private final int[] branchMethods;
+  private final int[] branchHits;
+  private final float[] branchDistances;
+
+  // goal ids of the lines and branches in the CoverageMatrix, and the generation they belong to
+  private int[] lineCoverageIds;
+  private int[] branchCoverageIds;
+  private int coverageGeneration = -1;
+
+  private LineHit[] lineGoals;
+  private BranchHit[] branchGoals;
+  private Map<Integer, LineHit> lineMap;
+  private Map<Integer, BranchHit> branchMap;
+
+  private ClassGoals(int classId, List<LineHit> lines, List<BranchHit> branches,
+      int[] branchIds) {
+    this.classId = classId;
+    Map<String, Integer> methodIds = new HashMap<String, Integer>();
+    List<String> methodNames = new ArrayList<String>();
+    String name = null;
+
+    lineCounters = new int[lines.size()];
+    lineNumbers = new int[lines.size()];
+    lineMethods = new int[lines.size()];
+    lineHits = new long[lines.size()];
+    for (int i = 0; i < lines.size(); i++) {
+      Line line = lines.get(i).getLine();
+      name = name == null ? line.getClassName() : name;
+      lineCounters[i] = lines.get(i).getCounterId();
+      lineNumbers[i] = line.getLineNumber();
+      lineMethods[i] = methodId(methodIds, methodNames, line.getMethodName());
+    }
+
+    this.branchIds = branchIds;
+    branchCounters = new int[branches.size()];
+    branchDistanceIds = new int[branches.size()];
+    branchLines = new int[branches.size()];
+    branchMethods = new int[branches.size()];
+    branchHits = new int[branches.size()];
+    branchDistances = new float[branches.size()];
+    for (int i = 0; i < branches.size(); i++) {
+      Branch branch = branches.get(i).getBranch();
+      name = name == null ? branch.getClassName() : name;
+      branchCounters[i] = branches.get(i).getCounterId();
+      branchDistanceIds[i] = branches.get(i).getDistanceId();
+      branchLines[i] = branch.getLineNumber();
+      branchMethods[i] = methodId(methodIds, methodNames, branch.getMethodName());
+      branchDistances[i] = -1f;
+    }
+
+    className = name;
+    methods = methodNames.toArray(new String[methodNames.size()]);
+  }
+
+  private static int methodId(Map<String, Integer> methodIds, List<String> methodNames,
+      String methodName) {
+    Integer id = methodIds.get(methodName);
+    if (id == null) {
+      id = methodNames.size();
+      methodIds.put(methodName, id);
+      methodNames.add(methodName);
+    }
+    return id;
+  }
+
+  /**
+   * @param lines lines found in the class, whose objects are not kept
+   * @param branches branches found in the class, whose objects are not kept
+   * @param branchIds goal id of each branch
+   */
+  public static synchronized void register(int classId, List<LineHit> lines,
+      List<BranchHit> branches, int[] branchIds) {
+    ClassGoals[] current = classes;
+    if (classId >= current.length) {
+      current = Arrays.copyOf(current, Math.max(classId + 1, current.length * 2));
+    }
+    current[classId] = new ClassGoals(classId, lines, branches, branchIds);
+    classes = current;
+  }
+
+  public static ClassGoals get(int classId) {
+    ClassGoals[] current = classes;
+    return classId >= 0 && classId < current.length ? current[classId] : null;
+  }
+
+  public static List<ClassGoals> getAll() {
+    List<ClassGoals> all = new ArrayList<ClassGoals>();
+    for (ClassGoals goals : classes) {
+      if (goals != null) {
+        all.add(goals);
+      }
+    }
+    return all;
+  }
+
+  public static void resetAll() {
+    for (ClassGoals goals : classes) {
+      if (goals != null) {
+        goals.reset();
+      }
+    }
+  }
+
+  /**
+   * Forgets every class. Goal objects already handed out are left as they are.
+   */
+  public static synchronized void clear() {
+    classes = new ClassGoals[256];
+  }
+
+  public int getClassId() {
+    return classId;
+  }
+
+  /**
+   * Records the counters of the class. Lines take the count of their counter, branches add it to
+   * their hits, as {@link Line#hit(long)} and {@link Branch#hit(int)} do.
+   */
+  public synchronized void recordHits(int[] counters, int offset, int length, boolean sampled) {
+    for (int i = 0; i < lineCounters.length; i++) {
+      if (lineCounters[i] < length) {
+        lineHits[i] = count(counters[offset + lineCounters[i]], sampled);
+      }
+    }
+    for (int i = 0; i < branchCounters.length; i++) {
+      if (branchCounters[i] < length) {
+        branchHits[i] += count(counters[offset + branchCounters[i]], sampled);
+      }
+    }
+    updateGoals();
+  }
+
+  private static int count(int counter, boolean sampled) {
+    return sampled ? Sampler.scale(counter) : counter;
+  }
+
+  public synchronized void recordDistances(float[] distances, int offset, int length) {
+    for (int i = 0; i < branchDistanceIds.length; i++) {
+      if (branchDistanceIds[i] < length) {
+        branchDistances[i] = Math.abs(distances[offset + branchDistanceIds[i]]);
+      }
+    }
+    updateGoals();
+  }
+
+  /**
+   * Records a test as covering every goal hit in the given counters, in the
+   * {@link CoverageMatrix}.
+   */
+  public synchronized void addCoveringTest(TestCaseWrapper test, int[] counters, int offset,
+      int length) {
+    if (test == null) {
+      return;
+    }
+    int generation = CoverageMatrix.getGeneration();
+    if (coverageGeneration != generation) {
+      lineCoverageIds = new int[lineCounters.length];
+      for (int i = 0; i < lineCoverageIds.length; i++) {
+        lineCoverageIds[i] = CoverageMatrix.goalId(className, false, lineNumbers[i]);
+      }
+      branchCoverageIds = new int[branchCounters.length];
+      for (int i = 0; i < branchCoverageIds.length; i++) {
+        branchCoverageIds[i] = CoverageMatrix.goalId(className, true, branchIds[i]);
+      }
+      coverageGeneration = generation;
+    }
+    int testId = CoverageMatrix.testId(test);
+    for (int i = 0; i < lineCounters.length; i++) {
+      if (lineCounters[i] < length && counters[offset + lineCounters[i]] != 0) {
+        CoverageMatrix.cover(testId, lineCoverageIds[i]);
+      }
+    }
+    for (int i = 0; i < branchCounters.length; i++) {
+      if (branchCounters[i] < length && counters[offset + branchCounters[i]] != 0) {
+        CoverageMatrix.cover(testId, branchCoverageIds[i]);
+      }
+    }
+  }
+
+  public synchronized void reset() {
+    Arrays.fill(lineHits, 0);
+    Arrays.fill(branchHits, 0);
+    updateGoals();
+  }
+
+  /**
+   * @return the line number of each counter of the class, or 0 for counters that are not lines
+   */
+  public int[] getCounterLines(int counters) {
+    int[] counterLines = new int[counters];
+    for (int i = 0; i < lineCounters.length; i++) {
+      if (lineCounters[i] < counters) {
+        counterLines[lineCounters[i]] = lineNumbers[i];
+      }
+    }
+    return counterLines;
+  }
+
+  /**
+   * @return the lines of the class keyed by counter id, created on the first call
+   */
+  public synchronized Map<Integer, LineHit> getLines() {
+    if (lineGoals == null) {
+      lineGoals = new LineHit[lineCounters.length];
+      lineMap = new HashMap<Integer, LineHit>();
+      for (int i = 0; i < lineGoals.length; i++) {
+        Line line = new Line(className, methods[lineMethods[i]], lineNumbers[i]);
+        line.setGoalId(lineNumbers[i]);
+        lineGoals[i] = new LineHit(line, lineCounters[i]);
+        lineMap.put(lineCounters[i], lineGoals[i]);
+      }
+      updateGoals();
+    }
+    return lineMap;
+  }
+
+  /**
+   * @return the branches of the class keyed by goal id, created on the first call
+   */
+  public synchronized Map<Integer, BranchHit> getBranches() {
+    if (branchGoals == null) {
+      branchGoals = new BranchHit[branchCounters.length];
+      branchMap = new HashMap<Integer, BranchHit>();
+      for (int i = 0; i < branchGoals.length; i++) {
+        Branch branch = new Branch(className, methods[branchMethods[i]], branchLines[i]);
+        branch.setGoalId(branchIds[i]);
+        branchGoals[i] = new BranchHit(branch, branchCounters[i], branchDistanceIds[i]);
+        branchMap.put(branchIds[i], branchGoals[i]);
+      }
+      updateGoals();
+    }
+    return branchMap;
+  }
+
+  /**
+   * Copies the arrays into the goal objects that have been created, so goals handed out keep
+   * following collections as they did when they were the only record of coverage.
+   */
+  private void updateGoals() {
+    if (lineGoals != null) {
+      for (int i = 0; i < lineGoals.length; i++) {
+        lineGoals[i].getLine().hit(lineHits[i]);
+      }
+    }
+    if (branchGoals != null) {
+      for (int i = 0; i < branchGoals.length; i++) {
+        Branch branch = branchGoals[i].getBranch();
+        // branch hits are added up, so set them by resetting first
+        branch.reset();
+        branch.hit(branchHits[i]);
+        branchGoals[i].setDistance(branchDistances[i]);
+      }
+    }
+  }
+}
@@ -0,0 +1,139 @@
+package com.scythe.instrumenter.analysis;
+
+import java.util.Arrays;
+
+/**
+ * A set of non-negative ints split into chunks of 65536 by their high 16 bits, in the style of a
+ * roaring bitmap. A chunk holding few values keeps them as a sorted array of their low 16 bits,
+ * at two bytes a value, and becomes an 8KB bitmap once it holds more than {@link #ARRAY_LIMIT},
+ * which is when the bitmap gets smaller. Sparse sets, such as the tests covering one goal out of
+ * a large suite, cost a few bytes per member rather than a bit per possible member.
+ */
+public class CompressedBitSet {
+
+  static final int ARRAY_LIMIT = 4096;
+  private static final int BITMAP_WORDS = 1024;
+
+  private char[] keys = new char[0];
+  // a char[] of sorted low bits, or a long[] bitmap, for each key
+  private Object[] chunks = new Object[0];
+  private int[] sizes = new int[0];
+  private int cardinality = 0;
+
+  /**
+   * @return true if the value was not already in the set
+   */
+  public boolean add(int value) {
+    char key = (char) (value >>> 16);
+    char low = (char) value;
+    int chunk = Arrays.binarySearch(keys, key);
+    if (chunk < 0) {
+      chunk = insertChunk(-chunk - 1, key);
+    }
+    boolean added;
+    if (chunks[chunk] instanceof long[]) {
+      long[] bitmap = (long[]) chunks[chunk];
+      long bit = 1L << low;
+      added = (bitmap[low >>> 6] & bit) == 0;
+      bitmap[low >>> 6] |= bit;
+    } else {
+      added = addToArray(chunk, low);
+    }
+    if (added) {
+      sizes[chunk]++;
+      cardinality++;
+    }
+    return added;
+  }
+
+  private int insertChunk(int index, char key) {
+    keys = insert(keys, index, key);
+    Object[] grownChunks = new Object[chunks.length + 1];
+    System.arraycopy(chunks, 0, grownChunks, 0, index);
+    System.arraycopy(chunks, index, grownChunks, index + 1, chunks.length - index);
+    grownChunks[index] = new char[4];
+    chunks = grownChunks;
+    int[] grownSizes = new int[sizes.length + 1];
+    System.arraycopy(sizes, 0, grownSizes, 0, index);
+    System.arraycopy(sizes, index, grownSizes, index + 1, sizes.length - index);
+    sizes = grownSizes;
+    return index;
+  }
+
+  private boolean addToArray(int chunk, char low) {
+    char[] values = (char[]) chunks[chunk];
+    int size = sizes[chunk];
+    int index = Arrays.binarySearch(values, 0, size, low);
+    if (index >= 0) {
+      return false;
+    }
+    if (size == ARRAY_LIMIT) {
+      long[] bitmap = new long[BITMAP_WORDS];
+      for (int i = 0; i < size; i++) {
+        bitmap[values[i] >>> 6] |= 1L << values[i];
+      }
+      bitmap[low >>> 6] |= 1L << low;
+      chunks[chunk] = bitmap;
+      return true;
+    }
+    index = -index - 1;
+    if (size == values.length) {
+      values = Arrays.copyOf(values, Math.min(ARRAY_LIMIT, size * 2));
+      chunks[chunk] = values;
+    }
+    System.arraycopy(values, index, values, index + 1, size - index);
+    values[index] = low;
+    return true;
+  }
+
+  private static char[] insert(char[] values, int index, char value) {
+    char[] grown = new char[values.length + 1];
+    System.arraycopy(values, 0, grown, 0, index);
+    System.arraycopy(values, index, grown, index + 1, values.length - index);
+    grown[index] = value;
+    return grown;
+  }
+
+  public boolean contains(int value) {
+    int chunk = Arrays.binarySearch(keys, (char) (value >>> 16));
+    if (chunk < 0) {
+      return false;
+    }
+    char low = (char) value;
+    if (chunks[chunk] instanceof long[]) {
+      return (((long[]) chunks[chunk])[low >>> 6] & (1L << low)) != 0;
+    }
+    return Arrays.binarySearch((char[]) chunks[chunk], 0, sizes[chunk], low) >= 0;
+  }
+
+  public int cardinality() {
+    return cardinality;
+  }
+
+  /**
+   * @return the values in the set in ascending order
+   */
+  public int[] toArray() {
+    int[] values = new int[cardinality];
+    int next = 0;
+    for (int chunk = 0; chunk < keys.length; chunk++) {
+      int high = keys[chunk] << 16;
+      if (chunks[chunk] instanceof long[]) {
+        long[] bitmap = (long[]) chunks[chunk];
+        for (int word = 0; word < bitmap.length; word++) {
+          long bits = bitmap[word];
+          while (bits != 0) {
+            values[next++] = high | ((word << 6) + Long.numberOfTrailingZeros(bits));
+            bits &= bits - 1;
+          }
+        }
+      } else {
+        char[] lows = (char[]) chunks[chunk];
+        for (int i = 0; i < sizes[chunk]; i++) {
+          values[next++] = high | lows[i];
+        }
+      }
+    }
+    return values;
+  }
+}
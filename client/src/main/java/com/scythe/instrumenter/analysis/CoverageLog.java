@@ -0,0 +1,322 @@
+package com.scythe.instrumenter.analysis;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+/**
+ * Reads and compacts the coverage log written by {@link CheckpointCollector}.
+ *
+ * The file starts with {@link #MAGIC} and {@link #VERSION}, followed by batches. A batch is the
+ * length of its records, their CRC32 and the records, and is written with a single write. A batch
+ * that is cut short or fails its checksum ends the log, so a log left by a JVM that died while
+ * writing is read up to its last whole checkpoint, and is cut back to it by {@link #recover(File)}
+ * before another JVM appends to it. Records start with their type:
+ * <ul>
+ * <li>SESSION: the start time of a JVM appending to the log. Class ids are only unique within a
+ * session.</li>
+ * <li>CLASS: a class id, the class name, and the line number of each counter (0 if the counter is
+ * not a line).</li>
+ * <li>HITS: the time of a checkpoint, then for each class hit since the last checkpoint the class
+ * id and the counter id and number of new hits of each counter that was hit. Counter ids are
+ * stored as the gap from the previous counter id.</li>
+ * </ul>
+ * Numbers other than times are written as unsigned variable length integers.
+ *
+ * Compacting a log folds every checkpoint into a single batch holding the total hits of each
+ * class, which is itself a log that later sessions can append to.
+ */
+public class CoverageLog {
+
+  public static final int MAGIC = 0x5343574C;
+  public static final int VERSION = 1;
+  static final int SESSION = 1;
+  static final int CLASS = 2;
+  static final int HITS = 3;
+
+  private static final int HEADER_BYTES = 8;
+  private static final int BATCH_HEADER_BYTES = 12;
+
+  public static class ClassHits {
+    private String className;
+    private int[] lines;
+    private long[] hits;
+
+    public ClassHits(String className, int[] lines, long[] hits) {
+      this.className = className;
+      this.lines = lines;
+      this.hits = hits;
+    }
+
+    public String getClassName() {
+      return className;
+    }
+
+    /**
+     * @return the line number of each counter, or 0 for counters that are not lines
+     */
+    public int[] getLines() {
+      return lines;
+    }
+
+    public long[] getHits() {
+      return hits;
+    }
+  }
+
+  /**
+   * Adds up the hits of every checkpoint in a log. A class whose counters no longer match the
+   * lines it was logged with, because it changed between sessions, starts again from zero.
+   *
+   * @return the total hits of each class in the log, keyed by class name
+   */
+  public static Map<String, ClassHits> read(File file) throws IOException {
+    Map<String, ClassHits> classes = new TreeMap<String, ClassHits>();
+    Map<Integer, ClassHits> session = new HashMap<Integer, ClassHits>();
+    try (DataInputStream in = open(file)) {
+      long remaining = file.length() - HEADER_BYTES;
+      byte[] batch;
+      while ((batch = readBatch(in, remaining)) != null) {
+        remaining -= BATCH_HEADER_BYTES + batch.length;
+        DataInputStream records = new DataInputStream(new ByteArrayInputStream(batch));
+        while (records.available() > 0) {
+          int type = records.readByte();
+          if (type == SESSION) {
+            records.readLong();
+            session.clear();
+          } else if (type == CLASS) {
+            int classId = EpochSeries.readVarInt(records);
+            String className = records.readUTF();
+            int[] lines = new int[EpochSeries.readVarInt(records)];
+            for (int i = 0; i < lines.length; i++) {
+              lines[i] = EpochSeries.readVarInt(records);
+            }
+            ClassHits known = classes.get(className);
+            if (known == null || !Arrays.equals(known.getLines(), lines)) {
+              known = new ClassHits(className, lines, new long[lines.length]);
+              classes.put(className, known);
+            }
+            session.put(classId, known);
+          } else if (type == HITS) {
+            records.readLong();
+            int hitClasses = EpochSeries.readVarInt(records);
+            for (int c = 0; c < hitClasses; c++) {
+              ClassHits hits = session.get(EpochSeries.readVarInt(records));
+              int hit = EpochSeries.readVarInt(records);
+              int counterId = 0;
+              for (int i = 0; i < hit; i++) {
+                counterId += EpochSeries.readVarInt(records);
+                long count = readVarLong(records);
+                if (hits != null && counterId < hits.getHits().length) {
+                  hits.getHits()[counterId] += count;
+                }
+              }
+            }
+          } else {
+            throw new IOException("Unknown record type " + type + " in " + file);
+          }
+        }
+      }
+    }
+    return classes;
+  }
+
+  /**
+   * Cuts a batch left part written by a JVM that died off the end of a log, so that batches
+   * appended later can be read.
+   */
+  public static void recover(File file) throws IOException {
+    long length = HEADER_BYTES;
+    try (DataInputStream in = open(file)) {
+      byte[] batch;
+      while ((batch = readBatch(in, file.length() - length)) != null) {
+        length += BATCH_HEADER_BYTES + batch.length;
+      }
+    }
+    if (length < file.length()) {
+      try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+        raf.setLength(length);
+      }
+    }
+  }
+
+  private static DataInputStream open(File file) throws IOException {
+    DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+    if (in.readInt() != MAGIC) {
+      in.close();
+      throw new IOException(file + " is not a coverage log");
+    }
+    int version = in.readInt();
+    if (version != VERSION) {
+      in.close();
+      throw new IOException("Unsupported coverage log version " + version);
+    }
+    return in;
+  }
+
+  /**
+   * @param remaining bytes left in the file, which a torn length may claim more than
+   * @return the records of the next batch, or null if there are no more whole batches
+   */
+  private static byte[] readBatch(DataInputStream in, long remaining) throws IOException {
+    try {
+      int length = in.readInt();
+      long checksum = in.readLong();
+      if (length < 0 || length > remaining - BATCH_HEADER_BYTES) {
+        return null;
+      }
+      byte[] batch = new byte[length];
+      in.readFully(batch);
+      CRC32 crc = new CRC32();
+      crc.update(batch);
+      return crc.getValue() == checksum ? batch : null;
+    } catch (EOFException e) {
+      // the writer died part way through a batch
+      return null;
+    }
+  }
+
+  static void writeHeader(FileOutputStream out) throws IOException {
+    out.write(ByteBuffer.allocate(HEADER_BYTES).putInt(MAGIC).putInt(VERSION).array());
+  }
+
+  /**
+   * Appends a batch of records with a single write, forcing it to disk if sync is set.
+   */
+  static void writeBatch(FileOutputStream out, ByteArrayOutputStream records, boolean sync)
+      throws IOException {
+    CRC32 crc = new CRC32();
+    byte[] bytes = records.toByteArray();
+    crc.update(bytes);
+    ByteBuffer batch = ByteBuffer.allocate(BATCH_HEADER_BYTES + bytes.length);
+    batch.putInt(bytes.length).putLong(crc.getValue()).put(bytes);
+    out.write(batch.array());
+    if (sync) {
+      out.getChannel().force(false);
+    }
+  }
+
+  static void writeClass(DataOutput out, int classId, String className, int[] lines)
+      throws IOException {
+    out.writeByte(CLASS);
+    EpochSeries.writeVarInt(out, classId);
+    out.writeUTF(className);
+    EpochSeries.writeVarInt(out, lines.length);
+    for (int line : lines) {
+      EpochSeries.writeVarInt(out, line);
+    }
+  }
+
+  /**
+   * Folds a log into a single batch holding the total hits of each class. The compacted log is
+   * written next to the log and moved over it, so the log is never left half written.
+   */
+  public static void compact(File file) throws IOException {
+    Map<String, ClassHits> classes = read(file);
+    ByteArrayOutputStream records = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(records);
+    long now = System.currentTimeMillis();
+    out.writeByte(SESSION);
+    out.writeLong(now);
+    ByteArrayOutputStream hits = new ByteArrayOutputStream();
+    DataOutputStream hitsOut = new DataOutputStream(hits);
+    int classId = 0;
+    int hitClasses = 0;
+    for (ClassHits c : classes.values()) {
+      writeClass(out, classId, c.getClassName(), c.getLines());
+      int hit = 0;
+      for (long count : c.getHits()) {
+        if (count > 0) {
+          hit++;
+        }
+      }
+      if (hit > 0) {
+        hitClasses++;
+        EpochSeries.writeVarInt(hitsOut, classId);
+        EpochSeries.writeVarInt(hitsOut, hit);
+        int lastId = 0;
+        for (int i = 0; i < c.getHits().length; i++) {
+          if (c.getHits()[i] > 0) {
+            EpochSeries.writeVarInt(hitsOut, i - lastId);
+            writeVarLong(hitsOut, c.getHits()[i]);
+            lastId = i;
+          }
+        }
+      }
+      classId++;
+    }
+    out.writeByte(HITS);
+    out.writeLong(now);
+    EpochSeries.writeVarInt(out, hitClasses);
+    hits.writeTo(out);
+
+    File compacted = new File(file.getPath() + ".compact");
+    try (FileOutputStream compactedOut = new FileOutputStream(compacted)) {
+      writeHeader(compactedOut);
+      writeBatch(compactedOut, records, true);
+    }
+    Files.move(compacted.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+        StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  static void writeVarLong(DataOutput out, long value) throws IOException {
+    while ((value & ~0x7FL) != 0) {
+      out.writeByte((int) ((value & 0x7F) | 0x80));
+      value >>>= 7;
+    }
+    out.writeByte((int) value);
+  }
+
+  static long readVarLong(DataInput in) throws IOException {
+    long value = 0;
+    for (int shift = 0; ; shift += 7) {
+      int b = in.readUnsignedByte();
+      value |= (long) (b & 0x7F) << shift;
+      if ((b & 0x80) == 0) {
+        return value;
+      }
+    }
+  }
+
+  public static void main(String[] args) throws IOException {
+    if (args.length < 1) {
+      System.out.println("Usage: CoverageLog <log file> [compact]");
+      return;
+    }
+    File file = new File(args[0]);
+    if (args.length > 1 && args[1].equals("compact")) {
+      compact(file);
+    }
+    for (ClassHits c : read(file).values()) {
+      int lines = 0;
+      int covered = 0;
+      for (int i = 0; i < c.getLines().length; i++) {
+        if (c.getLines()[i] > 0) {
+          lines++;
+          if (c.getHits()[i] > 0) {
+            covered++;
+          }
+        }
+      }
+      System.out.println(c.getClassName() + " " + covered + "/" + lines + " lines");
+    }
+  }
+}
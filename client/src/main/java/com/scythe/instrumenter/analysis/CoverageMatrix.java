@@ -0,0 +1,195 @@
+package com.scythe.instrumenter.analysis;
+
+import com.scythe.instrumenter.InstrumentationProperties;
+import com.scythe.instrumenter.instrumentation.objectrepresentation.Branch;
+import com.scythe.instrumenter.instrumentation.objectrepresentation.CoverableGoal;
+import com.scythe.instrumenter.testcase.TestCaseWrapper;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Which tests cover which goals, filled in when coverage is collected with
+ * {@link InstrumentationProperties#TRACK_ACTIVE_TESTCASE}. Tests and goals are numbered in the
+ * order they are first seen, and the matrix is held both ways round, as a
+ * {@link CompressedBitSet} of the goals covered by each test and one of the tests covering each
+ * goal, so both questions are answered without a scan. Covering a goal again with the same test
+ * costs nothing, so memory grows with the distinct test and goal pairs rather than with hits.
+ *
+ * Lines are identified by their class and line number, and branches by their class and goal id,
+ * so goals are covered without creating their objects.
+ */
+public class CoverageMatrix {
+
+  public static class Goal {
+    private final String className;
+    private final boolean branch;
+    private final int id;
+
+    public Goal(String className, boolean branch, int id) {
+      this.className = className;
+      this.branch = branch;
+      this.id = id;
+    }
+
+    public String getClassName() {
+      return className;
+    }
+
+    public boolean isBranch() {
+      return branch;
+    }
+
+    /**
+     * @return the goal id of a branch, or the line number of a line
+     */
+    public int getId() {
+      return id;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      if (this == other) {
+        return true;
+      }
+      if (!(other instanceof Goal)) {
+        return false;
+      }
+      Goal goal = (Goal) other;
+      return branch == goal.branch && id == goal.id && className.equals(goal.className);
+    }
+
+    @Override
+    public int hashCode() {
+      int result = className.hashCode();
+      result = 31 * result + (branch ? 1 : 0);
+      result = 31 * result + id;
+      return result;
+    }
+  }
+
+  private static final List<TestCaseWrapper> tests = new ArrayList<TestCaseWrapper>();
+  private static final Map<TestCaseWrapper, Integer> testIds =
+      new HashMap<TestCaseWrapper, Integer>();
+  private static final List<Goal> goals = new ArrayList<Goal>();
+  private static final Map<Goal, Integer> goalIds = new HashMap<Goal, Integer>();
+  private static final List<CompressedBitSet> goalsOfTest = new ArrayList<CompressedBitSet>();
+  private static final List<CompressedBitSet> testsOfGoal = new ArrayList<CompressedBitSet>();
+  private static int generation = 0;
+
+  public static synchronized int testId(TestCaseWrapper test) {
+    Integer id = testIds.get(test);
+    if (id == null) {
+      id = tests.size();
+      tests.add(test);
+      testIds.put(test, id);
+      goalsOfTest.add(new CompressedBitSet());
+    }
+    return id;
+  }
+
+  public static synchronized int goalId(String className, boolean branch, int id) {
+    Goal goal = new Goal(className, branch, id);
+    Integer goalId = goalIds.get(goal);
+    if (goalId == null) {
+      goalId = goals.size();
+      goals.add(goal);
+      goalIds.put(goal, goalId);
+      testsOfGoal.add(new CompressedBitSet());
+    }
+    return goalId;
+  }
+
+  private static Goal toGoal(CoverableGoal goal) {
+    boolean branch = goal instanceof Branch;
+    return new Goal(goal.getClassName(), branch,
+        branch ? goal.getGoalId() : goal.getLineNumber());
+  }
+
+  /**
+   * Numbers handed out before {@link #clear()} no longer refer to anything, so holders of test
+   * and goal ids check the generation they got them in.
+   */
+  public static synchronized int getGeneration() {
+    return generation;
+  }
+
+  public static synchronized void cover(int testId, int goalId) {
+    if (goalsOfTest.get(testId).add(goalId)) {
+      testsOfGoal.get(goalId).add(testId);
+    }
+  }
+
+  public static synchronized void cover(TestCaseWrapper test, CoverableGoal goal) {
+    if (test != null) {
+      Goal key = toGoal(goal);
+      cover(testId(test), goalId(key.getClassName(), key.isBranch(), key.getId()));
+    }
+  }
+
+  /**
+   * @return the tests covering a goal, each listed once, in the order they were first seen
+   */
+  public static synchronized List<TestCaseWrapper> getCoveringTests(CoverableGoal goal) {
+    List<TestCaseWrapper> covering = new ArrayList<TestCaseWrapper>();
+    Integer goalId = goalIds.get(toGoal(goal));
+    if (goalId != null) {
+      for (int testId : testsOfGoal.get(goalId).toArray()) {
+        covering.add(tests.get(testId));
+      }
+    }
+    return covering;
+  }
+
+  /**
+   * @return every test seen, in the order they were first seen
+   */
+  public static synchronized List<TestCaseWrapper> getTests() {
+    return new ArrayList<TestCaseWrapper>(tests);
+  }
+
+  public static synchronized int getGoalCount() {
+    return goals.size();
+  }
+
+  /**
+   * @return the ids of the goals covered by the test with an id, in ascending order
+   */
+  static synchronized int[] getCoveredGoalIds(int testId) {
+    return goalsOfTest.get(testId).toArray();
+  }
+
+  /**
+   * @return the goals covered by a test, in the order they were first seen
+   */
+  public static synchronized List<Goal> getCoveredGoals(TestCaseWrapper test) {
+    List<Goal> covered = new ArrayList<Goal>();
+    Integer testId = testIds.get(test);
+    if (testId != null) {
+      for (int goalId : goalsOfTest.get(testId).toArray()) {
+        covered.add(goals.get(goalId));
+      }
+    }
+    return covered;
+  }
+
+  public static synchronized boolean covers(TestCaseWrapper test, CoverableGoal goal) {
+    Integer testId = testIds.get(test);
+    Integer goalId = goalIds.get(toGoal(goal));
+    return testId != null && goalId != null && goalsOfTest.get(testId).contains(goalId);
+  }
+
+  /**
+   * Forgets every test and goal.
+   */
+  public static synchronized void clear() {
+    tests.clear();
+    testIds.clear();
+    goals.clear();
+    goalIds.clear();
+    goalsOfTest.clear();
+    testsOfGoal.clear();
+    generation++;
+  }
+}
@@ -0,0 +1,162 @@
+package com.scythe.instrumenter.analysis;
+
+import com.scythe.instrumenter.InstrumentationProperties;
+import com.scythe.instrumenter.InstrumentationProperties.CounterLayout;
+import com.scythe.instrumenter.testcase.TestCaseWrapper;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Coverage of one unit of work, such as a test or a request, kept apart from the coverage of
+ * work running on other threads at the same time. A scope is opened on the thread doing the work
+ * and closed on it when the work is done, and work handed to other threads can be added to it
+ * with {@link #wrap(Runnable)}.
+ *
+ * Scopes need classes instrumented with the {@link CounterLayout#STRIPED} counter layout. Every
+ * thread already has its own stripe of counters per class, and while a thread is in a scope it is
+ * given a stripe belonging to the scope, so probes record into the scope without any extra work
+ * per hit. A method picks up its stripe when it is invoked, so a method that was already running
+ * when the scope was opened keeps counting outside of it, and one that began in the scope keeps
+ * counting into it after it is closed. Hits made in a scope still count towards the coverage
+ * collected by {@link ClassAnalyzer}, while resetting that coverage leaves the hits of scopes
+ * alone.
+ *
+ * A scope opened for a test records the test as covering the goals it hit when it is closed, if
+ * {@link InstrumentationProperties#TRACK_ACTIVE_TESTCASE} is set. This gives exact per test
+ * coverage for tests that run in parallel, which {@link ClassAnalyzer#setActiveTestCase} cannot.
+ */
+public class CoverageScope implements AutoCloseable {
+
+  /**
+   * The scope a thread is in, looked up once per thread by each {@link StripedCounters}.
+   */
+  static final class Binding {
+    CoverageScope scope;
+  }
+
+  private static final ThreadLocal<Binding> bindings = new ThreadLocal<Binding>() {
+    @Override
+    protected Binding initialValue() {
+      return new Binding();
+    }
+  };
+
+  private final TestCaseWrapper test;
+  private final CoverageScope previous;
+  private final List<StripedCounters> counters = new ArrayList<StripedCounters>();
+  private final List<int[]> stripes = new ArrayList<int[]>();
+  private volatile boolean closed = false;
+
+  private CoverageScope(TestCaseWrapper test, CoverageScope previous) {
+    this.test = test;
+    this.previous = previous;
+  }
+
+  public static CoverageScope open() {
+    return open(null);
+  }
+
+  /**
+   * Opens a scope on the current thread, inside the scope the thread is already in, if any.
+   *
+   * @param test the test run in the scope, or null
+   */
+  public static CoverageScope open(TestCaseWrapper test) {
+    Binding binding = bindings.get();
+    CoverageScope scope = new CoverageScope(test, binding.scope);
+    binding.scope = scope;
+    return scope;
+  }
+
+  /**
+   * @return the scope the current thread is in, or null
+   */
+  public static CoverageScope current() {
+    return bindings.get().scope;
+  }
+
+  static Binding binding() {
+    return bindings.get();
+  }
+
+  /**
+   * @return a task that records into this scope on whichever thread runs it
+   */
+  public Runnable wrap(final Runnable task) {
+    return () -> {
+      Binding binding = bindings.get();
+      CoverageScope outer = binding.scope;
+      binding.scope = this;
+      try {
+        task.run();
+      } finally {
+        binding.scope = outer;
+      }
+    };
+  }
+
+  synchronized void addStripe(StripedCounters classCounters, int[] stripe) {
+    counters.add(classCounters);
+    stripes.add(stripe);
+  }
+
+  public TestCaseWrapper getTest() {
+    return test;
+  }
+
+  public boolean isClosed() {
+    return closed;
+  }
+
+  /**
+   * @return the hits made in this scope, keyed by class id, with spanning tree counts already
+   *     turned into line and branch counts
+   */
+  public synchronized Map<Integer, int[]> getHitCounters() {
+    Map<Integer, int[]> hits = new HashMap<Integer, int[]>();
+    for (int i = 0; i < counters.size(); i++) {
+      int classId = counters.get(i).getClassId();
+      if (classId < 0) {
+        continue;
+      }
+      int[] stripe = stripes.get(i);
+      int[] total = hits.get(classId);
+      if (total == null) {
+        hits.put(classId, stripe.clone());
+      } else {
+        for (int c = 0; c < total.length; c++) {
+          total[c] += stripe[c];
+        }
+      }
+    }
+    for (Map.Entry<Integer, int[]> entry : hits.entrySet()) {
+      entry.setValue(ClassAnalyzer.toGoalCounts(entry.getKey(), entry.getValue()));
+    }
+    return hits;
+  }
+
+  /**
+   * Closes the scope, returning the current thread to the scope it was in when this one was
+   * opened. The stripes of a closed scope keep counting towards the totals of their classes, and
+   * are folded into them once the threads that made them have died, and its hits can still be
+   * read.
+   */
+  @Override
+  public void close() {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    Binding binding = bindings.get();
+    if (binding.scope == this) {
+      binding.scope = previous;
+    }
+    if (test != null && InstrumentationProperties.TRACK_ACTIVE_TESTCASE) {
+      for (Map.Entry<Integer, int[]> entry : getHitCounters().entrySet()) {
+        ClassAnalyzer.addCoveringTest(test, entry.getKey(), entry.getValue());
+      }
+    }
+  }
+}
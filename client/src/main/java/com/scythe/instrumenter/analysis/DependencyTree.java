@@ -133,6 +133,19 @@ public class DependencyTree {
     return root.findClassNode(className).getDependencies();
   }
 
+  /**
+   * @return the node of every method in the tree, keyed by class method id
+   */
+  public HashMap<String, ClassNode> getNodes() {
+    HashMap<String, ClassNode> methods = new HashMap<String, ClassNode>();
+    for (HashMap<String, ClassNode> classMethods : nodes.values()) {
+      for (ClassNode cn : classMethods.values()) {
+        methods.put(cn.getClassName(), cn);
+      }
+    }
+    return methods;
+  }
+
   public void clear() {
     root.clear();
     nodes.clear();
@@ -0,0 +1,125 @@
+package com.scythe.instrumenter.analysis;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Ids of the classes hit since coverage was last reset, held as a bitset of atomic words. Marking
+ * a class reads its word, and only compares and sets it the first time the class is hit, so
+ * probes never take a lock or search a list. Collections read the marked classes without
+ * clearing them, and resets take them by swapping each word with zero, so a class marked during
+ * a reset is either taken by that reset or left marked, never lost.
+ *
+ * Marking a class also marks it in a second bitset, of the classes hit since the last checkpoint
+ * written by {@link CheckpointCollector}, which is taken the same way by each checkpoint.
+ */
+public class DirtyClasses {
+
+  private static final Bits hit = new Bits();
+  private static final Bits unsaved = new Bits();
+
+  public static void mark(int classId) {
+    if (classId < 0) {
+      return;
+    }
+    hit.mark(classId);
+    unsaved.mark(classId);
+  }
+
+  public static boolean isMarked(int classId) {
+    return hit.isMarked(classId);
+  }
+
+  /**
+   * @return the marked class ids in ascending order, leaving them marked
+   */
+  public static int[] marked() {
+    return hit.collect(false);
+  }
+
+  /**
+   * @return the marked class ids in ascending order, unmarking them
+   */
+  public static int[] drain() {
+    return hit.collect(true);
+  }
+
+  /**
+   * @return the ids of the classes marked since this was last called, in ascending order
+   */
+  public static int[] drainUnsaved() {
+    return unsaved.collect(true);
+  }
+
+  /**
+   * Unmarks every class, as their ids are about to be given to other classes.
+   */
+  public static void clear() {
+    hit.collect(true);
+    unsaved.collect(true);
+  }
+
+  private static class Bits {
+
+    private volatile AtomicLongArray words = new AtomicLongArray(64);
+
+    void mark(int classId) {
+      int word = classId >>> 6;
+      long bit = 1L << classId;
+      AtomicLongArray current = words;
+      while (true) {
+        if (word >= current.length()) {
+          current = grow(word);
+        }
+        long value = current.get(word);
+        if ((value & bit) == 0 && !current.compareAndSet(word, value, value | bit)) {
+          continue;
+        }
+        // the words may have been copied into a larger array before the bit was set
+        AtomicLongArray latest = words;
+        if (latest == current) {
+          return;
+        }
+        current = latest;
+      }
+    }
+
+    private synchronized AtomicLongArray grow(int word) {
+      AtomicLongArray current = words;
+      if (word < current.length()) {
+        return current;
+      }
+      AtomicLongArray grown = new AtomicLongArray(Math.max(word + 1, current.length() * 2));
+      for (int i = 0; i < current.length(); i++) {
+        grown.set(i, current.get(i));
+      }
+      words = grown;
+      return grown;
+    }
+
+    boolean isMarked(int classId) {
+      AtomicLongArray current = words;
+      int word = classId >>> 6;
+      return classId >= 0 && word < current.length() && (current.get(word) & (1L << classId)) != 0;
+    }
+
+    int[] collect(boolean clear) {
+      AtomicLongArray current = words;
+      long[] taken = new long[current.length()];
+      int count = 0;
+      for (int i = 0; i < taken.length; i++) {
+        taken[i] = clear ? current.getAndSet(i, 0) : current.get(i);
+        count += Long.bitCount(taken[i]);
+      }
+      int[] ids = new int[count];
+      int next = 0;
+      for (int i = 0; i < taken.length && next < count; i++) {
+        long value = taken[i];
+        while (value != 0) {
+          ids[next++] = (i << 6) + Long.numberOfTrailingZeros(value);
+          value &= value - 1;
+        }
+      }
+      return ids;
+    }
+  }
+}
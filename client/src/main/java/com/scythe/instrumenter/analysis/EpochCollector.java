@@ -0,0 +1,154 @@
+package com.scythe.instrumenter.analysis;
+
+import com.scythe.instrumenter.InstrumentationProperties;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+
+/**
+ * Appends the hits of every epoch to a time series on disk (see {@link EpochSeries}), so that
+ * usage can be queried per interval without ever resetting the counters. Each epoch is the
+ * difference between the counters now and at the end of the last epoch. The counters of the last
+ * epoch are the only state kept, so memory does not grow with the number of epochs.
+ *
+ * Resetting the counters through {@link ClassAnalyzer} ends the current epoch first, so hits in
+ * counters that go back to zero on reset are not lost (see {@link HitDeltas}).
+ */
+public class EpochCollector {
+
+  private static EpochCollector instance;
+
+  private final DataOutputStream out;
+  private final HitDeltas deltas = new HitDeltas();
+  private final Timer timer;
+  private long epochStart;
+  private boolean stopped = false;
+
+  private EpochCollector(File file, long interval) throws IOException {
+    if (file.getParentFile() != null && !file.getParentFile().exists()) {
+      file.getParentFile().mkdirs();
+    }
+    boolean created = !file.exists() || file.length() == 0;
+    out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+    epochStart = System.currentTimeMillis();
+    if (created) {
+      out.writeInt(EpochSeries.MAGIC);
+      out.writeInt(EpochSeries.VERSION);
+      out.writeLong(epochStart);
+    }
+    out.writeByte(EpochSeries.SESSION);
+    out.writeLong(epochStart);
+    out.flush();
+
+    timer = new Timer("scythe-epoch-collector", true);
+    timer.scheduleAtFixedRate(new TimerTask() {
+      @Override
+      public void run() {
+        collect();
+      }
+    }, interval, interval);
+    Runtime.getRuntime().addShutdownHook(new Thread(() -> stop()));
+  }
+
+  /**
+   * Starts collecting epochs of {@link InstrumentationProperties#EPOCH_INTERVAL} seconds into
+   * {@link InstrumentationProperties#EPOCH_FILE}, if it is not already running.
+   */
+  public static synchronized void start() {
+    if (instance != null || InstrumentationProperties.EPOCH_INTERVAL <= 0) {
+      return;
+    }
+    try {
+      instance = new EpochCollector(new File(InstrumentationProperties.EPOCH_FILE),
+          InstrumentationProperties.EPOCH_INTERVAL * 1000L);
+    } catch (IOException e) {
+      e.printStackTrace(ClassAnalyzer.out);
+    }
+  }
+
+  public static synchronized EpochCollector getInstance() {
+    return instance;
+  }
+
+  /**
+   * Ends the current epoch early if a collector is running, before the counters are reset.
+   */
+  public static void beforeReset() {
+    EpochCollector collector = getInstance();
+    if (collector != null) {
+      collector.collectBeforeReset();
+    }
+  }
+
+  private synchronized void collectBeforeReset() {
+    collect();
+    deltas.beforeReset();
+  }
+
+  /**
+   * Ends the current epoch and appends its hits to the series.
+   */
+  public synchronized void collect() {
+    if (stopped) {
+      return;
+    }
+    long epochEnd = System.currentTimeMillis();
+    Map<Integer, int[]> current = ClassAnalyzer.readHitCounters();
+    try {
+      ByteArrayOutputStream epoch = new ByteArrayOutputStream();
+      DataOutputStream hits = new DataOutputStream(epoch);
+      int classes = 0;
+      for (Map.Entry<Integer, int[]> entry : current.entrySet()) {
+        if (deltas.write(hits, entry.getKey(), entry.getValue(), false)) {
+          if (deltas.isNew(entry.getKey())) {
+            writeClass(entry.getKey(), entry.getValue().length);
+          }
+          classes++;
+        }
+      }
+      out.writeByte(EpochSeries.EPOCH);
+      out.writeLong(epochStart);
+      out.writeLong(epochEnd);
+      EpochSeries.writeVarInt(out, classes);
+      epoch.writeTo(out);
+      out.flush();
+    } catch (IOException e) {
+      e.printStackTrace(ClassAnalyzer.out);
+    }
+    epochStart = epochEnd;
+  }
+
+  private void writeClass(int classId, int counters) throws IOException {
+    int[] lines = ClassAnalyzer.getCounterLines(classId, counters);
+    out.writeByte(EpochSeries.CLASS);
+    EpochSeries.writeVarInt(out, classId);
+    out.writeUTF(ClassAnalyzer.getClassName(classId));
+    EpochSeries.writeVarInt(out, counters);
+    for (int line : lines) {
+      EpochSeries.writeVarInt(out, line);
+    }
+  }
+
+  /**
+   * Collects a last epoch and closes the series.
+   */
+  public synchronized void stop() {
+    if (stopped) {
+      return;
+    }
+    timer.cancel();
+    collect();
+    stopped = true;
+    try {
+      out.close();
+    } catch (IOException e) {
+      e.printStackTrace(ClassAnalyzer.out);
+    }
+  }
+}
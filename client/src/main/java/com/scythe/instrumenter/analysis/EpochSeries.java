@@ -0,0 +1,235 @@
+package com.scythe.instrumenter.analysis;
+
+import java.io.BufferedInputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Queries the coverage time series written by {@link EpochCollector}. Files are read as a stream,
+ * so queries use memory proportional to the number of lines in the series rather than the number
+ * of epochs.
+ *
+ * The file starts with {@link #MAGIC}, {@link #VERSION} and the time the file was created, which
+ * is taken as the deploy time. Records follow, each starting with its type:
+ * <ul>
+ * <li>SESSION: the start time of a JVM writing to the file. Class ids are only unique within a
+ * session.</li>
+ * <li>CLASS: a class id, the class name, and the line number of each counter (0 if the counter is
+ * not a line).</li>
+ * <li>EPOCH: the start and end time of the epoch, then for each class with hits in the epoch the
+ * class id and the counter id and hit count of each counter that was hit. Counter ids are stored
+ * as the gap from the previous counter id.</li>
+ * </ul>
+ * Numbers other than times are written as unsigned variable length integers.
+ */
+public class EpochSeries {
+
+  public static final int MAGIC = 0x53434550;
+  public static final int VERSION = 1;
+  static final int SESSION = 1;
+  static final int CLASS = 2;
+  static final int EPOCH = 3;
+
+  private static final long HOUR = 60 * 60 * 1000;
+
+  /**
+   * Visits the line hits of a series.
+   */
+  private interface HitVisitor {
+    void classFound(String className, int[] lines);
+
+    void linesHit(String className, int[] lines, int counterId, long start, long end);
+  }
+
+  public static long getDeployTime(File file) throws IOException {
+    try (DataInputStream in = open(file)) {
+      return in.readLong();
+    }
+  }
+
+  /**
+   * @return the lines executed in any epoch overlapping the given interval, keyed by class name
+   */
+  public static Map<String, Set<Integer>> linesExecutedBetween(File file, final long from,
+      final long to) throws IOException {
+    final Map<String, Set<Integer>> executed = new TreeMap<String, Set<Integer>>();
+    read(file, new HitVisitor() {
+      @Override
+      public void classFound(String className, int[] lines) {
+      }
+
+      @Override
+      public void linesHit(String className, int[] lines, int counterId, long start, long end) {
+        if (lines[counterId] > 0 && end >= from && start <= to) {
+          lines(executed, className).add(lines[counterId]);
+        }
+      }
+    });
+    return executed;
+  }
+
+  public static Map<String, Set<Integer>> linesExecutedSince(File file, long since)
+      throws IOException {
+    return linesExecutedBetween(file, since, Long.MAX_VALUE);
+  }
+
+  /**
+   * @return the lines of every class in the series that were not executed in any epoch since the
+   *     file was created, keyed by class name
+   */
+  public static Map<String, Set<Integer>> linesNeverExecuted(File file) throws IOException {
+    final Map<String, Set<Integer>> never = new TreeMap<String, Set<Integer>>();
+    final Map<String, Set<Integer>> executed = new HashMap<String, Set<Integer>>();
+    read(file, new HitVisitor() {
+      @Override
+      public void classFound(String className, int[] lines) {
+        for (int line : lines) {
+          if (line > 0) {
+            lines(never, className).add(line);
+          }
+        }
+      }
+
+      @Override
+      public void linesHit(String className, int[] lines, int counterId, long start, long end) {
+        if (lines[counterId] > 0) {
+          lines(executed, className).add(lines[counterId]);
+        }
+      }
+    });
+    for (Map.Entry<String, Set<Integer>> entry : executed.entrySet()) {
+      if (never.containsKey(entry.getKey())) {
+        never.get(entry.getKey()).removeAll(entry.getValue());
+      }
+    }
+    return never;
+  }
+
+  private static Set<Integer> lines(Map<String, Set<Integer>> lines, String className) {
+    if (!lines.containsKey(className)) {
+      lines.put(className, new TreeSet<Integer>());
+    }
+    return lines.get(className);
+  }
+
+  private static void read(File file, HitVisitor visitor) throws IOException {
+    try (DataInputStream in = open(file)) {
+      in.readLong();
+      Map<Integer, String> names = new HashMap<Integer, String>();
+      Map<Integer, int[]> lines = new HashMap<Integer, int[]>();
+      while (true) {
+        int type;
+        try {
+          type = in.readByte();
+        } catch (EOFException e) {
+          return;
+        }
+        try {
+          if (type == SESSION) {
+            in.readLong();
+            names.clear();
+            lines.clear();
+          } else if (type == CLASS) {
+            int classId = readVarInt(in);
+            String className = in.readUTF();
+            int[] classLines = new int[readVarInt(in)];
+            for (int i = 0; i < classLines.length; i++) {
+              classLines[i] = readVarInt(in);
+            }
+            names.put(classId, className);
+            lines.put(classId, classLines);
+            visitor.classFound(className, classLines);
+          } else if (type == EPOCH) {
+            long start = in.readLong();
+            long end = in.readLong();
+            int classes = readVarInt(in);
+            for (int c = 0; c < classes; c++) {
+              int classId = readVarInt(in);
+              int hit = readVarInt(in);
+              int counterId = 0;
+              for (int i = 0; i < hit; i++) {
+                counterId += readVarInt(in);
+                readVarInt(in);
+                int[] classLines = lines.get(classId);
+                if (classLines != null && counterId < classLines.length) {
+                  visitor.linesHit(names.get(classId), classLines, counterId, start, end);
+                }
+              }
+            }
+          } else {
+            throw new IOException("Unknown record type " + type + " in " + file);
+          }
+        } catch (EOFException e) {
+          // the writer died part way through a record
+          return;
+        }
+      }
+    }
+  }
+
+  private static DataInputStream open(File file) throws IOException {
+    DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+    if (in.readInt() != MAGIC) {
+      in.close();
+      throw new IOException(file + " is not an epoch series");
+    }
+    int version = in.readInt();
+    if (version != VERSION) {
+      in.close();
+      throw new IOException("Unsupported epoch series version " + version);
+    }
+    return in;
+  }
+
+  static void writeVarInt(DataOutput out, int value) throws IOException {
+    while ((value & ~0x7F) != 0) {
+      out.writeByte((value & 0x7F) | 0x80);
+      value >>>= 7;
+    }
+    out.writeByte(value);
+  }
+
+  static int readVarInt(DataInput in) throws IOException {
+    int value = 0;
+    for (int shift = 0; ; shift += 7) {
+      int b = in.readUnsignedByte();
+      value |= (b & 0x7F) << shift;
+      if ((b & 0x80) == 0) {
+        return value;
+      }
+    }
+  }
+
+  public static void main(String[] args) throws IOException {
+    if (args.length < 2) {
+      System.out.println("Usage: EpochSeries <series file> <hours>|never");
+      return;
+    }
+    File file = new File(args[0]);
+    Map<String, Set<Integer>> lines;
+    if (args[1].equals("never")) {
+      System.out.println("Lines never executed since " + new Date(getDeployTime(file)));
+      lines = linesNeverExecuted(file);
+    } else {
+      System.out.println("Lines executed in the last " + args[1] + " hours");
+      lines = linesExecutedSince(file,
+          System.currentTimeMillis() - (long) (Double.parseDouble(args[1]) * HOUR));
+    }
+    for (Map.Entry<String, Set<Integer>> entry : lines.entrySet()) {
+      if (!entry.getValue().isEmpty()) {
+        System.out.println(entry.getKey() + " " + entry.getValue());
+      }
+    }
+  }
+}
@@ -0,0 +1,186 @@
+package com.scythe.instrumenter.analysis;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Control flow graph of one method instrumented with spanning tree probe placement. Only edges
+ * that are not on the spanning tree carry a probe; the counts of the remaining edges follow from
+ * flow conservation, since each block is left as many times as it is entered. Edge 0 is a virtual
+ * edge from the exit node back to the entry block, so its count is the number of invocations.
+ *
+ * Counts are only exact for invocations that leave the method normally, because an exception
+ * leaving a block part way through breaks the conservation the solve relies on.
+ */
+public class FlowGraph {
+
+  private static final Map<Integer, List<FlowGraph>> graphs =
+      new ConcurrentHashMap<Integer, List<FlowGraph>>();
+
+  private final int nodes;
+  private final int[] from;
+  private final int[] to;
+  // counter index holding each edge's count, or -1 for edges on the spanning tree
+  private final int[] probes;
+  // line counters are credited with the count of a block, branch counters with that of an edge
+  private final int[] blockCounters;
+  private final int[] counterBlocks;
+  private final int[] edgeCounters;
+  private final int[] counterEdges;
+
+  public FlowGraph(int nodes, int[] from, int[] to, int[] probes, int[] blockCounters,
+      int[] counterBlocks, int[] edgeCounters, int[] counterEdges) {
+    this.nodes = nodes;
+    this.from = from;
+    this.to = to;
+    this.probes = probes;
+    this.blockCounters = blockCounters;
+    this.counterBlocks = counterBlocks;
+    this.edgeCounters = edgeCounters;
+    this.counterEdges = counterEdges;
+  }
+
+  /**
+   * Writes the graph in the form read by {@link #read(DataInput)}, for graphs kept along with
+   * the bytecode they were built from.
+   */
+  public void write(DataOutput out) throws IOException {
+    out.writeInt(nodes);
+    for (int[] values : new int[][]{from, to, probes, blockCounters, counterBlocks, edgeCounters,
+        counterEdges}) {
+      out.writeInt(values.length);
+      for (int value : values) {
+        out.writeInt(value);
+      }
+    }
+  }
+
+  public static FlowGraph read(DataInput in) throws IOException {
+    int nodes = in.readInt();
+    int[][] values = new int[7][];
+    for (int i = 0; i < values.length; i++) {
+      values[i] = new int[in.readInt()];
+      for (int v = 0; v < values[i].length; v++) {
+        values[i][v] = in.readInt();
+      }
+    }
+    return new FlowGraph(nodes, values[0], values[1], values[2], values[3], values[4], values[5],
+        values[6]);
+  }
+
+  public static void register(int classId, List<FlowGraph> classGraphs) {
+    if (classGraphs.isEmpty()) {
+      graphs.remove(classId);
+    } else {
+      graphs.put(classId, classGraphs);
+    }
+  }
+
+  /**
+   * Forgets the graphs of every class, as their ids are about to be given to other classes.
+   */
+  public static void clear() {
+    graphs.clear();
+  }
+
+  public static boolean hasGraphs(int classId) {
+    return graphs.containsKey(classId);
+  }
+
+  /**
+   * Rebuilds the line and branch counters of every spanning tree method in a class from its probe
+   * counts.
+   *
+   * @param classId class the counters belong to
+   * @param counters counter array read from the class, left untouched
+   * @return the counters with line and branch counts added, or counters if nothing was added
+   */
+  public static int[] expand(int classId, int[] counters) {
+    List<FlowGraph> classGraphs = graphs.get(classId);
+    if (classGraphs == null) {
+      return counters;
+    }
+    int[] expanded = Arrays.copyOf(counters, counters.length);
+    for (FlowGraph g : classGraphs) {
+      g.apply(expanded);
+    }
+    return expanded;
+  }
+
+  public void apply(int[] counters) {
+    long[] edges = solve(counters);
+    long[] blocks = new long[nodes];
+    for (int e = 0; e < edges.length; e++) {
+      blocks[to[e]] += edges[e];
+    }
+    for (int i = 0; i < blockCounters.length; i++) {
+      counters[blockCounters[i]] += clamp(blocks[counterBlocks[i]]);
+    }
+    for (int i = 0; i < edgeCounters.length; i++) {
+      counters[edgeCounters[i]] += clamp(edges[counterEdges[i]]);
+    }
+  }
+
+  /**
+   * Works out the count of every edge. The unprobed edges form a spanning tree, so there is always
+   * a node with a single unknown edge left, whose count is the difference between the known flow
+   * in and out of that node.
+   */
+  long[] solve(int[] counters) {
+    long[] edges = new long[from.length];
+    boolean[] known = new boolean[from.length];
+    int[] unknown = new int[nodes];
+    long[] balance = new long[nodes];
+    int remaining = 0;
+    for (int e = 0; e < from.length; e++) {
+      if (probes[e] >= 0) {
+        known[e] = true;
+        edges[e] = counters[probes[e]];
+        balance[to[e]] += edges[e];
+        balance[from[e]] -= edges[e];
+      } else {
+        unknown[from[e]]++;
+        unknown[to[e]]++;
+        remaining++;
+      }
+    }
+    while (remaining > 0) {
+      boolean progress = false;
+      for (int e = 0; e < from.length; e++) {
+        if (known[e]) {
+          continue;
+        }
+        long count;
+        if (unknown[to[e]] == 1) {
+          // the only unknown edge into or out of to[e] is e, which flows in
+          count = -balance[to[e]];
+        } else if (unknown[from[e]] == 1) {
+          count = balance[from[e]];
+        } else {
+          continue;
+        }
+        known[e] = true;
+        edges[e] = count;
+        balance[to[e]] += count;
+        balance[from[e]] -= count;
+        unknown[from[e]]--;
+        unknown[to[e]]--;
+        remaining--;
+        progress = true;
+      }
+      if (!progress) {
+        break;
+      }
+    }
+    return edges;
+  }
+
+  private static int clamp(long count) {
+    return (int) Math.max(0, Math.min(Integer.MAX_VALUE, count));
+  }
+}
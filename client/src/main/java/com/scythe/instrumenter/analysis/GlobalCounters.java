@@ -0,0 +1,160 @@
+package com.scythe.instrumenter.analysis;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Hit and distance counters for every class instrumented with the GLOBAL counter layout, held in
+ * one flat array each. Classes are given a base offset into the arrays when they are
+ * instrumented, which is compiled into the class as a constant, so collecting coverage is a
+ * single copy of each array rather than reflective calls into every class.
+ *
+ * The arrays grow when classes are instrumented. They are published through volatile fields, so
+ * probes load the current array on every hit rather than holding on to a replaced one, though a
+ * probe that read the old array just before it was replaced can still lose that increment.
+ *
+ * As with {@link ProbeArrays}, collections never write the counters. Resetting copies them into a
+ * baseline, and reading hands back the counters less the baseline, so hits made while coverage is
+ * collected are left for the next collection. Sampled counters are cleared on reset instead, as
+ * their probes record a first hit by finding the counter at zero.
+ */
+public class GlobalCounters {
+
+  public static volatile int[] counters = new int[1 << 16];
+  public static volatile float[] distances = new float[1 << 14];
+
+  private static int[] baseline = new int[1 << 16];
+
+  private static int counterEnd = 0;
+  private static int distanceEnd = 0;
+
+  // classId -> {counter base, counter count, distance base, distance count}
+  private static final Map<Integer, int[]> offsets = new ConcurrentHashMap<Integer, int[]>();
+
+  public static synchronized int reserveCounters(int size) {
+    int base = counterEnd;
+    counterEnd += size;
+    if (counterEnd > counters.length) {
+      int length = Math.max(counterEnd, counters.length * 2);
+      baseline = Arrays.copyOf(baseline, length);
+      counters = Arrays.copyOf(counters, length);
+    }
+    return base;
+  }
+
+  public static synchronized int reserveDistances(int size) {
+    int base = distanceEnd;
+    distanceEnd += size;
+    if (distanceEnd > distances.length) {
+      distances = Arrays.copyOf(distances, Math.max(distanceEnd, distances.length * 2));
+    }
+    return base;
+  }
+
+  public static void register(int classId, int counterBase, int counterCount, int distanceBase,
+      int distanceCount) {
+    offsets.put(classId, new int[]{counterBase, counterCount, distanceBase, distanceCount});
+  }
+
+  /**
+   * @return the offset table, mapping class ids to the counter base, counter count, distance base
+   *     and distance count of each class
+   */
+  public static Map<Integer, int[]> getOffsets() {
+    return Collections.unmodifiableMap(offsets);
+  }
+
+  /**
+   * @return the hit count of every counter handed out since it was last reset
+   */
+  public static synchronized int[] copyCounters() {
+    return snapshot(false);
+  }
+
+  /**
+   * @return the hit count of every counter handed out since it was created, which resets leave
+   *     alone unless {@link #keepsCounters(int) sampling}
+   */
+  public static synchronized int[] copyTotalCounters() {
+    return Arrays.copyOf(counters, counterEnd);
+  }
+
+  /**
+   * Reads the hit count of every counter handed out since it was last reset, resetting them if
+   * asked to. Each counter is read once and the baseline moved to the value read, so every hit is
+   * counted by exactly one snapshot even while probes keep running.
+   */
+  public static synchronized int[] snapshot(boolean reset) {
+    int[] current = counters;
+    boolean clear = reset && Sampler.isSampling();
+    int[] counts = new int[counterEnd];
+    for (int i = 0; i < counterEnd; i++) {
+      int value = current[i];
+      counts[i] = value - baseline[i];
+      if (clear) {
+        current[i] = 0;
+        baseline[i] = 0;
+      } else if (reset) {
+        baseline[i] = value;
+      }
+    }
+    return counts;
+  }
+
+  /**
+   * @return true if a class has counters here that resets leave alone, which is not the case
+   *     when sampling
+   */
+  public static boolean keepsCounters(int classId) {
+    return offsets.containsKey(classId) && !Sampler.isSampling();
+  }
+
+  public static synchronized float[] copyDistances() {
+    return Arrays.copyOf(distances, distanceEnd);
+  }
+
+  public static synchronized int[] getCounters(int base, int size) {
+    int[] counts = Arrays.copyOfRange(counters, base, base + size);
+    for (int i = 0; i < size; i++) {
+      counts[i] -= baseline[base + i];
+    }
+    return counts;
+  }
+
+  public static float[] getDistances(int base, int size) {
+    return Arrays.copyOfRange(distances, base, base + size);
+  }
+
+  public static synchronized void clear(int base, int size) {
+    reset(base, base + size);
+  }
+
+  /**
+   * Forgets the slices of every class and zeroes the arrays, as class ids and offsets are about
+   * to be given out again.
+   */
+  public static synchronized void clear() {
+    Arrays.fill(counters, 0, counterEnd, 0);
+    Arrays.fill(baseline, 0, counterEnd, 0);
+    Arrays.fill(distances, 0, distanceEnd, 0);
+    counterEnd = 0;
+    distanceEnd = 0;
+    offsets.clear();
+  }
+
+  public static synchronized void reset() {
+    reset(0, counterEnd);
+  }
+
+  private static void reset(int from, int to) {
+    if (Sampler.isSampling()) {
+      Arrays.fill(counters, from, to, 0);
+      Arrays.fill(baseline, from, to, 0);
+    } else {
+      // probes may be incrementing the array, so it is left alone and only the baseline moves
+      System.arraycopy(counters, from, baseline, from, to - from);
+    }
+  }
+}
@@ -0,0 +1,86 @@
+package com.scythe.instrumenter.analysis;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The counters each class had when a collector writing coverage out as it goes last read them,
+ * and the encoding of the hits made since, shared by {@link EpochCollector} and
+ * {@link CheckpointCollector}. The hits of a class are written as its id, the number of counters
+ * hit, then the gap from the last counter hit and the hits of each counter hit.
+ *
+ * Int counters registered with {@link ProbeArrays}, and {@link GlobalCounters}, are read as
+ * counted since they were created, as resets only move their baseline, so their hits are never
+ * lost to a reset. Other counters go back to zero when reset, so the collector reads them just
+ * before and forgets their last values. Counters that still go down between reads were reset some
+ * other way, and their current value is taken as their hits.
+ */
+class HitDeltas {
+
+  private final Map<Integer, int[]> previous = new HashMap<Integer, int[]>();
+  private final Set<Integer> seen = new HashSet<Integer>();
+
+  /**
+   * @return true the first time a class is passed in, when the collector should describe it
+   */
+  boolean isNew(int classId) {
+    return seen.add(classId);
+  }
+
+  /**
+   * Writes the hits made in a class since it was last passed in, and keeps its counters for the
+   * next time.
+   *
+   * @param longHits write hits as var longs rather than var ints
+   * @return false, having written nothing, if no counter was hit
+   */
+  boolean write(DataOutputStream out, int classId, int[] counters, boolean longHits)
+      throws IOException {
+    int[] last = previous.put(classId, counters);
+    int hit = 0;
+    for (int i = 0; i < counters.length; i++) {
+      if (delta(counters, last, i) > 0) {
+        hit++;
+      }
+    }
+    if (hit == 0) {
+      return false;
+    }
+    EpochSeries.writeVarInt(out, classId);
+    EpochSeries.writeVarInt(out, hit);
+    int lastId = 0;
+    for (int i = 0; i < counters.length; i++) {
+      int delta = delta(counters, last, i);
+      if (delta > 0) {
+        EpochSeries.writeVarInt(out, i - lastId);
+        if (longHits) {
+          CoverageLog.writeVarLong(out, delta);
+        } else {
+          EpochSeries.writeVarInt(out, delta);
+        }
+        lastId = i;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Forgets the last values of the counters a reset is about to set back to zero. Called once the
+   * collector has read them.
+   */
+  void beforeReset() {
+    previous.keySet().removeIf(
+        classId -> !ProbeArrays.keepsCounters(classId) && !GlobalCounters.keepsCounters(classId));
+  }
+
+  private static int delta(int[] counters, int[] last, int i) {
+    if (last == null || i >= last.length || counters[i] < last[i]) {
+      return counters[i];
+    }
+    return counters[i] - last[i];
+  }
+}
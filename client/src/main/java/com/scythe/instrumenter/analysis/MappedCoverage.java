@@ -0,0 +1,150 @@
+package com.scythe.instrumenter.analysis;
+
+import com.scythe.instrumenter.InstrumentationProperties;
+import com.scythe.util.ClassNameUtils;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Hit counters kept in a memory mapped file, so that they outlive the JVM and can be read by
+ * another process while tests are running (see {@link MappedCoverageReader}).
+ *
+ * The file starts with a header of {@link #MAGIC}, {@link #VERSION} and the offset of the end of
+ * the last complete class record as a long. Class records follow, each holding the record length,
+ * the number of counters, the class name, the line number of every counter (0 if the counter is
+ * not a line) and the counters themselves. A negative record length marks padding to skip. The
+ * end offset is only moved once a record is complete, so readers never see partial records.
+ *
+ * The file is opened once per JVM. Records left by earlier JVMs are kept and new records are added
+ * after them, so the counts of a JVM that was killed are not lost when the next one starts. A file
+ * without the header of this version is started again.
+ */
+public class MappedCoverage {
+
+  public static final int MAGIC = 0x53435954;
+  public static final int VERSION = 1;
+  public static final int HEADER_BYTES = 16;
+  static final int END_OFFSET = 8;
+  private static final int CHUNK_BYTES = 1 << 20;
+
+  private static FileChannel channel;
+  private static MappedByteBuffer header;
+  private static MappedByteBuffer chunk;
+  private static long chunkStart;
+  private static long end;
+
+  /**
+   * Adds a record for a class to the coverage file, opening the file on first use. If the file
+   * cannot be written the counters are kept on the heap instead.
+   *
+   * @param className class the counters belong to
+   * @param counters number of counters in the class
+   * @return the counters of the class
+   */
+  public static synchronized IntBuffer allocate(String className, int counters) {
+    try {
+      if (channel == null) {
+        open(new File(InstrumentationProperties.COVERAGE_MAP_FILE));
+      }
+      className = ClassNameUtils.replaceSlashes(className);
+      byte[] name = className.getBytes(StandardCharsets.UTF_8);
+      int nameBytes = (name.length + 3) & ~3;
+      int recordBytes = 12 + nameBytes + 8 * counters;
+
+      if (end + recordBytes > chunkStart + chunk.capacity()) {
+        int remaining = (int) (chunkStart + chunk.capacity() - end);
+        if (remaining > 0) {
+          chunk.putInt((int) (end - chunkStart), -remaining);
+        }
+        chunkStart += chunk.capacity();
+        end = chunkStart;
+        chunk = channel.map(FileChannel.MapMode.READ_WRITE, chunkStart,
+            Math.max(CHUNK_BYTES, recordBytes));
+      }
+
+      ByteBuffer record = chunk.duplicate();
+      record.position((int) (end - chunkStart));
+      record.putInt(recordBytes);
+      record.putInt(counters);
+      record.putInt(name.length);
+      record.put(name);
+      record.position(record.position() + nameBytes - name.length);
+      int[] lines = ClassAnalyzer.getCounterLines(ClassAnalyzer.getClassId(className), counters);
+      for (int line : lines) {
+        record.putInt(line);
+      }
+      record.limit(record.position() + 4 * counters);
+      IntBuffer buffer = record.slice().asIntBuffer();
+
+      end += recordBytes;
+      header.putLong(END_OFFSET, end);
+      return buffer;
+    } catch (IOException e) {
+      e.printStackTrace(ClassAnalyzer.out);
+      return IntBuffer.allocate(counters);
+    }
+  }
+
+  private static void open(File file) throws IOException {
+    if (file.getParentFile() != null && !file.getParentFile().exists()) {
+      file.getParentFile().mkdirs();
+    }
+    channel = new RandomAccessFile(file, "rw").getChannel();
+    end = readEnd(channel);
+    if (end < 0) {
+      channel.truncate(0);
+      header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_BYTES);
+      header.putInt(0, MAGIC);
+      header.putInt(4, VERSION);
+      end = HEADER_BYTES;
+      header.putLong(END_OFFSET, end);
+    } else {
+      header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_BYTES);
+    }
+    chunkStart = end;
+    chunk = channel.map(FileChannel.MapMode.READ_WRITE, chunkStart, CHUNK_BYTES);
+  }
+
+  /**
+   * @return the end of the records already in a coverage file, or -1 if it does not start with
+   *     the header of this version
+   */
+  private static long readEnd(FileChannel channel) throws IOException {
+    ByteBuffer existing = ByteBuffer.allocate(HEADER_BYTES);
+    if (channel.size() < HEADER_BYTES || channel.read(existing, 0) < HEADER_BYTES
+        || existing.getInt(0) != MAGIC || existing.getInt(4) != VERSION) {
+      return -1;
+    }
+    long recordsEnd = existing.getLong(END_OFFSET);
+    return recordsEnd < HEADER_BYTES || recordsEnd > channel.size() ? -1 : recordsEnd;
+  }
+
+  /**
+   * Closes the coverage file, so the next class opens the current coverage_map_file. Counters
+   * already handed out stay mapped. Used by tests.
+   */
+  static synchronized void close() throws IOException {
+    if (channel != null) {
+      channel.close();
+      channel = null;
+    }
+  }
+
+  public static int[] toArray(IntBuffer counters) {
+    int[] values = new int[counters.capacity()];
+    counters.duplicate().get(values);
+    return values;
+  }
+
+  public static void clear(IntBuffer counters) {
+    for (int i = 0; i < counters.capacity(); i++) {
+      counters.put(i, 0);
+    }
+  }
+}
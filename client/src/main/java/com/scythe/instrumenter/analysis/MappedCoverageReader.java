@@ -0,0 +1,114 @@
+package com.scythe.instrumenter.analysis;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads the coverage file written by {@link MappedCoverage}, either while the instrumented JVM is
+ * still running or after it has died. Run with the path of the file to print line coverage.
+ */
+public class MappedCoverageReader {
+
+  public static class ClassCounters {
+    private String className;
+    private int[] lines;
+    private int[] counters;
+
+    public ClassCounters(String className, int[] lines, int[] counters) {
+      this.className = className;
+      this.lines = lines;
+      this.counters = counters;
+    }
+
+    public String getClassName() {
+      return className;
+    }
+
+    /**
+     * @return the line number of each counter, or 0 for counters that are not lines
+     */
+    public int[] getLines() {
+      return lines;
+    }
+
+    public int[] getCounters() {
+      return counters;
+    }
+  }
+
+  /**
+   * Takes a snapshot of all complete class records in a coverage file. A class appears once for
+   * every class loader that loaded it, in every JVM that wrote to the file.
+   */
+  public static List<ClassCounters> read(File file) throws IOException {
+    List<ClassCounters> classes = new ArrayList<ClassCounters>();
+    try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+      FileChannel channel = raf.getChannel();
+      MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+          MappedCoverage.HEADER_BYTES);
+      if (header.getInt(0) != MappedCoverage.MAGIC) {
+        throw new IOException(file + " is not a coverage file");
+      }
+      if (header.getInt(4) != MappedCoverage.VERSION) {
+        throw new IOException("Unsupported coverage file version " + header.getInt(4));
+      }
+      long end = header.getLong(MappedCoverage.END_OFFSET);
+      MappedByteBuffer records = channel.map(FileChannel.MapMode.READ_ONLY,
+          MappedCoverage.HEADER_BYTES, end - MappedCoverage.HEADER_BYTES);
+
+      while (records.hasRemaining()) {
+        int start = records.position();
+        int recordBytes = records.getInt();
+        if (recordBytes < 0) {
+          records.position(start - recordBytes);
+          continue;
+        }
+        int count = records.getInt();
+        byte[] name = new byte[records.getInt()];
+        records.get(name);
+        records.position(records.position() + ((name.length + 3) & ~3) - name.length);
+        int[] lines = new int[count];
+        int[] counters = new int[count];
+        for (int i = 0; i < count; i++) {
+          lines[i] = records.getInt();
+        }
+        for (int i = 0; i < count; i++) {
+          counters[i] = records.getInt();
+        }
+        classes.add(new ClassCounters(new String(name, StandardCharsets.UTF_8), lines, counters));
+        records.position(start + recordBytes);
+      }
+    }
+    return classes;
+  }
+
+  public static void main(String[] args) throws IOException {
+    if (args.length < 1) {
+      System.out.println("Usage: MappedCoverageReader <coverage file>");
+      return;
+    }
+    for (ClassCounters c : read(new File(args[0]))) {
+      int covered = 0;
+      int total = 0;
+      StringBuilder lines = new StringBuilder();
+      for (int i = 0; i < c.getLines().length; i++) {
+        if (c.getLines()[i] > 0) {
+          total++;
+          if (c.getCounters()[i] > 0) {
+            covered++;
+          }
+          lines.append("  line ").append(c.getLines()[i]).append(": ")
+              .append(c.getCounters()[i]).append("\n");
+        }
+      }
+      System.out.println(c.getClassName() + " " + covered + "/" + total + " lines covered");
+      System.out.print(lines);
+    }
+  }
+}
@@ -0,0 +1,225 @@
+package com.scythe.instrumenter.analysis;
+
+import java.nio.IntBuffer;
+import java.util.Arrays;
+
+/**
+ * Probe arrays of the classes instrumented with counter arrays, registered by class id by each
+ * class once it has created its arrays. Collecting or resetting a class reads its arrays from
+ * here, rather than calling the methods added to the class through reflection.
+ *
+ * Also holds the changed flag of every class. Probes check the flag of their class on method
+ * entry, so a class is only marked in {@link DirtyClasses} the first time it is hit after a reset,
+ * and resets can clear the flags without calling into the classes.
+ *
+ * Int counter arrays are never written by collections. Resetting a class copies its counters into
+ * a baseline instead of clearing them, and reading a class hands back the counters less the
+ * baseline, written into a spare array kept for the class. A snapshot reads each counter once and
+ * moves the baseline to the value it read, so every increment is counted by exactly one snapshot
+ * even while probes keep running, and repeated collections allocate nothing. Sampled counters are
+ * the exception: their probes record a first hit by finding the counter at zero, so they are
+ * cleared on reset, and hits landing while they are cleared can be lost.
+ */
+public class ProbeArrays {
+
+  public static boolean[] changed = new boolean[256];
+
+  private static volatile Object[] counters = new Object[256];
+  private static volatile float[][] distances = new float[256][];
+  private static int[][] baselines = new int[256][];
+  private static int[][] spares = new int[256][];
+
+  /**
+   * Makes room for a class, before any of its probes can run.
+   */
+  public static synchronized void reserve(int classId) {
+    if (classId >= changed.length) {
+      int size = Math.max(classId + 1, changed.length * 2);
+      changed = Arrays.copyOf(changed, size);
+      counters = Arrays.copyOf(counters, size);
+      distances = Arrays.copyOf(distances, size);
+      baselines = Arrays.copyOf(baselines, size);
+      spares = Arrays.copyOf(spares, size);
+    }
+  }
+
+  /**
+   * Called by instrumented classes once their probe arrays have been created.
+   *
+   * @param classCounters the counter array, probe array, {@link StripedCounters} or
+   *     {@link IntBuffer} of the class
+   */
+  public static synchronized void register(int classId, Object classCounters,
+      float[] classDistances) {
+    reserve(classId);
+    Object[] currentCounters = counters;
+    float[][] currentDistances = distances;
+    if (currentCounters[classId] != classCounters) {
+      // new counters start from zero, so nothing has been handed out yet
+      boolean counts = classCounters instanceof int[];
+      int length = counts ? ((int[]) classCounters).length : 0;
+      baselines[classId] = counts ? new int[length] : null;
+      spares[classId] = counts ? new int[length] : null;
+    }
+    if (classCounters instanceof StripedCounters) {
+      ((StripedCounters) classCounters).setClassId(classId);
+    }
+    currentCounters[classId] = classCounters;
+    currentDistances[classId] = classDistances;
+    // publish the arrays again so threads reading them see the new entries
+    counters = currentCounters;
+    distances = currentDistances;
+  }
+
+  /**
+   * Forgets the arrays and changed flags of every class, as their ids are about to be given to
+   * other classes.
+   */
+  public static synchronized void clear() {
+    changed = new boolean[256];
+    counters = new Object[256];
+    distances = new float[256][];
+    baselines = new int[256][];
+    spares = new int[256][];
+  }
+
+  public static boolean isRegistered(int classId) {
+    Object[] current = counters;
+    return classId >= 0 && classId < current.length && current[classId] != null;
+  }
+
+  /**
+   * @return a copy of the hit count of each counter of a class since it was last reset, or null
+   *     if the class has not registered its arrays
+   */
+  public static synchronized int[] getCounters(int classId) {
+    if (!isRegistered(classId)) {
+      return null;
+    }
+    Object probes = counters[classId];
+    if (probes instanceof int[]) {
+      return delta((int[]) probes, baselines[classId], new int[baselines[classId].length], false);
+    }
+    if (probes instanceof boolean[]) {
+      boolean[] covered = (boolean[]) probes;
+      int[] counts = new int[covered.length];
+      for (int i = 0; i < covered.length; i++) {
+        counts[i] = covered[i] ? 1 : 0;
+      }
+      return counts;
+    }
+    if (probes instanceof StripedCounters) {
+      return ((StripedCounters) probes).sum();
+    }
+    return MappedCoverage.toArray((IntBuffer) probes);
+  }
+
+  /**
+   * @return true if a class holds int counters that resets leave alone, which is not the case
+   *     when sampling
+   */
+  public static boolean keepsCounters(int classId) {
+    return isRegistered(classId) && counters[classId] instanceof int[] && !Sampler.isSampling();
+  }
+
+  /**
+   * @return a copy of the hit count of each counter of a class since its counters were created,
+   *     reading each counter once, or null unless it {@link #keepsCounters(int) keeps them}
+   */
+  public static int[] getTotalCounters(int classId) {
+    if (!keepsCounters(classId)) {
+      return null;
+    }
+    int[] probes = (int[]) counters[classId];
+    return Arrays.copyOf(probes, probes.length);
+  }
+
+  public static float[] getDistances(int classId) {
+    float[][] current = distances;
+    return classId >= 0 && classId < current.length ? current[classId] : null;
+  }
+
+  /**
+   * Reads the hit counts of a class since it was last reset, resetting it if asked to. Int
+   * counters are read into the spare array of the class, which is only valid until the class is
+   * next read this way, and are reset by moving the baseline to the counts read, so hits that land
+   * during the snapshot are left for the next one. Other counters are read and then cleared.
+   *
+   * @return the hit count of each counter, or null if the class has not registered its arrays
+   */
+  public static synchronized int[] snapshot(int classId, boolean reset) {
+    if (!isRegistered(classId)) {
+      return null;
+    }
+    Object probes = counters[classId];
+    if (!(probes instanceof int[])) {
+      int[] counts = getCounters(classId);
+      if (reset) {
+        reset(classId);
+      }
+      return counts;
+    }
+    int[] counts = delta((int[]) probes, baselines[classId], spares[classId], reset);
+    if (reset) {
+      clearChanged(classId);
+    }
+    return counts;
+  }
+
+  /**
+   * Subtracts the baseline from each counter, which also gives the right count for counters that
+   * have wrapped since the baseline was taken.
+   */
+  private static int[] delta(int[] probes, int[] baseline, int[] counts, boolean reset) {
+    boolean clear = reset && Sampler.isSampling();
+    for (int i = 0; i < counts.length; i++) {
+      int value = probes[i];
+      counts[i] = value - baseline[i];
+      if (clear) {
+        probes[i] = 0;
+        baseline[i] = 0;
+      } else if (reset) {
+        baseline[i] = value;
+      }
+    }
+    return counts;
+  }
+
+  /**
+   * Resets the counters and clears the changed flag of a registered class.
+   */
+  public static synchronized void reset(int classId) {
+    if (!isRegistered(classId)) {
+      return;
+    }
+    Object probes = counters[classId];
+    if (probes instanceof int[] && Sampler.isSampling()) {
+      Arrays.fill((int[]) probes, 0);
+      Arrays.fill(baselines[classId], 0);
+    } else if (probes instanceof int[]) {
+      // probes may be incrementing the array, so it is left alone and only the baseline moves
+      System.arraycopy(probes, 0, baselines[classId], 0, baselines[classId].length);
+    } else if (probes instanceof boolean[]) {
+      Arrays.fill((boolean[]) probes, false);
+    } else if (probes instanceof StripedCounters) {
+      ((StripedCounters) probes).reset();
+    } else {
+      MappedCoverage.clear((IntBuffer) probes);
+    }
+    clearChanged(classId);
+  }
+
+  public static void setChanged(int classId) {
+    if (classId >= changed.length) {
+      reserve(classId);
+    }
+    changed[classId] = true;
+  }
+
+  public static void clearChanged(int classId) {
+    boolean[] current = changed;
+    if (classId >= 0 && classId < current.length) {
+      current[classId] = false;
+    }
+  }
+}
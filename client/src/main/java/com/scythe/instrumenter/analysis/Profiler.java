@@ -0,0 +1,74 @@
+package com.scythe.instrumenter.analysis;
+
+import java.util.Arrays;
+
+/**
+ * Call stack of one thread, used by methods instrumented with the PROFILE approach to time
+ * themselves. A method looks the profiler of its thread up once on entry and keeps it in a local,
+ * so the only costs per invocation are that lookup, two calls to {@link System#nanoTime()} and
+ * the counter updates.
+ *
+ * Each class holds a long[] with {@link #FIELDS} counters per method. Counters are updated
+ * without synchronization, like hit counters, so counts from methods running in several threads
+ * at once may be slightly low. Inclusive time of recursive methods counts every nested call.
+ */
+public class Profiler {
+
+  public static final int INVOCATIONS = 0;
+  public static final int SELF_TIME = 1;
+  public static final int MAX_SELF_TIME = 2;
+  public static final int TIME = 3;
+  public static final int MAX_TIME = 4;
+  public static final int FIELDS = 5;
+
+  private static final ThreadLocal<Profiler> profilers = ThreadLocal.withInitial(Profiler::new);
+
+  private long[] starts = new long[64];
+  // time spent in instrumented methods called from each frame
+  private long[] children = new long[64];
+  private int depth = -1;
+
+  public static Profiler current() {
+    return profilers.get();
+  }
+
+  /**
+   * @return the depth of the new frame, which must be passed to {@link #exit(long[], int, int)}
+   */
+  public int enter() {
+    int frame = ++depth;
+    if (frame == starts.length) {
+      starts = Arrays.copyOf(starts, frame * 2);
+      children = Arrays.copyOf(children, frame * 2);
+    }
+    children[frame] = 0;
+    starts[frame] = System.nanoTime();
+    return frame;
+  }
+
+  /**
+   * Records an invocation that started at the given frame. The depth is reset from the frame
+   * rather than decremented, so the stack recovers even if an exit was missed.
+   *
+   * @param counters profile counters of the class
+   * @param offset index of the first counter of the method
+   * @param frame value returned by {@link #enter()}
+   */
+  public void exit(long[] counters, int offset, int frame) {
+    long time = System.nanoTime() - starts[frame];
+    long self = time - children[frame];
+    depth = frame - 1;
+    if (frame > 0) {
+      children[frame - 1] += time;
+    }
+    counters[offset + INVOCATIONS]++;
+    counters[offset + SELF_TIME] += self;
+    counters[offset + TIME] += time;
+    if (self > counters[offset + MAX_SELF_TIME]) {
+      counters[offset + MAX_SELF_TIME] = self;
+    }
+    if (time > counters[offset + MAX_TIME]) {
+      counters[offset + MAX_TIME] = time;
+    }
+  }
+}
@@ -0,0 +1,104 @@
+package com.scythe.instrumenter.analysis;
+
+import com.scythe.instrumenter.InstrumentationProperties;
+import com.scythe.instrumenter.InstrumentationProperties.InstrumentationApproach;
+
+/**
+ * Countdowns used by sampled probes. A probe always records the first hit of its counter, so
+ * anything that executes is reported as covered, and after that only increments the counter in
+ * the method invocations and loop iterations being sampled. Instrumented methods call
+ * {@link #sample()} on entry and before every jump back to an earlier instruction, which counts
+ * down the countdown of the current thread and samples once it runs out, so probes in between
+ * only test a local variable. The countdown is reloaded with a random interval averaging the
+ * sample rate, so that loops with a period of the sample rate are not always sampled at the same
+ * point.
+ *
+ * Threads find their countdown by thread id rather than through a ThreadLocal, which costs more
+ * than a whole invocation of a small method. Threads whose ids collide share a countdown, which
+ * only changes when the samples are taken, not how many are taken on average.
+ *
+ * As a probe finds its first hit by its counter being zero, sampled counters are cleared when
+ * they are reset, rather than having a baseline moved past them.
+ */
+public class Sampler {
+
+  private static final int SLOTS = 256;
+  // a countdown and its random state, padded to a cache line so threads do not contend
+  private static final int SLOT_SIZE = 16;
+
+  private static final int[] countdowns = new int[SLOTS * SLOT_SIZE];
+
+  static {
+    for (int slot = 0; slot < countdowns.length; slot += SLOT_SIZE) {
+      countdowns[slot + 1] = (slot * 0x9E3779B9) | 1;
+      countdowns[slot] = reload(slot);
+    }
+  }
+
+  /**
+   * @return true if array approach probes count only a sample of their hits
+   */
+  public static boolean isSampling() {
+    return InstrumentationProperties.INSTRUMENTATION_APPROACH == InstrumentationApproach.ARRAY
+        && InstrumentationProperties.SAMPLE_RATE > 1;
+  }
+
+  /**
+   * Called on entry to every instrumented method and before every jump back to an earlier
+   * instruction.
+   *
+   * @return true if the probes run until the next call should count their hits
+   */
+  public static boolean sample() {
+    int slot = slot();
+    int countdown = countdowns[slot] - 1;
+    if (countdown > 0) {
+      countdowns[slot] = countdown;
+      return false;
+    }
+    countdowns[slot] = reload(slot);
+    return true;
+  }
+
+  /**
+   * @return the index of the countdown of the current thread
+   */
+  public static int slot() {
+    return ((int) Thread.currentThread().getId() & (SLOTS - 1)) * SLOT_SIZE;
+  }
+
+  /**
+   * Picks the next countdown for a slot, a random interval between 1 and twice the sample rate
+   * minus one.
+   *
+   * @param slot index of the countdown
+   * @return the new countdown
+   */
+  public static int reload(int slot) {
+    int x = countdowns[slot + 1];
+    x ^= x << 13;
+    x ^= x >>> 17;
+    x ^= x << 5;
+    countdowns[slot + 1] = x;
+    int rate = Math.max(1, InstrumentationProperties.SAMPLE_RATE);
+    // scales the random bits into range with a multiply, as a division would cost more than the
+    // probes between samples
+    return 1 + (int) (((x & 0xFFFFFFFFL) * (2L * rate - 1)) >>> 32);
+  }
+
+  /**
+   * Estimates how many times a sampled counter was really hit. The first hit is always recorded
+   * and every later hit is recorded if it lands in one of the one in sample rate method
+   * invocations or loop iterations sampled on average.
+   *
+   * @param count value of the sampled counter
+   * @return the estimated number of hits
+   */
+  public static int scale(int count) {
+    if (count <= 1) {
+      return count;
+    }
+    long rate = Math.max(1, InstrumentationProperties.SAMPLE_RATE);
+    return (int) Math.min(Integer.MAX_VALUE, 1 + (count - 1) * rate);
+  }
+}
@@ -0,0 +1,109 @@
+package com.scythe.instrumenter.analysis;
+
+import java.util.Arrays;
+
+/**
+ * Hit counters of the classes instrumented with the STATIC approach in this JVM. Every class gets
+ * its line and branch counters once it has been instrumented, so recording a hit is an array
+ * lookup by class id and an increment of the current thread's stripe, with no locks, maps or
+ * allocation. Lines are indexed by line number, branches by their offset from the first branch
+ * id of the class.
+ */
+public class StaticCounters {
+
+  private static volatile StaticCounters[] classes = new StaticCounters[256];
+
+  private final StripedCounters counters;
+  private final int lines;
+  private final int firstBranch;
+  private final int branches;
+
+  private StaticCounters(int lines, int firstBranch, int branches) {
+    this.counters = new StripedCounters(lines + branches);
+    this.lines = lines;
+    this.firstBranch = firstBranch;
+    this.branches = branches;
+  }
+
+  /**
+   * @param lines one more than the highest line number of the class
+   * @param firstBranch lowest branch id of the class
+   * @param branches number of branch ids from firstBranch
+   */
+  public static synchronized void register(int classId, int lines, int firstBranch,
+      int branches) {
+    StaticCounters[] current = classes;
+    if (classId >= current.length) {
+      current = Arrays.copyOf(current, Math.max(classId + 1, current.length * 2));
+    }
+    current[classId] = new StaticCounters(lines, firstBranch, branches);
+    // publish the array again so threads reading it see the new counters
+    classes = current;
+  }
+
+  /**
+   * Forgets the counters of every class, as their ids are about to be given to other classes.
+   */
+  public static synchronized void clear() {
+    classes = new StaticCounters[256];
+  }
+
+  public static StaticCounters get(int classId) {
+    StaticCounters[] current = classes;
+    return classId >= 0 && classId < current.length ? current[classId] : null;
+  }
+
+  /**
+   * @return false if the line is not known, so the hit must be recorded some other way
+   */
+  public boolean lineExecuted(int lineNumber) {
+    if (lineNumber < 0 || lineNumber >= lines) {
+      return false;
+    }
+    counters.get()[lineNumber]++;
+    return true;
+  }
+
+  /**
+   * @return false if the branch is not known, so the hit must be recorded some other way
+   */
+  public boolean branchExecuted(int branchId) {
+    int index = branchId - firstBranch;
+    if (index < 0 || index >= branches) {
+      return false;
+    }
+    counters.get()[lines + index]++;
+    return true;
+  }
+
+  /**
+   * @return the summed counters of all threads, lines first then branches
+   */
+  public int[] sum() {
+    return counters.sum();
+  }
+
+  public int getLineCount() {
+    return lines;
+  }
+
+  public int getFirstBranch() {
+    return firstBranch;
+  }
+
+  public int getBranchCount() {
+    return branches;
+  }
+
+  public void reset() {
+    counters.reset();
+  }
+
+  public static void resetAll() {
+    for (StaticCounters c : classes) {
+      if (c != null) {
+        c.reset();
+      }
+    }
+  }
+}
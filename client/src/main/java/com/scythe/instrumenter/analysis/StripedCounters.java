@@ -0,0 +1,148 @@
+package com.scythe.instrumenter.analysis;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Hit counters for one instrumented class, striped per thread. Each thread increments its own
+ * int[] so no increments are lost under contention, and the stripes are summed when coverage is
+ * collected. Stripes belonging to threads that have died are folded into a single retired array,
+ * so memory stays proportional to the number of live threads.
+ *
+ * A thread in a {@link CoverageScope} is given a stripe of the scope instead of its own. Methods
+ * hold on to their stripe for the whole invocation, so a method that began in a scope keeps
+ * counting into its stripe after the scope is closed, and the stripe is only folded into the
+ * retired array once its thread has died.
+ *
+ * Resetting copies the sum of the stripes into a baseline rather than clearing them, as their
+ * threads may be incrementing them, and sums are given less the baseline.
+ */
+public class StripedCounters {
+
+  private final int size;
+  private volatile int classId = -1;
+  private final ThreadLocal<ThreadStripe> local;
+  private final List<Stripe> stripes = new ArrayList<Stripe>();
+  private final int[] retired;
+  private final int[] baseline;
+
+  public StripedCounters(int size) {
+    this.size = size;
+    this.retired = new int[size];
+    this.baseline = new int[size];
+    this.local = new ThreadLocal<ThreadStripe>() {
+      @Override
+      protected ThreadStripe initialValue() {
+        return new ThreadStripe(CoverageScope.binding(), newStripe(null));
+      }
+    };
+  }
+
+  /**
+   * Called once per instrumented method invocation; probes then index the returned array directly.
+   *
+   * @return the counter array owned by the current thread
+   */
+  public int[] get() {
+    ThreadStripe thread = local.get();
+    CoverageScope scope = thread.binding.scope;
+    if (scope != thread.scope) {
+      thread.scope = scope;
+      thread.current = scope == null ? thread.unscoped : newStripe(scope);
+    }
+    return thread.current;
+  }
+
+  private synchronized int[] newStripe(CoverageScope scope) {
+    int[] counters = new int[size];
+    stripes.add(new Stripe(Thread.currentThread(), scope, counters));
+    if (scope != null) {
+      scope.addStripe(this, counters);
+    }
+    return counters;
+  }
+
+  /**
+   * @return the id of the class counted, or -1 if it has not been registered with
+   *     {@link ProbeArrays}
+   */
+  public int getClassId() {
+    return classId;
+  }
+
+  void setClassId(int classId) {
+    this.classId = classId;
+  }
+
+  /**
+   * @return the hits of each counter across every stripe since the counters were last reset
+   */
+  public synchronized int[] sum() {
+    int[] total = total();
+    for (int i = 0; i < size; i++) {
+      total[i] -= baseline[i];
+    }
+    return total;
+  }
+
+  /**
+   * Sums the stripes, folding those of threads that have died, which nothing can increment any
+   * more, into the retired array.
+   */
+  private int[] total() {
+    int[] total = Arrays.copyOf(retired, size);
+    Iterator<Stripe> iter = stripes.iterator();
+    while (iter.hasNext()) {
+      Stripe s = iter.next();
+      Thread owner = s.owner.get();
+      boolean dead = owner == null || !owner.isAlive();
+      for (int i = 0; i < size; i++) {
+        int value = s.counters[i];
+        total[i] += value;
+        if (dead) {
+          retired[i] += value;
+        }
+      }
+      if (dead) {
+        iter.remove();
+      }
+    }
+    return total;
+  }
+
+  public synchronized void reset() {
+    System.arraycopy(total(), 0, baseline, 0, size);
+  }
+
+  public int size() {
+    return size;
+  }
+
+  private static final class Stripe {
+    private final WeakReference<Thread> owner;
+    private final CoverageScope scope;
+    private final int[] counters;
+
+    private Stripe(Thread owner, CoverageScope scope, int[] counters) {
+      this.owner = new WeakReference<Thread>(owner);
+      this.scope = scope;
+      this.counters = counters;
+    }
+  }
+
+  private static final class ThreadStripe {
+    private final CoverageScope.Binding binding;
+    private final int[] unscoped;
+    private CoverageScope scope = null;
+    private int[] current;
+
+    private ThreadStripe(CoverageScope.Binding binding, int[] unscoped) {
+      this.binding = binding;
+      this.unscoped = unscoped;
+      this.current = unscoped;
+    }
+  }
+}
@@ -0,0 +1,311 @@
+package com.scythe.instrumenter.analysis;
+
+import com.scythe.instrumenter.InstrumentationProperties;
+import com.scythe.instrumenter.testcase.TestCaseWrapper;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.stream.IntStream;
+
+/**
+ * Orders and reduces a test suite using the line and branch goals each test covers, as recorded
+ * in the {@link CoverageMatrix} with {@link InstrumentationProperties#TRACK_ACTIVE_TESTCASE}.
+ *
+ * {@link #prioritise()} orders tests by additional coverage: each next test is the one covering
+ * the most goals not yet covered, and once no test adds anything the goals covered are forgotten
+ * and the rest of the tests are ordered the same way. {@link #minimise()} keeps the tests chosen
+ * before coverage first runs out, which is the greedy set cover of all the goals, then drops any
+ * of those whose goals are all covered by the others.
+ *
+ * The goals of each test are held as a {@link CompressedBitSet}, and are expanded along with the
+ * tests covering each goal, in parallel across the common fork join pool, when an order is worked
+ * out. The number of new goals each test would add is kept up to date as goals are covered, by
+ * going through the tests covering each newly covered goal, so choosing a test costs the number of
+ * tests sharing its goals rather than a pass over the suite. Tests wait in a heap by the number of
+ * goals they last added, which can only shrink, so a test is only looked at again when it reaches
+ * the top.
+ */
+public class TestPrioritiser {
+
+  public static final int MAGIC = 0x53435450;
+  public static final int VERSION = 1;
+
+  private final List<String> tests = new ArrayList<String>();
+  private final List<CompressedBitSet> goalsOfTest = new ArrayList<CompressedBitSet>();
+  private int goals = 0;
+
+  /**
+   * @return the tests and goals in the {@link CoverageMatrix}
+   */
+  public static TestPrioritiser fromCoverage() {
+    TestPrioritiser prioritiser = new TestPrioritiser();
+    List<TestCaseWrapper> tests = CoverageMatrix.getTests();
+    for (int i = 0; i < tests.size(); i++) {
+      prioritiser.addTest(TestSelector.testName(tests.get(i)),
+          CoverageMatrix.getCoveredGoalIds(i));
+    }
+    return prioritiser;
+  }
+
+  void addTest(String test, int[] goalIds) {
+    CompressedBitSet covered = new CompressedBitSet();
+    for (int goal : goalIds) {
+      covered.add(goal);
+      goals = Math.max(goals, goal + 1);
+    }
+    tests.add(test);
+    goalsOfTest.add(covered);
+  }
+
+  public List<String> getTests() {
+    return tests;
+  }
+
+  /**
+   * @return every test, in additional coverage order, with tests covering nothing last in the
+   * order they were run
+   */
+  public List<String> prioritise() {
+    return names(order(goalIds(), false));
+  }
+
+  /**
+   * @return the fewest tests found that cover every goal covered by the suite, in the order they
+   * were chosen
+   */
+  public List<String> minimise() {
+    int[][] goalIds = goalIds();
+    List<Integer> chosen = order(goalIds, true);
+    int[] covering = new int[goals];
+    for (int test : chosen) {
+      for (int goal : goalIds[test]) {
+        covering[goal]++;
+      }
+    }
+    // the tests chosen last add the least, so are the likeliest to be redundant
+    for (int i = chosen.size() - 1; i >= 0; i--) {
+      int[] testGoals = goalIds[chosen.get(i)];
+      boolean redundant = true;
+      for (int goal : testGoals) {
+        if (covering[goal] < 2) {
+          redundant = false;
+          break;
+        }
+      }
+      if (redundant) {
+        for (int goal : testGoals) {
+          covering[goal]--;
+        }
+        chosen.remove(i);
+      }
+    }
+    return names(chosen);
+  }
+
+  private List<String> names(List<Integer> order) {
+    List<String> names = new ArrayList<String>(order.size());
+    for (int test : order) {
+      names.add(tests.get(test));
+    }
+    return names;
+  }
+
+  private int[][] goalIds() {
+    return IntStream.range(0, tests.size()).parallel()
+        .mapToObj(test -> goalsOfTest.get(test).toArray())
+        .toArray(int[][]::new);
+  }
+
+  /**
+   * @return the tests covering each goal, in ascending order
+   */
+  private int[][] testIds(int[][] goalIds) {
+    int[] counts = new int[goals];
+    for (int[] testGoals : goalIds) {
+      for (int goal : testGoals) {
+        counts[goal]++;
+      }
+    }
+    int[][] testIds = IntStream.range(0, goals).parallel()
+        .mapToObj(goal -> new int[counts[goal]])
+        .toArray(int[][]::new);
+    Arrays.fill(counts, 0);
+    for (int test = 0; test < goalIds.length; test++) {
+      for (int goal : goalIds[test]) {
+        testIds[goal][counts[goal]++] = test;
+      }
+    }
+    return testIds;
+  }
+
+  /**
+   * @param cover stop once coverage first runs out, rather than ordering every test
+   */
+  private List<Integer> order(int[][] goalIds, boolean cover) {
+    int[][] testIds = testIds(goalIds);
+    List<Integer> order = new ArrayList<Integer>(tests.size());
+    boolean[] chosen = new boolean[tests.size()];
+    long[] covered = new long[(goals + 63) >>> 6];
+    int[] gains = new int[tests.size()];
+    PriorityQueue<Long> queue = start(goalIds, chosen, gains);
+    while (!queue.isEmpty()) {
+      long best = queue.poll();
+      int test = test(best);
+      if (gain(best) != gains[test]) {
+        queue.add(entry(gains[test], test));
+        continue;
+      }
+      if (gains[test] == 0) {
+        // nothing left adds coverage
+        if (cover || !anyCovered(covered)) {
+          break;
+        }
+        Arrays.fill(covered, 0);
+        queue = start(goalIds, chosen, gains);
+        continue;
+      }
+      chosen[test] = true;
+      order.add(test);
+      for (int goal : goalIds[test]) {
+        long bit = 1L << goal;
+        if ((covered[goal >>> 6] & bit) == 0) {
+          covered[goal >>> 6] |= bit;
+          for (int other : testIds[goal]) {
+            gains[other]--;
+          }
+        }
+      }
+    }
+    if (!cover) {
+      for (int test = 0; test < chosen.length; test++) {
+        if (!chosen[test]) {
+          order.add(test);
+        }
+      }
+    }
+    return order;
+  }
+
+  /**
+   * Sets the gain of each test not yet chosen to all of its goals, for when nothing is covered.
+   */
+  private PriorityQueue<Long> start(int[][] goalIds, boolean[] chosen, int[] gains) {
+    PriorityQueue<Long> queue =
+        new PriorityQueue<Long>(Math.max(1, tests.size()), Collections.reverseOrder());
+    for (int test = 0; test < gains.length; test++) {
+      gains[test] = goalIds[test].length;
+      if (!chosen[test]) {
+        queue.add(entry(gains[test], test));
+      }
+    }
+    return queue;
+  }
+
+  private static boolean anyCovered(long[] covered) {
+    for (long word : covered) {
+      if (word != 0) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  // ordered by gain, then by the earlier test
+  private static long entry(int gain, int test) {
+    return ((long) gain << 32) | (Integer.MAX_VALUE - test);
+  }
+
+  private static int gain(long entry) {
+    return (int) (entry >>> 32);
+  }
+
+  private static int test(long entry) {
+    return Integer.MAX_VALUE - (int) entry;
+  }
+
+  /**
+   * Writes {@link #MAGIC} and {@link #VERSION}, then the name of each test and the ids of the
+   * goals it covers, stored as the gap from the previous id.
+   */
+  public void write(File file) throws IOException {
+    try (DataOutputStream out = new DataOutputStream(
+        new BufferedOutputStream(new FileOutputStream(file)))) {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      EpochSeries.writeVarInt(out, tests.size());
+      for (int i = 0; i < tests.size(); i++) {
+        out.writeUTF(tests.get(i));
+        int[] ids = goalsOfTest.get(i).toArray();
+        EpochSeries.writeVarInt(out, ids.length);
+        int last = 0;
+        for (int id : ids) {
+          EpochSeries.writeVarInt(out, id - last);
+          last = id;
+        }
+      }
+    }
+  }
+
+  public static TestPrioritiser read(File file) throws IOException {
+    TestPrioritiser prioritiser = new TestPrioritiser();
+    try (DataInputStream in = new DataInputStream(
+        new BufferedInputStream(new FileInputStream(file)))) {
+      if (in.readInt() != MAGIC) {
+        throw new IOException(file + " is not a test coverage file");
+      }
+      int version = in.readInt();
+      if (version != VERSION) {
+        throw new IOException("Unsupported test coverage file version " + version);
+      }
+      int tests = EpochSeries.readVarInt(in);
+      for (int i = 0; i < tests; i++) {
+        String test = in.readUTF();
+        int[] ids = new int[EpochSeries.readVarInt(in)];
+        int id = 0;
+        for (int g = 0; g < ids.length; g++) {
+          id += EpochSeries.readVarInt(in);
+          ids[g] = id;
+        }
+        prioritiser.addTest(test, ids);
+      }
+    }
+    return prioritiser;
+  }
+
+  /**
+   * Writes one test a line, as class#method, which Ant can read with loadfile or use as an
+   * includesfile once the methods are cut off.
+   */
+  public static void writeTests(List<String> tests, File file) throws IOException {
+    try (PrintWriter out = new PrintWriter(file, "UTF-8")) {
+      for (String test : tests) {
+        out.println(test);
+      }
+    }
+  }
+
+  public static void main(String[] args) throws IOException {
+    if (args.length < 3 || !(args[1].equals("prioritise") || args[1].equals("minimise"))) {
+      System.out.println(
+          "Usage: TestPrioritiser <test coverage file> prioritise|minimise <output file>");
+      return;
+    }
+    TestPrioritiser prioritiser = read(new File(args[0]));
+    List<String> tests = args[1].equals("prioritise") ? prioritiser.prioritise()
+        : prioritiser.minimise();
+    writeTests(tests, new File(args[2]));
+    System.out.println(
+        "Wrote " + tests.size() + " of " + prioritiser.getTests().size() + " tests to " + args[2]);
+  }
+}
@@ -0,0 +1,421 @@
+package com.scythe.instrumenter.analysis;
+
+import com.scythe.instrumenter.InstrumentationProperties;
+import com.scythe.instrumenter.instrumentation.objectrepresentation.Branch;
+import com.scythe.instrumenter.instrumentation.objectrepresentation.Line;
+import com.scythe.instrumenter.instrumentation.visitors.HashClassVisitor;
+import com.scythe.instrumenter.testcase.TestCaseWrapper;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Selects the tests to rerun after a change, from the coverage of each test recorded with
+ * {@link InstrumentationProperties#TRACK_ACTIVE_TESTCASE}.
+ *
+ * After a test run, {@link #build()} indexes the methods each test executed, keyed by class
+ * method id as in {@link DependencyTree}, along with a hash of the bytecode of every class and
+ * method loaded (see {@link HashClassVisitor}). The index is written with {@link #write(File)}.
+ * Later, the compiled classes are hashed again and compared with the index, and the tests that
+ * executed a changed method are selected; a class whose declaration, fields or set of methods
+ * changed counts as all of its methods changing. Methods without coverable goals, such as those
+ * of classes that are not instrumented, have no coverage to go on, so if the dependency tree was
+ * built the tests executing any of their callers are selected instead.
+ *
+ * Classes that are new since the index was built select nothing themselves, as no test could have
+ * executed them, but the code calling them has changed too.
+ */
+public class TestSelector {
+
+  public static final int MAGIC = 0x53435453;
+  public static final int VERSION = 1;
+
+  private static final Map<String, HashClassVisitor> loaded =
+      new ConcurrentHashMap<String, HashClassVisitor>();
+
+  private final List<String> tests = new ArrayList<String>();
+  private final Map<String, Long> classHashes = new TreeMap<String, Long>();
+  private final Map<String, Long> methodHashes = new TreeMap<String, Long>();
+  // every method with coverable goals, even if no test executed it
+  private final Map<String, CompressedBitSet> testsOfMethod =
+      new TreeMap<String, CompressedBitSet>();
+  private final Map<String, Set<String>> callers = new TreeMap<String, Set<String>>();
+  private final Map<String, Set<String>> methodsOfClass = new HashMap<String, Set<String>>();
+
+  /**
+   * Hashes the original bytes of a class as it is loaded, for the next {@link #build()}.
+   */
+  public static void recordClass(byte[] original) {
+    HashClassVisitor hash = HashClassVisitor.hash(original);
+    loaded.put(hash.getClassName(), hash);
+  }
+
+  /**
+   * Indexes the classes loaded and the coverage of each test in the {@link CoverageMatrix}.
+   */
+  public static TestSelector build() {
+    TestSelector selector = new TestSelector();
+    for (HashClassVisitor hash : loaded.values()) {
+      selector.addClass(hash);
+      for (Line line : ClassAnalyzer.getCoverableLines(hash.getClassName())) {
+        selector.addCoverableMethod(
+            DependencyTree.getClassMethodId(hash.getClassName(), line.getMethodName()));
+      }
+    }
+
+    Map<String, Map<Integer, String>> lineMethods = new HashMap<String, Map<Integer, String>>();
+    Map<String, Map<Integer, String>> branchMethods = new HashMap<String, Map<Integer, String>>();
+    for (TestCaseWrapper test : CoverageMatrix.getTests()) {
+      int testId = selector.addTest(testName(test));
+      for (CoverageMatrix.Goal goal : CoverageMatrix.getCoveredGoals(test)) {
+        String methodName = goal.isBranch()
+            ? branchMethods(branchMethods, goal.getClassName()).get(goal.getId())
+            : lineMethods(lineMethods, goal.getClassName()).get(goal.getId());
+        if (methodName != null) {
+          selector.cover(testId,
+              DependencyTree.getClassMethodId(goal.getClassName(), methodName));
+        }
+      }
+    }
+
+    for (ClassNode callee : DependencyTree.getDependencyTree().getNodes().values()) {
+      if (!selector.classHashes.containsKey(DependencyTree.getClassName(callee.getClassName()))) {
+        continue;
+      }
+      for (ClassNode caller : callee.getChildren()) {
+        selector.addCaller(callee.getClassName(), caller.getClassName());
+      }
+    }
+    return selector;
+  }
+
+  private static Map<Integer, String> lineMethods(Map<String, Map<Integer, String>> cache,
+      String className) {
+    Map<Integer, String> methods = cache.get(className);
+    if (methods == null) {
+      methods = new HashMap<Integer, String>();
+      for (Line line : ClassAnalyzer.getCoverableLines(className)) {
+        methods.put(line.getLineNumber(), line.getMethodName());
+      }
+      cache.put(className, methods);
+    }
+    return methods;
+  }
+
+  private static Map<Integer, String> branchMethods(Map<String, Map<Integer, String>> cache,
+      String className) {
+    Map<Integer, String> methods = cache.get(className);
+    if (methods == null) {
+      methods = new HashMap<Integer, String>();
+      for (Branch branch : ClassAnalyzer.getCoverableBranches(className)) {
+        methods.put(branch.getGoalId(), branch.getMethodName());
+      }
+      cache.put(className, methods);
+    }
+    return methods;
+  }
+
+  static String testName(TestCaseWrapper test) {
+    String name = test.getTestClass() == null ? "" : test.getTestClass().getName();
+    return test.getTestMethod() == null ? name : name + "#" + test.getTestMethod().getName();
+  }
+
+  void addClass(HashClassVisitor hash) {
+    classHashes.put(hash.getClassName(), hash.getClassHash());
+    for (Map.Entry<String, Long> method : hash.getMethodHashes().entrySet()) {
+      String methodId = DependencyTree.getClassMethodId(hash.getClassName(), method.getKey());
+      methodHashes.put(methodId, method.getValue());
+      methodsOf(hash.getClassName()).add(methodId);
+    }
+  }
+
+  void addCoverableMethod(String methodId) {
+    if (!testsOfMethod.containsKey(methodId)) {
+      testsOfMethod.put(methodId, new CompressedBitSet());
+      methodsOf(DependencyTree.getClassName(methodId)).add(methodId);
+    }
+  }
+
+  int addTest(String test) {
+    tests.add(test);
+    return tests.size() - 1;
+  }
+
+  void cover(int testId, String methodId) {
+    addCoverableMethod(methodId);
+    testsOfMethod.get(methodId).add(testId);
+  }
+
+  void addCaller(String methodId, String callerId) {
+    Set<String> methodCallers = callers.get(methodId);
+    if (methodCallers == null) {
+      methodCallers = new HashSet<String>();
+      callers.put(methodId, methodCallers);
+    }
+    methodCallers.add(callerId);
+  }
+
+  private Set<String> methodsOf(String className) {
+    Set<String> methods = methodsOfClass.get(className);
+    if (methods == null) {
+      methods = new HashSet<String>();
+      methodsOfClass.put(className, methods);
+    }
+    return methods;
+  }
+
+  /**
+   * Compares compiled classes with the hashes in the index.
+   *
+   * @param classes the bytes of each compiled class
+   * @return the name of each class whose declaration changed, and the class method id of each
+   * other method that changed
+   */
+  public Set<String> findChanges(Collection<byte[]> classes) {
+    Set<String> changed = new LinkedHashSet<String>();
+    for (byte[] bytes : classes) {
+      HashClassVisitor hash = HashClassVisitor.hash(bytes);
+      Long classHash = classHashes.get(hash.getClassName());
+      if (classHash == null) {
+        continue;
+      }
+      if (classHash != hash.getClassHash()) {
+        changed.add(hash.getClassName());
+        continue;
+      }
+      for (Map.Entry<String, Long> method : hash.getMethodHashes().entrySet()) {
+        String methodId = DependencyTree.getClassMethodId(hash.getClassName(), method.getKey());
+        if (!method.getValue().equals(methodHashes.get(methodId))) {
+          changed.add(methodId);
+        }
+      }
+    }
+    return changed;
+  }
+
+  /**
+   * @param changed class names, each standing for all of its methods, and class method ids
+   * @return the tests that executed any of the changed methods, in the order they were run
+   */
+  public List<String> select(Collection<String> changed) {
+    Deque<String> methods = new ArrayDeque<String>();
+    for (String change : changed) {
+      if (DependencyTree.getMethodName(change) == null) {
+        Set<String> classMethods = methodsOfClass.get(change);
+        if (classMethods != null) {
+          methods.addAll(classMethods);
+        }
+      } else {
+        methods.add(change);
+      }
+    }
+
+    CompressedBitSet selected = new CompressedBitSet();
+    Set<String> seen = new HashSet<String>();
+    while (!methods.isEmpty()) {
+      String method = methods.poll();
+      if (!seen.add(method)) {
+        continue;
+      }
+      CompressedBitSet methodTests = testsOfMethod.get(method);
+      if (methodTests != null) {
+        for (int test : methodTests.toArray()) {
+          selected.add(test);
+        }
+      } else if (callers.containsKey(method)) {
+        methods.addAll(callers.get(method));
+      }
+    }
+
+    List<String> selectedTests = new ArrayList<String>(selected.cardinality());
+    for (int test : selected.toArray()) {
+      selectedTests.add(tests.get(test));
+    }
+    return selectedTests;
+  }
+
+  public List<String> getTests() {
+    return tests;
+  }
+
+  /**
+   * Writes the index as {@link #MAGIC} and {@link #VERSION}, the test names, the hash of each
+   * class, then the hash and the ids of the tests executing each method, and the callers of each
+   * method. Test ids are stored as the gap from the previous id.
+   */
+  public void write(File file) throws IOException {
+    try (DataOutputStream out = new DataOutputStream(
+        new BufferedOutputStream(new FileOutputStream(file)))) {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      EpochSeries.writeVarInt(out, tests.size());
+      for (String test : tests) {
+        out.writeUTF(test);
+      }
+      EpochSeries.writeVarInt(out, classHashes.size());
+      for (Map.Entry<String, Long> c : classHashes.entrySet()) {
+        out.writeUTF(c.getKey());
+        out.writeLong(c.getValue());
+      }
+      Set<String> methods = new LinkedHashSet<String>(methodHashes.keySet());
+      methods.addAll(testsOfMethod.keySet());
+      EpochSeries.writeVarInt(out, methods.size());
+      for (String method : methods) {
+        out.writeUTF(method);
+        Long hash = methodHashes.get(method);
+        out.writeBoolean(hash != null);
+        if (hash != null) {
+          out.writeLong(hash);
+        }
+        CompressedBitSet methodTests = testsOfMethod.get(method);
+        if (methodTests == null) {
+          EpochSeries.writeVarInt(out, 0);
+        } else {
+          int[] ids = methodTests.toArray();
+          EpochSeries.writeVarInt(out, ids.length + 1);
+          int last = 0;
+          for (int id : ids) {
+            EpochSeries.writeVarInt(out, id - last);
+            last = id;
+          }
+        }
+      }
+      EpochSeries.writeVarInt(out, callers.size());
+      for (Map.Entry<String, Set<String>> method : callers.entrySet()) {
+        out.writeUTF(method.getKey());
+        EpochSeries.writeVarInt(out, method.getValue().size());
+        for (String caller : method.getValue()) {
+          out.writeUTF(caller);
+        }
+      }
+    }
+  }
+
+  public static TestSelector read(File file) throws IOException {
+    TestSelector selector = new TestSelector();
+    try (DataInputStream in = new DataInputStream(
+        new BufferedInputStream(new FileInputStream(file)))) {
+      if (in.readInt() != MAGIC) {
+        throw new IOException(file + " is not a test selection index");
+      }
+      int version = in.readInt();
+      if (version != VERSION) {
+        throw new IOException("Unsupported test selection index version " + version);
+      }
+      int tests = EpochSeries.readVarInt(in);
+      for (int i = 0; i < tests; i++) {
+        selector.addTest(in.readUTF());
+      }
+      int classes = EpochSeries.readVarInt(in);
+      for (int i = 0; i < classes; i++) {
+        selector.classHashes.put(in.readUTF(), in.readLong());
+      }
+      int methods = EpochSeries.readVarInt(in);
+      for (int i = 0; i < methods; i++) {
+        String method = in.readUTF();
+        if (in.readBoolean()) {
+          selector.methodHashes.put(method, in.readLong());
+          selector.methodsOf(DependencyTree.getClassName(method)).add(method);
+        }
+        int methodTests = EpochSeries.readVarInt(in);
+        if (methodTests > 0) {
+          selector.addCoverableMethod(method);
+          int id = 0;
+          for (int t = 1; t < methodTests; t++) {
+            id += EpochSeries.readVarInt(in);
+            selector.cover(id, method);
+          }
+        }
+      }
+      int callees = EpochSeries.readVarInt(in);
+      for (int i = 0; i < callees; i++) {
+        String method = in.readUTF();
+        int methodCallers = EpochSeries.readVarInt(in);
+        for (int c = 0; c < methodCallers; c++) {
+          selector.addCaller(method, in.readUTF());
+        }
+      }
+    }
+    return selector;
+  }
+
+  /**
+   * @return the bytes of every class file in a directory or jar
+   */
+  public static List<byte[]> readClasses(File location) throws IOException {
+    List<byte[]> classes = new ArrayList<byte[]>();
+    if (location.isDirectory()) {
+      File[] files = location.listFiles();
+      if (files != null) {
+        for (File f : files) {
+          if (f.isDirectory()) {
+            classes.addAll(readClasses(f));
+          } else if (f.getName().endsWith(".class")) {
+            classes.add(Files.readAllBytes(f.toPath()));
+          }
+        }
+      }
+    } else {
+      try (ZipFile jar = new ZipFile(location)) {
+        Enumeration<? extends ZipEntry> entries = jar.entries();
+        while (entries.hasMoreElements()) {
+          ZipEntry entry = entries.nextElement();
+          if (entry.getName().endsWith(".class")) {
+            try (InputStream in = jar.getInputStream(entry)) {
+              ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+              byte[] buffer = new byte[8192];
+              int read;
+              while ((read = in.read(buffer)) != -1) {
+                bytes.write(buffer, 0, read);
+              }
+              classes.add(bytes.toByteArray());
+            }
+          }
+        }
+      }
+    }
+    return classes;
+  }
+
+  public static void main(String[] args) throws IOException {
+    if (args.length < 2) {
+      System.out.println("Usage: TestSelector <index> <class directory or jar>...");
+      return;
+    }
+    TestSelector selector = read(new File(args[0]));
+    List<byte[]> classes = new ArrayList<byte[]>();
+    for (int i = 1; i < args.length; i++) {
+      classes.addAll(readClasses(new File(args[i])));
+    }
+    List<String> selected = selector.select(selector.findChanges(classes));
+    for (String test : selected) {
+      System.out.println(test);
+    }
+    // the tests alone go to stdout, so they can be handed to a test runner
+    System.err.println(
+        "Selected " + selected.size() + " of " + selector.getTests().size() + " tests");
+  }
+}
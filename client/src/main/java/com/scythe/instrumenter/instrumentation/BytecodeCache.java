@@ -0,0 +1,317 @@
+package com.scythe.instrumenter.instrumentation;
+
+import com.scythe.instrumenter.InstrumentationProperties;
+import com.scythe.instrumenter.analysis.ClassAnalyzer;
+import com.scythe.instrumenter.instrumentation.visitors.ArrayClassVisitor;
+import com.scythe.util.ClassNameUtils;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bytecode instrumented by {@link ArrayClassVisitor}, kept with everything the visitor registered
+ * with {@link ClassAnalyzer}, and keyed by a SHA-1 of the original class and the options that
+ * change how classes are instrumented. A class loaded again with the same options, in this JVM or
+ * in a later one reading the same directory, is defined from the cached bytes after replaying its
+ * registration, rather than being run through ASM.
+ *
+ * Classes are kept in a directory for each build of the instrumenter and set of options, named
+ * after their class, key and class id. Opening the cache deletes the directories of other builds
+ * and every version of a class but the newest, as they can no longer be loaded, so the cache only
+ * grows with the classes in use.
+ *
+ * Class ids are baked into the instrumented bytecode, so a cached class is only used if it can
+ * keep the id it was given when it was instrumented. Opening the cache reserves the id of each
+ * class on disk for that class, which also keeps the id of a class that has changed since, and a
+ * class whose id has since been taken is instrumented again.
+ */
+public class BytecodeCache {
+
+  public static final int MAGIC = 0x53434243;
+  public static final int VERSION = 2;
+  private static final String SUFFIX = ".cache";
+  private static final int KEY_LENGTH = 40;
+  // changes whenever the instrumenter is rebuilt, so classes cached by an older build are unused
+  private static final long BUILD = buildTime();
+
+  private static BytecodeCache instance;
+
+  private final File dir;
+  // records of classes cached in this JVM, in the format written to disk
+  private final Map<String, byte[]> records = new ConcurrentHashMap<String, byte[]>();
+  private final Map<String, File> files = new ConcurrentHashMap<String, File>();
+  // the key of the newest version of each class on disk
+  private final Map<String, String> classKeys = new ConcurrentHashMap<String, String>();
+  private final AtomicInteger hits = new AtomicInteger();
+  private final AtomicInteger misses = new AtomicInteger();
+
+  /**
+   * @param dir directory holding classes cached by earlier JVMs, or null to only cache in memory
+   */
+  BytecodeCache(File dir) {
+    this.dir = dir;
+    if (dir == null) {
+      return;
+    }
+    dir.mkdirs();
+    String current = entries().getName();
+    File[] children = dir.listFiles();
+    if (children == null) {
+      return;
+    }
+    String build = "v" + VERSION + "-" + BUILD + "-";
+    for (File child : children) {
+      String name = child.getName();
+      if (child.isDirectory() && name.matches("v\\d+-\\d+-[0-9a-f]+") && !name.startsWith(build)) {
+        // written by another build, whose keys are never asked for again
+        delete(child);
+      } else if (child.isFile() && name.endsWith(SUFFIX)) {
+        // left by a version that kept every class in one directory
+        child.delete();
+      }
+    }
+    File[] cached = new File(dir, current).listFiles();
+    if (cached == null) {
+      return;
+    }
+    Map<String, File> newest = new HashMap<String, File>();
+    for (File file : cached) {
+      String className = className(file);
+      if (className == null) {
+        // a record still being written
+        continue;
+      }
+      File other = newest.get(className);
+      if (other != null && other.lastModified() > file.lastModified()) {
+        file.delete();
+        continue;
+      }
+      if (other != null) {
+        other.delete();
+      }
+      newest.put(className, file);
+    }
+    for (Map.Entry<String, File> entry : newest.entrySet()) {
+      String name = entry.getValue().getName();
+      int separator = name.lastIndexOf('_');
+      String key = name.substring(separator - KEY_LENGTH, separator);
+      files.put(key, entry.getValue());
+      classKeys.put(entry.getKey(), key);
+      ClassAnalyzer.reserveClassId(entry.getKey(), Integer.parseInt(
+          name.substring(separator + 1, name.length() - SUFFIX.length())));
+    }
+  }
+
+  /**
+   * @return the class a file written by {@link #store} holds, read from its name, or null if it is
+   *     not one
+   */
+  private static String className(File file) {
+    String name = file.getName();
+    int separator = name.lastIndexOf('_');
+    int keyStart = separator - KEY_LENGTH - 1;
+    if (!name.endsWith(SUFFIX) || keyStart <= 0 || name.charAt(keyStart) != '_'
+        || !name.substring(separator + 1, name.length() - SUFFIX.length()).matches("\\d+")) {
+      return null;
+    }
+    return name.substring(0, keyStart);
+  }
+
+  /**
+   * @return the directory holding the classes cached by this build with the current options
+   */
+  private File entries() {
+    String options = InstrumentedClass.options();
+    return new File(dir, "v" + VERSION + "-" + BUILD + "-" + hex(sha1(options.getBytes(
+        StandardCharsets.UTF_8))).substring(0, 16));
+  }
+
+  private static void delete(File file) {
+    File[] children = file.listFiles();
+    if (children != null) {
+      for (File child : children) {
+        delete(child);
+      }
+    }
+    file.delete();
+  }
+
+  /**
+   * @return the cache for {@link InstrumentationProperties#BYTECODE_CACHE_DIR}, or null if
+   *     {@link InstrumentationProperties#USE_BYTECODE_CACHE} is not set
+   */
+  public static synchronized BytecodeCache getInstance() {
+    if (!InstrumentationProperties.USE_BYTECODE_CACHE) {
+      return null;
+    }
+    if (instance == null) {
+      String dir = InstrumentationProperties.BYTECODE_CACHE_DIR;
+      instance = new BytecodeCache(dir == null || dir.isEmpty() ? null : new File(dir));
+    }
+    return instance;
+  }
+
+  public int getHits() {
+    return hits.get();
+  }
+
+  public int getMisses() {
+    return misses.get();
+  }
+
+  /**
+   * @return the instrumented bytes of the class, with its goals registered as if it had just been
+   *     instrumented, or null if it is not cached
+   */
+  public byte[] load(String name, byte[] original) {
+    String key = key(original);
+    byte[] record = records.get(key);
+    try {
+      if (record == null) {
+        File file = files.get(key);
+        if (file != null) {
+          record = Files.readAllBytes(file.toPath());
+        }
+      }
+      byte[] bytes = record == null ? null : replay(record);
+      if (bytes == null) {
+        misses.incrementAndGet();
+      } else {
+        records.put(key, record);
+        hits.incrementAndGet();
+      }
+      return bytes;
+    } catch (IOException e) {
+      e.printStackTrace(ClassAnalyzer.out);
+      misses.incrementAndGet();
+      return null;
+    }
+  }
+
+  /**
+   * Caches the bytes visitor has just instrumented, unless visiting the class failed part way.
+   */
+  public void store(String name, byte[] original, byte[] instrumented,
+      ArrayClassVisitor visitor) {
+    if (!visitor.isComplete()) {
+      return;
+    }
+    String key = key(original);
+    try {
+      InstrumentedClass instrumentedClass = InstrumentedClass.of(name.replace('.', '/'), visitor);
+      byte[] record = record(instrumentedClass, instrumented);
+      records.put(key, record);
+      if (dir == null) {
+        return;
+      }
+      File entries = entries();
+      entries.mkdirs();
+      String className = ClassNameUtils.replaceSlashes(name);
+      File file = new File(entries,
+          className + "_" + key + "_" + instrumentedClass.getClassId() + SUFFIX);
+      File temp = File.createTempFile(key, ".tmp", entries);
+      Files.write(temp.toPath(), record);
+      Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+      File replaced = files.put(key, file);
+      // the class was given a new id, so the old copy is out of date
+      if (replaced != null && !replaced.equals(file)) {
+        replaced.delete();
+      }
+      // an older version of the class, which is not loaded again
+      String older = classKeys.put(className, key);
+      if (older != null && !older.equals(key)) {
+        File superseded = files.remove(older);
+        if (superseded != null && superseded.getParentFile().equals(entries)) {
+          superseded.delete();
+        }
+      }
+    } catch (IOException e) {
+      e.printStackTrace(ClassAnalyzer.out);
+    }
+  }
+
+  private static byte[] record(InstrumentedClass instrumented, byte[] bytecode)
+      throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(bytecode.length + 1024);
+    DataOutputStream out = new DataOutputStream(bytes);
+    out.writeInt(MAGIC);
+    out.writeInt(VERSION);
+    instrumented.write(out);
+    out.writeInt(bytecode.length);
+    out.write(bytecode);
+    out.flush();
+    return bytes.toByteArray();
+  }
+
+  /**
+   * Registers the class read from record the way {@link ArrayClassVisitor} would have.
+   *
+   * @return the instrumented bytes, or null if the class cannot be given its cached id
+   */
+  private static byte[] replay(byte[] record) throws IOException {
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+    if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+      return null;
+    }
+    if (!InstrumentedClass.read(in).register()) {
+      return null;
+    }
+    byte[] bytes = new byte[in.readInt()];
+    in.readFully(bytes);
+    return bytes;
+  }
+
+  /**
+   * @return the hex SHA-1 of the original class, the {@link InstrumentedClass#OPTIONS} and the
+   *     build of the instrumenter itself
+   */
+  static String key(byte[] original) {
+    String options = VERSION + ":" + BUILD + ":" + InstrumentedClass.options();
+    return hex(sha1(options.getBytes(StandardCharsets.UTF_8), original));
+  }
+
+  private static byte[] sha1(byte[]... parts) {
+    try {
+      MessageDigest digest = MessageDigest.getInstance("SHA-1");
+      for (byte[] part : parts) {
+        digest.update(part);
+      }
+      return digest.digest();
+    } catch (NoSuchAlgorithmException e) {
+      // every JVM has SHA-1
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static String hex(byte[] hash) {
+    StringBuilder hex = new StringBuilder(hash.length * 2);
+    for (byte b : hash) {
+      hex.append(Character.forDigit((b >>> 4) & 0xF, 16));
+      hex.append(Character.forDigit(b & 0xF, 16));
+    }
+    return hex.toString();
+  }
+
+  private static long buildTime() {
+    URL visitor = ArrayClassVisitor.class.getResource("ArrayClassVisitor.class");
+    try {
+      return visitor == null ? 0 : visitor.openConnection().getLastModified();
+    } catch (IOException e) {
+      return 0;
+    }
+  }
+}
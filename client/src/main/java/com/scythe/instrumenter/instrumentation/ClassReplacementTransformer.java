@@ -15,6 +15,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.lang.instrument.IllegalClassFormatException;
 import java.util.ArrayList;
+import java.util.function.Supplier;
 import org.objectweb.asm.ClassReader;
 import org.objectweb.asm.ClassVisitor;
 import org.objectweb.asm.ClassWriter;
@@ -89,6 +90,37 @@ public class ClassReplacementTransformer {
     shouldWriteClass = b;
   }
 
+  /**
+   * Lets a class be transformed again, for classes that are written out rather than defined and so
+   * may have changed since they were last transformed.
+   */
+  public void forget(String cName) {
+    seenClasses.remove(cName);
+  }
+
+  /**
+   * Takes the place of {@link #transform} for a class defined from bytes instrumented earlier, such
+   * as those kept by {@link BytecodeCache}, so that it is seen and written out the same way.
+   *
+   * @param instrumented gives the instrumented bytes, or null if they cannot be used
+   * @return the instrumented bytes, or null if the class is still to be transformed
+   */
+  public byte[] transformCached(String cName, Supplier<byte[]> instrumented)
+      throws IllegalClassFormatException {
+    if (seenClasses.contains(cName)) {
+      throw new IllegalClassFormatException("Class already loaded!");
+    }
+    byte[] newClass = instrumented.get();
+    if (newClass == null) {
+      return null;
+    }
+    seenClasses.add(cName);
+    if (InstrumentationProperties.WRITE_CLASS_IF_MODIFIED && !InstrumentationProperties.WRITE_CLASS) {
+      Util.writeClass(cName, newClass);
+    }
+    return newClass;
+  }
+
   public byte[] transform(String cName, byte[] cBytes, ClassVisitor cv, ClassWriter cw)
       throws IllegalClassFormatException {
     if (seenClasses.contains(cName)) {
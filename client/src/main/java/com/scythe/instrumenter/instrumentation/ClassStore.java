@@ -1,10 +1,13 @@
 package com.scythe.instrumenter.instrumentation;
 
 import com.scythe.util.ClassNameUtils;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 
 public class ClassStore {
   private static HashMap<String, Class<?>> store = new HashMap<String, Class<?>>();
+  private static final List<Class<?>> initialised = new ArrayList<Class<?>>();
   /**
    *
    */
@@ -42,4 +45,19 @@ public class ClassStore {
     }
     return null;
   }
+
+  /**
+   * Records an instrumented class whose static initializer has created its counters.
+   */
+  public static synchronized void initialised(Class<?> cl) {
+    initialised.add(cl);
+  }
+
+  public static synchronized List<Class<?>> getInitialised() {
+    return new ArrayList<Class<?>>(initialised);
+  }
+
+  public static synchronized void clearInitialised() {
+    initialised.clear();
+  }
 }
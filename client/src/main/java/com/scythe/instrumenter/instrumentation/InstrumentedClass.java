@@ -0,0 +1,366 @@
+package com.scythe.instrumenter.instrumentation;
+
+import com.scythe.instrumenter.InstrumentationProperties;
+import com.scythe.instrumenter.InstrumentationProperties.CounterLayout;
+import com.scythe.instrumenter.InstrumentationProperties.InstrumentationApproach;
+import com.scythe.instrumenter.analysis.ClassAnalyzer;
+import com.scythe.instrumenter.analysis.FlowGraph;
+import com.scythe.instrumenter.analysis.ProbeArrays;
+import com.scythe.instrumenter.instrumentation.objectrepresentation.AllocationSite;
+import com.scythe.instrumenter.instrumentation.objectrepresentation.Branch;
+import com.scythe.instrumenter.instrumentation.objectrepresentation.BranchHit;
+import com.scythe.instrumenter.instrumentation.objectrepresentation.Line;
+import com.scythe.instrumenter.instrumentation.objectrepresentation.LineHit;
+import com.scythe.instrumenter.instrumentation.visitors.ArrayClassVisitor;
+import java.io.BufferedInputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Everything {@link ArrayClassVisitor} registers with {@link ClassAnalyzer} while instrumenting a
+ * class, in a form that can be kept with the instrumented bytecode and registered again by a JVM
+ * that loads the bytecode without instrumenting it.
+ *
+ * Jars written by {@link OfflineInstrumenter} hold the classes they instrumented in the resource
+ * {@link #RESOURCE}, which is registered by {@link #registerOffline()} as soon as Scythe is used,
+ * so pre-instrumented code can run without an agent.
+ */
+public class InstrumentedClass {
+
+  public static final String RESOURCE = "META-INF/scythe/classes";
+  public static final int MAGIC = 0x53434943;
+  public static final int VERSION = 1;
+
+  /**
+   * Options read by {@link ArrayClassVisitor}, which change the bytecode it writes and so must
+   * match between the JVM instrumenting a class and the one collecting its coverage.
+   */
+  public static final String[] OPTIONS = {"instrumentation_approach", "counter_layout",
+      "probe_placement", "sample_rate", "instrument_lines", "instrument_branches",
+      "instrument_allocations", "use_changed_flag", "init_counters_in_clinit"};
+
+  private static volatile boolean offlineRegistered = false;
+  // guarded by the ClassAnalyzer lock
+  private static boolean registeringOffline = false;
+
+  private final String className;
+  // -1 for classes copied without probes
+  private final int classId;
+  private final boolean changedFlag;
+  private final List<LineHit> lines;
+  private final List<BranchHit> branches;
+  private final List<FlowGraph> graphs;
+  private final List<AllocationSite> sites;
+
+  private InstrumentedClass(String className, int classId, boolean changedFlag,
+      List<LineHit> lines, List<BranchHit> branches, List<FlowGraph> graphs,
+      List<AllocationSite> sites) {
+    this.className = className;
+    this.classId = classId;
+    this.changedFlag = changedFlag;
+    this.lines = lines;
+    this.branches = branches;
+    this.graphs = graphs;
+    this.sites = sites;
+  }
+
+  /**
+   * @param visitor a visitor that has visited the whole class
+   */
+  public static InstrumentedClass of(String className, ArrayClassVisitor visitor) {
+    if (!visitor.isInstrumented()) {
+      return new InstrumentedClass(className, -1, false, Collections.<LineHit>emptyList(),
+          Collections.<BranchHit>emptyList(), Collections.<FlowGraph>emptyList(),
+          Collections.<AllocationSite>emptyList());
+    }
+    return new InstrumentedClass(className, visitor.getClassId(), visitor.usesChangedFlag(),
+        visitor.getLineHits(), visitor.getBranchHits(), visitor.getFlowGraphs(),
+        visitor.getAllocationSites());
+  }
+
+  /**
+   * @return true if classes instrumented with the current options register nothing that only
+   *     holds for this JVM, so they can be kept and registered again
+   */
+  public static boolean isPortable() {
+    InstrumentationApproach approach = InstrumentationProperties.INSTRUMENTATION_APPROACH;
+    if (approach == InstrumentationApproach.BOOLEAN) {
+      return true;
+    }
+    return approach == InstrumentationApproach.ARRAY
+        && InstrumentationProperties.COUNTER_LAYOUT != CounterLayout.GLOBAL;
+  }
+
+  /**
+   * @return the current value of each of {@link #OPTIONS}, as key=value lines
+   */
+  public static String options() {
+    StringBuilder options = new StringBuilder();
+    for (String key : OPTIONS) {
+      try {
+        options.append(key).append('=')
+            .append(InstrumentationProperties.instance().getParameter(key)).append('\n');
+      } catch (IllegalAccessException e) {
+        throw new IllegalStateException(e);
+      }
+    }
+    return options.toString();
+  }
+
+  /**
+   * Sets each of the options in a string returned by {@link #options()}.
+   */
+  public static void setOptions(String options) {
+    for (String option : options.split("\n")) {
+      int split = option.indexOf('=');
+      if (split > 0) {
+        try {
+          InstrumentationProperties.instance().setParameter(option.substring(0, split),
+              option.substring(split + 1));
+        } catch (IllegalAccessException e) {
+          e.printStackTrace(ClassAnalyzer.out);
+        }
+      }
+    }
+  }
+
+  /**
+   * @return the options in a string returned by {@link #options()} that differ from the current
+   *     ones, as key=value lines
+   */
+  private static String differingOptions(String options) {
+    Set<String> current = new LinkedHashSet<String>(Arrays.asList(options().split("\n")));
+    StringBuilder differing = new StringBuilder();
+    for (String option : options.split("\n")) {
+      if (!option.isEmpty() && !current.contains(option)) {
+        differing.append(option).append('\n');
+      }
+    }
+    return differing.toString();
+  }
+
+  public String getClassName() {
+    return className;
+  }
+
+  public int getClassId() {
+    return classId;
+  }
+
+  public boolean isInstrumented() {
+    return classId >= 0;
+  }
+
+  public void write(DataOutput out) throws IOException {
+    out.writeUTF(className);
+    out.writeInt(classId);
+    if (!isInstrumented()) {
+      return;
+    }
+    out.writeBoolean(changedFlag);
+    out.writeInt(lines.size());
+    for (LineHit lh : lines) {
+      Line line = lh.getLine();
+      out.writeUTF(line.getClassName());
+      out.writeUTF(line.getMethodName());
+      out.writeInt(line.getLineNumber());
+      out.writeInt(lh.getCounterId());
+    }
+    out.writeInt(branches.size());
+    for (BranchHit bh : branches) {
+      Branch branch = bh.getBranch();
+      out.writeUTF(branch.getClassName());
+      out.writeUTF(branch.getMethodName());
+      out.writeInt(branch.getLineNumber());
+      out.writeInt(bh.getCounterId());
+      out.writeInt(bh.getDistanceId());
+    }
+    out.writeInt(graphs.size());
+    for (FlowGraph graph : graphs) {
+      graph.write(out);
+    }
+    out.writeInt(sites.size());
+    for (AllocationSite site : sites) {
+      out.writeUTF(site.getClassName());
+      out.writeUTF(site.getMethodName());
+      out.writeInt(site.getLineNumber());
+      out.writeUTF(site.getType());
+      out.writeInt(site.getCounterId());
+      out.writeInt(site.getElementCounterId());
+    }
+  }
+
+  public static InstrumentedClass read(DataInput in) throws IOException {
+    String className = in.readUTF();
+    int classId = in.readInt();
+    if (classId < 0) {
+      return new InstrumentedClass(className, classId, false, Collections.<LineHit>emptyList(),
+          Collections.<BranchHit>emptyList(), Collections.<FlowGraph>emptyList(),
+          Collections.<AllocationSite>emptyList());
+    }
+    boolean changedFlag = in.readBoolean();
+    List<LineHit> lines = new ArrayList<LineHit>();
+    for (int i = in.readInt(); i > 0; i--) {
+      Line line = new Line(in.readUTF(), in.readUTF(), in.readInt());
+      lines.add(new LineHit(line, in.readInt()));
+    }
+    List<BranchHit> branches = new ArrayList<BranchHit>();
+    for (int i = in.readInt(); i > 0; i--) {
+      Branch branch = new Branch(in.readUTF(), in.readUTF(), in.readInt());
+      branches.add(new BranchHit(branch, in.readInt(), in.readInt()));
+    }
+    List<FlowGraph> graphs = new ArrayList<FlowGraph>();
+    for (int i = in.readInt(); i > 0; i--) {
+      graphs.add(FlowGraph.read(in));
+    }
+    List<AllocationSite> sites = new ArrayList<AllocationSite>();
+    for (int i = in.readInt(); i > 0; i--) {
+      sites.add(new AllocationSite(in.readUTF(), in.readUTF(), in.readInt(), in.readUTF(),
+          in.readInt(), in.readInt()));
+    }
+    return new InstrumentedClass(className, classId, changedFlag, lines, branches, graphs,
+        sites);
+  }
+
+  /**
+   * Registers the class with {@link ClassAnalyzer} the way {@link ArrayClassVisitor} would have
+   * while instrumenting it.
+   *
+   * @return false if the class id baked into the bytecode has been given to another class
+   */
+  public boolean register() {
+    if (!isInstrumented()) {
+      return true;
+    }
+    if (ClassAnalyzer.registerClass(className, classId) != classId) {
+      return false;
+    }
+    if (changedFlag) {
+      ProbeArrays.reserve(classId);
+    }
+    ClassAnalyzer.classAnalyzed(classId, branches, lines);
+    FlowGraph.register(classId, graphs);
+    ClassAnalyzer.allocationSitesFound(classId, sites);
+    return true;
+  }
+
+  /**
+   * Writes the classes instrumented into one jar, along with the options they were instrumented
+   * with, as the {@link #RESOURCE} of the jar.
+   */
+  public static void writeAll(DataOutputStream out, Collection<InstrumentedClass> classes)
+      throws IOException {
+    out.writeInt(MAGIC);
+    out.writeInt(VERSION);
+    out.writeUTF(options());
+    out.writeInt(classes.size());
+    for (InstrumentedClass instrumented : classes) {
+      instrumented.write(out);
+    }
+    out.flush();
+  }
+
+  /**
+   * Registers classes written by {@link #writeAll}. Collecting their coverage depends on the
+   * options they were instrumented with, so if those differ from the options of this JVM the
+   * classes are reported and left unregistered, with only their ids reserved.
+   */
+  public static void registerAll(InputStream stream) throws IOException {
+    DataInputStream in = new DataInputStream(new BufferedInputStream(stream));
+    if (in.readInt() != MAGIC) {
+      throw new IOException("Not a list of instrumented classes");
+    }
+    int version = in.readInt();
+    if (version != VERSION) {
+      throw new IOException("Unsupported instrumented class list version " + version);
+    }
+    String differing = differingOptions(in.readUTF());
+    int maxClassId = -1;
+    int skipped = 0;
+    for (int i = in.readInt(); i > 0; i--) {
+      InstrumentedClass instrumented = read(in);
+      maxClassId = Math.max(maxClassId, instrumented.getClassId());
+      if (!differing.isEmpty()) {
+        skipped++;
+      } else if (!instrumented.register()) {
+        ClassAnalyzer.out.println("Class id " + instrumented.getClassId() + " of "
+            + instrumented.getClassName() + " is used by another class. Classes on one "
+            + "classpath should be instrumented together");
+      }
+    }
+    ClassAnalyzer.reserveClassIds(maxClassId);
+    if (skipped > 0) {
+      ClassAnalyzer.out.println("Not registering " + skipped + " classes instrumented with "
+          + "options that differ from this JVM's:\n" + differing.trim());
+    }
+  }
+
+  /**
+   * Registers the classes in every {@link #RESOURCE} on the classpath, the first time it is
+   * called since {@link ClassAnalyzer} was last reset. Called by ClassAnalyzer before it gives
+   * out a class id, so the ids baked into those classes are never given to another class, and
+   * before it collects or reports coverage.
+   */
+  public static void registerOffline() {
+    if (offlineRegistered) {
+      return;
+    }
+    // the lock registering a class takes, so no other thread is given a class id until the
+    // offline ones are taken
+    synchronized (ClassAnalyzer.class) {
+      if (offlineRegistered || registeringOffline) {
+        return;
+      }
+      registeringOffline = true;
+      try {
+        registerResources();
+      } finally {
+        registeringOffline = false;
+        offlineRegistered = true;
+      }
+    }
+  }
+
+  /**
+   * Makes the next call to {@link #registerOffline()} register the classes again, once
+   * {@link ClassAnalyzer} has forgotten them.
+   */
+  public static void forgetOffline() {
+    offlineRegistered = false;
+  }
+
+  private static void registerResources() {
+    Set<URL> resources = new LinkedHashSet<URL>();
+    ClassLoader[] loaders = {InstrumentedClass.class.getClassLoader(),
+        Thread.currentThread().getContextClassLoader()};
+    for (ClassLoader loader : loaders) {
+      if (loader == null) {
+        continue;
+      }
+      try {
+        resources.addAll(Collections.list(loader.getResources(RESOURCE)));
+      } catch (IOException e) {
+        e.printStackTrace(ClassAnalyzer.out);
+      }
+    }
+    for (URL resource : resources) {
+      try (InputStream in = resource.openStream()) {
+        registerAll(in);
+      } catch (IOException e) {
+        e.printStackTrace(ClassAnalyzer.out);
+      }
+    }
+  }
+}
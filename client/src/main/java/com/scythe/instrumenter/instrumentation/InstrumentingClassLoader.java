@@ -2,10 +2,14 @@ package com.scythe.instrumenter.instrumentation;
 
 import com.google.gson.Gson;
 import com.scythe.instrumenter.InstrumentationProperties;
+import com.scythe.instrumenter.analysis.CheckpointCollector;
 import com.scythe.instrumenter.analysis.ClassAnalyzer;
+import com.scythe.instrumenter.analysis.EpochCollector;
+import com.scythe.instrumenter.analysis.TestSelector;
 import com.scythe.instrumenter.instrumentation.visitors.ArrayClassVisitor;
 import com.scythe.instrumenter.instrumentation.visitors.DependencyTreeClassVisitor;
 import com.scythe.instrumenter.instrumentation.visitors.MutationClassVisitor;
+import com.scythe.instrumenter.instrumentation.visitors.ProfileClassVisitor;
 import com.scythe.instrumenter.instrumentation.visitors.StaticClassVisitor;
 import com.scythe.instrumenter.instrumentation.visitors.SuperReplacementClassVisitor;
 import com.scythe.util.ArrayUtils;
@@ -26,6 +30,7 @@ import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.function.Consumer;
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.io.output.ByteArrayOutputStream;
 import org.objectweb.asm.ClassVisitor;
@@ -37,6 +42,7 @@ public class InstrumentingClassLoader extends URLClassLoader {
   private ClassLoader classLoader;
   private ClassReplacementTransformer crt = new ClassReplacementTransformer();
   private MockClassLoader loader;
+  private final TypeHierarchy hierarchy = new TypeHierarchy(this);
   private ArrayList<ClassInstrumentingInterceptor> classInstrumentingInterceptors;
 
   private HashMap<String, String> superClassReplacements = new HashMap
@@ -54,6 +60,8 @@ public class InstrumentingClassLoader extends URLClassLoader {
     loader = new MockClassLoader(urls, crt);
     this.classLoader = getClass().getClassLoader();
     classInstrumentingInterceptors = new ArrayList<ClassInstrumentingInterceptor>();
+    EpochCollector.start();
+    CheckpointCollector.start();
     if (InstrumentationProperties.COVERAGE_ON_EXIT) {
       System.out.println("Writing Coverage!");
       Runtime.getRuntime().addShutdownHook(new Thread(() -> {
@@ -125,6 +133,13 @@ public class InstrumentingClassLoader extends URLClassLoader {
     // Add url to system class loader.
   }
 
+  /**
+   * @return the super classes and interfaces of the original classes this loader can see
+   */
+  public TypeHierarchy getTypeHierarchy() {
+    return hierarchy;
+  }
+
   public ClassReplacementTransformer getClassReplacementTransformer() {
     return crt;
   }
@@ -192,12 +207,46 @@ public class InstrumentingClassLoader extends URLClassLoader {
 
   public byte[] modifyBytes(String name, byte[] original)
       throws ClassNotFoundException, IllegalClassFormatException, IOException {
+    return modifyBytes(name, original, null);
+  }
+
+  /**
+   * Instruments a class, handing what was registered for it to registered so that it can be kept
+   * with the instrumented bytes. Nothing is handed over if the class was not instrumented with
+   * options that {@link InstrumentedClass#isPortable()} allows.
+   */
+  public byte[] modifyBytes(String name, byte[] original,
+      Consumer<InstrumentedClass> registered)
+      throws ClassNotFoundException, IllegalClassFormatException, IOException {
     String className = ClassNameUtils.replaceSlashes(name);
     if ("".equals(className)) {
       throw new ClassNotFoundException("Empty class name given");
     }
     ByteArrayOutputStream out = null;
 
+    if (InstrumentationProperties.TRACK_ACTIVE_TESTCASE) {
+      TestSelector.recordClass(original);
+    }
+
+    // other visitors change the class in ways the cache cannot see, and cached classes are
+    // replayed without the visitor that registered them
+    BytecodeCache cache = null;
+    if (registered == null && superClassReplacements.isEmpty()
+        && classInstrumentingInterceptors.isEmpty() && !buildDependencyTree && !visitMutants && InstrumentedClass.isPortable()
+        && crt.shouldInstrumentClass(name)) {
+      cache = BytecodeCache.getInstance();
+    }
+    if (cache != null) {
+      final BytecodeCache classes = cache;
+      byte[] cached = crt.transformCached(name, () -> classes.load(name, original));
+      if (cached != null) {
+        if (InstrumentationProperties.WRITE_CLASS) {
+          Util.writeClass(name, cached);
+        }
+        return cached;
+      }
+    }
+
     ClassWriter writer = new CustomLoaderClassWriter(
         ClassWriter.COMPUTE_FRAMES | ClassWriter.COMPUTE_MAXS, this);
     ClassVisitor cw = writer;
@@ -214,9 +263,19 @@ public class InstrumentingClassLoader extends URLClassLoader {
       }
     }
 
-    ClassVisitor cv = InstrumentationProperties.INSTRUMENTATION_APPROACH
-        == InstrumentationProperties.InstrumentationApproach.STATIC
-        ? new StaticClassVisitor(cw, name) : new ArrayClassVisitor(cw, name);
+    ClassVisitor cv;
+    ArrayClassVisitor arrayVisitor = null;
+    switch (InstrumentationProperties.INSTRUMENTATION_APPROACH) {
+      case STATIC:
+        cv = new StaticClassVisitor(cw, name);
+        break;
+      case PROFILE:
+        cv = new ProfileClassVisitor(cw, name);
+        break;
+      default:
+        arrayVisitor = new ArrayClassVisitor(cw, name);
+        cv = arrayVisitor;
+    }
 
     if (buildDependencyTree) {
       cv = new DependencyTreeClassVisitor(cv, name);
@@ -226,8 +285,22 @@ public class InstrumentingClassLoader extends URLClassLoader {
       cv = new MutationClassVisitor(cv);
     }
 
+    if (registered != null) {
+      // written out with what was registered rather than defined, and instrumented again whenever
+      // the class changes
+      crt.forget(name);
+    }
     byte[] bytes = crt.transform(name, original, cv, writer);
 
+    if (cache != null && arrayVisitor != null) {
+      cache.store(name, original, bytes, arrayVisitor);
+    }
+
+    if (registered != null && arrayVisitor != null && arrayVisitor.isComplete()
+        && InstrumentedClass.isPortable()) {
+      registered.accept(InstrumentedClass.of(ClassNameUtils.replaceDots(name), arrayVisitor));
+    }
+
     if (InstrumentationProperties.WRITE_CLASS) {
       Util.writeClass(name, bytes);
     }
@@ -0,0 +1,391 @@
+package com.scythe.instrumenter.instrumentation;
+
+import com.scythe.instrumenter.InstrumentationProperties;
+import com.scythe.instrumenter.analysis.ClassAnalyzer;
+import com.scythe.instrumenter.instrumentation.visitors.ArrayClassVisitor;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import org.apache.commons.io.IOUtils;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.commons.JSRInlinerAdapter;
+
+/**
+ * Instruments the classes of jars and class directories ahead of time with the array or boolean
+ * approach, writing each input to a jar that can be put on the classpath in place of the original.
+ * Each output jar lists the classes it instrumented in {@link InstrumentedClass#RESOURCE}, which
+ * Scythe registers before any of them run, so the instrumented code needs no agent and no
+ * {@link InstrumentingClassLoader}. Everything other than classes is copied unchanged, apart from
+ * jar signatures, which the instrumented classes would no longer match.
+ *
+ * Entries are read and instrumented on a fork join pool while the jar is written in input order,
+ * with a bounded number of entries in flight, so memory use does not grow with the size of the
+ * input. Class ids are baked into the bytecode, so every jar and directory on one classpath should
+ * be instrumented by one run. Ids are given out in input order, so the same inputs and options
+ * always give the same jars.
+ *
+ * Frames are computed from the class files of every input, and of the extra classpath, without
+ * loading any of them.
+ */
+public class OfflineInstrumenter {
+
+  private static final String CLASS_SUFFIX = ".class";
+  // entries in flight per worker, enough to keep every worker busy while the writer catches up
+  private static final int ENTRIES_PER_WORKER = 64;
+
+  /**
+   * An entry of an input, read when it is processed.
+   */
+  private interface Source {
+    String getName();
+
+    byte[] read() throws IOException;
+  }
+
+  private static final class Output {
+    private final String name;
+    private final byte[] bytes;
+    // null for entries copied without probes
+    private final InstrumentedClass instrumented;
+
+    private Output(String name, byte[] bytes, InstrumentedClass instrumented) {
+      this.name = name;
+      this.bytes = bytes;
+      this.instrumented = instrumented;
+    }
+  }
+
+  private final Map<File, List<Source>> outputs = new LinkedHashMap<File, List<Source>>();
+  private final List<File> roots = new ArrayList<File>();
+  private final List<ZipFile> jars = new ArrayList<ZipFile>();
+  private int parallelism = Runtime.getRuntime().availableProcessors();
+
+  public void setParallelism(int parallelism) {
+    this.parallelism = Math.max(1, parallelism);
+  }
+
+  /**
+   * Adds every entry of a jar to the jar written to output.
+   */
+  public void addJar(File jar, File output) throws IOException {
+    final ZipFile zip = new ZipFile(jar);
+    jars.add(zip);
+    roots.add(jar);
+    List<Source> sources = sources(output);
+    Enumeration<? extends ZipEntry> entries = zip.entries();
+    while (entries.hasMoreElements()) {
+      final ZipEntry entry = entries.nextElement();
+      sources.add(new Source() {
+        @Override
+        public String getName() {
+          return entry.getName();
+        }
+
+        @Override
+        public byte[] read() throws IOException {
+          try (InputStream in = zip.getInputStream(entry)) {
+            return IOUtils.toByteArray(in);
+          }
+        }
+      });
+    }
+  }
+
+  /**
+   * Adds every file under a class directory to the jar written to output.
+   */
+  public void addDirectory(File dir, File output) throws IOException {
+    final Path root = dir.toPath();
+    List<String> paths;
+    try (Stream<Path> files = Files.walk(root)) {
+      paths = files.filter(Files::isRegularFile)
+          .map(file -> root.relativize(file).toString())
+          .sorted()
+          .collect(Collectors.toList());
+    }
+    addFiles(dir, paths, output);
+  }
+
+  /**
+   * Adds some of the files under a class directory to the jar written to output.
+   *
+   * @param paths paths of the files relative to dir
+   */
+  public void addFiles(File dir, Collection<String> paths, File output) {
+    roots.add(dir);
+    List<Source> sources = sources(output);
+    for (String path : paths) {
+      final File file = new File(dir, path);
+      final String name = path.replace(File.separatorChar, '/');
+      sources.add(new Source() {
+        @Override
+        public String getName() {
+          return name;
+        }
+
+        @Override
+        public byte[] read() throws IOException {
+          return Files.readAllBytes(file.toPath());
+        }
+      });
+    }
+  }
+
+  /**
+   * Adds a jar or class directory that is only read to work out the common super classes of the
+   * classes being instrumented.
+   */
+  public void addClasspath(File jarOrDirectory) {
+    roots.add(jarOrDirectory);
+  }
+
+  private List<Source> sources(File output) {
+    List<Source> sources = outputs.get(output);
+    if (sources == null) {
+      sources = new ArrayList<Source>();
+      outputs.put(output, sources);
+    }
+    return sources;
+  }
+
+  /**
+   * Writes every output jar.
+   *
+   * @return the number of classes instrumented
+   */
+  public int run() throws IOException {
+    if (!InstrumentedClass.isPortable()) {
+      throw new IllegalStateException("Classes instrumented with the "
+          + InstrumentationProperties.INSTRUMENTATION_APPROACH + " approach and the "
+          + InstrumentationProperties.COUNTER_LAYOUT
+          + " counter layout only work in the JVM that instrumented them");
+    }
+    URL[] urls = new URL[roots.size()];
+    for (int i = 0; i < urls.length; i++) {
+      urls[i] = roots.get(i).toURI().toURL();
+    }
+    AtomicInteger instrumented = new AtomicInteger();
+    ForkJoinPool pool = new ForkJoinPool(parallelism);
+    try (URLClassLoader classFiles = new URLClassLoader(urls, getClass().getClassLoader())) {
+      TypeHierarchy hierarchy = new TypeHierarchy(classFiles);
+      for (Map.Entry<File, List<Source>> output : outputs.entrySet()) {
+        write(output.getKey(), output.getValue(), pool, hierarchy, instrumented);
+      }
+    } finally {
+      pool.shutdown();
+      for (ZipFile jar : jars) {
+        jar.close();
+      }
+      jars.clear();
+    }
+    return instrumented.get();
+  }
+
+  private void write(File file, List<Source> sources, ForkJoinPool pool,
+      final TypeHierarchy hierarchy, AtomicInteger instrumented) throws IOException {
+    if (file.getParentFile() != null) {
+      file.getParentFile().mkdirs();
+    }
+    List<InstrumentedClass> classes = new ArrayList<InstrumentedClass>();
+    Set<String> names = new HashSet<String>();
+    Deque<ForkJoinTask<Output>> inFlight = new ArrayDeque<ForkJoinTask<Output>>();
+    int window = parallelism * ENTRIES_PER_WORKER;
+    int next = 0;
+    try (JarOutputStream jar = new JarOutputStream(
+        new BufferedOutputStream(new FileOutputStream(file)))) {
+      // entries are compressed by the one writing thread, which should not hold up the workers
+      jar.setLevel(Deflater.BEST_SPEED);
+      while (next < sources.size() || !inFlight.isEmpty()) {
+        while (next < sources.size() && inFlight.size() < window) {
+          final Source source = sources.get(next++);
+          String name = source.getName();
+          if (name.equals(InstrumentedClass.RESOURCE)) {
+            throw new IOException("Entries written to " + file + " are already instrumented");
+          }
+          // the first of two entries with the same name is the one a class loader would find
+          if (!names.add(name) || isSignature(name)) {
+            continue;
+          }
+          final String className = instrumentable(name) ? className(name) : null;
+          if (className != null) {
+            ClassAnalyzer.registerClass(className);
+          }
+          inFlight.add(pool.submit(() -> process(source, className, hierarchy)));
+        }
+        if (inFlight.isEmpty()) {
+          break;
+        }
+        Output output;
+        try {
+          output = inFlight.poll().join();
+        } catch (UncheckedIOException e) {
+          throw e.getCause();
+        }
+        jar.putNextEntry(new JarEntry(output.name));
+        jar.write(output.bytes);
+        jar.closeEntry();
+        if (output.instrumented != null) {
+          classes.add(output.instrumented);
+          instrumented.incrementAndGet();
+        }
+      }
+      jar.putNextEntry(new JarEntry(InstrumentedClass.RESOURCE));
+      InstrumentedClass.writeAll(new DataOutputStream(jar), classes);
+      jar.closeEntry();
+    } finally {
+      for (ForkJoinTask<Output> task : inFlight) {
+        task.cancel(false);
+      }
+    }
+  }
+
+  private static Output process(Source source, String className, TypeHierarchy hierarchy) {
+    byte[] bytes;
+    try {
+      bytes = source.read();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    if (className == null) {
+      return new Output(source.getName(), bytes, null);
+    }
+    try {
+      ClassWriter writer = new HierarchyClassWriter(
+          ClassWriter.COMPUTE_FRAMES | ClassWriter.COMPUTE_MAXS, hierarchy);
+      ArrayClassVisitor visitor = new ArrayClassVisitor(writer, className);
+      ClassVisitor cv = new ClassVisitor(Opcodes.ASM5, visitor) {
+        @Override
+        public MethodVisitor visitMethod(int access, String name, String desc, String signature,
+            String[] exceptions) {
+          MethodVisitor mv = super.visitMethod(access, name, desc, signature, exceptions);
+          return new JSRInlinerAdapter(mv, access, name, desc, signature, exceptions);
+        }
+      };
+      new ClassReader(bytes).accept(cv, ClassReader.EXPAND_FRAMES);
+      byte[] instrumented = writer.toByteArray();
+      if (!visitor.isInstrumented()) {
+        return new Output(source.getName(), instrumented, null);
+      }
+      return new Output(source.getName(), instrumented, InstrumentedClass.of(className, visitor));
+    } catch (RuntimeException e) {
+      ClassAnalyzer.out.println("Could not instrument " + className + ", copying it unchanged");
+      e.printStackTrace(ClassAnalyzer.out);
+      return new Output(source.getName(), bytes, null);
+    }
+  }
+
+  private static boolean instrumentable(String name) {
+    return name.endsWith(CLASS_SUFFIX) && !name.startsWith("META-INF/")
+        && !name.endsWith("module-info.class")
+        && !ClassReplacementTransformer.isForbiddenPackage(className(name));
+  }
+
+  private static String className(String name) {
+    return name.substring(0, name.length() - CLASS_SUFFIX.length());
+  }
+
+  private static boolean isSignature(String name) {
+    if (!name.startsWith("META-INF/") || name.indexOf('/', "META-INF/".length()) >= 0) {
+      return false;
+    }
+    return name.endsWith(".SF") || name.endsWith(".RSA") || name.endsWith(".DSA")
+        || name.endsWith(".EC");
+  }
+
+  /**
+   * Computes frames against the original classes of every input, falling back to
+   * java/lang/Object for types that cannot be found.
+   */
+  private static class HierarchyClassWriter extends CustomLoaderClassWriter {
+
+    HierarchyClassWriter(int flags, TypeHierarchy hierarchy) {
+      super(flags, hierarchy);
+    }
+
+    @Override
+    protected String getCommonSuperClass(String type1, String type2) {
+      try {
+        return super.getCommonSuperClass(type1, type2);
+      } catch (TypeNotPresentException e) {
+        // the frame is only checked when the method runs, by which time the class must exist
+        return "java/lang/Object";
+      }
+    }
+  }
+
+  /**
+   * Instruments each jar or class directory given into a jar of the same name in the output
+   * directory.
+   */
+  public static void main(String[] args) throws IOException {
+    List<String> inputs = new ArrayList<String>();
+    OfflineInstrumenter instrumenter = new OfflineInstrumenter();
+    for (int i = 0; i < args.length; i++) {
+      if (args[i].equals("-cp") && i + 1 < args.length) {
+        for (String path : args[++i].split(File.pathSeparator)) {
+          instrumenter.addClasspath(new File(path));
+        }
+      } else if (args[i].equals("-threads") && i + 1 < args.length) {
+        instrumenter.setParallelism(Integer.parseInt(args[++i]));
+      } else if (args[i].startsWith("-") && i + 1 < args.length) {
+        try {
+          InstrumentationProperties.instance().setParameter(args[i].substring(1), args[++i]);
+        } catch (IllegalAccessException e) {
+          e.printStackTrace(ClassAnalyzer.out);
+        }
+      } else {
+        inputs.add(args[i]);
+      }
+    }
+    if (inputs.size() < 2) {
+      System.out.println("Usage: OfflineInstrumenter [-<option> <value>]... [-cp <classpath>] "
+          + "[-threads <n>] <output directory> <jar or class directory>...");
+      return;
+    }
+    File outputDir = new File(inputs.get(0));
+    for (String input : inputs.subList(1, inputs.size())) {
+      File file = new File(input);
+      if (file.isDirectory()) {
+        instrumenter.addDirectory(file, new File(outputDir, file.getName() + ".jar"));
+      } else {
+        instrumenter.addJar(file, new File(outputDir, file.getName()));
+      }
+    }
+    long start = System.currentTimeMillis();
+    int classes = instrumenter.run();
+    System.out.println("Instrumented " + classes + " classes into " + outputDir + " in "
+        + (System.currentTimeMillis() - start) + "ms");
+  }
+}
@@ -0,0 +1,169 @@
+package com.scythe.instrumenter.instrumentation;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Works out the common super classes ASM asks for while computing frames from the super class and
+ * interfaces recorded in class files, read as resources of a class loader, so computing a frame
+ * never loads, links or defines a class. The header of each class is read once and cached, and
+ * the cache can be used by any number of threads instrumenting classes at the same time.
+ *
+ * Headers are read directly rather than through ASM, which rejects class files newer than the
+ * version it was built for, including those of the JDK it may be running on.
+ */
+public class TypeHierarchy {
+
+  private static final String OBJECT = "java/lang/Object";
+  private static final int ACC_INTERFACE = 0x0200;
+
+  private static final class Type {
+    // null for java/lang/Object
+    private final String superName;
+    private final String[] interfaces;
+    private final boolean isInterface;
+
+    private Type(String superName, String[] interfaces, boolean isInterface) {
+      this.superName = superName;
+      this.interfaces = interfaces;
+      this.isInterface = isInterface;
+    }
+  }
+
+  private final ClassLoader loader;
+  // types that could not be found are not kept, as they may be added to the loader later
+  private final Map<String, Type> types = new ConcurrentHashMap<String, Type>();
+
+  public TypeHierarchy(ClassLoader loader) {
+    this.loader = loader;
+  }
+
+  /**
+   * @return the internal name of the closest super class of both types, as
+   *     {@link org.objectweb.asm.ClassWriter#getCommonSuperClass} would return it
+   * @throws TypeNotPresentException if the class file of either type, or of one of their super
+   *     types, cannot be found
+   */
+  public String getCommonSuperClass(String type1, String type2) {
+    if (isAssignableFrom(type1, type2)) {
+      return type1;
+    }
+    if (isAssignableFrom(type2, type1)) {
+      return type2;
+    }
+    if (type(type1).isInterface || type(type2).isInterface) {
+      return OBJECT;
+    }
+    String common = type1;
+    do {
+      common = type(common).superName;
+    } while (!isAssignableFrom(common, type2));
+    return common;
+  }
+
+  /**
+   * @return true if a value of type sub can be assigned to a variable of type
+   */
+  public boolean isAssignableFrom(String type, String sub) {
+    if (type.equals(sub) || type.equals(OBJECT)) {
+      return true;
+    }
+    Set<String> seen = new HashSet<String>();
+    Deque<String> pending = new ArrayDeque<String>();
+    pending.add(sub);
+    while (!pending.isEmpty()) {
+      Type t = type(pending.poll());
+      if (t.superName != null && seen.add(t.superName)) {
+        pending.add(t.superName);
+      }
+      for (String i : t.interfaces) {
+        if (seen.add(i)) {
+          pending.add(i);
+        }
+      }
+      if (seen.contains(type)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private Type type(String name) {
+    Type type = types.get(name);
+    if (type != null) {
+      return type;
+    }
+    try (InputStream in = loader.getResourceAsStream(name + ".class")) {
+      if (in == null) {
+        throw new TypeNotPresentException(name.replace('/', '.'), null);
+      }
+      type = read(IOUtils.toByteArray(in));
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    Type existing = types.putIfAbsent(name, type);
+    return existing == null ? type : existing;
+  }
+
+  /**
+   * Reads the access flags, super class and interfaces of a class file, skipping over its
+   * constant pool.
+   */
+  private static Type read(byte[] b) throws IOException {
+    int count = u2(b, 8);
+    int[] entries = new int[count];
+    int p = 10;
+    for (int i = 1; i < count; i++) {
+      entries[i] = p + 1;
+      switch (b[p]) {
+        case 1: // Utf8
+          p += 3 + u2(b, p + 1);
+          break;
+        case 5: // Long
+        case 6: // Double
+          p += 9;
+          i++;
+          break;
+        case 15: // MethodHandle
+          p += 4;
+          break;
+        case 7: // Class
+        case 8: // String
+        case 16: // MethodType
+        case 19: // Module
+        case 20: // Package
+          p += 3;
+          break;
+        default: // fields, methods, name and types, numbers and dynamic constants
+          p += 5;
+      }
+    }
+    boolean isInterface = (u2(b, p) & ACC_INTERFACE) != 0;
+    int superClass = u2(b, p + 4);
+    String superName = superClass == 0 ? null : className(b, entries, superClass);
+    String[] interfaces = new String[u2(b, p + 6)];
+    for (int i = 0; i < interfaces.length; i++) {
+      interfaces[i] = className(b, entries, u2(b, p + 8 + i * 2));
+    }
+    return new Type(superName, interfaces, isInterface);
+  }
+
+  private static String className(byte[] b, int[] entries, int classEntry) throws IOException {
+    int utf8 = entries[u2(b, entries[classEntry])];
+    return new DataInputStream(new ByteArrayInputStream(b, utf8, b.length - utf8)).readUTF();
+  }
+
+  private static int u2(byte[] b, int offset) {
+    return ((b[offset] & 0xFF) << 8) | (b[offset + 1] & 0xFF);
+  }
+}
@@ -0,0 +1,97 @@
+package com.scythe.instrumenter.instrumentation.modifiers;
+
+import com.scythe.instrumenter.instrumentation.objectrepresentation.AllocationSite;
+import com.scythe.instrumenter.instrumentation.visitors.ArrayClassVisitor;
+import com.scythe.instrumenter.instrumentation.visitors.StaticClassVisitor;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+/**
+ * Counts the allocations made by each NEW, NEWARRAY, ANEWARRAY and MULTIANEWARRAY instruction in
+ * the class's hit counters, along with the number of elements of each array allocated. Counts
+ * are exact even when sampling, as sampled counts could not be told apart from element totals.
+ */
+public class ArrayAllocationVisitor extends MethodVisitor {
+
+  private static final String[] ARRAY_TYPES = {null, null, null, null, "[Z", "[C", "[F", "[D",
+      "[B", "[S", "[I", "[J"};
+
+  private ArrayClassVisitor parent;
+  private String className;
+  private String methodName;
+  private int lineNumber = 0;
+
+  public ArrayAllocationVisitor(ArrayClassVisitor parent, MethodVisitor mv, String className,
+      String methodName) {
+    super(Opcodes.ASM5, mv);
+    this.parent = parent;
+    this.className = className;
+    this.methodName = methodName;
+  }
+
+  @Override
+  public void visitLineNumber(int line, Label start) {
+    lineNumber = line;
+    super.visitLineNumber(line, start);
+  }
+
+  @Override
+  public void visitTypeInsn(int opcode, String type) {
+    if (opcode == Opcodes.NEW) {
+      countAllocation(newSite(type, false));
+    } else if (opcode == Opcodes.ANEWARRAY) {
+      String desc = type.startsWith("[") ? "[" + type : "[L" + type + ";";
+      countArray(newSite(desc, true));
+    }
+    super.visitTypeInsn(opcode, type);
+  }
+
+  @Override
+  public void visitIntInsn(int opcode, int operand) {
+    if (opcode == Opcodes.NEWARRAY) {
+      countArray(newSite(ARRAY_TYPES[operand], true));
+    }
+    super.visitIntInsn(opcode, operand);
+  }
+
+  @Override
+  public void visitMultiANewArrayInsn(String desc, int dims) {
+    AllocationSite site = newSite(desc, true);
+    super.visitMultiANewArrayInsn(desc, dims);
+    if (site.getElementCounterId() >= 0) {
+      // the arrays allocated at each level are only known once they exist, so count them after
+      mv.visitInsn(Opcodes.DUP);
+      mv.visitLdcInsn(dims);
+      mv.visitMethodInsn(Opcodes.INVOKESTATIC, StaticClassVisitor.ANALYZER_CLASS,
+          "arrayElements", "(Ljava/lang/Object;I)I", false);
+      parent.addToCounter(mv, site.getElementCounterId());
+    }
+    countAllocation(site);
+  }
+
+  private AllocationSite newSite(String type, boolean array) {
+    int counterId = parent.newCounterId();
+    int elementCounterId = array && parent.countsElements() ? parent.newCounterId() : -1;
+    AllocationSite site = new AllocationSite(className, methodName, lineNumber, type, counterId,
+        elementCounterId);
+    parent.addAllocationSite(site);
+    return site;
+  }
+
+  private void countAllocation(AllocationSite site) {
+    mv.visitInsn(Opcodes.ICONST_1);
+    parent.addToCounter(mv, site.getCounterId());
+  }
+
+  /**
+   * Counts an array allocation whose length is on top of the stack.
+   */
+  private void countArray(AllocationSite site) {
+    if (site.getElementCounterId() >= 0) {
+      mv.visitInsn(Opcodes.DUP);
+      parent.addToCounter(mv, site.getElementCounterId());
+    }
+    countAllocation(site);
+  }
+}
@@ -152,7 +152,11 @@ public class ArrayBranchVisitor extends MethodVisitor {
 
   @Override
   public void visitJumpInsn(int opcode, Label label) {
-    // TODO Auto-generated method stub
+    if (parent.isEmittingProbe()) {
+      // a sampled line probe passing through on its way down the chain
+      super.visitJumpInsn(opcode, label);
+      return;
+    }
 
     boolean singleStackElement = false;
 
@@ -296,13 +300,7 @@ public class ArrayBranchVisitor extends MethodVisitor {
     //visitInsn(Opcodes.DUP2);
     //visitInsn(Opcodes.FALOAD);
     bdc.calculateBranchDistance(this);
-    visitFieldInsn(Opcodes.GETSTATIC, className, ArrayClassVisitor
-            .DISTANCE_VARIABLE_NAME,
-        ArrayClassVisitor.DISTANCE_VARIABLE_DESC);
-    visitInsn(Opcodes.SWAP);
-    visitLdcInsn(counter);
-    visitInsn(Opcodes.SWAP);
-    visitInsn(Opcodes.FASTORE);
+    parent.storeDistance(mv, counter);
   }
 
   public void visitBranch(int opcode, Label label, BranchHit trueBranch,
@@ -323,15 +321,7 @@ public class ArrayBranchVisitor extends MethodVisitor {
     mv.visitJumpInsn(opcode, l);
 
 
-    visitFieldInsn(Opcodes.GETSTATIC, className, ArrayClassVisitor.COUNTER_VARIABLE_NAME,
-        ArrayClassVisitor.COUNTER_VARIABLE_DESC);
-    visitLdcInsn(trueBranch.getCounterId());
-
-    visitInsn(Opcodes.DUP2);
-    visitInsn(Opcodes.IALOAD);
-    visitInsn(Opcodes.ICONST_1);
-    visitInsn(Opcodes.IADD);
-    visitInsn(Opcodes.IASTORE);
+    parent.incrementCounter(mv, trueBranch.getCounterId());
 
     // x x
 
@@ -363,14 +353,7 @@ public class ArrayBranchVisitor extends MethodVisitor {
 
     mv.visitJumpInsn(Opcodes.GOTO, l2);
     visitLabel(l);
-    visitFieldInsn(Opcodes.GETSTATIC, className, ArrayClassVisitor.COUNTER_VARIABLE_NAME,
-        ArrayClassVisitor.COUNTER_VARIABLE_DESC);
-    visitLdcInsn(falseBranch.getCounterId());
-    visitInsn(Opcodes.DUP2);
-    visitInsn(Opcodes.IALOAD);
-    visitInsn(Opcodes.ICONST_1);
-    visitInsn(Opcodes.IADD);
-    visitInsn(Opcodes.IASTORE);
+    parent.incrementCounter(mv, falseBranch.getCounterId());
 
 
 
@@ -0,0 +1,414 @@
+package com.scythe.instrumenter.instrumentation.modifiers;
+
+import com.scythe.instrumenter.InstrumentationProperties;
+import com.scythe.instrumenter.analysis.FlowGraph;
+import com.scythe.instrumenter.instrumentation.objectrepresentation.Branch;
+import com.scythe.instrumenter.instrumentation.objectrepresentation.BranchHit;
+import com.scythe.instrumenter.instrumentation.objectrepresentation.Line;
+import com.scythe.instrumenter.instrumentation.objectrepresentation.LineHit;
+import com.scythe.instrumenter.instrumentation.visitors.ArrayClassVisitor;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.InsnList;
+import org.objectweb.asm.tree.JumpInsnNode;
+import org.objectweb.asm.tree.LabelNode;
+import org.objectweb.asm.tree.LineNumberNode;
+import org.objectweb.asm.tree.LookupSwitchInsnNode;
+import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.tree.TableSwitchInsnNode;
+
+/**
+ * Buffers a method and probes only the control flow edges that are not on a maximum spanning tree
+ * of its control flow graph (Knuth / Ball-Larus placement). Edges inside loops are weighted so they
+ * end up on the tree, which keeps probes out of hot loops. Line and branch counts are rebuilt from
+ * the probed edges by {@link FlowGraph} when hit counters are collected.
+ *
+ * Branch distances are not recorded. Methods with exception handlers or subroutines fall back to
+ * the line and branch visitors.
+ */
+public class ArrayEdgeVisitor extends MethodNode {
+
+  private static final int EDGE_NEXT = 0;
+  private static final int EDGE_JUMP = 1;
+  private static final int EDGE_EXIT = 2;
+
+  private ArrayClassVisitor parent;
+  private MethodVisitor next;
+  private String className;
+  private int entryCounter;
+
+  /**
+   * @param entryCounter counter of the method entry branch, or -1 if branches are not instrumented
+   */
+  public ArrayEdgeVisitor(ArrayClassVisitor parent, MethodVisitor mv, String className, int access,
+      String name, String desc, String signature, String[] exceptions, int entryCounter) {
+    super(Opcodes.ASM5, access, name, desc, signature, exceptions);
+    this.parent = parent;
+    this.next = mv;
+    this.className = className;
+    this.entryCounter = entryCounter;
+  }
+
+  @Override
+  public void visitEnd() {
+    if (canPlaceOnEdges()) {
+      placeProbes();
+      accept(next);
+      return;
+    }
+    MethodVisitor instrumenter = next;
+    if (InstrumentationProperties.INSTRUMENT_BRANCHES) {
+      instrumenter = new ArrayBranchVisitor(parent, instrumenter, className, name, desc, access);
+    }
+    if (InstrumentationProperties.INSTRUMENT_LINES) {
+      instrumenter = new ArrayLineVisitor(parent, instrumenter, className, name);
+    }
+    if (entryCounter >= 0) {
+      // the method is replayed from its parameters and annotations, so the entry probe waits for
+      // the code to begin
+      instrumenter = new MethodVisitor(Opcodes.ASM5, instrumenter) {
+        @Override
+        public void visitCode() {
+          super.visitCode();
+          parent.incrementCounter(next, entryCounter);
+        }
+      };
+    }
+    accept(instrumenter);
+  }
+
+  private boolean canPlaceOnEdges() {
+    if (instructions.size() == 0 || !tryCatchBlocks.isEmpty()) {
+      return false;
+    }
+    for (AbstractInsnNode insn : instructions.toArray()) {
+      if (insn.getOpcode() == Opcodes.JSR || insn.getOpcode() == Opcodes.RET) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private void placeProbes() {
+    AbstractInsnNode[] insns = instructions.toArray();
+
+    Set<LabelNode> targets = new HashSet<LabelNode>();
+    for (AbstractInsnNode insn : insns) {
+      targets.addAll(jumpTargets(insn));
+    }
+
+    // split the method into basic blocks. Each block starts at the node in blockStarts and ends
+    // with the real instruction in blockEnds (-1 if it has none)
+    int[] blockOf = new int[insns.length];
+    List<Integer> blockStarts = new ArrayList<Integer>();
+    List<Integer> blockEnds = new ArrayList<Integer>();
+    boolean startBlock = true;
+    boolean hasContent = false;
+    for (int i = 0; i < insns.length; i++) {
+      AbstractInsnNode insn = insns[i];
+      if (startBlock || (hasContent && targets.contains(insn))) {
+        blockStarts.add(i);
+        blockEnds.add(-1);
+        startBlock = false;
+        hasContent = false;
+      }
+      int block = blockStarts.size() - 1;
+      blockOf[i] = block;
+      if (insn.getOpcode() >= 0) {
+        blockEnds.set(block, i);
+        startBlock = endsBlock(insn);
+      }
+      hasContent |= insn.getOpcode() >= 0 || insn instanceof LineNumberNode;
+    }
+    int blocks = blockStarts.size();
+    int exit = blocks;
+
+    // edge 0 runs from the exit back to the entry, so every invocation is a unit of flow
+    List<int[]> edges = new ArrayList<int[]>();
+    edges.add(new int[]{exit, 0, EDGE_EXIT, -1});
+    int[] nextEdge = new int[insns.length];
+    int[] jumpEdge = new int[insns.length];
+    Arrays.fill(nextEdge, -1);
+    Arrays.fill(jumpEdge, -1);
+    for (int b = 0; b < blocks; b++) {
+      int last = blockEnds.get(b);
+      AbstractInsnNode insn = last < 0 ? null : insns[last];
+      int opcode = insn == null ? -1 : insn.getOpcode();
+      if (insn instanceof JumpInsnNode) {
+        if (opcode != Opcodes.GOTO && b + 1 < blocks) {
+          nextEdge[last] = edges.size();
+          edges.add(new int[]{b, b + 1, EDGE_NEXT, last});
+        }
+        jumpEdge[last] = edges.size();
+        edges.add(new int[]{b, blockOf[instructions.indexOf(((JumpInsnNode) insn).label)],
+            EDGE_JUMP, last});
+      } else if (insn instanceof TableSwitchInsnNode || insn instanceof LookupSwitchInsnNode) {
+        Set<Integer> switchBlocks = new HashSet<Integer>();
+        for (LabelNode target : jumpTargets(insn)) {
+          int t = blockOf[instructions.indexOf(target)];
+          if (switchBlocks.add(t)) {
+            edges.add(new int[]{b, t, EDGE_JUMP, last});
+          }
+        }
+      } else if ((opcode >= Opcodes.IRETURN && opcode <= Opcodes.RETURN)
+          || opcode == Opcodes.ATHROW) {
+        edges.add(new int[]{b, exit, EDGE_EXIT, last});
+      } else if (b + 1 < blocks) {
+        edges.add(new int[]{b, b + 1, EDGE_NEXT, last});
+      }
+    }
+
+    List<Integer> blockCounters = new ArrayList<Integer>();
+    List<Integer> counterBlocks = new ArrayList<Integer>();
+    List<Integer> edgeCounters = new ArrayList<Integer>();
+    List<Integer> counterEdges = new ArrayList<Integer>();
+    if (entryCounter >= 0) {
+      edgeCounters.add(entryCounter);
+      counterEdges.add(0);
+    }
+    addGoals(insns, blockOf, nextEdge, jumpEdge, blockCounters, counterBlocks, edgeCounters,
+        counterEdges);
+
+    boolean[] onTree = spanningTree(edges, blocks + 1, loopDepths(edges, blocks));
+
+    int[] from = new int[edges.size()];
+    int[] to = new int[edges.size()];
+    int[] probes = new int[edges.size()];
+    for (int e = 0; e < edges.size(); e++) {
+      int[] edge = edges.get(e);
+      from[e] = edge[0];
+      to[e] = edge[1];
+      probes[e] = -1;
+      if (!onTree[e]) {
+        probes[e] = parent.newCounterId();
+        insertProbe(insns, blockStarts, edge, probes[e]);
+      }
+    }
+
+    parent.addFlowGraph(new FlowGraph(blocks + 1, from, to, probes, toArray(blockCounters),
+        toArray(counterBlocks), toArray(edgeCounters), toArray(counterEdges)));
+  }
+
+  /**
+   * Creates the line and branch goals in the same order as {@link ArrayLineVisitor} and
+   * {@link ArrayBranchVisitor}, so goal ids do not depend on where probes are placed.
+   */
+  private void addGoals(AbstractInsnNode[] insns, int[] blockOf, int[] nextEdge, int[] jumpEdge,
+      List<Integer> blockCounters, List<Integer> counterBlocks, List<Integer> edgeCounters,
+      List<Integer> counterEdges) {
+    int currentLine = 0;
+    for (int i = 0; i < insns.length; i++) {
+      AbstractInsnNode insn = insns[i];
+      int opcode = insn.getOpcode();
+      if (insn instanceof LineNumberNode) {
+        currentLine = ((LineNumberNode) insn).line;
+        if (InstrumentationProperties.INSTRUMENT_LINES) {
+          int counterId = parent.addLineHit(new LineHit(new Line(className, name, currentLine),
+              parent.newCounterId()));
+          blockCounters.add(counterId);
+          counterBlocks.add(blockOf[i]);
+        }
+      } else if (!InstrumentationProperties.INSTRUMENT_BRANCHES) {
+        continue;
+      } else if (opcode == Opcodes.LCMP || (opcode >= Opcodes.FCMPL && opcode <= Opcodes.DCMPG)) {
+        // comparisons only record distances, so their goals are never hit
+        parent.addBranchHit(newBranch(currentLine));
+        parent.addBranchHit(newBranch(currentLine));
+      } else if (opcode >= Opcodes.IFEQ && opcode <= Opcodes.IF_ICMPLE) {
+        BranchHit trueBranch = newBranch(currentLine);
+        BranchHit falseBranch = newBranch(currentLine);
+        parent.addBranchHit(trueBranch);
+        parent.addBranchHit(falseBranch);
+        if (nextEdge[i] >= 0) {
+          edgeCounters.add(trueBranch.getCounterId());
+          counterEdges.add(nextEdge[i]);
+        }
+        edgeCounters.add(falseBranch.getCounterId());
+        counterEdges.add(jumpEdge[i]);
+      }
+    }
+  }
+
+  private BranchHit newBranch(int line) {
+    return new BranchHit(new Branch(className, name, line), parent.newCounterId(),
+        parent.newDistanceId());
+  }
+
+  /**
+   * Approximates how deeply nested in loops each block is, treating every jump back to an earlier
+   * block as closing a loop over the blocks in between.
+   */
+  private int[] loopDepths(List<int[]> edges, int blocks) {
+    int[] depth = new int[blocks + 1];
+    for (int[] edge : edges) {
+      if (edge[2] == EDGE_EXIT || edge[1] > edge[0]) {
+        continue;
+      }
+      for (int b = edge[1]; b <= edge[0]; b++) {
+        depth[b]++;
+      }
+    }
+    return depth;
+  }
+
+  private boolean[] spanningTree(final List<int[]> edges, int nodes, final int[] depth) {
+    int[] components = new int[nodes];
+    for (int i = 0; i < nodes; i++) {
+      components[i] = i;
+    }
+    boolean[] onTree = new boolean[edges.size()];
+    // the virtual exit edge is never probed
+    onTree[0] = true;
+    union(components, edges.get(0)[0], edges.get(0)[1]);
+
+    Integer[] order = new Integer[edges.size() - 1];
+    for (int e = 1; e < edges.size(); e++) {
+      order[e - 1] = e;
+    }
+    Arrays.sort(order, new Comparator<Integer>() {
+      @Override
+      public int compare(Integer a, Integer b) {
+        return Integer.compare(weight(edges.get(b), depth), weight(edges.get(a), depth));
+      }
+    });
+    for (int e : order) {
+      onTree[e] = union(components, edges.get(e)[0], edges.get(e)[1]);
+    }
+    return onTree;
+  }
+
+  private static int weight(int[] edge, int[] depth) {
+    return Math.min(depth[edge[0]], depth[edge[1]]);
+  }
+
+  private static boolean union(int[] components, int a, int b) {
+    int rootA = find(components, a);
+    int rootB = find(components, b);
+    if (rootA == rootB) {
+      return false;
+    }
+    components[rootA] = rootB;
+    return true;
+  }
+
+  private static int find(int[] components, int node) {
+    while (components[node] != node) {
+      components[node] = components[components[node]];
+      node = components[node];
+    }
+    return node;
+  }
+
+  private void insertProbe(AbstractInsnNode[] insns, List<Integer> blockStarts, int[] edge,
+      int counterId) {
+    InsnList probe = probe(counterId);
+    AbstractInsnNode insn = edge[3] < 0 ? null : insns[edge[3]];
+    if (edge[2] == EDGE_NEXT) {
+      // falling into the next block, which may also be reached by jumps to its start
+      instructions.insertBefore(insns[blockStarts.get(edge[1])], probe);
+    } else if (edge[2] == EDGE_EXIT || insn.getOpcode() == Opcodes.GOTO) {
+      instructions.insertBefore(insn, probe);
+    } else {
+      // a conditional or switch jump is redirected through a probe at the end of the method
+      LabelNode target = retarget(insn, blockStarts.get(edge[1]), insns);
+      instructions.add(probe);
+      instructions.add(new JumpInsnNode(Opcodes.GOTO, target));
+    }
+  }
+
+  /**
+   * Points every target of a jump or switch that lies in the block starting at blockStart to a new
+   * label, added to the end of the method.
+   *
+   * @return the original target
+   */
+  private LabelNode retarget(AbstractInsnNode insn, int blockStart, AbstractInsnNode[] insns) {
+    LabelNode trampoline = new LabelNode();
+    LabelNode original = null;
+    if (insn instanceof JumpInsnNode) {
+      original = ((JumpInsnNode) insn).label;
+      ((JumpInsnNode) insn).label = trampoline;
+    } else {
+      List<LabelNode> labels;
+      LabelNode dflt;
+      if (insn instanceof TableSwitchInsnNode) {
+        labels = ((TableSwitchInsnNode) insn).labels;
+        dflt = ((TableSwitchInsnNode) insn).dflt;
+      } else {
+        labels = ((LookupSwitchInsnNode) insn).labels;
+        dflt = ((LookupSwitchInsnNode) insn).dflt;
+      }
+      if (inBlock(dflt, blockStart, insns)) {
+        original = dflt;
+        if (insn instanceof TableSwitchInsnNode) {
+          ((TableSwitchInsnNode) insn).dflt = trampoline;
+        } else {
+          ((LookupSwitchInsnNode) insn).dflt = trampoline;
+        }
+      }
+      for (int i = 0; i < labels.size(); i++) {
+        if (inBlock(labels.get(i), blockStart, insns)) {
+          original = labels.get(i);
+          labels.set(i, trampoline);
+        }
+      }
+    }
+    instructions.add(trampoline);
+    return original;
+  }
+
+  private static boolean inBlock(LabelNode label, int blockStart, AbstractInsnNode[] insns) {
+    // labels between the start of a block and its first real instruction all enter the block
+    for (int i = blockStart; i < insns.length; i++) {
+      if (insns[i] == label) {
+        return true;
+      }
+      if (insns[i].getOpcode() >= 0 || insns[i] instanceof LineNumberNode) {
+        return false;
+      }
+    }
+    return false;
+  }
+
+  private InsnList probe(int counterId) {
+    MethodNode probe = new MethodNode();
+    parent.incrementCounter(probe, counterId);
+    return probe.instructions;
+  }
+
+  private static List<LabelNode> jumpTargets(AbstractInsnNode insn) {
+    List<LabelNode> targets = new ArrayList<LabelNode>();
+    if (insn instanceof JumpInsnNode) {
+      targets.add(((JumpInsnNode) insn).label);
+    } else if (insn instanceof TableSwitchInsnNode) {
+      targets.add(((TableSwitchInsnNode) insn).dflt);
+      targets.addAll(((TableSwitchInsnNode) insn).labels);
+    } else if (insn instanceof LookupSwitchInsnNode) {
+      targets.add(((LookupSwitchInsnNode) insn).dflt);
+      targets.addAll(((LookupSwitchInsnNode) insn).labels);
+    }
+    return targets;
+  }
+
+  private static boolean endsBlock(AbstractInsnNode insn) {
+    int opcode = insn.getOpcode();
+    return insn instanceof JumpInsnNode || insn instanceof TableSwitchInsnNode
+        || insn instanceof LookupSwitchInsnNode
+        || (opcode >= Opcodes.IRETURN && opcode <= Opcodes.RETURN) || opcode == Opcodes.ATHROW;
+  }
+
+  private static int[] toArray(List<Integer> list) {
+    int[] array = new int[list.size()];
+    for (int i = 0; i < array.length; i++) {
+      array[i] = list.get(i);
+    }
+    return array;
+  }
+}
@@ -24,14 +24,7 @@ public class ArrayLineVisitor extends MethodVisitor {
     int counterId = parent.newCounterId();
 
     counterId = parent.addLineHit(new LineHit(new Line(className, methodName, lineNumber), counterId));
-    visitFieldInsn(Opcodes.GETSTATIC, className, ArrayClassVisitor.COUNTER_VARIABLE_NAME,
-        ArrayClassVisitor.COUNTER_VARIABLE_DESC);
-    visitLdcInsn(counterId);
-    visitInsn(Opcodes.DUP2);
-    visitInsn(Opcodes.IALOAD);
-    visitLdcInsn(1);
-    visitInsn(Opcodes.IADD);
-    visitInsn(Opcodes.IASTORE);
+    parent.incrementCounter(mv, counterId);
     mv.visitLineNumber(lineNumber, label);
   }
 }
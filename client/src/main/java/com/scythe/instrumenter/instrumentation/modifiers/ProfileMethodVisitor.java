@@ -0,0 +1,79 @@
+package com.scythe.instrumenter.instrumentation.modifiers;
+
+import com.scythe.instrumenter.analysis.Profiler;
+import com.scythe.instrumenter.instrumentation.visitors.ProfileClassVisitor;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.commons.AdviceAdapter;
+
+/**
+ * Times a method with {@link Profiler}. Normal exits are timed before each return, and
+ * exceptional exits by a catch-all handler around the whole body that rethrows. Constructors are
+ * timed from the end of their super or this call, as nothing may run before it.
+ */
+public class ProfileMethodVisitor extends AdviceAdapter {
+
+  public static final String PROFILER_CLASS = Type.getInternalName(Profiler.class);
+  public static final String PROFILER_DESC = Type.getDescriptor(Profiler.class);
+
+  private String className;
+  private int offset;
+  private int profilerLocal;
+  private int frameLocal;
+  private Label start;
+
+  /**
+   * @param offset index of the first profile counter of the method
+   */
+  public ProfileMethodVisitor(MethodVisitor mv, String className, int access, String name,
+      String desc, int offset) {
+    super(Opcodes.ASM5, mv, access, name, desc);
+    this.className = className;
+    this.offset = offset;
+  }
+
+  @Override
+  protected void onMethodEnter() {
+    profilerLocal = newLocal(Type.getType(Profiler.class));
+    frameLocal = newLocal(Type.INT_TYPE);
+    visitMethodInsn(Opcodes.INVOKESTATIC, PROFILER_CLASS, "current", "()" + PROFILER_DESC, false);
+    visitInsn(Opcodes.DUP);
+    storeLocal(profilerLocal);
+    visitMethodInsn(Opcodes.INVOKEVIRTUAL, PROFILER_CLASS, "enter", "()I", false);
+    storeLocal(frameLocal);
+    start = new Label();
+    visitLabel(start);
+  }
+
+  @Override
+  protected void onMethodExit(int opcode) {
+    // thrown exceptions are timed by the handler added in visitMaxs
+    if (opcode != Opcodes.ATHROW) {
+      exit();
+    }
+  }
+
+  @Override
+  public void visitMaxs(int maxStack, int maxLocals) {
+    if (start != null) {
+      Label end = new Label();
+      visitLabel(end);
+      // added last so that the method's own handlers take precedence
+      visitTryCatchBlock(start, end, end, null);
+      exit();
+      visitInsn(Opcodes.ATHROW);
+    }
+    super.visitMaxs(maxStack, maxLocals);
+  }
+
+  private void exit() {
+    loadLocal(profilerLocal);
+    visitFieldInsn(Opcodes.GETSTATIC, className, ProfileClassVisitor.PROFILE_VARIABLE_NAME,
+        ProfileClassVisitor.PROFILE_VARIABLE_DESC);
+    visitLdcInsn(offset);
+    loadLocal(frameLocal);
+    visitMethodInsn(Opcodes.INVOKEVIRTUAL, PROFILER_CLASS, "exit", "([JII)V", false);
+  }
+}
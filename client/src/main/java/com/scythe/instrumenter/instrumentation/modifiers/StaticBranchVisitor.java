@@ -139,12 +139,14 @@ public class StaticBranchVisitor extends MethodVisitor {
         Label l = new Label();
         Label l2 = new Label();
         mv.visitJumpInsn(opcode, l);
+        mv.visitInsn(Opcodes.ICONST_0);
         visitLdcInsn(classId);
         visitLdcInsn(branchId);
         visitMethodInsn(Opcodes.INVOKESTATIC, StaticClassVisitor.ANALYZER_CLASS, "branchExecuted",
             Type.getMethodDescriptor(BRANCH_METHOD), false);
         mv.visitJumpInsn(Opcodes.GOTO, l2);
         visitLabel(l);
+        mv.visitInsn(Opcodes.ICONST_1);
         visitLdcInsn(classId);
         visitLdcInsn(branchId);
         visitMethodInsn(Opcodes.INVOKESTATIC, StaticClassVisitor.ANALYZER_CLASS, "branchExecuted",
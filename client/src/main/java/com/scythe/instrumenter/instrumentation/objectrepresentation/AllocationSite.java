@@ -0,0 +1,88 @@
+package com.scythe.instrumenter.instrumentation.objectrepresentation;
+
+/**
+ * An instruction allocating an object or array, with the number of allocations it made and, for
+ * arrays, the total number of elements allocated.
+ */
+public class AllocationSite {
+  private String className;
+  private String methodName;
+  private int lineNumber;
+  // internal name of the class allocated, or descriptor of the array
+  private String type;
+  private int counterId;
+  // counter holding the number of array elements, or -1 for objects
+  private int elementCounterId;
+  private long allocations;
+  private long elements;
+
+  public AllocationSite(String className, String methodName, int lineNumber, String type,
+      int counterId, int elementCounterId) {
+    this.className = className;
+    this.methodName = methodName;
+    this.lineNumber = lineNumber;
+    this.type = type;
+    this.counterId = counterId;
+    this.elementCounterId = elementCounterId;
+  }
+
+  public String getClassName() {
+    return className;
+  }
+
+  public String getMethodName() {
+    return methodName;
+  }
+
+  public int getLineNumber() {
+    return lineNumber;
+  }
+
+  public String getType() {
+    return type;
+  }
+
+  public int getCounterId() {
+    return counterId;
+  }
+
+  public int getElementCounterId() {
+    return elementCounterId;
+  }
+
+  public boolean isArray() {
+    return type.startsWith("[");
+  }
+
+  /**
+   * @return false if only the number of allocations is counted, as for objects or when using
+   *     boolean probes
+   */
+  public boolean countsElements() {
+    return elementCounterId >= 0;
+  }
+
+  public long getAllocations() {
+    return allocations;
+  }
+
+  public long getElements() {
+    return elements;
+  }
+
+  public void hit(long allocations, long elements) {
+    this.allocations = allocations;
+    this.elements = elements;
+  }
+
+  public void reset() {
+    allocations = 0;
+    elements = 0;
+  }
+
+  @Override
+  public String toString() {
+    return className + "." + methodName + ":" + lineNumber + " " + type + " allocations="
+        + allocations + (countsElements() ? " elements=" + elements : "");
+  }
+}
@@ -66,8 +66,7 @@ public class Branch extends CoverableGoal {
     Branch clone = new Branch(className, methodName, lineNumber);
     clone.setGoalId(goalId);
     clone.hits = hits;
-    clone.coveredBy = new ArrayList<TestCaseWrapper>(coveredBy);
-    clone.coveredBy.addAll(super.getCoveringTests());
+    clone.coveredBy = getCoveringTests();
     return clone;
   }
 
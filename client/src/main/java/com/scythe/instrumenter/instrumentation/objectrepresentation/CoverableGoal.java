@@ -1,6 +1,7 @@
 package com.scythe.instrumenter.instrumentation.objectrepresentation;
 
 import com.scythe.instrumenter.InstrumentationProperties;
+import com.scythe.instrumenter.analysis.CoverageMatrix;
 import com.scythe.instrumenter.testcase.TestCaseWrapper;
 import java.util.ArrayList;
 import java.util.List;
@@ -10,6 +11,7 @@ public abstract class CoverableGoal {
   protected String methodName;
   protected int lineNumber;
   protected int goalId;
+  // tests read out of the CoverageMatrix when the goal was cloned or serialised, which outlive it
   protected List<TestCaseWrapper> coveredBy = new ArrayList<TestCaseWrapper>();
 
   protected CoverableGoal(String className, String methodName, int lineNumber) {
@@ -42,8 +44,12 @@ public abstract class CoverableGoal {
     return methodName;
   }
 
+  /**
+   * Records that a test covers this goal in the {@link CoverageMatrix}, once however often it is
+   * called.
+   */
   public void addCoveringTest(TestCaseWrapper t) {
-    coveredBy.add(t);
+    CoverageMatrix.cover(t, this);
   }
 
   /**
@@ -51,11 +57,38 @@ public abstract class CoverableGoal {
    * while if it is not true then this data must be collected manually. Secondly, in subclassing this class to make {@link Branch}, there are test cases that cover both the true & false branches of a
    * branch. This information is collected separately, but still reliant on {@link InstrumentationProperties#TRACK_ACTIVE_TESTCASE}
    *
-   * @return A list of test cases that cover this goal. In the case of branches, it is a test case that covers true, false or both. For individual coverage goals then use
+   * @return A list of test cases that cover this goal, each listed once. In the case of branches, it is a test case that covers true, false or both. For individual coverage goals then use
    * {@link Branch#getTrueBranchCoveringTests()} and {@link Branch#getfalseBranchCoveringTests()}
    */
   public List<TestCaseWrapper> getCoveringTests() {
-    return coveredBy;
+    List<TestCaseWrapper> covering = CoverageMatrix.getCoveringTests(this);
+    if (coveredBy != null) {
+      for (TestCaseWrapper test : coveredBy) {
+        if (!covering.contains(test)) {
+          covering.add(test);
+        }
+      }
+    }
+    return covering;
+  }
+
+  /**
+   * Copies the tests covering this goal out of the {@link CoverageMatrix} into the goal, so they
+   * are written out with it when it is serialised.
+   */
+  public void keepCoveringTests() {
+    coveredBy = getCoveringTests();
+  }
+
+  /**
+   * Puts the tests a deserialised goal was written out with back into the {@link CoverageMatrix}.
+   */
+  public void restoreCoveringTests() {
+    if (coveredBy != null) {
+      for (TestCaseWrapper test : coveredBy) {
+        CoverageMatrix.cover(test, this);
+      }
+    }
   }
 
   public abstract void reset();
@@ -1,8 +1,5 @@
 package com.scythe.instrumenter.instrumentation.objectrepresentation;
 
-import com.scythe.instrumenter.testcase.TestCaseWrapper;
-import java.util.ArrayList;
-
 public class Line extends CoverableGoal {
   private long hits;
 
@@ -37,7 +34,7 @@ public class Line extends CoverableGoal {
     Line clone = new Line(className, methodName, lineNumber);
     clone.hits = hits;
     clone.goalId = goalId;
-    clone.coveredBy = new ArrayList<TestCaseWrapper>(coveredBy);
+    clone.coveredBy = getCoveringTests();
     return clone;
   }
 }
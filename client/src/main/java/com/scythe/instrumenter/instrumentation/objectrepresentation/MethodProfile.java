@@ -0,0 +1,85 @@
+package com.scythe.instrumenter.instrumentation.objectrepresentation;
+
+import com.scythe.instrumenter.analysis.Profiler;
+
+/**
+ * Invocation count and timings of a method instrumented with the PROFILE approach, in
+ * nanoseconds. Self time leaves out the time spent in instrumented methods it called, inclusive
+ * time does not.
+ */
+public class MethodProfile {
+  private String className;
+  private String methodName;
+  private String descriptor;
+  private long invocations;
+  private long selfTime;
+  private long maxSelfTime;
+  private long time;
+  private long maxTime;
+
+  public MethodProfile(String className, String methodName, String descriptor) {
+    this.className = className;
+    this.methodName = methodName;
+    this.descriptor = descriptor;
+  }
+
+  public String getClassName() {
+    return className;
+  }
+
+  public String getMethodName() {
+    return methodName;
+  }
+
+  public String getDescriptor() {
+    return descriptor;
+  }
+
+  public long getInvocations() {
+    return invocations;
+  }
+
+  public long getSelfTime() {
+    return selfTime;
+  }
+
+  public long getMaxSelfTime() {
+    return maxSelfTime;
+  }
+
+  public long getTime() {
+    return time;
+  }
+
+  public long getMaxTime() {
+    return maxTime;
+  }
+
+  /**
+   * Sets the profile from the counters of the method.
+   *
+   * @param counters profile counters of the class
+   * @param offset index of the first counter of the method
+   */
+  public void set(long[] counters, int offset) {
+    invocations = counters[offset + Profiler.INVOCATIONS];
+    selfTime = counters[offset + Profiler.SELF_TIME];
+    maxSelfTime = counters[offset + Profiler.MAX_SELF_TIME];
+    time = counters[offset + Profiler.TIME];
+    maxTime = counters[offset + Profiler.MAX_TIME];
+  }
+
+  public void reset() {
+    invocations = 0;
+    selfTime = 0;
+    maxSelfTime = 0;
+    time = 0;
+    maxTime = 0;
+  }
+
+  @Override
+  public String toString() {
+    return className + "." + methodName + descriptor + " invocations=" + invocations + " self="
+        + selfTime + " max self=" + maxSelfTime + " time=" + time + " max time=" + maxTime;
+  }
+}
@@ -1,34 +1,70 @@
 package com.scythe.instrumenter.instrumentation.visitors;
 
 import com.scythe.instrumenter.InstrumentationProperties;
+import com.scythe.instrumenter.InstrumentationProperties.CounterLayout;
+import com.scythe.instrumenter.InstrumentationProperties.InstrumentationApproach;
+import com.scythe.instrumenter.InstrumentationProperties.ProbePlacement;
 import com.scythe.instrumenter.analysis.ClassAnalyzer;
+import com.scythe.instrumenter.analysis.FlowGraph;
+import com.scythe.instrumenter.analysis.GlobalCounters;
+import com.scythe.instrumenter.analysis.MappedCoverage;
+import com.scythe.instrumenter.analysis.ProbeArrays;
+import com.scythe.instrumenter.analysis.Sampler;
+import com.scythe.instrumenter.analysis.StripedCounters;
+import com.scythe.instrumenter.instrumentation.modifiers.ArrayAllocationVisitor;
 import com.scythe.instrumenter.instrumentation.modifiers.ArrayBranchVisitor;
+import com.scythe.instrumenter.instrumentation.modifiers.ArrayEdgeVisitor;
 import com.scythe.instrumenter.instrumentation.modifiers.ArrayLineVisitor;
+import com.scythe.instrumenter.instrumentation.objectrepresentation.AllocationSite;
 import com.scythe.instrumenter.instrumentation.objectrepresentation.Branch;
 import com.scythe.instrumenter.instrumentation.objectrepresentation.BranchHit;
 import com.scythe.instrumenter.instrumentation.objectrepresentation.LineHit;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.concurrent.atomic.AtomicInteger;
 import org.objectweb.asm.ClassVisitor;
 import org.objectweb.asm.FieldVisitor;
 import org.objectweb.asm.Label;
 import org.objectweb.asm.MethodVisitor;
 import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.commons.LocalVariablesSorter;
 
 public class ArrayClassVisitor extends ClassVisitor {
 
   private String className;
   public static final String COUNTER_VARIABLE_NAME = "__hitCounters";
   public static final String COUNTER_VARIABLE_DESC = "[I";
+  public static final String PROBE_VARIABLE_DESC = "[Z";
+
+  public static final String STRIPED_VARIABLE_NAME = "__hitCounterStripes";
+  public static final String STRIPED_CLASS = Type.getInternalName(StripedCounters.class);
+  public static final String STRIPED_VARIABLE_DESC = Type.getDescriptor(StripedCounters.class);
+
+  public static final String MAPPED_VARIABLE_NAME = "__hitCounterBuffer";
+  public static final String MAPPED_CLASS = Type.getInternalName(MappedCoverage.class);
+  public static final String MAPPED_VARIABLE_DESC = "Ljava/nio/IntBuffer;";
+
+  public static final String GLOBAL_CLASS = Type.getInternalName(GlobalCounters.class);
+  public static final String PROBE_ARRAYS_CLASS = Type.getInternalName(ProbeArrays.class);
+  public static final String REGISTER_METHOD_DESC = "(ILjava/lang/Object;[F)V";
+  public static final String GLOBAL_COUNTER_NAME = "counters";
+  public static final String GLOBAL_DISTANCE_NAME = "distances";
+  public static final String BASE_VARIABLE_NAME = "__counterBase";
+  public static final String DISTANCE_BASE_VARIABLE_NAME = "__distanceBase";
+
+  public static final String SAMPLER_CLASS = Type.getInternalName(Sampler.class);
 
   public static final String DISTANCE_VARIABLE_NAME = "__distanceCounters";
   public static final String DISTANCE_VARIABLE_DESC = "[F";
 
-  public static final String CHANGED_VARIABLE_NAME = "__changed";
-  public static final String CHANGED_VARIABLE_DESC = "Z";
+  public static final String CHANGED_VARIABLE_NAME = "changed";
+  public static final String CHANGED_VARIABLE_DESC = "[Z";
   public static final String COUNTER_METHOD_NAME = "__getHitCounters";
   public static final String COUNTER_METHOD_DESC = "()[I";
+  public static final String PROBE_METHOD_DESC = "()[Z";
 
   public static final String DISTANCE_METHOD_NAME = "__getDistanceCounters";
   public static final String DISTANCE_METHOD_DESC = "()[F";
@@ -39,15 +75,50 @@ public class ArrayClassVisitor extends ClassVisitor {
   public static final String INIT_METHOD_DESC = "()V";
   public static final String CHANGED_METHOD_NAME = "classChanged";
   public static final String CHANGED_METHOD_DESC = "(Ljava/lang/String;)V";
+  public static final String CHANGED_ID_METHOD_DESC = "(I)V";
+  public static final String INITIALISED_METHOD_NAME = "classInitialised";
   private AtomicInteger counter = new AtomicInteger(0);
   private AtomicInteger distanceCounter = new AtomicInteger(0);
   private List<BranchHit> branchHitCounterIds = new ArrayList<BranchHit>();
   private List<LineHit> lineHitCounterIds = new ArrayList<LineHit>();
+  private List<AllocationSite> allocationSites = new ArrayList<AllocationSite>();
   // isInterface represents whether or not the class we are visiting is an interface
   private boolean isInterface;
   private boolean isEnum;
   private boolean shouldInstrument;
   private int classId;
+  // covered-once probes only ever store true, so they cannot lose updates and need no stripes
+  private boolean booleanProbes =
+      InstrumentationProperties.INSTRUMENTATION_APPROACH == InstrumentationApproach.BOOLEAN;
+  private boolean striped = !booleanProbes
+      && InstrumentationProperties.COUNTER_LAYOUT == CounterLayout.STRIPED;
+  private boolean mapped = !booleanProbes
+      && InstrumentationProperties.COUNTER_LAYOUT == CounterLayout.MAPPED;
+  // counters live in GlobalCounters, so the class has no arrays to create and is always collected
+  private boolean global = !booleanProbes
+      && InstrumentationProperties.COUNTER_LAYOUT == CounterLayout.GLOBAL;
+  // local variable holding this thread's counter stripe in the method currently being visited
+  private int counterLocal = -1;
+  // probes only count their hits in one in sample_rate method invocations and loop iterations,
+  // after the first hit
+  private boolean sampled = InstrumentationProperties.INSTRUMENTATION_APPROACH
+      == InstrumentationApproach.ARRAY && InstrumentationProperties.SAMPLE_RATE > 1 && !striped
+      && !mapped;
+  // local variable holding whether probes count their hits, in the method currently being visited
+  private int sampleLocal = -1;
+  private boolean emittingProbe = false;
+  // counters are created once in <clinit> and held in static final fields, which the JIT folds
+  // into constants once the class is initialised, taking the null check on method entry with it
+  private boolean initInClinit = InstrumentationProperties.INIT_COUNTERS_IN_CLINIT && !global;
+  private boolean changedFlag = InstrumentationProperties.USE_CHANGED_FLAG && !initInClinit
+      && !global;
+  private boolean hasClinit = false;
+  // edge counts are rebuilt into line and branch counts, which needs real counts. Readers of
+  // mapped counters only see the raw counts, so those keep a counter per goal
+  private boolean edgeProbes = !booleanProbes && !mapped && !sampled
+      && InstrumentationProperties.PROBE_PLACEMENT == ProbePlacement.SPANNING_TREE;
+  private List<FlowGraph> flowGraphs = new ArrayList<FlowGraph>();
+  private boolean visitedEnd = false;
 
   public int newCounterId() {
     return counter.getAndIncrement();
@@ -61,6 +132,21 @@ public class ArrayClassVisitor extends ClassVisitor {
     branchHitCounterIds.add(branch);
   }
 
+  public void addAllocationSite(AllocationSite site) {
+    allocationSites.add(site);
+  }
+
+  /**
+   * @return false for boolean probes, which cannot hold element totals
+   */
+  public boolean countsElements() {
+    return !booleanProbes;
+  }
+
+  public void addFlowGraph(FlowGraph graph) {
+    flowGraphs.add(graph);
+  }
+
   public int addLineHit(LineHit line) {
     for (LineHit lh : lineHitCounterIds) {
       if (lh.getLine().getLineNumber() == line.getLine().getLineNumber()) {
@@ -91,24 +177,29 @@ public class ArrayClassVisitor extends ClassVisitor {
 
     shouldInstrument = !(isInterface || isEnum || isSynthetic);
 
-    if (shouldInstrument) {
+    if (shouldInstrument && !global) {
+      int fieldAccess = Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC;
+      if (initInClinit) {
+        fieldAccess |= Opcodes.ACC_FINAL;
+      }
       // add hit counter array
-      FieldVisitor fv = cv.visitField(Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC, COUNTER_VARIABLE_NAME,
-          COUNTER_VARIABLE_DESC, null, null);
+      FieldVisitor fv = cv.visitField(fieldAccess, counterFieldName(), counterFieldDesc(), null,
+          null);
       fv.visitEnd();
 
 
-      FieldVisitor fvd = cv.visitField(Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC, DISTANCE_VARIABLE_NAME,
+      FieldVisitor fvd = cv.visitField(fieldAccess, DISTANCE_VARIABLE_NAME,
           DISTANCE_VARIABLE_DESC, null, null);
       fv.visitEnd();
+    }
+
+    if (shouldInstrument) {
 
       this.classId = ClassAnalyzer.registerClass(this.className);
 
-      // add changed boolean
-      if (InstrumentationProperties.USE_CHANGED_FLAG) {
-        FieldVisitor changed = cv.visitField(Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC, CHANGED_VARIABLE_NAME,
-            CHANGED_VARIABLE_DESC, null, null);
-        changed.visitEnd();
+      // the changed flag of the class lives in ProbeArrays, so resets can clear it directly
+      if (changedFlag) {
+        ProbeArrays.reserve(classId);
       }
 //    } else {
 //      ClassAnalyzer.out.println("\r " + this.className + " is an interface or enum!");
@@ -119,68 +210,458 @@ public class ArrayClassVisitor extends ClassVisitor {
   public MethodVisitor visitMethod(int access, String name, String desc, String signature, String[] exceptions) {
     MethodVisitor mv = super.visitMethod(access, name, desc, signature, exceptions);
     if (shouldInstrument && (access & Opcodes.ACC_ABSTRACT) == 0 && (access & Opcodes.ACC_SYNTHETIC) == 0) {
-      if (InstrumentationProperties.USE_CHANGED_FLAG) {
-        // add call to ClassAnalyzer.changed
-        mv.visitFieldInsn(Opcodes.GETSTATIC, className, CHANGED_VARIABLE_NAME, CHANGED_VARIABLE_DESC);
+      if (initInClinit) {
+        if (name.equals("<clinit>")) {
+          hasClinit = true;
+          addClinitInit(mv);
+        }
+      } else if (changedFlag) {
+        // add call to ClassAnalyzer.changed, which sets the flag
+        mv.visitFieldInsn(Opcodes.GETSTATIC, PROBE_ARRAYS_CLASS, CHANGED_VARIABLE_NAME, CHANGED_VARIABLE_DESC);
+        mv.visitLdcInsn(classId);
+        mv.visitInsn(Opcodes.BALOAD);
         Label l = new Label();
-        mv.visitJumpInsn(Opcodes.IFGT, l);
-        mv.visitLdcInsn(className);
+        mv.visitJumpInsn(Opcodes.IFNE, l);
+        mv.visitLdcInsn(classId);
         mv.visitMethodInsn(Opcodes.INVOKESTATIC, StaticClassVisitor.ANALYZER_CLASS, CHANGED_METHOD_NAME,
-            CHANGED_METHOD_DESC, false);
-        mv.visitInsn(Opcodes.ICONST_1);
-        mv.visitFieldInsn(Opcodes.PUTSTATIC, className, CHANGED_VARIABLE_NAME, CHANGED_VARIABLE_DESC);
+            CHANGED_ID_METHOD_DESC, false);
+        mv.visitLabel(l);
+      }
+      if (!global) {
+        // in <clinit> mode this only creates the counters of methods run before <clinit>, from
+        // the initializer of a super class
+        Label l = new Label();
+        loadCounterField(mv);
+        mv.visitJumpInsn(Opcodes.IFNONNULL, l);
+        mv.visitMethodInsn(Opcodes.INVOKESTATIC, className, INIT_METHOD_NAME, INIT_METHOD_DESC, false);
         mv.visitLabel(l);
       }
-      Label l = new Label();
-      mv.visitFieldInsn(Opcodes.GETSTATIC, className, COUNTER_VARIABLE_NAME, COUNTER_VARIABLE_DESC);
-      mv.visitJumpInsn(Opcodes.IFNONNULL, l);
-      mv.visitMethodInsn(Opcodes.INVOKESTATIC, className, INIT_METHOD_NAME, INIT_METHOD_DESC, false);
-      mv.visitLabel(l);
 
-      if (InstrumentationProperties.INSTRUMENT_BRANCHES) {
+      MethodVisitor instrumenter = mv;
+      if (InstrumentationProperties.INSTRUMENT_ALLOCATIONS) {
+        instrumenter = new ArrayAllocationVisitor(this, instrumenter, className, name);
+      }
 
-        int newCounter = newCounterId();
+      int entryCounter = -1;
+      if (InstrumentationProperties.INSTRUMENT_BRANCHES) {
+        entryCounter = newCounterId();
         addBranchHit(new BranchHit(new Branch(className, name,
             0),
-            newCounter, newDistanceId()));
-
-        mv.visitFieldInsn(Opcodes.GETSTATIC, className, ArrayClassVisitor.COUNTER_VARIABLE_NAME,
-            ArrayClassVisitor.COUNTER_VARIABLE_DESC);
-        mv.visitLdcInsn(newCounter);
+            entryCounter, newDistanceId()));
+      }
 
-        mv.visitInsn(Opcodes.DUP2);
-        mv.visitInsn(Opcodes.IALOAD);
-        mv.visitInsn(Opcodes.ICONST_1);
-        mv.visitInsn(Opcodes.IADD);
-        mv.visitInsn(Opcodes.IASTORE);
+      if (edgeProbes) {
+        // the edge visitor places the method entry probe itself, if it needs one
+        instrumenter = new ArrayEdgeVisitor(this, instrumenter, className, access, name, desc,
+            signature, exceptions, entryCounter);
+        entryCounter = -1;
+      } else {
+        if (InstrumentationProperties.INSTRUMENT_BRANCHES) {
+          instrumenter = new ArrayBranchVisitor(this, instrumenter, className, name, desc, access);
+        }
+        if (InstrumentationProperties.INSTRUMENT_LINES) {
+          instrumenter = new ArrayLineVisitor(this, instrumenter, className, name);
+        }
+      }
 
-        mv = new ArrayBranchVisitor(this, mv, className, name, desc, access);
+      if (striped) {
+        // the sorter renumbers the original locals so the stripe gets a slot of its own. Probes
+        // are emitted below the sorter, so they address the slot directly.
+        LocalVariablesSorter sorter = new LocalVariablesSorter(access, desc, instrumenter);
+        counterLocal = sorter.newLocal(Type.getType(COUNTER_VARIABLE_DESC));
+        mv.visitFieldInsn(Opcodes.GETSTATIC, className, STRIPED_VARIABLE_NAME, STRIPED_VARIABLE_DESC);
+        mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, STRIPED_CLASS, "get", "()[I", false);
+        mv.visitVarInsn(Opcodes.ASTORE, counterLocal);
+        instrumenter = sorter;
+      } else if (sampled) {
+        // the decision is taken once on entry and again on every jump back to an earlier
+        // instruction, so probes between them only test a local
+        LocalVariablesSorter sorter = new LocalVariablesSorter(access, desc,
+            new SampleBackEdges(instrumenter));
+        sampleLocal = sorter.newLocal(Type.BOOLEAN_TYPE);
+        sample(mv);
+        instrumenter = sorter;
       }
-      if (InstrumentationProperties.INSTRUMENT_LINES) {
-        mv = new ArrayLineVisitor(this, mv, className, name);
+
+      if (entryCounter >= 0) {
+        incrementCounter(mv, entryCounter);
       }
+
+      mv = instrumenter;
     }
 
 
     return mv;
   }
 
+  /**
+   * Emits a probe that increments the hit counter with the given id. The array is read from the
+   * static field, or from this thread's stripe when using {@link CounterLayout#STRIPED}. With the
+   * {@link InstrumentationApproach#BOOLEAN} approach the probe just marks the counter as covered.
+   * {@link CounterLayout#MAPPED} counters are incremented through the class's IntBuffer. When
+   * sampling, a counter that has been hit is only incremented if the current invocation or loop
+   * iteration is being sampled.
+   *
+   * @param mv visitor to emit the probe to
+   * @param counterId index into the hit counter array
+   */
+  public void incrementCounter(MethodVisitor mv, int counterId) {
+    Label skip = null;
+    if (sampled) {
+      emittingProbe = true;
+      skip = new Label();
+      Label record = new Label();
+      mv.visitVarInsn(Opcodes.ILOAD, sampleLocal);
+      mv.visitJumpInsn(Opcodes.IFNE, record);
+      loadCounterSlot(mv, counterId);
+      mv.visitInsn(Opcodes.IALOAD);
+      mv.visitJumpInsn(Opcodes.IFNE, skip);
+      mv.visitLabel(record);
+    }
+    loadCounterSlot(mv, counterId);
+    if (mapped) {
+      mv.visitInsn(Opcodes.DUP2);
+      mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, "java/nio/IntBuffer", "get", "(I)I", false);
+      mv.visitInsn(Opcodes.ICONST_1);
+      mv.visitInsn(Opcodes.IADD);
+      mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, "java/nio/IntBuffer", "put",
+          "(II)Ljava/nio/IntBuffer;", false);
+      mv.visitInsn(Opcodes.POP);
+      return;
+    }
+    if (booleanProbes) {
+      mv.visitInsn(Opcodes.ICONST_1);
+      mv.visitInsn(Opcodes.BASTORE);
+      return;
+    }
+    mv.visitInsn(Opcodes.DUP2);
+    mv.visitInsn(Opcodes.IALOAD);
+    mv.visitInsn(Opcodes.ICONST_1);
+    mv.visitInsn(Opcodes.IADD);
+    mv.visitInsn(Opcodes.IASTORE);
+    if (skip != null) {
+      mv.visitLabel(skip);
+      emittingProbe = false;
+    }
+  }
+
+  /**
+   * Emits a probe adding the int on top of the stack to the counter with the given id. Unlike
+   * {@link #incrementCounter(MethodVisitor, int)}, every call is counted when sampling. Boolean
+   * probes drop the value and mark the counter as covered.
+   *
+   * @param mv visitor to emit the probe to
+   * @param counterId index into the hit counter array
+   */
+  public void addToCounter(MethodVisitor mv, int counterId) {
+    if (booleanProbes) {
+      mv.visitInsn(Opcodes.POP);
+      loadCounterSlot(mv, counterId);
+      mv.visitInsn(Opcodes.ICONST_1);
+      mv.visitInsn(Opcodes.BASTORE);
+      return;
+    }
+    // value, holder, index -> holder, index, value + counter
+    loadCounterSlot(mv, counterId);
+    mv.visitInsn(Opcodes.DUP2_X1);
+    if (mapped) {
+      mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, "java/nio/IntBuffer", "get", "(I)I", false);
+      mv.visitInsn(Opcodes.IADD);
+      mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, "java/nio/IntBuffer", "put",
+          "(II)Ljava/nio/IntBuffer;", false);
+      mv.visitInsn(Opcodes.POP);
+      return;
+    }
+    mv.visitInsn(Opcodes.IALOAD);
+    mv.visitInsn(Opcodes.IADD);
+    mv.visitInsn(Opcodes.IASTORE);
+  }
+
+  /**
+   * Emits a call deciding whether the probes run until the next decision count their hits.
+   */
+  private void sample(MethodVisitor mv) {
+    mv.visitMethodInsn(Opcodes.INVOKESTATIC, SAMPLER_CLASS, "sample", "()Z", false);
+    mv.visitVarInsn(Opcodes.ISTORE, sampleLocal);
+  }
+
+  /**
+   * Decides again whether to sample before every jump back to an earlier instruction, so that
+   * each iteration of a loop is sampled on its own rather than with the whole invocation.
+   */
+  private class SampleBackEdges extends MethodVisitor {
+
+    private final Set<Label> visited = new HashSet<Label>();
+
+    SampleBackEdges(MethodVisitor mv) {
+      super(Opcodes.ASM5, mv);
+    }
+
+    @Override
+    public void visitLabel(Label label) {
+      visited.add(label);
+      super.visitLabel(label);
+    }
+
+    @Override
+    public void visitJumpInsn(int opcode, Label label) {
+      if (visited.contains(label)) {
+        // leaves the operands of the jump on the stack alone
+        sample(mv);
+      }
+      super.visitJumpInsn(opcode, label);
+    }
+  }
+
+  /**
+   * @return true while a probe is being emitted, so that visitors further down the chain leave
+   *     the probe's own jumps alone
+   */
+  public boolean isEmittingProbe() {
+    return emittingProbe;
+  }
+
+  /**
+   * Pushes the counter holder and index of the given counter onto the stack.
+   */
+  private void loadCounterSlot(MethodVisitor mv, int counterId) {
+    if (striped) {
+      mv.visitVarInsn(Opcodes.ALOAD, counterLocal);
+    } else if (global) {
+      mv.visitFieldInsn(Opcodes.GETSTATIC, GLOBAL_CLASS, GLOBAL_COUNTER_NAME, COUNTER_VARIABLE_DESC);
+    } else {
+      loadCounterField(mv);
+    }
+    mv.visitLdcInsn(counterId);
+    if (global) {
+      mv.visitFieldInsn(Opcodes.GETSTATIC, className, BASE_VARIABLE_NAME, "I");
+      mv.visitInsn(Opcodes.IADD);
+    }
+  }
+
+  /**
+   * Emits code storing the branch distance on top of the stack.
+   *
+   * @param mv visitor to emit the store to
+   * @param distanceId index into the distance array
+   */
+  public void storeDistance(MethodVisitor mv, int distanceId) {
+    if (global) {
+      mv.visitFieldInsn(Opcodes.GETSTATIC, GLOBAL_CLASS, GLOBAL_DISTANCE_NAME, DISTANCE_VARIABLE_DESC);
+      mv.visitInsn(Opcodes.SWAP);
+      mv.visitLdcInsn(distanceId);
+      mv.visitFieldInsn(Opcodes.GETSTATIC, className, DISTANCE_BASE_VARIABLE_NAME, "I");
+      mv.visitInsn(Opcodes.IADD);
+    } else {
+      mv.visitFieldInsn(Opcodes.GETSTATIC, className, DISTANCE_VARIABLE_NAME, DISTANCE_VARIABLE_DESC);
+      mv.visitInsn(Opcodes.SWAP);
+      mv.visitLdcInsn(distanceId);
+    }
+    mv.visitInsn(Opcodes.SWAP);
+    mv.visitInsn(Opcodes.FASTORE);
+  }
+
+  private void loadCounterField(MethodVisitor mv) {
+    mv.visitFieldInsn(Opcodes.GETSTATIC, className, counterFieldName(), counterFieldDesc());
+  }
+
+  private String counterFieldName() {
+    if (striped) {
+      return STRIPED_VARIABLE_NAME;
+    }
+    return mapped ? MAPPED_VARIABLE_NAME : COUNTER_VARIABLE_NAME;
+  }
+
+  private String counterFieldDesc() {
+    if (striped) {
+      return STRIPED_VARIABLE_DESC;
+    }
+    return mapped ? MAPPED_VARIABLE_DESC : counterDesc();
+  }
+
+  /**
+   * Pushes a new, zeroed, holder for the class's counters onto the stack.
+   */
+  private void newCounters(MethodVisitor mv) {
+    int count = counter.get();
+    if (striped) {
+      mv.visitTypeInsn(Opcodes.NEW, STRIPED_CLASS);
+      mv.visitInsn(Opcodes.DUP);
+      mv.visitLdcInsn(count);
+      mv.visitMethodInsn(Opcodes.INVOKESPECIAL, STRIPED_CLASS, "<init>", "(I)V", false);
+    } else if (mapped) {
+      mv.visitLdcInsn(className);
+      mv.visitLdcInsn(count);
+      mv.visitMethodInsn(Opcodes.INVOKESTATIC, MAPPED_CLASS, "allocate",
+          "(Ljava/lang/String;I)" + MAPPED_VARIABLE_DESC, false);
+    } else {
+      mv.visitLdcInsn(count);
+      mv.visitIntInsn(Opcodes.NEWARRAY, counterType());
+    }
+  }
+
+  private String counterDesc() {
+    return booleanProbes ? PROBE_VARIABLE_DESC : COUNTER_VARIABLE_DESC;
+  }
+
+  private int counterType() {
+    return booleanProbes ? Opcodes.T_BOOLEAN : Opcodes.T_INT;
+  }
+
   @Override
   public void visitEnd() {
     // create visits to our own methods to collect hits, only if it's not an
     // interface
-    if (shouldInstrument) {
+    if (shouldInstrument && global) {
+      addGlobalMethods(cv);
+      ClassAnalyzer.classAnalyzed(classId, branchHitCounterIds, lineHitCounterIds);
+      FlowGraph.register(classId, flowGraphs);
+      ClassAnalyzer.allocationSitesFound(classId, allocationSites);
+    } else if (shouldInstrument) {
       addGetCounterMethod(cv);
       addGetDistanceMethod(cv);
       addResetCounterMethod(cv);
+      if (initInClinit && !hasClinit) {
+        MethodVisitor mv = cv.visitMethod(Opcodes.ACC_STATIC, "<clinit>", "()V", null, null);
+        mv.visitCode();
+        addClinitInit(mv);
+        mv.visitInsn(Opcodes.RETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+      }
       addInitMethod(cv);
       ClassAnalyzer.classAnalyzed(classId, branchHitCounterIds, lineHitCounterIds);
+      FlowGraph.register(classId, flowGraphs);
+      ClassAnalyzer.allocationSitesFound(classId, allocationSites);
     }
     super.visitEnd();
+    visitedEnd = true;
+  }
+
+  /**
+   * @return true once the whole class has been visited, so everything it registered with
+   *     {@link ClassAnalyzer} is known
+   */
+  public boolean isComplete() {
+    return visitedEnd;
+  }
+
+  /**
+   * @return false for interfaces, enums and synthetic classes, which are copied without probes
+   */
+  public boolean isInstrumented() {
+    return shouldInstrument;
+  }
+
+  public int getClassId() {
+    return classId;
+  }
+
+  /**
+   * @return true if the class's changed flag was reserved in {@link ProbeArrays}
+   */
+  public boolean usesChangedFlag() {
+    return shouldInstrument && changedFlag;
+  }
+
+  public List<LineHit> getLineHits() {
+    return lineHitCounterIds;
+  }
+
+  public List<BranchHit> getBranchHits() {
+    return branchHitCounterIds;
+  }
+
+  public List<FlowGraph> getFlowGraphs() {
+    return flowGraphs;
+  }
+
+  public List<AllocationSite> getAllocationSites() {
+    return allocationSites;
+  }
+
+  /**
+   * Reserves this class's slices of the global arrays. The bases are constant fields so that the
+   * JIT can fold them into the probes, and the getters and reset copy or clear the slices.
+   */
+  private void addGlobalMethods(ClassVisitor cv) {
+    int base = GlobalCounters.reserveCounters(counter.get());
+    int distanceBase = GlobalCounters.reserveDistances(distanceCounter.get());
+    int access = Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC | Opcodes.ACC_FINAL;
+    cv.visitField(access, BASE_VARIABLE_NAME, "I", null, base).visitEnd();
+    cv.visitField(access, DISTANCE_BASE_VARIABLE_NAME, "I", null, distanceBase).visitEnd();
+
+    MethodVisitor mv = cv.visitMethod(Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC, COUNTER_METHOD_NAME,
+        COUNTER_METHOD_DESC, null, null);
+    mv.visitCode();
+    mv.visitLdcInsn(base);
+    mv.visitLdcInsn(counter.get());
+    mv.visitMethodInsn(Opcodes.INVOKESTATIC, GLOBAL_CLASS, "getCounters", "(II)[I", false);
+    mv.visitInsn(Opcodes.ARETURN);
+    mv.visitMaxs(0, 0);
+    mv.visitEnd();
+
+    mv = cv.visitMethod(Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC, DISTANCE_METHOD_NAME,
+        DISTANCE_METHOD_DESC, null, null);
+    mv.visitCode();
+    mv.visitLdcInsn(distanceBase);
+    mv.visitLdcInsn(distanceCounter.get());
+    mv.visitMethodInsn(Opcodes.INVOKESTATIC, GLOBAL_CLASS, "getDistances", "(II)[F", false);
+    mv.visitInsn(Opcodes.ARETURN);
+    mv.visitMaxs(0, 0);
+    mv.visitEnd();
+
+    mv = cv.visitMethod(Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC, RESET_COUNTER_METHOD_NAME,
+        RESET_COUNTER_METHOD_DESC, null, null);
+    mv.visitCode();
+    mv.visitLdcInsn(base);
+    mv.visitLdcInsn(counter.get());
+    mv.visitMethodInsn(Opcodes.INVOKESTATIC, GLOBAL_CLASS, "clear", "(II)V", false);
+    mv.visitInsn(Opcodes.RETURN);
+    mv.visitMaxs(0, 0);
+    mv.visitEnd();
+
+    GlobalCounters.register(classId, base, counter.get(), distanceBase, distanceCounter.get());
   }
 
   private void addGetCounterMethod(ClassVisitor cv) {
-    addGetMethod(cv, COUNTER_METHOD_NAME, COUNTER_METHOD_DESC, COUNTER_VARIABLE_NAME, COUNTER_VARIABLE_DESC);
+    if (booleanProbes) {
+      addGetMethod(cv, COUNTER_METHOD_NAME, PROBE_METHOD_DESC, COUNTER_VARIABLE_NAME, PROBE_VARIABLE_DESC);
+      return;
+    }
+    if (!striped && !mapped) {
+      // the counters are never cleared, so the counts since the last reset come from ProbeArrays
+      MethodVisitor mv = cv.visitMethod(Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC,
+          COUNTER_METHOD_NAME, COUNTER_METHOD_DESC, null, null);
+      mv.visitCode();
+      mv.visitLdcInsn(classId);
+      mv.visitMethodInsn(Opcodes.INVOKESTATIC, PROBE_ARRAYS_CLASS, "getCounters", "(I)[I", false);
+      mv.visitInsn(Opcodes.ARETURN);
+      mv.visitMaxs(0, 0);
+      mv.visitEnd();
+      return;
+    }
+    // sum the stripes of all threads, or copy the mapped counters
+    MethodVisitor mv = cv.visitMethod(Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC, COUNTER_METHOD_NAME,
+        COUNTER_METHOD_DESC, null, null);
+    mv.visitCode();
+    Label l = new Label();
+    loadCounterField(mv);
+    mv.visitInsn(Opcodes.DUP);
+    mv.visitJumpInsn(Opcodes.IFNULL, l);
+    if (striped) {
+      mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, STRIPED_CLASS, "sum", "()[I", false);
+    } else {
+      mv.visitMethodInsn(Opcodes.INVOKESTATIC, MAPPED_CLASS, "toArray",
+          "(" + MAPPED_VARIABLE_DESC + ")[I", false);
+    }
+    mv.visitInsn(Opcodes.ARETURN);
+    mv.visitLabel(l);
+    mv.visitInsn(Opcodes.POP);
+    mv.visitInsn(Opcodes.ACONST_NULL);
+    mv.visitInsn(Opcodes.ARETURN);
+    mv.visitMaxs(0, 0);
+    mv.visitEnd();
   }
 
   private void addGetDistanceMethod(ClassVisitor cv) {
@@ -201,31 +682,62 @@ public class ArrayClassVisitor extends ClassVisitor {
     MethodVisitor mv = cv.visitMethod(Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC, RESET_COUNTER_METHOD_NAME,
         RESET_COUNTER_METHOD_DESC, null, null);
     mv.visitCode();
-    mv.visitFieldInsn(Opcodes.GETSTATIC, className, COUNTER_VARIABLE_NAME, COUNTER_VARIABLE_DESC);
-    mv.visitInsn(Opcodes.ARRAYLENGTH);
-    mv.visitIntInsn(Opcodes.NEWARRAY, Opcodes.T_INT);
-    mv.visitFieldInsn(Opcodes.PUTSTATIC, className, COUNTER_VARIABLE_NAME, COUNTER_VARIABLE_DESC);
-    if (InstrumentationProperties.USE_CHANGED_FLAG) {
-      mv.visitInsn(Opcodes.ICONST_0);
-      mv.visitFieldInsn(Opcodes.PUTSTATIC, className, CHANGED_VARIABLE_NAME, CHANGED_VARIABLE_DESC);
+    if (striped || mapped) {
+      Label l = new Label();
+      loadCounterField(mv);
+      mv.visitJumpInsn(Opcodes.IFNULL, l);
+      loadCounterField(mv);
+      if (striped) {
+        mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, STRIPED_CLASS, "reset", "()V", false);
+      } else {
+        mv.visitMethodInsn(Opcodes.INVOKESTATIC, MAPPED_CLASS, "clear",
+            "(" + MAPPED_VARIABLE_DESC + ")V", false);
+      }
+      mv.visitLabel(l);
+    } else {
+      // the array is registered with ProbeArrays, which resets counters without writing to them
+      Label l = new Label();
+      mv.visitFieldInsn(Opcodes.GETSTATIC, className, COUNTER_VARIABLE_NAME, counterDesc());
+      mv.visitJumpInsn(Opcodes.IFNULL, l);
+      mv.visitLdcInsn(classId);
+      mv.visitMethodInsn(Opcodes.INVOKESTATIC, PROBE_ARRAYS_CLASS, "reset", CHANGED_ID_METHOD_DESC,
+          false);
+      mv.visitLabel(l);
+    }
+    if (changedFlag) {
+      mv.visitLdcInsn(classId);
+      mv.visitMethodInsn(Opcodes.INVOKESTATIC, PROBE_ARRAYS_CLASS, "clearChanged",
+          CHANGED_ID_METHOD_DESC, false);
     }
     mv.visitInsn(Opcodes.RETURN);
     mv.visitMaxs(0, 0);
     mv.visitEnd();
   }
 
+  /**
+   * Emits the start of the static initializer, which creates the counters unless a method run
+   * from the initializer of a super class already has.
+   */
+  private void addClinitInit(MethodVisitor mv) {
+    mv.visitMethodInsn(Opcodes.INVOKESTATIC, className, INIT_METHOD_NAME, INIT_METHOD_DESC, false);
+    mv.visitLdcInsn(className);
+    mv.visitMethodInsn(Opcodes.INVOKESTATIC, StaticClassVisitor.ANALYZER_CLASS, INITIALISED_METHOD_NAME,
+        CHANGED_METHOD_DESC, false);
+  }
+
   private void addInitMethod(ClassVisitor cv) {
-    MethodVisitor mv = cv.visitMethod(Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC, INIT_METHOD_NAME, INIT_METHOD_DESC, null,
-        null);
+    // synchronized so that racing first calls cannot replace counters another thread is using.
+    // Final fields may be set outside of <clinit> by the class itself in the class file versions
+    // ASM 5 writes
+    MethodVisitor mv = cv.visitMethod(Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC | Opcodes.ACC_SYNCHRONIZED,
+        INIT_METHOD_NAME, INIT_METHOD_DESC, null, null);
     mv.visitCode();
     Label l = new Label();
-    mv.visitFieldInsn(Opcodes.GETSTATIC, className, COUNTER_VARIABLE_NAME, COUNTER_VARIABLE_DESC);
+    loadCounterField(mv);
     mv.visitJumpInsn(Opcodes.IFNONNULL, l);
 
-    int count = counter.get();
-    mv.visitLdcInsn(count);
-    mv.visitIntInsn(Opcodes.NEWARRAY, Opcodes.T_INT);
-    mv.visitFieldInsn(Opcodes.PUTSTATIC, className, COUNTER_VARIABLE_NAME, COUNTER_VARIABLE_DESC);
+    newCounters(mv);
+    mv.visitFieldInsn(Opcodes.PUTSTATIC, className, counterFieldName(), counterFieldDesc());
     mv.visitLabel(l);
 
     Label ld = new Label();
@@ -240,9 +752,22 @@ public class ArrayClassVisitor extends ClassVisitor {
     mv.visitFieldInsn(Opcodes.PUTSTATIC, className, DISTANCE_VARIABLE_NAME,
         DISTANCE_VARIABLE_DESC);
     mv.visitLabel(ld);
+    addRegisterProbeArrays(mv);
     mv.visitInsn(Opcodes.RETURN);
     mv.visitMaxs(0, 0);
     mv.visitEnd();
 
   }
+
+  /**
+   * Passes the class's probe arrays to {@link ProbeArrays}, so they can be collected and reset
+   * without reflection.
+   */
+  private void addRegisterProbeArrays(MethodVisitor mv) {
+    mv.visitLdcInsn(classId);
+    loadCounterField(mv);
+    mv.visitFieldInsn(Opcodes.GETSTATIC, className, DISTANCE_VARIABLE_NAME, DISTANCE_VARIABLE_DESC);
+    mv.visitMethodInsn(Opcodes.INVOKESTATIC, PROBE_ARRAYS_CLASS, "register", REGISTER_METHOD_DESC,
+        false);
+  }
 }
@@ -0,0 +1,233 @@
+package com.scythe.instrumenter.instrumentation.visitors;
+
+import com.scythe.util.ClassNameUtils;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.FieldVisitor;
+import org.objectweb.asm.Handle;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+/**
+ * Hashes the bytecode of a class, so that a changed class or method can be told from an
+ * unchanged one without keeping the bytes. Classes are read without debug information, so line
+ * numbers and local variable names moving do not count as a change.
+ *
+ * The class hash covers the class declaration, its fields and the signature of each method, so
+ * adding or removing a method changes the class. Each method name has a hash of its instructions,
+ * summed over its overloads, which keys it the same way as {@link
+ * com.scythe.instrumenter.analysis.DependencyTree} and the coverable goals do.
+ */
+public class HashClassVisitor extends ClassVisitor {
+
+  private String className;
+  private final Digest classDigest = new Digest();
+  private final Map<String, Long> methodHashes = new HashMap<String, Long>();
+
+  public HashClassVisitor() {
+    super(Opcodes.ASM5);
+  }
+
+  /**
+   * @return a visitor that has visited the class
+   */
+  public static HashClassVisitor hash(byte[] bytes) {
+    HashClassVisitor visitor = new HashClassVisitor();
+    new ClassReader(bytes).accept(visitor, ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+    return visitor;
+  }
+
+  public String getClassName() {
+    return className;
+  }
+
+  public long getClassHash() {
+    return classDigest.get();
+  }
+
+  /**
+   * @return the hash of each method, keyed by method name
+   */
+  public Map<String, Long> getMethodHashes() {
+    return methodHashes;
+  }
+
+  @Override
+  public void visit(int version, int access, String name, String signature, String superName,
+      String[] interfaces) {
+    className = ClassNameUtils.standardise(name);
+    classDigest.add(access).add(name).add(signature).add(superName);
+    if (interfaces != null) {
+      for (String i : interfaces) {
+        classDigest.add(i);
+      }
+    }
+  }
+
+  @Override
+  public FieldVisitor visitField(int access, String name, String desc,
+      String signature, Object value) {
+    classDigest.add(access).add(name).add(desc).add(signature).add(String.valueOf(value));
+    return null;
+  }
+
+  @Override
+  public MethodVisitor visitMethod(int access, final String name, String desc, String signature,
+      String[] exceptions) {
+    classDigest.add(access).add(name).add(desc);
+    final Digest digest = new Digest();
+    digest.add(desc);
+    return new MethodVisitor(Opcodes.ASM5) {
+      private final Map<Label, Integer> labels = new HashMap<Label, Integer>();
+
+      private int label(Label label) {
+        Integer id = labels.get(label);
+        if (id == null) {
+          id = labels.size();
+          labels.put(label, id);
+        }
+        return id;
+      }
+
+      @Override
+      public void visitInsn(int opcode) {
+        digest.add(opcode);
+      }
+
+      @Override
+      public void visitIntInsn(int opcode, int operand) {
+        digest.add(opcode).add(operand);
+      }
+
+      @Override
+      public void visitVarInsn(int opcode, int var) {
+        digest.add(opcode).add(var);
+      }
+
+      @Override
+      public void visitTypeInsn(int opcode, String type) {
+        digest.add(opcode).add(type);
+      }
+
+      @Override
+      public void visitFieldInsn(int opcode, String owner, String name, String desc) {
+        digest.add(opcode).add(owner).add(name).add(desc);
+      }
+
+      @Override
+      public void visitMethodInsn(int opcode, String owner, String name, String desc,
+          boolean itf) {
+        digest.add(opcode).add(owner).add(name).add(desc);
+      }
+
+      @Override
+      public void visitInvokeDynamicInsn(String name, String desc, Handle bsm, Object... bsmArgs) {
+        digest.add(Opcodes.INVOKEDYNAMIC).add(name).add(desc).add(bsm.toString());
+        for (Object arg : bsmArgs) {
+          digest.add(arg.toString());
+        }
+      }
+
+      @Override
+      public void visitJumpInsn(int opcode, Label label) {
+        digest.add(opcode).add(label(label));
+      }
+
+      @Override
+      public void visitLabel(Label label) {
+        digest.add(-1).add(label(label));
+      }
+
+      @Override
+      public void visitLdcInsn(Object cst) {
+        digest.add(Opcodes.LDC).add(cst.getClass().getName()).add(cst.toString());
+      }
+
+      @Override
+      public void visitIincInsn(int var, int increment) {
+        digest.add(Opcodes.IINC).add(var).add(increment);
+      }
+
+      @Override
+      public void visitTableSwitchInsn(int min, int max, Label dflt, Label... labels) {
+        digest.add(Opcodes.TABLESWITCH).add(min).add(max).add(label(dflt));
+        for (Label l : labels) {
+          digest.add(label(l));
+        }
+      }
+
+      @Override
+      public void visitLookupSwitchInsn(Label dflt, int[] keys, Label[] labels) {
+        digest.add(Opcodes.LOOKUPSWITCH).add(label(dflt));
+        for (int i = 0; i < keys.length; i++) {
+          digest.add(keys[i]).add(label(labels[i]));
+        }
+      }
+
+      @Override
+      public void visitMultiANewArrayInsn(String desc, int dims) {
+        digest.add(Opcodes.MULTIANEWARRAY).add(desc).add(dims);
+      }
+
+      @Override
+      public void visitTryCatchBlock(Label start, Label end, Label handler, String type) {
+        digest.add(-2).add(label(start)).add(label(end)).add(label(handler)).add(type);
+      }
+
+      @Override
+      public void visitEnd() {
+        Long overloads = methodHashes.get(name);
+        methodHashes.put(name, (overloads == null ? 0 : overloads) + digest.get());
+      }
+    };
+  }
+
+  private static class Digest {
+    private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    private final DataOutputStream out = new DataOutputStream(bytes);
+
+    Digest add(int value) {
+      try {
+        out.writeInt(value);
+      } catch (IOException e) {
+        // cannot happen writing to memory
+      }
+      return this;
+    }
+
+    Digest add(String value) {
+      try {
+        if (value == null) {
+          out.writeInt(-1);
+        } else {
+          out.writeInt(value.length());
+          out.writeChars(value);
+        }
+      } catch (IOException e) {
+        // cannot happen writing to memory
+      }
+      return this;
+    }
+
+    long get() {
+      try {
+        byte[] sha = MessageDigest.getInstance("SHA-1").digest(bytes.toByteArray());
+        long hash = 0;
+        for (int i = 0; i < 8; i++) {
+          hash = (hash << 8) | (sha[i] & 0xFF);
+        }
+        return hash;
+      } catch (NoSuchAlgorithmException e) {
+        throw new IllegalStateException(e);
+      }
+    }
+  }
+}
@@ -0,0 +1,133 @@
+package com.scythe.instrumenter.instrumentation.visitors;
+
+import com.scythe.instrumenter.analysis.ClassAnalyzer;
+import com.scythe.instrumenter.analysis.Profiler;
+import com.scythe.instrumenter.instrumentation.modifiers.ProfileMethodVisitor;
+import com.scythe.instrumenter.instrumentation.objectrepresentation.MethodProfile;
+import java.util.ArrayList;
+import java.util.List;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+/**
+ * Instruments every method of a class to record its invocation count and timings in a long[]
+ * held by the class, {@link Profiler#FIELDS} counters per method. The array is created in the
+ * static initializer and collected by {@link ClassAnalyzer#collectHitCounters(boolean)}.
+ */
+public class ProfileClassVisitor extends ClassVisitor {
+
+  public static final String PROFILE_VARIABLE_NAME = "__profileCounters";
+  public static final String PROFILE_VARIABLE_DESC = "[J";
+  public static final String PROFILE_METHOD_NAME = "__getProfileCounters";
+  public static final String PROFILE_METHOD_DESC = "()[J";
+  public static final String RESET_PROFILE_METHOD_NAME = "__resetProfileCounters";
+  public static final String NEW_PROFILE_METHOD_NAME = "__newProfileCounters";
+
+  private String className;
+  private int classId;
+  private boolean shouldInstrument;
+  private boolean hasClinit = false;
+  private List<MethodProfile> methods = new ArrayList<MethodProfile>();
+
+  public ProfileClassVisitor(ClassVisitor cv, String className) {
+    super(Opcodes.ASM5, cv);
+    this.className = className.replace('.', '/');
+  }
+
+  @Override
+  public void visit(int version, int access, String name, String signature, String superName,
+      String[] interfaces) {
+    super.visit(version, access, name, signature, superName, interfaces);
+    boolean isInterface = ((access & Opcodes.ACC_INTERFACE) != 0);
+    boolean isSynthetic = ((access & Opcodes.ACC_SYNTHETIC) != 0);
+    shouldInstrument = !(isInterface || isSynthetic);
+    if (shouldInstrument) {
+      classId = ClassAnalyzer.registerClass(className);
+      cv.visitField(Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC | Opcodes.ACC_FINAL,
+          PROFILE_VARIABLE_NAME, PROFILE_VARIABLE_DESC, null, null).visitEnd();
+    }
+  }
+
+  @Override
+  public MethodVisitor visitMethod(int access, String name, String desc, String signature,
+      String[] exceptions) {
+    MethodVisitor mv = super.visitMethod(access, name, desc, signature, exceptions);
+    if (!shouldInstrument || (access & (Opcodes.ACC_ABSTRACT | Opcodes.ACC_NATIVE)) != 0
+        || (access & Opcodes.ACC_SYNTHETIC) != 0) {
+      return mv;
+    }
+    if (name.equals("<clinit>")) {
+      hasClinit = true;
+      addClinitInit(mv);
+    }
+    int offset = methods.size() * Profiler.FIELDS;
+    methods.add(new MethodProfile(ClassAnalyzer.getClassName(classId), name, desc));
+    return new ProfileMethodVisitor(mv, className, access, name, desc, offset);
+  }
+
+  @Override
+  public void visitEnd() {
+    if (shouldInstrument) {
+      addNewCountersMethod();
+      addGetCountersMethod();
+      addResetCountersMethod();
+      if (!hasClinit) {
+        MethodVisitor mv = cv.visitMethod(Opcodes.ACC_STATIC, "<clinit>", "()V", null, null);
+        mv.visitCode();
+        addClinitInit(mv);
+        mv.visitInsn(Opcodes.RETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+      }
+      ClassAnalyzer.methodsProfiled(classId, methods);
+    }
+    super.visitEnd();
+  }
+
+  /**
+   * The number of methods is only known once they have all been visited, so the static
+   * initializer creates the counters through a method added in {@link #visitEnd()}.
+   */
+  private void addClinitInit(MethodVisitor mv) {
+    mv.visitMethodInsn(Opcodes.INVOKESTATIC, className, NEW_PROFILE_METHOD_NAME,
+        PROFILE_METHOD_DESC, false);
+    mv.visitFieldInsn(Opcodes.PUTSTATIC, className, PROFILE_VARIABLE_NAME, PROFILE_VARIABLE_DESC);
+    mv.visitLdcInsn(className);
+    mv.visitMethodInsn(Opcodes.INVOKESTATIC, StaticClassVisitor.ANALYZER_CLASS,
+        ArrayClassVisitor.INITIALISED_METHOD_NAME, ArrayClassVisitor.CHANGED_METHOD_DESC, false);
+  }
+
+  private void addNewCountersMethod() {
+    MethodVisitor mv = cv.visitMethod(Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC,
+        NEW_PROFILE_METHOD_NAME, PROFILE_METHOD_DESC, null, null);
+    mv.visitCode();
+    mv.visitLdcInsn(methods.size() * Profiler.FIELDS);
+    mv.visitIntInsn(Opcodes.NEWARRAY, Opcodes.T_LONG);
+    mv.visitInsn(Opcodes.ARETURN);
+    mv.visitMaxs(0, 0);
+    mv.visitEnd();
+  }
+
+  private void addGetCountersMethod() {
+    MethodVisitor mv = cv.visitMethod(Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC, PROFILE_METHOD_NAME,
+        PROFILE_METHOD_DESC, null, null);
+    mv.visitCode();
+    mv.visitFieldInsn(Opcodes.GETSTATIC, className, PROFILE_VARIABLE_NAME, PROFILE_VARIABLE_DESC);
+    mv.visitInsn(Opcodes.ARETURN);
+    mv.visitMaxs(0, 0);
+    mv.visitEnd();
+  }
+
+  private void addResetCountersMethod() {
+    MethodVisitor mv = cv.visitMethod(Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC,
+        RESET_PROFILE_METHOD_NAME, ArrayClassVisitor.RESET_COUNTER_METHOD_DESC, null, null);
+    mv.visitCode();
+    mv.visitFieldInsn(Opcodes.GETSTATIC, className, PROFILE_VARIABLE_NAME, PROFILE_VARIABLE_DESC);
+    mv.visitInsn(Opcodes.LCONST_0);
+    mv.visitMethodInsn(Opcodes.INVOKESTATIC, "java/util/Arrays", "fill", "([JJ)V", false);
+    mv.visitInsn(Opcodes.RETURN);
+    mv.visitMaxs(0, 0);
+    mv.visitEnd();
+  }
+}
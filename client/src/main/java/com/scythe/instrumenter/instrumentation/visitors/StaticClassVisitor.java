@@ -47,4 +47,12 @@ public class StaticClassVisitor extends ClassVisitor {
     }
     return mv;
   }
+
+  @Override
+  public void visitEnd() {
+    if (shouldInstrument) {
+      ClassAnalyzer.staticClassAnalyzed(classId);
+    }
+    super.visitEnd();
+  }
 }
\ No newline at end of file
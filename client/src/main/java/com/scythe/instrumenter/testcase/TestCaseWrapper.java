@@ -1,7 +1,14 @@
 package com.scythe.instrumenter.testcase;
 
+import com.google.gson.TypeAdapter;
+import com.google.gson.annotations.JsonAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import java.io.IOException;
 import java.lang.reflect.Method;
 
+@JsonAdapter(TestCaseWrapper.Adapter.class)
 public class TestCaseWrapper {
   private Class<?> testClass;
   private Method testMethod;
@@ -31,4 +38,67 @@ public class TestCaseWrapper {
     return (testMethod != null && testMethod.equals(otherWrapper.testMethod))
         && (testClass != null && testClass.equals(otherWrapper.testClass));
   }
+
+  @Override
+  public int hashCode() {
+    int result = testClass == null ? 0 : testClass.hashCode();
+    result = 31 * result + (testMethod == null ? 0 : testMethod.hashCode());
+    return result;
+  }
+
+  /**
+   * Writes a test as the names of its class and method, as goals are written out with the tests
+   * covering them and reflection objects cannot be.
+   */
+  static class Adapter extends TypeAdapter<TestCaseWrapper> {
+
+    @Override
+    public void write(JsonWriter out, TestCaseWrapper test) throws IOException {
+      if (test == null) {
+        out.nullValue();
+        return;
+      }
+      out.beginObject();
+      out.name("testClass").value(test.testClass == null ? null : test.testClass.getName());
+      out.name("testMethod").value(test.testMethod == null ? null : test.testMethod.getName());
+      out.endObject();
+    }
+
+    @Override
+    public TestCaseWrapper read(JsonReader in) throws IOException {
+      if (in.peek() == JsonToken.NULL) {
+        in.nextNull();
+        return null;
+      }
+      String className = null;
+      String methodName = null;
+      in.beginObject();
+      while (in.hasNext()) {
+        String name = in.nextName();
+        if (in.peek() == JsonToken.NULL) {
+          in.nextNull();
+        } else if (name.equals("testClass")) {
+          className = in.nextString();
+        } else if (name.equals("testMethod")) {
+          methodName = in.nextString();
+        } else {
+          in.skipValue();
+        }
+      }
+      in.endObject();
+      Class<?> testClass = null;
+      Method testMethod = null;
+      try {
+        if (className != null) {
+          testClass = Class.forName(className);
+        }
+        if (testClass != null && methodName != null) {
+          testMethod = testClass.getMethod(methodName);
+        }
+      } catch (ClassNotFoundException | NoSuchMethodException e) {
+        e.printStackTrace();
+      }
+      return new TestCaseWrapper(testClass, testMethod);
+    }
+  }
 }
@@ -0,0 +1,144 @@
+package com.scythe.instrumenter.analysis;
+
+import com.scythe.instrumenter.InstrumentationProperties;
+import com.scythe.instrumenter.instrumentation.InstrumentingClassLoader;
+import com.scythe.instrumenter.instrumentation.objectrepresentation.Line;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Measures the overhead and accuracy of sample_rate against uninstrumented and fully counted runs
+ * of {@link test.classes.HotLoop}. Each configuration runs in its own JVM, as the instrumenting
+ * class loader can only be configured once.
+ *
+ * Usage: SamplingBenchmark [threads] [sample rates...]
+ *
+ * Runs one thread per processor by default, as sampling is meant for many threads running the
+ * same code on many cores.
+ */
+public class SamplingBenchmark {
+
+  private static final String CLASS = "test.classes.HotLoop";
+  private static final int ITERATIONS = 20000000;
+  private static final int RUNS = 5;
+
+  public static void main(String[] args) throws Exception {
+    if (args.length > 0 && args[0].equals("run")) {
+      run(Integer.parseInt(args[1]), args[2]);
+      return;
+    }
+    String threads = args.length > 0 ? args[0]
+        : String.valueOf(Runtime.getRuntime().availableProcessors());
+    List<String> rates = new ArrayList<String>();
+    for (int i = 1; i < args.length; i++) {
+      rates.add(args[i]);
+    }
+    if (rates.isEmpty()) {
+      for (String rate : new String[]{"4", "16", "64", "256"}) {
+        rates.add(rate);
+      }
+    }
+
+    Result none = fork(threads, "NONE");
+    Result exact = fork(threads, "1");
+    System.out.println(String.format("%-12s %10s %12s %14s", "sample_rate", "ns/iter", "lines missed",
+        "count error"));
+    System.out.println(String.format("%-12s %10.2f %12s %14s", "none", none.time, "-", "-"));
+    System.out.println(String.format("%-12s %10.2f %12d %13.2f%%", "1", exact.time, 0, 0.0));
+    for (String rate : rates) {
+      Result sampled = fork(threads, rate);
+      int missed = 0;
+      long error = 0;
+      long total = 0;
+      for (Map.Entry<Integer, Long> line : exact.hits.entrySet()) {
+        long hits = sampled.hits.containsKey(line.getKey()) ? sampled.hits.get(line.getKey()) : 0;
+        if (line.getValue() > 0 && hits == 0) {
+          missed++;
+        }
+        error += Math.abs(hits - line.getValue());
+        total += line.getValue();
+      }
+      // absolute error summed over all lines, relative to the total number of line hits
+      System.out.println(String.format("%-12s %10.2f %12d %13.2f%%", rate, sampled.time, missed,
+          100.0 * error / total));
+    }
+  }
+
+  private static Result fork(String threads, String rate) throws Exception {
+    String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+    Process p = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+        SamplingBenchmark.class.getName(), "run", threads, rate).redirectErrorStream(true).start();
+    Result result = new Result();
+    BufferedReader reader = new BufferedReader(new InputStreamReader(p.getInputStream()));
+    String output;
+    while ((output = reader.readLine()) != null) {
+      String[] parts = output.split(" ");
+      if (parts[0].equals("time")) {
+        result.time = Double.parseDouble(parts[1]);
+      } else if (parts[0].equals("line")) {
+        result.hits.put(Integer.parseInt(parts[1]), Long.parseLong(parts[2]));
+      }
+    }
+    p.waitFor();
+    return result;
+  }
+
+  private static void run(int threads, String rate) throws Exception {
+    InstrumentationProperties.LOG = false;
+    if (rate.equals("NONE")) {
+      InstrumentationProperties.INSTRUMENTATION_APPROACH =
+          InstrumentationProperties.InstrumentationApproach.NONE;
+    } else {
+      InstrumentationProperties.SAMPLE_RATE = Integer.parseInt(rate);
+    }
+    Class<?> cl = InstrumentingClassLoader.getInstance().loadClass(CLASS, false);
+    final Method method = cl.getDeclaredMethod("run", int.class);
+
+    // warm up, then keep the fastest run
+    for (int i = 0; i < 3; i++) {
+      time(method, threads);
+    }
+    ClassAnalyzer.collectHitCounters(true);
+    ClassAnalyzer.resetCoverage();
+    long best = Long.MAX_VALUE;
+    for (int i = 0; i < RUNS; i++) {
+      best = Math.min(best, time(method, threads));
+    }
+    System.out.println("time " + best / (double) ITERATIONS);
+
+    ClassAnalyzer.collectHitCounters(false);
+    for (Line line : ClassAnalyzer.getCoverableLines(CLASS)) {
+      System.out.println("line " + line.getLineNumber() + " " + line.getHits());
+    }
+  }
+
+  private static long time(final Method method, int threads) throws InterruptedException {
+    Thread[] workers = new Thread[threads];
+    long start = System.nanoTime();
+    for (int t = 0; t < threads; t++) {
+      workers[t] = new Thread(() -> {
+        try {
+          method.invoke(null, ITERATIONS);
+        } catch (Exception e) {
+          e.printStackTrace();
+        }
+      });
+      workers[t].start();
+    }
+    for (Thread t : workers) {
+      t.join();
+    }
+    return System.nanoTime() - start;
+  }
+
+  private static class Result {
+    private double time;
+    private Map<Integer, Long> hits = new HashMap<Integer, Long>();
+  }
+}
@@ -4,9 +4,12 @@ import static org.junit.Assert.assertEquals;
 
 import com.scythe.instrumenter.instrumentation.objectrepresentation.Line;
 import com.scythe.instrumenter.instrumentation.objectrepresentation.LineHit;
+import com.scythe.instrumenter.testcase.TestCaseWrapper;
 import java.io.File;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
@@ -25,7 +28,7 @@ public class TestClassAnalyzerSerialize {
 
   private ConcurrentMap<Integer, Map<Integer, LineHit>> lines = new ConcurrentHashMap<>();
   private static File tmpFile;
-  private static int classId;
+  private int classId;
 
   @BeforeClass
   public static void init() throws Exception {
@@ -33,11 +36,12 @@ public class TestClassAnalyzerSerialize {
       tmpFile = File.createTempFile("serialized", ".tmp");
       tmpFile.deleteOnExit();
     }
-    classId = ClassAnalyzer.registerClass(TEST_CLASS_NAME);
   }
 
   @Before
   public void setup() throws Exception {
+    // each test resets the analyzer when it is done
+    classId = ClassAnalyzer.registerClass(TEST_CLASS_NAME);
     lines.put(classId, new HashMap<>());
     for (int i = 0; i < MOCK_LINES_TO_INSERT; i++) {
       Line l = new Line(TEST_CLASS_NAME, TEST_METHOD_NAME, i);
@@ -61,6 +65,24 @@ public class TestClassAnalyzerSerialize {
     assertEquals(MOCK_LINES_TO_INSERT, ClassAnalyzer.getCoverableLines(TEST_CLASS_NAME).size());
   }
 
+  @Test
+  public void testCoveringTestsAreSerialized() throws Exception {
+    TestCaseWrapper test = new TestCaseWrapper(getClass(),
+        getClass().getMethod("testCoveringTestsAreSerialized"));
+    lines.get(classId).get(3).getLine().addCoveringTest(test);
+    FieldSetter.setField(null, ClassAnalyzer.class.getDeclaredField("lines"), lines);
+    ClassAnalyzer.serialize(tmpFile);
+    ClassAnalyzer.reset();
+    ClassAnalyzer.deserialize(tmpFile);
+
+    for (Line line : ClassAnalyzer.getCoverableLines(TEST_CLASS_NAME)) {
+      List<TestCaseWrapper> expected = line.getLineNumber() == 3
+          ? Collections.singletonList(test) : Collections.<TestCaseWrapper>emptyList();
+      assertEquals(expected, line.getCoveringTests());
+    }
+    assertEquals(1, CoverageMatrix.getTests().size());
+  }
+
   @Test
   public void testSerializeClasses() throws Exception {
     ArrayList<Class<?>> changedClasses = new ArrayList<>();
@@ -0,0 +1,87 @@
+package com.scythe.instrumenter.analysis;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import com.scythe.instrumenter.instrumentation.objectrepresentation.Branch;
+import com.scythe.instrumenter.instrumentation.objectrepresentation.BranchHit;
+import com.scythe.instrumenter.instrumentation.objectrepresentation.Line;
+import com.scythe.instrumenter.instrumentation.objectrepresentation.LineHit;
+import com.scythe.instrumenter.testcase.TestCaseWrapper;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestClassGoals {
+
+  private static final int CLASS_ID = 10000;
+  private static final String CLASS_NAME = "org.mock.testclass.GoalClass";
+
+  private ClassGoals goals;
+
+  @Before
+  public void setup() {
+    // counters 0 and 2 are lines, 1 and 3 branches
+    ClassGoals.register(CLASS_ID,
+        Arrays.asList(new LineHit(new Line(CLASS_NAME, "a", 5), 0),
+            new LineHit(new Line(CLASS_NAME, "b", 9), 2)),
+        Arrays.asList(new BranchHit(new Branch(CLASS_NAME, "a", 5), 1, 0),
+            new BranchHit(new Branch(CLASS_NAME, "b", 9), 3, 1)),
+        new int[]{70, 71});
+    goals = ClassGoals.get(CLASS_ID);
+  }
+
+  @Test
+  public void testLinesAreSetAndBranchesAdded() {
+    goals.recordHits(new int[]{4, 1, 0, 2}, 0, 4, false);
+    goals.recordHits(new int[]{3, 1, 0, 2}, 0, 4, false);
+    goals.recordDistances(new float[]{-1.5f, 0f}, 0, 2);
+
+    Map<Integer, LineHit> lines = goals.getLines();
+    assertEquals(3, lines.get(0).getLine().getHits());
+    assertEquals(0, lines.get(2).getLine().getHits());
+    assertEquals("b", lines.get(2).getLine().getMethodName());
+    assertEquals(9, lines.get(2).getLine().getGoalId());
+
+    Map<Integer, BranchHit> branches = goals.getBranches();
+    assertEquals(2, branches.get(70).getBranch().getHits());
+    assertEquals(4, branches.get(71).getBranch().getHits());
+    assertEquals(1.5f, branches.get(70).getDistance(), 0f);
+    assertEquals(71, branches.get(71).getBranch().getGoalId());
+  }
+
+  @Test
+  public void testGoalsFollowLaterCollections() {
+    Map<Integer, LineHit> lines = goals.getLines();
+    LineHit line = lines.get(0);
+    goals.recordHits(new int[]{6}, 0, 1, false);
+    assertSame(line, goals.getLines().get(0));
+    assertEquals(6, line.getLine().getHits());
+    goals.reset();
+    assertEquals(0, line.getLine().getHits());
+  }
+
+  @Test
+  public void testOnlyHitGoalsAreCovered() throws NoSuchMethodException {
+    CoverageMatrix.clear();
+    TestCaseWrapper test = new TestCaseWrapper(getClass(),
+        getClass().getMethod("testOnlyHitGoalsAreCovered"));
+    goals.addCoveringTest(test, new int[]{0, 1, 2, 0}, 0, 4);
+    goals.addCoveringTest(test, new int[]{0, 3, 2, 0}, 0, 4);
+    assertEquals(Arrays.asList(new CoverageMatrix.Goal(CLASS_NAME, false, 9),
+        new CoverageMatrix.Goal(CLASS_NAME, true, 70)), CoverageMatrix.getCoveredGoals(test));
+    assertTrue(goals.getLines().get(0).getLine().getCoveringTests().isEmpty());
+    assertEquals(Collections.singletonList(test),
+        goals.getLines().get(2).getLine().getCoveringTests());
+  }
+
+  @Test
+  public void testCounterLines() {
+    assertArrayEquals(new int[]{5, 0, 9, 0}, goals.getCounterLines(4));
+    assertArrayEquals(new int[]{5}, goals.getCounterLines(1));
+  }
+}
@@ -0,0 +1,50 @@
+package com.scythe.instrumenter.analysis;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.BitSet;
+import java.util.Random;
+import org.junit.Test;
+
+public class TestCompressedBitSet {
+
+  @Test
+  public void testAddIsIdempotent() {
+    CompressedBitSet set = new CompressedBitSet();
+    assertTrue(set.add(70000));
+    assertTrue(set.add(3));
+    assertFalse(set.add(70000));
+    assertEquals(2, set.cardinality());
+    assertTrue(set.contains(3));
+    assertFalse(set.contains(4));
+    assertFalse(set.contains(3 + 65536));
+    assertArrayEquals(new int[]{3, 70000}, set.toArray());
+  }
+
+  @Test
+  public void testMatchesBitSetAcrossChunkTypes() {
+    CompressedBitSet set = new CompressedBitSet();
+    BitSet expected = new BitSet();
+    Random random = new Random(5);
+    // a dense chunk that turns into a bitmap, and sparse chunks that stay arrays
+    for (int i = 0; i < 3 * CompressedBitSet.ARRAY_LIMIT; i++) {
+      int value = random.nextInt(65536);
+      assertEquals(!expected.get(value), set.add(value));
+      expected.set(value);
+    }
+    for (int i = 0; i < 100; i++) {
+      int value = random.nextInt(1 << 24);
+      set.add(value);
+      expected.set(value);
+    }
+    assertEquals(expected.cardinality(), set.cardinality());
+    assertArrayEquals(expected.stream().toArray(), set.toArray());
+    for (int i = 0; i < 1000; i++) {
+      int value = random.nextInt(1 << 24);
+      assertEquals(expected.get(value), set.contains(value));
+    }
+  }
+}
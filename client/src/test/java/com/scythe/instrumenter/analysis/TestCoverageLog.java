@@ -0,0 +1,112 @@
+package com.scythe.instrumenter.analysis;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Map;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestCoverageLog {
+
+  private File file;
+
+  @Before
+  public void setup() throws IOException {
+    file = File.createTempFile("scythe", ".log");
+    try (FileOutputStream out = new FileOutputStream(file)) {
+      CoverageLog.writeHeader(out);
+      ByteArrayOutputStream records = new ByteArrayOutputStream();
+      DataOutputStream batch = new DataOutputStream(records);
+      batch.writeByte(CoverageLog.SESSION);
+      batch.writeLong(0);
+      CoverageLog.writeClass(batch, 3, "a/B", new int[]{10, 11, 0, 300});
+      hits(batch, 3, 0, 5);
+      CoverageLog.writeBatch(out, records, false);
+
+      records.reset();
+      hits(batch, 3, 3, 3000000000L);
+      CoverageLog.writeBatch(out, records, false);
+
+      // a new session, where the class has another id
+      records.reset();
+      batch.writeByte(CoverageLog.SESSION);
+      batch.writeLong(100);
+      CoverageLog.writeClass(batch, 1, "a/B", new int[]{10, 11, 0, 300});
+      hits(batch, 1, 0, 2);
+      CoverageLog.writeBatch(out, records, false);
+
+      // a batch cut short by the writer dying
+      records.reset();
+      hits(batch, 1, 1, 7);
+      out.write(records.toByteArray(), 0, 4);
+    }
+  }
+
+  private static void hits(DataOutputStream out, int classId, int counterId, long hits)
+      throws IOException {
+    out.writeByte(CoverageLog.HITS);
+    out.writeLong(0);
+    EpochSeries.writeVarInt(out, 1);
+    EpochSeries.writeVarInt(out, classId);
+    EpochSeries.writeVarInt(out, 1);
+    EpochSeries.writeVarInt(out, counterId);
+    CoverageLog.writeVarLong(out, hits);
+  }
+
+  @After
+  public void tearDown() {
+    file.delete();
+  }
+
+  @Test
+  public void testHitsAreAddedUpAcrossSessions() throws IOException {
+    Map<String, CoverageLog.ClassHits> classes = CoverageLog.read(file);
+    assertEquals(1, classes.size());
+    assertArrayEquals(new int[]{10, 11, 0, 300}, classes.get("a/B").getLines());
+    assertArrayEquals(new long[]{7, 0, 0, 3000000000L}, classes.get("a/B").getHits());
+  }
+
+  @Test
+  public void testCompactKeepsTotals() throws IOException {
+    CoverageLog.compact(file);
+    Map<String, CoverageLog.ClassHits> classes = CoverageLog.read(file);
+    assertArrayEquals(new long[]{7, 0, 0, 3000000000L}, classes.get("a/B").getHits());
+
+    // the compacted log can be appended to
+    try (FileOutputStream out = new FileOutputStream(file, true)) {
+      ByteArrayOutputStream records = new ByteArrayOutputStream();
+      DataOutputStream batch = new DataOutputStream(records);
+      batch.writeByte(CoverageLog.SESSION);
+      batch.writeLong(200);
+      CoverageLog.writeClass(batch, 0, "a/B", new int[]{10, 11, 0, 300});
+      hits(batch, 0, 1, 4);
+      CoverageLog.writeBatch(out, records, false);
+    }
+    assertArrayEquals(new long[]{7, 4, 0, 3000000000L},
+        CoverageLog.read(file).get("a/B").getHits());
+  }
+
+  @Test
+  public void testChangedClassStartsAgain() throws IOException {
+    long length = file.length();
+    CoverageLog.recover(file);
+    assertEquals(length - 4, file.length());
+    try (FileOutputStream out = new FileOutputStream(file, true)) {
+      ByteArrayOutputStream records = new ByteArrayOutputStream();
+      DataOutputStream batch = new DataOutputStream(records);
+      batch.writeByte(CoverageLog.SESSION);
+      batch.writeLong(200);
+      CoverageLog.writeClass(batch, 0, "a/B", new int[]{10, 12});
+      hits(batch, 0, 1, 4);
+      CoverageLog.writeBatch(out, records, false);
+    }
+    assertArrayEquals(new long[]{0, 4}, CoverageLog.read(file).get("a/B").getHits());
+  }
+}
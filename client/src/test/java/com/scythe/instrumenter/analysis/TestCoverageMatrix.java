@@ -0,0 +1,78 @@
+package com.scythe.instrumenter.analysis;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.scythe.instrumenter.instrumentation.objectrepresentation.Branch;
+import com.scythe.instrumenter.instrumentation.objectrepresentation.Line;
+import com.scythe.instrumenter.testcase.TestCaseWrapper;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestCoverageMatrix {
+
+  private static final String CLASS_NAME = "org.mock.testclass.MatrixClass";
+
+  private TestCaseWrapper first;
+  private TestCaseWrapper second;
+
+  @Before
+  public void setup() throws NoSuchMethodException {
+    CoverageMatrix.clear();
+    first = new TestCaseWrapper(getClass(), getClass().getMethod("testBothDirections"));
+    second = new TestCaseWrapper(getClass(), getClass().getMethod("testClearForgetsTests"));
+  }
+
+  @Test
+  public void testBothDirections() {
+    Line line = new Line(CLASS_NAME, "a", 5);
+    Branch branch = new Branch(CLASS_NAME, "a", 5);
+    branch.setGoalId(12);
+    for (int i = 0; i < 1000; i++) {
+      line.addCoveringTest(first);
+    }
+    line.addCoveringTest(second);
+    branch.addCoveringTest(new TestCaseWrapper(first.getTestClass(), first.getTestMethod()));
+
+    assertEquals(Arrays.asList(first, second), line.getCoveringTests());
+    // goals are matched by class and line or goal id, not by object
+    assertEquals(Arrays.asList(first, second),
+        new Line(CLASS_NAME, "a", 5).clone().getCoveringTests());
+    assertEquals(Collections.singletonList(first), branch.getCoveringTests());
+
+    List<CoverageMatrix.Goal> covered = CoverageMatrix.getCoveredGoals(first);
+    assertEquals(Arrays.asList(new CoverageMatrix.Goal(CLASS_NAME, false, 5),
+        new CoverageMatrix.Goal(CLASS_NAME, true, 12)), covered);
+    assertTrue(CoverageMatrix.covers(second, line));
+    assertFalse(CoverageMatrix.covers(second, branch));
+  }
+
+  @Test
+  public void testClearForgetsTests() {
+    Line line = new Line(CLASS_NAME, "a", 5);
+    line.addCoveringTest(first);
+    int generation = CoverageMatrix.getGeneration();
+    CoverageMatrix.clear();
+    assertTrue(line.getCoveringTests().isEmpty());
+    assertTrue(CoverageMatrix.getGeneration() != generation);
+  }
+
+  @Test
+  public void testClonesKeepTheirTests() {
+    Branch branch = new Branch(CLASS_NAME, "a", 5);
+    branch.setGoalId(12);
+    branch.addCoveringTest(first);
+    Branch clone = branch.clone();
+    Line line = new Line(CLASS_NAME, "a", 5);
+    line.addCoveringTest(second);
+    Line lineClone = line.clone();
+    CoverageMatrix.clear();
+
+    assertEquals(Collections.singletonList(first), clone.getCoveringTests());
+    assertEquals(Collections.singletonList(second), lineClone.getCoveringTests());
+  }
+}
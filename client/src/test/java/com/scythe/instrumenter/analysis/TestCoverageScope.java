@@ -0,0 +1,72 @@
+package com.scythe.instrumenter.analysis;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.Map;
+import org.junit.Test;
+
+public class TestCoverageScope {
+
+  private static final int THREADS = 8;
+  private static final int INCREMENTS = 20000;
+
+  @Test
+  public void testScopesOnParallelThreadsAreKeptApart() throws InterruptedException {
+    final StripedCounters counters = new StripedCounters(THREADS);
+    counters.setClassId(Integer.MAX_VALUE);
+    final CoverageScope[] scopes = new CoverageScope[THREADS];
+    Thread[] threads = new Thread[THREADS];
+    for (int t = 0; t < THREADS; t++) {
+      final int thread = t;
+      threads[t] = new Thread(() -> {
+        counters.get()[thread]++;
+        try (CoverageScope scope = CoverageScope.open()) {
+          scopes[thread] = scope;
+          for (int i = 0; i < INCREMENTS; i++) {
+            counters.get()[thread]++;
+          }
+        }
+      });
+      threads[t].start();
+    }
+    for (Thread t : threads) {
+      t.join();
+    }
+    for (int t = 0; t < THREADS; t++) {
+      int[] expected = new int[THREADS];
+      expected[t] = INCREMENTS;
+      assertArrayEquals(expected, scopes[t].getHitCounters().get(Integer.MAX_VALUE));
+    }
+    int[] sum = counters.sum();
+    for (int t = 0; t < THREADS; t++) {
+      assertEquals(INCREMENTS + 1, sum[t]);
+    }
+    // the closed scopes have been folded in
+    assertArrayEquals(sum, counters.sum());
+  }
+
+  @Test
+  public void testNestedAndWrappedWork() throws InterruptedException {
+    StripedCounters counters = new StripedCounters(1);
+    counters.setClassId(Integer.MAX_VALUE - 1);
+    CoverageScope outer = CoverageScope.open();
+    CoverageScope inner = CoverageScope.open();
+    counters.get()[0]++;
+    Thread worker = new Thread(inner.wrap(() -> counters.get()[0] += 2));
+    worker.start();
+    worker.join();
+    inner.close();
+    assertSame(outer, CoverageScope.current());
+    counters.get()[0] += 10;
+    outer.close();
+    assertNull(CoverageScope.current());
+
+    Map<Integer, int[]> innerHits = inner.getHitCounters();
+    assertEquals(3, innerHits.get(Integer.MAX_VALUE - 1)[0]);
+    assertEquals(10, outer.getHitCounters().get(Integer.MAX_VALUE - 1)[0]);
+    assertEquals(13, counters.sum()[0]);
+  }
+}
@@ -0,0 +1,69 @@
+package com.scythe.instrumenter.analysis;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.BitSet;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestDirtyClasses {
+
+  @Before
+  public void setup() {
+    DirtyClasses.drain();
+  }
+
+  @Test
+  public void testMarkedUntilDrained() {
+    DirtyClasses.mark(3);
+    DirtyClasses.mark(64);
+    DirtyClasses.mark(3);
+    assertTrue(DirtyClasses.isMarked(64));
+    assertFalse(DirtyClasses.isMarked(4));
+    assertArrayEquals(new int[]{3, 64}, DirtyClasses.marked());
+    assertArrayEquals(new int[]{3, 64}, DirtyClasses.drain());
+    assertEquals(0, DirtyClasses.marked().length);
+  }
+
+  @Test
+  public void testGrowsPastInitialSize() {
+    DirtyClasses.mark(100000);
+    assertArrayEquals(new int[]{100000}, DirtyClasses.drain());
+  }
+
+  @Test
+  public void testNoMarkIsLostWhileDraining() throws InterruptedException {
+    final int classes = 20000;
+    Thread[] threads = new Thread[4];
+    for (int t = 0; t < threads.length; t++) {
+      final int first = t;
+      threads[t] = new Thread(() -> {
+        for (int id = first; id < classes; id += threads.length) {
+          DirtyClasses.mark(id);
+        }
+      });
+      threads[t].start();
+    }
+    BitSet seen = new BitSet();
+    boolean running = true;
+    while (running) {
+      running = false;
+      for (Thread t : threads) {
+        running |= t.isAlive();
+      }
+      for (int id : DirtyClasses.drain()) {
+        seen.set(id);
+      }
+    }
+    for (Thread t : threads) {
+      t.join();
+    }
+    for (int id : DirtyClasses.drain()) {
+      seen.set(id);
+    }
+    assertEquals(classes, seen.cardinality());
+  }
+}
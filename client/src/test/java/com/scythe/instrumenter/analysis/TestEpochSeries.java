@@ -0,0 +1,78 @@
+package com.scythe.instrumenter.analysis;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestEpochSeries {
+
+  private File file;
+
+  @Before
+  public void setup() throws IOException {
+    file = File.createTempFile("scythe", ".epochs");
+    try (DataOutputStream out = new DataOutputStream(new FileOutputStream(file))) {
+      out.writeInt(EpochSeries.MAGIC);
+      out.writeInt(EpochSeries.VERSION);
+      out.writeLong(0);
+      out.writeByte(EpochSeries.SESSION);
+      out.writeLong(0);
+      out.writeByte(EpochSeries.CLASS);
+      EpochSeries.writeVarInt(out, 3);
+      out.writeUTF("a/B");
+      EpochSeries.writeVarInt(out, 4);
+      for (int line : new int[]{10, 11, 0, 300}) {
+        EpochSeries.writeVarInt(out, line);
+      }
+      epoch(out, 0, 100, 0, 5);
+      epoch(out, 100, 200, 3, 1000);
+      // a record cut short by the writer dying
+      out.writeByte(EpochSeries.EPOCH);
+      out.writeLong(200);
+    }
+  }
+
+  private static void epoch(DataOutputStream out, long start, long end, int counterId, int hits)
+      throws IOException {
+    out.writeByte(EpochSeries.EPOCH);
+    out.writeLong(start);
+    out.writeLong(end);
+    EpochSeries.writeVarInt(out, 1);
+    EpochSeries.writeVarInt(out, 3);
+    EpochSeries.writeVarInt(out, 1);
+    EpochSeries.writeVarInt(out, counterId);
+    EpochSeries.writeVarInt(out, hits);
+  }
+
+  @After
+  public void tearDown() {
+    file.delete();
+  }
+
+  @Test
+  public void testLinesExecutedSince() throws IOException {
+    Map<String, Set<Integer>> lines = EpochSeries.linesExecutedSince(file, 150);
+    assertEquals(Collections.singletonMap("a/B", new TreeSet<Integer>(Arrays.asList(300))),
+        lines);
+
+    lines = EpochSeries.linesExecutedBetween(file, 0, 50);
+    assertEquals(Collections.singletonMap("a/B", new TreeSet<Integer>(Arrays.asList(10))), lines);
+  }
+
+  @Test
+  public void testLinesNeverExecuted() throws IOException {
+    assertEquals(Collections.singletonMap("a/B", new TreeSet<Integer>(Arrays.asList(11))),
+        EpochSeries.linesNeverExecuted(file));
+  }
+}
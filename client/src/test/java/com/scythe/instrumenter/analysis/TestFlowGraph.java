@@ -0,0 +1,146 @@
+package com.scythe.instrumenter.analysis;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.scythe.instrumenter.InstrumentationProperties;
+import com.scythe.instrumenter.InstrumentationProperties.ProbePlacement;
+import com.scythe.instrumenter.instrumentation.objectrepresentation.Branch;
+import com.scythe.instrumenter.instrumentation.modifiers.ArrayEdgeVisitor;
+import com.scythe.instrumenter.instrumentation.objectrepresentation.Line;
+import com.scythe.instrumenter.instrumentation.visitors.ArrayClassVisitor;
+import com.scythe.instrumenter.instrumentation.visitors.InstrumentedLoader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.junit.After;
+import org.junit.Test;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import test.classes.ExampleClass;
+import test.classes.HotLoop;
+
+public class TestFlowGraph {
+
+  // entry(0) -> loop header(1) -> body(2) -> header, header -> exit block(3) -> EXIT(4)
+  private static final int[] FROM = {4, 0, 1, 2, 1, 3};
+  private static final int[] TO = {0, 1, 2, 1, 3, 4};
+
+  @After
+  public void tearDown() {
+    InstrumentationProperties.PROBE_PLACEMENT = ProbePlacement.GOAL;
+    ClassAnalyzer.reset();
+  }
+
+  @Test
+  public void testTreeEdgesAreSolved() {
+    // the loop exit is probed in counter 0 and the back edge in counter 1
+    int[] probes = {-1, -1, -1, 1, 0, -1};
+    FlowGraph graph = new FlowGraph(5, FROM, TO, probes, new int[0], new int[0], new int[0],
+        new int[0]);
+    long[] edges = graph.solve(new int[]{3, 12});
+
+    assertArrayEquals(new long[]{3, 3, 12, 12, 3, 3}, edges);
+  }
+
+  @Test
+  public void testCountersAreRebuilt() {
+    int[] probes = {-1, -1, -1, 1, 0, -1};
+    // line counter 2 is in the loop body, branch counter 3 is the loop exit
+    FlowGraph graph = new FlowGraph(5, FROM, TO, probes, new int[]{2}, new int[]{2},
+        new int[]{3, 4}, new int[]{4, 0});
+    int[] counters = {3, 12, 0, 0, 0};
+    graph.apply(counters);
+
+    assertEquals(12, counters[2]);
+    assertEquals(3, counters[3]);
+    assertEquals(3, counters[4]);
+  }
+
+  @Test
+  public void testUnregisteredClassIsUnchanged() {
+    int[] counters = {1, 2};
+    assertEquals(counters, FlowGraph.expand(-1, counters));
+  }
+
+  @Test
+  public void testSpanningTreeCountsMatchGoalProbes() throws Exception {
+    List<String> goal = run(ProbePlacement.GOAL);
+    List<String> tree = run(ProbePlacement.SPANNING_TREE);
+
+    assertNotEquals(Collections.emptyList(), goal);
+    assertEquals(goal, tree);
+  }
+
+  @Test
+  public void testFallbackProbesEntryOnceCodeBegins() {
+    final List<String> events = new ArrayList<String>();
+    MethodVisitor recorder = new MethodVisitor(Opcodes.ASM5) {
+      @Override
+      public void visitCode() {
+        events.add("code");
+      }
+
+      @Override
+      public void visitFieldInsn(int opcode, String owner, String name, String desc) {
+        events.add("insn");
+      }
+    };
+    ArrayClassVisitor parent = new ArrayClassVisitor(new ClassWriter(0), "Fallback");
+    // exception handlers send the method to the line and branch visitors
+    MethodVisitor mv = new ArrayEdgeVisitor(parent, recorder, "Fallback", Opcodes.ACC_STATIC,
+        "run", "()V", null, null, 0);
+    Label start = new Label();
+    Label end = new Label();
+    mv.visitCode();
+    mv.visitTryCatchBlock(start, end, end, null);
+    mv.visitLabel(start);
+    mv.visitInsn(Opcodes.RETURN);
+    mv.visitLabel(end);
+    mv.visitInsn(Opcodes.ATHROW);
+    mv.visitMaxs(1, 0);
+    mv.visitEnd();
+
+    assertEquals("code", events.get(0));
+    assertTrue(events.contains("insn"));
+  }
+
+  /**
+   * Runs HotLoop and ExampleClass instrumented with probes placed one way.
+   *
+   * @return the hits of every line and branch, sorted
+   */
+  private static List<String> run(ProbePlacement placement) throws Exception {
+    ClassAnalyzer.reset();
+    InstrumentationProperties.PROBE_PLACEMENT = placement;
+    InstrumentedLoader loader = new InstrumentedLoader();
+    Class<?> hotLoop = loader.instrument(HotLoop.class);
+    Class<?> example = loader.instrument(ExampleClass.class);
+
+    hotLoop.getMethod("run", int.class).invoke(null, 5000);
+    Object o = example.newInstance();
+    example.getMethod("abs", int.class).invoke(o, 5);
+    example.getMethod("abs", int.class).invoke(o, -3);
+    example.getMethod("abs", int.class).invoke(o, 7);
+    example.getMethod("abs", int.class, int.class).invoke(o, 1, 2);
+    example.getMethod("isZero", float.class).invoke(o, 0f);
+    ClassAnalyzer.collectHitCounters(false);
+
+    List<String> hits = new ArrayList<String>();
+    for (Class<?> cl : new Class<?>[]{HotLoop.class, ExampleClass.class}) {
+      for (Line line : ClassAnalyzer.getCoverableLines(cl.getName())) {
+        hits.add("line " + line.getClassName() + ":" + line.getLineNumber() + "=" + line.getHits());
+      }
+      for (Branch branch : ClassAnalyzer.getCoverableBranches(cl.getName())) {
+        hits.add("branch " + branch.getClassName() + ":" + branch.getLineNumber() + "="
+            + branch.getHits());
+      }
+    }
+    Collections.sort(hits);
+    return hits;
+  }
+}
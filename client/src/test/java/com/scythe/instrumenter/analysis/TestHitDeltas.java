@@ -0,0 +1,61 @@
+package com.scythe.instrumenter.analysis;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import org.junit.Test;
+
+public class TestHitDeltas {
+
+  @Test
+  public void testHitsBetweenReadAndResetAreKept() throws IOException {
+    int[] counters = new int[]{2, 0, 1};
+    ProbeArrays.register(20010, counters, new float[0]);
+    HitDeltas deltas = new HitDeltas();
+    assertArrayEquals(new int[]{2, 0, 1}, write(deltas, 20010));
+
+    // hit after the collector read the class, but before coverage was reset
+    counters[0] += 3;
+    deltas.beforeReset();
+    ProbeArrays.reset(20010);
+    counters[1]++;
+    assertArrayEquals(new int[]{3, 1, 0}, write(deltas, 20010));
+  }
+
+  @Test
+  public void testCountersSetBackToZeroAreReadAfresh() throws IOException {
+    HitDeltas deltas = new HitDeltas();
+    assertArrayEquals(new int[]{4}, write(deltas, 20011, new int[]{4}));
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    assertFalse(deltas.write(new DataOutputStream(bytes), 20011, new int[]{4}, false));
+    deltas.beforeReset();
+    assertArrayEquals(new int[]{1}, write(deltas, 20011, new int[]{1}));
+  }
+
+  private static int[] write(HitDeltas deltas, int classId) throws IOException {
+    return write(deltas, classId, ProbeArrays.getTotalCounters(classId));
+  }
+
+  /**
+   * @return the hits written for each counter
+   */
+  private static int[] write(HitDeltas deltas, int classId, int[] counters) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    assertTrue(deltas.write(new DataOutputStream(bytes), classId, counters, true));
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+    int[] hits = new int[counters.length];
+    EpochSeries.readVarInt(in);
+    int counter = 0;
+    for (int i = EpochSeries.readVarInt(in); i > 0; i--) {
+      counter += EpochSeries.readVarInt(in);
+      hits[counter] = (int) CoverageLog.readVarLong(in);
+    }
+    return hits;
+  }
+}
@@ -0,0 +1,119 @@
+package com.scythe.instrumenter.analysis;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import com.scythe.instrumenter.InstrumentationProperties;
+import com.scythe.instrumenter.InstrumentationProperties.CounterLayout;
+import com.scythe.instrumenter.analysis.MappedCoverageReader.ClassCounters;
+import com.scythe.instrumenter.instrumentation.visitors.InstrumentedLoader;
+import java.io.File;
+import java.io.IOException;
+import java.nio.IntBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import test.classes.ExampleClass;
+
+public class TestMappedCoverage {
+
+  private String coverageMapFile;
+
+  @Before
+  public void setup() throws IOException {
+    coverageMapFile = InstrumentationProperties.COVERAGE_MAP_FILE;
+    // each test writes to a file of its own
+    MappedCoverage.close();
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    MappedCoverage.close();
+    InstrumentationProperties.COVERAGE_MAP_FILE = coverageMapFile;
+    InstrumentationProperties.COUNTER_LAYOUT = CounterLayout.CLASS;
+    ClassAnalyzer.reset();
+  }
+
+  @Test
+  public void testCountersCanBeReadFromFile() throws IOException {
+    File file = File.createTempFile("coverage", ".map");
+    file.deleteOnExit();
+    InstrumentationProperties.COVERAGE_MAP_FILE = file.getAbsolutePath();
+
+    IntBuffer first = MappedCoverage.allocate("test/First", 3);
+    // larger than a chunk, so it is mapped after a padding record
+    IntBuffer second = MappedCoverage.allocate("test/Second", 300000);
+    first.put(1, 4);
+    second.put(299999, 2);
+
+    List<ClassCounters> classes = MappedCoverageReader.read(file);
+    assertEquals(2, classes.size());
+    assertEquals("test.First", classes.get(0).getClassName());
+    assertArrayEquals(new int[]{0, 4, 0}, classes.get(0).getCounters());
+    assertEquals(2, classes.get(1).getCounters()[299999]);
+
+    MappedCoverage.clear(first);
+    assertArrayEquals(new int[3], MappedCoverage.toArray(first));
+  }
+
+  @Test
+  public void testRecordsOfEarlierRunsAreKept() throws IOException {
+    File file = File.createTempFile("coverage", ".map");
+    file.deleteOnExit();
+    InstrumentationProperties.COVERAGE_MAP_FILE = file.getAbsolutePath();
+    MappedCoverage.allocate("test/First", 2).put(0, 7);
+    // as if the JVM had died and another had started
+    MappedCoverage.close();
+    MappedCoverage.allocate("test/Second", 1).put(0, 1);
+
+    List<ClassCounters> classes = MappedCoverageReader.read(file);
+    assertEquals(2, classes.size());
+    assertArrayEquals(new int[]{7, 0}, classes.get(0).getCounters());
+    assertEquals("test.Second", classes.get(1).getClassName());
+  }
+
+  @Test
+  public void testOtherFilesAreStartedAgain() throws IOException {
+    File file = File.createTempFile("coverage", ".map");
+    file.deleteOnExit();
+    Files.write(file.toPath(), "not a coverage file".getBytes(StandardCharsets.UTF_8));
+    InstrumentationProperties.COVERAGE_MAP_FILE = file.getAbsolutePath();
+    MappedCoverage.allocate("test/First", 1).put(0, 3);
+
+    List<ClassCounters> classes = MappedCoverageReader.read(file);
+    assertEquals(1, classes.size());
+    assertArrayEquals(new int[]{3}, classes.get(0).getCounters());
+  }
+
+  @Test
+  public void testInstrumentedClassCountsAreReadFromFile() throws Exception {
+    File file = File.createTempFile("coverage", ".map");
+    file.deleteOnExit();
+    InstrumentationProperties.COVERAGE_MAP_FILE = file.getAbsolutePath();
+    ClassAnalyzer.reset();
+    InstrumentationProperties.COUNTER_LAYOUT = CounterLayout.MAPPED;
+
+    Class<?> ic = new InstrumentedLoader().instrument(ExampleClass.class);
+    Object o = ic.newInstance();
+    ic.getMethod("abs", int.class).invoke(o, 5);
+    ic.getMethod("abs", int.class).invoke(o, -3);
+    ic.getMethod("abs", int.class).invoke(o, -4);
+
+    List<ClassCounters> classes = MappedCoverageReader.read(file);
+    assertEquals(1, classes.size());
+    assertEquals(ExampleClass.class.getName(), classes.get(0).getClassName());
+    Map<Integer, Integer> lines = new HashMap<Integer, Integer>();
+    for (int i = 0; i < classes.get(0).getLines().length; i++) {
+      lines.put(classes.get(0).getLines()[i], classes.get(0).getCounters()[i]);
+    }
+    assertEquals(Integer.valueOf(3), lines.get(12));
+    assertEquals(Integer.valueOf(1), lines.get(13));
+    assertEquals(Integer.valueOf(2), lines.get(15));
+    assertEquals(Integer.valueOf(0), lines.get(19));
+  }
+}
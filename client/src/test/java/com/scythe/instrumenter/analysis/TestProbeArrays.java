@@ -0,0 +1,67 @@
+package com.scythe.instrumenter.analysis;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+public class TestProbeArrays {
+
+  @Test
+  public void testResetLeavesCountersAlone() {
+    int[] counters = new int[]{3, 0, 7};
+    ProbeArrays.register(20000, counters, new float[0]);
+    ProbeArrays.setChanged(20000);
+
+    assertArrayEquals(new int[]{3, 0, 7}, ProbeArrays.snapshot(20000, true));
+    assertArrayEquals(new int[]{3, 0, 7}, counters);
+    assertFalse(ProbeArrays.changed[20000]);
+
+    counters[1] += 2;
+    counters[2]++;
+    assertArrayEquals(new int[]{0, 2, 1}, ProbeArrays.getCounters(20000));
+    ProbeArrays.reset(20000);
+    assertArrayEquals(new int[]{0, 0, 0}, ProbeArrays.snapshot(20000, false));
+  }
+
+  @Test
+  public void testSnapshotsReuseTheirArray() {
+    ProbeArrays.register(20001, new int[2], new float[0]);
+    int[] first = ProbeArrays.snapshot(20001, true);
+    assertSame(first, ProbeArrays.snapshot(20001, true));
+    assertNull(ProbeArrays.snapshot(20002, true));
+  }
+
+  @Test
+  public void testNoHitIsLostWhileSnapshotting() throws InterruptedException {
+    final int hits = 5000000;
+    final int[] counters = new int[1];
+    ProbeArrays.register(20003, counters, new float[0]);
+    Thread probe = new Thread(() -> {
+      for (int i = 0; i < hits; i++) {
+        counters[0]++;
+      }
+    });
+    probe.start();
+    long counted = 0;
+    while (probe.isAlive()) {
+      counted += ProbeArrays.snapshot(20003, true)[0];
+    }
+    probe.join();
+    counted += ProbeArrays.snapshot(20003, true)[0];
+    assertEquals(hits, counted);
+  }
+
+  @Test
+  public void testClassAnalyzerResetForgetsEveryClass() {
+    ProbeArrays.register(20004, new int[1], new float[0]);
+    ProbeArrays.setChanged(20004);
+    DirtyClasses.mark(20004);
+    ClassAnalyzer.reset();
+    assertFalse(ProbeArrays.isRegistered(20004));
+    assertFalse(DirtyClasses.isMarked(20004));
+  }
+}
@@ -0,0 +1,66 @@
+package com.scythe.instrumenter.analysis;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class TestProfiler {
+
+  private static void spin(long nanos) {
+    long end = System.nanoTime() + nanos;
+    while (System.nanoTime() < end) {
+      // busy wait
+    }
+  }
+
+  @Test
+  public void testSelfTimeExcludesCallees() {
+    long[] counters = new long[2 * Profiler.FIELDS];
+    Profiler profiler = Profiler.current();
+    int outer = profiler.enter();
+    spin(1000000);
+    int inner = profiler.enter();
+    spin(5000000);
+    profiler.exit(counters, Profiler.FIELDS, inner);
+    profiler.exit(counters, 0, outer);
+
+    assertEquals(1, counters[Profiler.INVOCATIONS]);
+    assertEquals(1, counters[Profiler.FIELDS + Profiler.INVOCATIONS]);
+    long innerTime = counters[Profiler.FIELDS + Profiler.TIME];
+    assertEquals(innerTime, counters[Profiler.FIELDS + Profiler.SELF_TIME]);
+    assertTrue(innerTime >= 5000000);
+    assertEquals(counters[Profiler.TIME] - innerTime, counters[Profiler.SELF_TIME]);
+    assertTrue(counters[Profiler.SELF_TIME] >= 1000000);
+    assertTrue(counters[Profiler.SELF_TIME] < innerTime);
+    assertEquals(counters[Profiler.TIME], counters[Profiler.MAX_TIME]);
+  }
+
+  @Test
+  public void testMissedExitDoesNotCorruptCaller() {
+    long[] counters = new long[Profiler.FIELDS];
+    Profiler profiler = Profiler.current();
+    int outer = profiler.enter();
+    // an exit that never happens, e.g. a callee killed by an error in its handler
+    profiler.enter();
+    profiler.exit(counters, 0, outer);
+    assertEquals(outer, profiler.enter());
+    profiler.exit(counters, 0, outer);
+    assertEquals(2, counters[Profiler.INVOCATIONS]);
+  }
+
+  @Test
+  public void testDeepStacksGrow() {
+    long[] counters = new long[Profiler.FIELDS];
+    Profiler profiler = Profiler.current();
+    int[] frames = new int[1000];
+    for (int i = 0; i < frames.length; i++) {
+      frames[i] = profiler.enter();
+    }
+    for (int i = frames.length - 1; i >= 0; i--) {
+      profiler.exit(counters, 0, frames[i]);
+    }
+    assertEquals(frames.length, counters[Profiler.INVOCATIONS]);
+    assertTrue(counters[Profiler.TIME] >= counters[Profiler.SELF_TIME]);
+  }
+}
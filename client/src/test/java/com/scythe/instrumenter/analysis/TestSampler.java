@@ -0,0 +1,80 @@
+package com.scythe.instrumenter.analysis;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.scythe.instrumenter.InstrumentationProperties;
+import com.scythe.instrumenter.instrumentation.objectrepresentation.Line;
+import com.scythe.instrumenter.instrumentation.visitors.InstrumentedLoader;
+import org.junit.After;
+import org.junit.Test;
+import test.classes.ExampleClass;
+
+public class TestSampler {
+
+  @After
+  public void tearDown() {
+    InstrumentationProperties.SAMPLE_RATE = 1;
+    ClassAnalyzer.reset();
+  }
+
+  @Test
+  public void testIntervalsAverageSampleRate() {
+    InstrumentationProperties.SAMPLE_RATE = 16;
+    int slot = Sampler.slot();
+    long total = 0;
+    for (int i = 0; i < 100000; i++) {
+      int interval = Sampler.reload(slot);
+      assertTrue(interval >= 1 && interval <= 31);
+      total += interval;
+    }
+    assertEquals(16.0, total / 100000.0, 0.2);
+  }
+
+  @Test
+  public void testOneInSampleRateDecisionsSamples() {
+    InstrumentationProperties.SAMPLE_RATE = 16;
+    // runs out the countdown left by earlier tests, which may have used another rate
+    while (!Sampler.sample()) {
+    }
+    int sampled = 0;
+    for (int i = 0; i < 160000; i++) {
+      if (Sampler.sample()) {
+        sampled++;
+      }
+    }
+    assertEquals(10000, sampled, 300);
+  }
+
+  @Test
+  public void testFirstHitIsNotScaled() {
+    InstrumentationProperties.SAMPLE_RATE = 16;
+    assertEquals(0, Sampler.scale(0));
+    assertEquals(1, Sampler.scale(1));
+    assertEquals(33, Sampler.scale(3));
+    assertEquals(Integer.MAX_VALUE, Sampler.scale(Integer.MAX_VALUE));
+  }
+
+  @Test
+  public void testFirstHitAfterResetIsRecorded() throws Exception {
+    ClassAnalyzer.reset();
+    InstrumentationProperties.SAMPLE_RATE = 1 << 20;
+    Class<?> ic = new InstrumentedLoader().instrument(ExampleClass.class);
+    Object o = ic.newInstance();
+    for (int i = 0; i < 100; i++) {
+      ic.getMethod("abs", int.class).invoke(o, 5);
+    }
+    ClassAnalyzer.resetHitCounters(ic);
+
+    ic.getMethod("abs", int.class).invoke(o, 5);
+    ClassAnalyzer.collectHitCountersForClass(ic, false);
+    long hits = -1;
+    for (Line line : ClassAnalyzer.getCoverableLines(ExampleClass.class.getName())) {
+      if (line.getLineNumber() == 13) {
+        hits = line.getHits();
+      }
+    }
+    // the line was hit before the reset, but its first hit since must still be recorded
+    assertEquals(1, hits);
+  }
+}
@@ -0,0 +1,56 @@
+package com.scythe.instrumenter.analysis;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class TestStaticCounters {
+
+  private static final int CLASS_ID = 10000;
+
+  @Test
+  public void testLinesAndBranchesAreCountedSeparately() {
+    StaticCounters.register(CLASS_ID, 20, 100, 3);
+    StaticCounters counters = StaticCounters.get(CLASS_ID);
+    assertTrue(counters.lineExecuted(19));
+    assertTrue(counters.lineExecuted(19));
+    assertTrue(counters.branchExecuted(102));
+    assertFalse(counters.lineExecuted(20));
+    assertFalse(counters.branchExecuted(99));
+    assertFalse(counters.branchExecuted(103));
+
+    int[] counts = counters.sum();
+    assertEquals(2, counts[19]);
+    assertEquals(1, counts[20 + 2]);
+    counters.reset();
+    assertEquals(0, counters.sum()[19]);
+  }
+
+  @Test
+  public void testUnregisteredClassHasNoCounters() {
+    assertNull(StaticCounters.get(-1));
+    assertNull(StaticCounters.get(CLASS_ID * 100));
+  }
+
+  @Test
+  public void testHitsFromManyThreadsAreExact() throws InterruptedException {
+    StaticCounters.register(CLASS_ID + 1, 2, 0, 0);
+    final StaticCounters counters = StaticCounters.get(CLASS_ID + 1);
+    Thread[] threads = new Thread[8];
+    for (int t = 0; t < threads.length; t++) {
+      threads[t] = new Thread(() -> {
+        for (int i = 0; i < 10000; i++) {
+          counters.lineExecuted(1);
+        }
+      });
+      threads[t].start();
+    }
+    for (Thread t : threads) {
+      t.join();
+    }
+    assertEquals(80000, counters.sum()[1]);
+  }
+}
@@ -0,0 +1,121 @@
+package com.scythe.instrumenter.analysis;
+
+import static org.junit.Assert.assertEquals;
+
+import com.scythe.instrumenter.InstrumentationProperties;
+import com.scythe.instrumenter.InstrumentationProperties.CounterLayout;
+import com.scythe.instrumenter.instrumentation.objectrepresentation.Line;
+import com.scythe.instrumenter.instrumentation.visitors.InstrumentedLoader;
+import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.Map;
+import org.junit.After;
+import org.junit.Test;
+import test.classes.HotLoop;
+
+public class TestStripedCounters {
+
+  private static final int THREADS = 16;
+  private static final int INCREMENTS = 50000;
+
+  @After
+  public void tearDown() {
+    InstrumentationProperties.COUNTER_LAYOUT = CounterLayout.CLASS;
+    ClassAnalyzer.reset();
+  }
+
+  @Test
+  public void testCountsAreExactUnderContention() throws InterruptedException {
+    final StripedCounters counters = new StripedCounters(2);
+    Thread[] threads = new Thread[THREADS];
+    for (int t = 0; t < THREADS; t++) {
+      threads[t] = new Thread(() -> {
+        for (int i = 0; i < INCREMENTS; i++) {
+          int[] stripe = counters.get();
+          stripe[1]++;
+        }
+      });
+      threads[t].start();
+    }
+    for (Thread t : threads) {
+      t.join();
+    }
+    int[] sum = counters.sum();
+    assertEquals(0, sum[0]);
+    assertEquals(THREADS * INCREMENTS, sum[1]);
+  }
+
+  @Test
+  public void testDeadThreadsAreRetained() throws InterruptedException {
+    final StripedCounters counters = new StripedCounters(1);
+    Thread t = new Thread(() -> counters.get()[0] += 5);
+    t.start();
+    t.join();
+    // first sum folds the dead stripe into the retired counts
+    assertEquals(5, counters.sum()[0]);
+    assertEquals(5, counters.sum()[0]);
+  }
+
+  @Test
+  public void testReset() {
+    StripedCounters counters = new StripedCounters(1);
+    counters.get()[0] = 3;
+    counters.reset();
+    assertEquals(0, counters.sum()[0]);
+    counters.get()[0]++;
+    assertEquals(1, counters.sum()[0]);
+  }
+
+  @Test
+  public void testMethodsOutlivingTheirScopeKeepCounting() {
+    StripedCounters counters = new StripedCounters(1);
+    CoverageScope scope = CoverageScope.open();
+    // a method invoked in the scope holds its stripe until it returns
+    int[] stripe = counters.get();
+    stripe[0]++;
+    scope.close();
+    assertEquals(1, counters.sum()[0]);
+    stripe[0]++;
+    assertEquals(2, counters.sum()[0]);
+    counters.reset();
+    stripe[0]++;
+    assertEquals(1, counters.sum()[0]);
+  }
+
+  @Test
+  public void testInstrumentedClassCountsEveryThread() throws Exception {
+    ClassAnalyzer.reset();
+    InstrumentationProperties.COUNTER_LAYOUT = CounterLayout.STRIPED;
+    Method step = new InstrumentedLoader().instrument(HotLoop.class)
+        .getMethod("step", int.class);
+    final int calls = 10000;
+    Thread[] threads = new Thread[THREADS];
+    Throwable[] failed = new Throwable[1];
+    for (int t = 0; t < THREADS; t++) {
+      threads[t] = new Thread(() -> {
+        try {
+          for (int i = 0; i < calls; i++) {
+            step.invoke(null, i);
+          }
+        } catch (ReflectiveOperationException e) {
+          failed[0] = e;
+        }
+      });
+      threads[t].start();
+    }
+    for (Thread t : threads) {
+      t.join();
+    }
+    assertEquals(null, failed[0]);
+    ClassAnalyzer.collectHitCounters(false);
+
+    Map<Integer, Long> hits = new HashMap<Integer, Long>();
+    for (Line line : ClassAnalyzer.getCoverableLines(HotLoop.class.getName())) {
+      hits.put(line.getLineNumber(), line.getHits());
+    }
+    // step tests x, then halves even x and triples odd x
+    assertEquals(Long.valueOf(THREADS * calls), hits.get(10));
+    assertEquals(Long.valueOf(THREADS * calls / 2), hits.get(11));
+    assertEquals(Long.valueOf(THREADS * calls / 2), hits.get(13));
+  }
+}
@@ -0,0 +1,69 @@
+package com.scythe.instrumenter.analysis;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+import org.junit.Test;
+
+public class TestTestPrioritiser {
+
+  private static TestPrioritiser suite() {
+    TestPrioritiser prioritiser = new TestPrioritiser();
+    prioritiser.addTest("small", new int[]{0});
+    prioritiser.addTest("nothing", new int[0]);
+    prioritiser.addTest("large", new int[]{0, 1, 2, 3});
+    prioritiser.addTest("other", new int[]{4, 5});
+    prioritiser.addTest("overlap", new int[]{3, 4});
+    return prioritiser;
+  }
+
+  @Test
+  public void testAdditionalCoverageOrder() throws IOException {
+    File file = File.createTempFile("scythe", ".tests");
+    try {
+      suite().write(file);
+      TestPrioritiser prioritiser = TestPrioritiser.read(file);
+      // once large and other cover everything, coverage starts again for the rest
+      assertEquals(Arrays.asList("large", "other", "overlap", "small", "nothing"),
+          prioritiser.prioritise());
+      assertEquals(Arrays.asList("large", "other"), prioritiser.minimise());
+    } finally {
+      file.delete();
+    }
+  }
+
+  @Test
+  public void testMinimisedSuiteKeepsCoverage() {
+    TestPrioritiser prioritiser = new TestPrioritiser();
+    List<int[]> goalsOfTest = new ArrayList<int[]>();
+    BitSet all = new BitSet();
+    Random random = new Random(3);
+    for (int test = 0; test < 300; test++) {
+      int[] goals = new int[random.nextInt(50)];
+      for (int i = 0; i < goals.length; i++) {
+        goals[i] = random.nextInt(2000);
+        all.set(goals[i]);
+      }
+      Arrays.sort(goals);
+      goalsOfTest.add(goals);
+      prioritiser.addTest("t" + test, goals);
+    }
+    List<String> minimised = prioritiser.minimise();
+    BitSet covered = new BitSet();
+    for (String test : minimised) {
+      for (int goal : goalsOfTest.get(Integer.parseInt(test.substring(1)))) {
+        covered.set(goal);
+      }
+    }
+    assertEquals(all, covered);
+    assertTrue(minimised.size() < 300);
+    assertEquals(300, prioritiser.prioritise().size());
+  }
+}
@@ -0,0 +1,97 @@
+package com.scythe.instrumenter.analysis;
+
+import static org.junit.Assert.assertEquals;
+
+import com.scythe.instrumenter.instrumentation.visitors.HashClassVisitor;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import org.junit.Test;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+public class TestTestSelector {
+
+  private static byte[] example(int returned, int line, boolean extraMethod) {
+    ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+    cw.visit(Opcodes.V1_8, Opcodes.ACC_PUBLIC, "a/B", null, "java/lang/Object", null);
+    method(cw, "first", 1, line);
+    method(cw, "second", returned, line + 1);
+    if (extraMethod) {
+      method(cw, "third", 3, line + 2);
+    }
+    cw.visitEnd();
+    return cw.toByteArray();
+  }
+
+  private static void method(ClassWriter cw, String name, int returned, int line) {
+    MethodVisitor mv = cw.visitMethod(Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC, name, "()I", null,
+        null);
+    mv.visitCode();
+    Label start = new Label();
+    mv.visitLabel(start);
+    mv.visitLineNumber(line, start);
+    mv.visitIntInsn(Opcodes.BIPUSH, returned);
+    mv.visitInsn(Opcodes.IRETURN);
+    mv.visitMaxs(0, 0);
+    mv.visitEnd();
+  }
+
+  private static TestSelector index() {
+    TestSelector selector = new TestSelector();
+    selector.addClass(HashClassVisitor.hash(example(2, 10, false)));
+    int first = selector.addTest("a.BTest#first");
+    int second = selector.addTest("a.BTest#second");
+    int both = selector.addTest("a.BTest#both");
+    selector.cover(first, "a/B::first");
+    selector.cover(second, "a/B::second");
+    selector.cover(both, "a/B::first");
+    selector.cover(both, "a/B::second");
+    selector.addCoverableMethod("a/B::uncovered");
+    // c/D is not instrumented, and is only called from a/B::second
+    selector.addCaller("c/D::run", "a/B::second");
+    selector.addCaller("c/D::run", "a/B::uncovered");
+    return selector;
+  }
+
+  @Test
+  public void testChangedMethodsAreFound() {
+    TestSelector selector = index();
+    assertEquals(Collections.emptySet(),
+        selector.findChanges(Collections.singleton(example(2, 10, false))));
+    // moving lines is not a change
+    assertEquals(Collections.emptySet(),
+        selector.findChanges(Collections.singleton(example(2, 20, false))));
+    assertEquals(new LinkedHashSet<String>(Arrays.asList("a/B::second")),
+        selector.findChanges(Collections.singleton(example(5, 10, false))));
+    assertEquals(new LinkedHashSet<String>(Arrays.asList("a/B")),
+        selector.findChanges(Collections.singleton(example(2, 10, true))));
+  }
+
+  @Test
+  public void testTestsExecutingChangesAreSelected() throws IOException {
+    File file = File.createTempFile("scythe", ".idx");
+    try {
+      index().write(file);
+      TestSelector selector = TestSelector.read(file);
+      assertEquals(Arrays.asList("a.BTest#second", "a.BTest#both"),
+          selector.select(Collections.singleton("a/B::second")));
+      assertEquals(Arrays.asList("a.BTest#first", "a.BTest#second", "a.BTest#both"),
+          selector.select(Collections.singleton("a/B")));
+      // no test executed the method, so none of its callers count
+      assertEquals(Collections.<String>emptyList(),
+          selector.select(Collections.singleton("a/B::uncovered")));
+      List<String> callers = selector.select(Collections.singleton("c/D::run"));
+      assertEquals(Arrays.asList("a.BTest#second", "a.BTest#both"), callers);
+      assertEquals(Collections.<String>emptyList(),
+          selector.select(selector.findChanges(Collections.singleton(example(2, 10, false)))));
+    } finally {
+      file.delete();
+    }
+  }
+}
@@ -0,0 +1,200 @@
+package com.scythe.instrumenter.instrumentation;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.scythe.instrumenter.InstrumentationProperties;
+import com.scythe.instrumenter.analysis.ClassAnalyzer;
+import com.scythe.instrumenter.instrumentation.visitors.ArrayClassVisitor;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.instrument.IllegalClassFormatException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassWriter;
+import test.classes.HotLoop;
+
+public class TestBytecodeCache {
+
+  private static final String NAME = HotLoop.class.getName();
+
+  private String options;
+
+  @Before
+  public void setup() {
+    options = InstrumentedClass.options();
+    ClassAnalyzer.reset();
+  }
+
+  @After
+  public void tearDown() {
+    // the classes cached here, and the ids reserved for them, are not left for later tests
+    InstrumentedClass.setOptions(options);
+    ClassAnalyzer.reset();
+  }
+
+  private static byte[] original() throws IOException {
+    try (InputStream in = HotLoop.class.getResourceAsStream("HotLoop.class")) {
+      return IOUtils.toByteArray(in);
+    }
+  }
+
+  @Test
+  public void testClassIsReplayedFromDisk() throws IOException {
+    File dir = Files.createTempDirectory("bytecode-cache").toFile();
+    try {
+      byte[] original = original();
+      ClassWriter writer = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+      ArrayClassVisitor visitor = new ArrayClassVisitor(writer, NAME);
+      new ClassReader(original).accept(visitor, ClassReader.EXPAND_FRAMES);
+      byte[] instrumented = writer.toByteArray();
+      new BytecodeCache(dir).store(NAME, original, instrumented, visitor);
+      int lines = ClassAnalyzer.getCoverableLines(NAME).size();
+      int branches = ClassAnalyzer.getCoverableBranches(NAME).size();
+
+      // a later JVM opening the same directory
+      BytecodeCache cache = new BytecodeCache(dir);
+      assertArrayEquals(instrumented, cache.load(NAME, original));
+      assertEquals(1, cache.getHits());
+      assertEquals(lines, ClassAnalyzer.getCoverableLines(NAME).size());
+      assertEquals(branches, ClassAnalyzer.getCoverableBranches(NAME).size());
+      assertTrue(lines > 0);
+
+      InstrumentationProperties.INSTRUMENT_BRANCHES = false;
+      try {
+        assertNull(cache.load(NAME, original));
+        assertEquals(1, cache.getMisses());
+      } finally {
+        InstrumentationProperties.INSTRUMENT_BRANCHES = true;
+      }
+    } finally {
+      FileUtils.deleteDirectory(dir);
+    }
+  }
+
+  @Test
+  public void testOnlyIdsOfCachedClassesAreReserved() throws IOException {
+    File dir = Files.createTempDirectory("bytecode-cache").toFile();
+    try {
+      ClassAnalyzer.reserveClassIds(5000);
+      int classId = store(new BytecodeCache(dir), original());
+      ClassAnalyzer.reset();
+
+      new BytecodeCache(dir);
+      assertTrue(ClassAnalyzer.registerClass("test/classes/NotCached") < 5000);
+      // a changed class is instrumented again under the id it had
+      assertEquals(classId, ClassAnalyzer.registerClass(NAME));
+    } finally {
+      FileUtils.deleteDirectory(dir);
+    }
+  }
+
+  @Test
+  public void testStaleEntriesAreDeleted() throws IOException {
+    File dir = Files.createTempDirectory("bytecode-cache").toFile();
+    try {
+      File oldLayout = new File(dir, BytecodeCache.key(new byte[0]) + "_5000.cache");
+      File oldBuild = new File(dir, "v1-0-0123456789abcdef");
+      Files.write(oldLayout.toPath(), new byte[0]);
+      oldBuild.mkdirs();
+      store(new BytecodeCache(dir), original());
+      File[] entries = entries(dir);
+      assertEquals(1, entries.length);
+      // an earlier version of the class, cached by another JVM
+      File earlier = new File(entries[0].getParentFile(),
+          NAME + "_" + BytecodeCache.key(new byte[0]) + "_5000.cache");
+      Files.copy(entries[0].toPath(), earlier.toPath());
+      earlier.setLastModified(entries[0].lastModified() - 60000);
+      ClassAnalyzer.reset();
+
+      new BytecodeCache(dir);
+      assertFalse(oldLayout.exists());
+      assertFalse(oldBuild.exists());
+      assertArrayEquals(entries, entries(dir));
+      assertTrue(ClassAnalyzer.registerClass("test/classes/NotCached") < 5000);
+    } finally {
+      FileUtils.deleteDirectory(dir);
+    }
+  }
+
+  @Test
+  public void testNewVersionsReplaceTheirClass() throws IOException {
+    File dir = Files.createTempDirectory("bytecode-cache").toFile();
+    try {
+      byte[] original = original();
+      store(new BytecodeCache(dir), original);
+      ClassAnalyzer.reset();
+
+      store(new BytecodeCache(dir), original, Arrays.copyOf(original, original.length + 1));
+      assertEquals(1, entries(dir).length);
+    } finally {
+      FileUtils.deleteDirectory(dir);
+    }
+  }
+
+  @Test
+  public void testCacheHitsAreSeenByTheTransformer() throws Exception {
+    ClassReplacementTransformer transformer = new ClassReplacementTransformer();
+    String name = "test/classes/CachedOnce";
+    byte[] cached = new byte[]{1};
+    assertNull(transformer.transformCached(name, () -> null));
+    assertArrayEquals(cached, transformer.transformCached(name, () -> cached));
+    try {
+      transformer.transformCached(name, () -> cached);
+      fail("the class was loaded twice");
+    } catch (IllegalClassFormatException e) {
+      // as if it had been instrumented
+    } finally {
+      transformer.forget(name);
+    }
+  }
+
+  /**
+   * Instruments HotLoop from the given bytes and caches it.
+   *
+   * @return the id HotLoop was given
+   */
+  private static int store(BytecodeCache cache, byte[] original) {
+    return store(cache, original, original);
+  }
+
+  /**
+   * Instruments HotLoop from the given bytes and caches it as if it had been loaded from others.
+   *
+   * @return the id HotLoop was given
+   */
+  private static int store(BytecodeCache cache, byte[] original, byte[] loaded) {
+    ClassWriter writer = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+    ArrayClassVisitor visitor = new ArrayClassVisitor(writer, NAME);
+    new ClassReader(original).accept(visitor, ClassReader.EXPAND_FRAMES);
+    cache.store(NAME, loaded, writer.toByteArray(), visitor);
+    return visitor.getClassId();
+  }
+
+  /**
+   * @return the classes cached with the current options
+   */
+  private static File[] entries(File dir) {
+    List<File> entries = new ArrayList<File>();
+    for (File options : dir.listFiles()) {
+      File[] files = options.listFiles();
+      if (files != null) {
+        entries.addAll(Arrays.asList(files));
+      }
+    }
+    return entries.toArray(new File[0]);
+  }
+}
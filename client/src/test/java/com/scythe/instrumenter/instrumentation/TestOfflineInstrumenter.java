@@ -0,0 +1,195 @@
+package com.scythe.instrumenter.instrumentation;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import com.scythe.instrumenter.InstrumentationProperties;
+import com.scythe.instrumenter.analysis.ClassAnalyzer;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import test.classes.HotLoop;
+
+public class TestOfflineInstrumenter {
+
+  private static final String ENTRY = "test/classes/HotLoop.class";
+
+  private String options;
+
+  @Before
+  public void setup() {
+    options = InstrumentedClass.options();
+    ClassAnalyzer.reset();
+  }
+
+  @After
+  public void tearDown() {
+    InstrumentedClass.setOptions(options);
+    ClassAnalyzer.reset();
+  }
+
+  @Test
+  public void testDirectoryIsInstrumentedIntoJar() throws IOException {
+    File dir = Files.createTempDirectory("offline").toFile();
+    try {
+      File input = new File(dir, "classes");
+      byte[] original;
+      try (InputStream in = HotLoop.class.getResourceAsStream("HotLoop.class")) {
+        original = IOUtils.toByteArray(in);
+      }
+      FileUtils.writeByteArrayToFile(new File(input, ENTRY), original);
+      FileUtils.writeStringToFile(new File(input, "config.txt"), "unchanged", "UTF-8");
+
+      File output = new File(dir, "classes.jar");
+      OfflineInstrumenter instrumenter = new OfflineInstrumenter();
+      instrumenter.setParallelism(2);
+      instrumenter.addDirectory(input, output);
+      assertEquals(1, instrumenter.run());
+
+      try (JarFile jar = new JarFile(output)) {
+        byte[] instrumented = IOUtils.toByteArray(jar.getInputStream(jar.getEntry(ENTRY)));
+        assertFalse(Arrays.equals(original, instrumented));
+        assertEquals("unchanged",
+            IOUtils.toString(jar.getInputStream(jar.getEntry("config.txt")), "UTF-8"));
+        assertNotNull(jar.getEntry(InstrumentedClass.RESOURCE));
+        try (InputStream in = jar.getInputStream(jar.getEntry(InstrumentedClass.RESOURCE))) {
+          InstrumentedClass.registerAll(in);
+        }
+      }
+      assertTrue(ClassAnalyzer.getCoverableLines(HotLoop.class.getName()).size() > 0);
+    } finally {
+      FileUtils.deleteDirectory(dir);
+    }
+  }
+
+  @Test
+  public void testClassesWithOtherOptionsAreNotRegistered() throws IOException {
+    File dir = Files.createTempDirectory("offline").toFile();
+    try {
+      File input = new File(dir, "classes");
+      try (InputStream in = HotLoop.class.getResourceAsStream("HotLoop.class")) {
+        FileUtils.writeByteArrayToFile(new File(input, ENTRY), IOUtils.toByteArray(in));
+      }
+      File output = new File(dir, "classes.jar");
+      OfflineInstrumenter instrumenter = new OfflineInstrumenter();
+      instrumenter.addDirectory(input, output);
+      assertEquals(1, instrumenter.run());
+      ClassAnalyzer.reset();
+
+      InstrumentationProperties.SAMPLE_RATE = 4;
+      try (JarFile jar = new JarFile(output);
+          InputStream in = jar.getInputStream(jar.getEntry(InstrumentedClass.RESOURCE))) {
+        InstrumentedClass.registerAll(in);
+      }
+      assertEquals(4, InstrumentationProperties.SAMPLE_RATE);
+      assertTrue(ClassAnalyzer.getCoverableLines(HotLoop.class.getName()).isEmpty());
+      // the class id baked into the bytecode is still kept from other classes
+      assertTrue(ClassAnalyzer.registerClass("test.classes.Other") > 0);
+    } finally {
+      FileUtils.deleteDirectory(dir);
+    }
+  }
+
+  @Test
+  public void testOfflineIdsAreTakenBeforeAnyAreGivenOut() throws IOException {
+    File dir = Files.createTempDirectory("offline").toFile();
+    ClassLoader contextLoader = Thread.currentThread().getContextClassLoader();
+    try {
+      File input = new File(dir, "classes");
+      try (InputStream in = HotLoop.class.getResourceAsStream("HotLoop.class")) {
+        FileUtils.writeByteArrayToFile(new File(input, ENTRY), IOUtils.toByteArray(in));
+      }
+      File output = new File(dir, "classes.jar");
+      OfflineInstrumenter instrumenter = new OfflineInstrumenter();
+      instrumenter.addDirectory(input, output);
+      assertEquals(1, instrumenter.run());
+      int offlineId = ClassAnalyzer.getClassId(HotLoop.class.getName());
+      // as if the jar were on the classpath of a new JVM
+      ClassAnalyzer.reset();
+
+      try (URLClassLoader loader = new URLClassLoader(new URL[]{output.toURI().toURL()}, null)) {
+        Thread.currentThread().setContextClassLoader(loader);
+        int otherId = ClassAnalyzer.registerClass("test.classes.Other");
+        assertNotEquals(offlineId, otherId);
+        assertEquals(offlineId, ClassAnalyzer.getClassId(HotLoop.class.getName()));
+      }
+    } finally {
+      Thread.currentThread().setContextClassLoader(contextLoader);
+      FileUtils.deleteDirectory(dir);
+    }
+  }
+
+  @Test(expected = IOException.class)
+  public void testInstrumentedJarIsRejected() throws IOException {
+    File dir = Files.createTempDirectory("offline").toFile();
+    try {
+      File input = new File(dir, "classes");
+      FileUtils.writeStringToFile(new File(input, InstrumentedClass.RESOURCE), "", "UTF-8");
+      OfflineInstrumenter instrumenter = new OfflineInstrumenter();
+      instrumenter.addDirectory(input, new File(dir, "classes.jar"));
+      instrumenter.run();
+    } finally {
+      FileUtils.deleteDirectory(dir);
+    }
+  }
+
+  @Test
+  public void testOutputIsTheSameOnEveryRun() throws IOException, URISyntaxException {
+    File input = new File(
+        IOUtils.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+    File dir = Files.createTempDirectory("offline").toFile();
+    try {
+      File first = new File(dir, "first.jar");
+      File second = new File(dir, "second.jar");
+      instrument(input, first);
+      // as if instrumented by a new JVM
+      ClassAnalyzer.reset();
+      instrument(input, second);
+
+      try (JarFile a = new JarFile(first); JarFile b = new JarFile(second)) {
+        List<JarEntry> entries = Collections.list(a.entries());
+        assertEquals(names(entries), names(Collections.list(b.entries())));
+        for (JarEntry entry : entries) {
+          assertArrayEquals(entry.getName(), IOUtils.toByteArray(a.getInputStream(entry)),
+              IOUtils.toByteArray(b.getInputStream(b.getEntry(entry.getName()))));
+        }
+      }
+    } finally {
+      FileUtils.deleteDirectory(dir);
+    }
+  }
+
+  private static void instrument(File jar, File output) throws IOException {
+    OfflineInstrumenter instrumenter = new OfflineInstrumenter();
+    instrumenter.setParallelism(4);
+    instrumenter.addJar(jar, output);
+    assertTrue(instrumenter.run() > 0);
+  }
+
+  private static List<String> names(List<JarEntry> entries) {
+    List<String> names = new ArrayList<String>();
+    for (JarEntry entry : entries) {
+      names.add(entry.getName());
+    }
+    return names;
+  }
+}
@@ -0,0 +1,46 @@
+package com.scythe.instrumenter.instrumentation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class TestTypeHierarchy {
+
+  // finds class files through its parent, but fails if asked to load a class
+  private final ClassLoader classFiles = new ClassLoader(getClass().getClassLoader()) {
+    @Override
+    protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+      throw new AssertionError("Loaded " + name);
+    }
+  };
+
+  private final TypeHierarchy hierarchy = new TypeHierarchy(classFiles);
+
+  @Test
+  public void testCommonSuperClass() {
+    assertEquals("java/lang/Number",
+        hierarchy.getCommonSuperClass("java/lang/Integer", "java/lang/Long"));
+    assertEquals("java/util/AbstractList",
+        hierarchy.getCommonSuperClass("java/util/ArrayList", "java/util/LinkedList"));
+    assertEquals("java/util/List",
+        hierarchy.getCommonSuperClass("java/util/List", "java/util/ArrayList"));
+    assertEquals("java/lang/Object",
+        hierarchy.getCommonSuperClass("java/lang/Runnable", "java/lang/String"));
+    assertEquals("test/classes/ExampleClass",
+        hierarchy.getCommonSuperClass("test/classes/SubExampleClass", "test/classes/ExampleClass"));
+  }
+
+  @Test
+  public void testAssignableThroughInterfaces() {
+    assertTrue(hierarchy.isAssignableFrom("java/util/Collection", "java/util/ArrayList"));
+    assertTrue(hierarchy.isAssignableFrom("java/lang/Iterable", "java/util/List"));
+    assertFalse(hierarchy.isAssignableFrom("java/util/ArrayList", "java/util/List"));
+  }
+
+  @Test(expected = TypeNotPresentException.class)
+  public void testMissingType() {
+    hierarchy.getCommonSuperClass("test/classes/DoesNotExist", "java/lang/String");
+  }
+}
@@ -0,0 +1,61 @@
+package com.scythe.instrumenter.instrumentation.visitors;
+
+import com.scythe.instrumenter.instrumentation.CustomLoaderClassWriter;
+import com.scythe.instrumenter.instrumentation.TypeHierarchy;
+import java.io.IOException;
+import java.io.InputStream;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassWriter;
+
+/**
+ * Loads the classes in test.classes instrumented by {@link ArrayClassVisitor} with the options
+ * set when they are loaded, leaving every other class to its parent. Each loader has its own
+ * copies of the classes, so a test can instrument a class with its own options without leaving
+ * it in the shared InstrumentingClassLoader for later tests.
+ */
+public class InstrumentedLoader extends ClassLoader {
+
+  private final TypeHierarchy hierarchy;
+
+  public InstrumentedLoader() {
+    super(InstrumentedLoader.class.getClassLoader());
+    hierarchy = new TypeHierarchy(getParent());
+  }
+
+  /**
+   * @return the instrumented copy of a test class
+   */
+  public Class<?> instrument(Class<?> original) throws ClassNotFoundException {
+    return loadClass(original.getName());
+  }
+
+  @Override
+  protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+    if (!name.startsWith("test.classes.")) {
+      return super.loadClass(name, resolve);
+    }
+    synchronized (getClassLoadingLock(name)) {
+      Class<?> cl = findLoadedClass(name);
+      if (cl == null) {
+        byte[] bytes = instrumentedBytes(name.replace('.', '/'));
+        cl = defineClass(name, bytes, 0, bytes.length);
+      }
+      return cl;
+    }
+  }
+
+  private byte[] instrumentedBytes(String className) throws ClassNotFoundException {
+    try (InputStream in = getParent().getResourceAsStream(className + ".class")) {
+      if (in == null) {
+        throw new ClassNotFoundException(className);
+      }
+      ClassWriter writer = new CustomLoaderClassWriter(
+          ClassWriter.COMPUTE_FRAMES | ClassWriter.COMPUTE_MAXS, hierarchy);
+      new ClassReader(in).accept(new ArrayClassVisitor(writer, className),
+          ClassReader.EXPAND_FRAMES);
+      return writer.toByteArray();
+    } catch (IOException e) {
+      throw new ClassNotFoundException(className, e);
+    }
+  }
+}
@@ -0,0 +1,56 @@
+package com.scythe.instrumenter.instrumentation.visitors;
+
+import static org.junit.Assert.assertEquals;
+
+import com.scythe.instrumenter.InstrumentationProperties;
+import com.scythe.instrumenter.analysis.ClassAnalyzer;
+import com.scythe.instrumenter.instrumentation.objectrepresentation.AllocationSite;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import test.classes.AllocationExample;
+
+public class TestAllocationVisitor {
+
+  private static Class<?> ic;
+
+  @BeforeClass
+  public static void init() throws ClassNotFoundException {
+    InstrumentationProperties.INSTRUMENT_ALLOCATIONS = true;
+    ic = new InstrumentedLoader().instrument(AllocationExample.class);
+  }
+
+  @AfterClass
+  public static void tearDown() {
+    InstrumentationProperties.INSTRUMENT_ALLOCATIONS = false;
+    // later tests count goal ids from the start
+    ClassAnalyzer.reset();
+  }
+
+  @Test
+  public void testAllocationsAndElementsAreCounted() throws Exception {
+    ClassAnalyzer.softReset();
+    Object o = ic.newInstance();
+    ic.getDeclaredMethod("allocate", int.class).invoke(o, 4);
+    ic.getDeclaredMethod("allocate", int.class).invoke(o, 6);
+    ClassAnalyzer.collectHitCounters(false);
+
+    List<AllocationSite> sites = ClassAnalyzer.getAllocationSites(AllocationExample.class.getName());
+    Map<String, AllocationSite> byType = new HashMap<String, AllocationSite>();
+    for (AllocationSite site : sites) {
+      byType.put(site.getType(), site);
+    }
+    assertEquals(5, sites.size());
+    assertEquals(1, byType.get("java/util/ArrayList").getAllocations());
+    assertEquals(10, byType.get("java/lang/StringBuilder").getAllocations());
+    assertEquals(2, byType.get("[I").getAllocations());
+    assertEquals(10, byType.get("[I").getElements());
+    assertEquals(20, byType.get("[Ljava/lang/String;").getElements());
+    // the outer arrays and every row
+    assertEquals(10 + 30, byType.get("[[J").getElements());
+    assertEquals(21, byType.get("[[J").getLineNumber());
+  }
+}
@@ -0,0 +1,80 @@
+package com.scythe.instrumenter.instrumentation.visitors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.scythe.instrumenter.InstrumentationProperties;
+import com.scythe.instrumenter.analysis.ClassAnalyzer;
+import com.scythe.instrumenter.instrumentation.objectrepresentation.Line;
+import java.lang.reflect.Modifier;
+import java.util.HashMap;
+import java.util.Map;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import test.classes.EarlyCall;
+import test.classes.ExampleClass;
+
+public class TestClinitCounters {
+
+  @Before
+  public void setup() {
+    ClassAnalyzer.reset();
+    InstrumentationProperties.INIT_COUNTERS_IN_CLINIT = true;
+  }
+
+  @After
+  public void tearDown() {
+    InstrumentationProperties.INIT_COUNTERS_IN_CLINIT = false;
+    // later tests count goal ids from the start
+    ClassAnalyzer.reset();
+  }
+
+  @Test
+  public void testCountersCreatedInClinitAreCollected() throws Exception {
+    Class<?> ic = new InstrumentedLoader().instrument(ExampleClass.class);
+    assertTrue(Modifier.isFinal(
+        ic.getDeclaredField(ArrayClassVisitor.COUNTER_VARIABLE_NAME).getModifiers()));
+    Object o = ic.newInstance();
+    ic.getMethod("abs", int.class).invoke(o, 5);
+    ic.getMethod("abs", int.class).invoke(o, -3);
+    ic.getMethod("abs", int.class).invoke(o, -4);
+    ClassAnalyzer.collectHitCounters(false);
+
+    Map<Integer, Long> lines = new HashMap<Integer, Long>();
+    for (Line line : ClassAnalyzer.getCoverableLines(ExampleClass.class.getName())) {
+      lines.put(line.getLineNumber(), line.getHits());
+    }
+    assertEquals(Long.valueOf(3), lines.get(12));
+    assertEquals(Long.valueOf(1), lines.get(13));
+    assertEquals(Long.valueOf(2), lines.get(15));
+    assertEquals(Long.valueOf(0), lines.get(19));
+  }
+
+  @Test
+  public void testMethodRunBeforeClinitIsCounted() throws Exception {
+    // initialising EarlyCall first initialises its super class, which calls EarlyCall.value()
+    // before EarlyCall's <clinit> has created its counters
+    Class.forName(EarlyCall.class.getName(), true, new InstrumentedLoader());
+    ClassAnalyzer.collectHitCounters(false);
+
+    assertEquals(1, valueHits());
+  }
+
+  @Test
+  public void testMethodRunBeforeClinitIsCountedByDefault() throws Exception {
+    InstrumentationProperties.INIT_COUNTERS_IN_CLINIT = false;
+    Class.forName(EarlyCall.class.getName(), true, new InstrumentedLoader());
+    ClassAnalyzer.collectHitCounters(false);
+
+    assertEquals(1, valueHits());
+  }
+
+  private static long valueHits() {
+    long hits = 0;
+    for (Line line : ClassAnalyzer.getCoverableLines(EarlyCall.class.getName(), "value")) {
+      hits += line.getHits();
+    }
+    return hits;
+  }
+}
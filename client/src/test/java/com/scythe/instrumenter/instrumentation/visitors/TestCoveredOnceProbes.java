@@ -0,0 +1,81 @@
+package com.scythe.instrumenter.instrumentation.visitors;
+
+import static org.junit.Assert.assertEquals;
+
+import com.scythe.instrumenter.InstrumentationProperties;
+import com.scythe.instrumenter.InstrumentationProperties.InstrumentationApproach;
+import com.scythe.instrumenter.analysis.ClassAnalyzer;
+import com.scythe.instrumenter.instrumentation.objectrepresentation.Branch;
+import com.scythe.instrumenter.instrumentation.objectrepresentation.Line;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import test.classes.ExampleClass;
+
+public class TestCoveredOnceProbes {
+
+  private static Class<?> ic;
+
+  @BeforeClass
+  public static void init() throws ClassNotFoundException {
+    ClassAnalyzer.reset();
+    InstrumentationProperties.INSTRUMENTATION_APPROACH = InstrumentationApproach.BOOLEAN;
+    ic = new InstrumentedLoader().instrument(ExampleClass.class);
+  }
+
+  @AfterClass
+  public static void tearDown() {
+    InstrumentationProperties.INSTRUMENTATION_APPROACH = InstrumentationApproach.ARRAY;
+    ClassAnalyzer.reset();
+  }
+
+  @Test
+  public void testCoveredGoalsAreHitOnce() throws Exception {
+    assertEquals(boolean[].class,
+        ic.getDeclaredField(ArrayClassVisitor.COUNTER_VARIABLE_NAME).getType());
+    Object o = ic.newInstance();
+    for (int i = 1; i <= 3; i++) {
+      ic.getMethod("abs", int.class).invoke(o, i);
+    }
+    ic.getMethod("abs", int.class, int.class).invoke(o, 1, 2);
+    ClassAnalyzer.collectHitCountersForClass(ic, false);
+
+    Map<Integer, Long> lines = new HashMap<Integer, Long>();
+    for (Line line : ClassAnalyzer.getCoverableLines(ExampleClass.class.getName())) {
+      lines.put(line.getLineNumber(), line.getHits());
+    }
+    // abs(int) only returned x, and abs(int, int) only returned -x
+    assertEquals(Long.valueOf(1), lines.get(12));
+    assertEquals(Long.valueOf(1), lines.get(13));
+    assertEquals(Long.valueOf(0), lines.get(15));
+    assertEquals(Long.valueOf(1), lines.get(19));
+    assertEquals(Long.valueOf(0), lines.get(20));
+    assertEquals(Long.valueOf(1), lines.get(22));
+    assertEquals(Long.valueOf(0), lines.get(28));
+
+    // each branch has a goal for either way it can go, and isZero was never run
+    assertEquals(Arrays.asList(0, 1), branchHits(12));
+    assertEquals(Arrays.asList(0, 1), branchHits(19));
+    assertEquals(Integer.valueOf(0), Collections.max(branchHits(28)));
+  }
+
+  /**
+   * @return the hits of the branches on a line, sorted
+   */
+  private static List<Integer> branchHits(int lineNumber) {
+    List<Integer> hits = new ArrayList<Integer>();
+    for (Branch branch : ClassAnalyzer.getCoverableBranches(ExampleClass.class.getName())) {
+      if (branch.getLineNumber() == lineNumber) {
+        hits.add(branch.getHits());
+      }
+    }
+    Collections.sort(hits);
+    return hits;
+  }
+}
@@ -0,0 +1,95 @@
+package com.scythe.instrumenter.instrumentation.visitors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.scythe.instrumenter.InstrumentationProperties;
+import com.scythe.instrumenter.InstrumentationProperties.CounterLayout;
+import com.scythe.instrumenter.analysis.ClassAnalyzer;
+import com.scythe.instrumenter.analysis.GlobalCounters;
+import com.scythe.instrumenter.instrumentation.objectrepresentation.Line;
+import java.lang.reflect.Modifier;
+import java.util.HashMap;
+import java.util.Map;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import test.classes.ExampleClass;
+import test.classes.SubExampleClass;
+
+public class TestGlobalCounterLayout {
+
+  @Before
+  public void setup() {
+    ClassAnalyzer.reset();
+    InstrumentationProperties.COUNTER_LAYOUT = CounterLayout.GLOBAL;
+  }
+
+  @After
+  public void tearDown() {
+    InstrumentationProperties.COUNTER_LAYOUT = CounterLayout.CLASS;
+    InstrumentationProperties.SAMPLE_RATE = 1;
+    ClassAnalyzer.reset();
+  }
+
+  @Test
+  public void testClassesAreCollectedFromTheirOwnSlices() throws Exception {
+    InstrumentedLoader loader = new InstrumentedLoader();
+    Class<?> example = loader.instrument(ExampleClass.class);
+    Class<?> sub = loader.instrument(SubExampleClass.class);
+    int exampleBase = example.getField(ArrayClassVisitor.BASE_VARIABLE_NAME).getInt(null);
+    int subBase = sub.getField(ArrayClassVisitor.BASE_VARIABLE_NAME).getInt(null);
+    assertNotEquals(exampleBase, subBase);
+    assertEquals(subBase, GlobalCounters.getOffsets()
+        .get(ClassAnalyzer.getClassId(SubExampleClass.class.getName()))[0]);
+
+    example.getMethod("abs", int.class).invoke(example.newInstance(), 5);
+    sub.getConstructor(Integer.class).newInstance(-3);
+    ClassAnalyzer.collectHitCounters(false);
+
+    // the subclass's abs delegates to the superclass's
+    Map<Integer, Long> exampleLines = lines(ExampleClass.class.getName());
+    assertEquals(Long.valueOf(2), exampleLines.get(12));
+    assertEquals(Long.valueOf(1), exampleLines.get(13));
+    assertEquals(Long.valueOf(1), exampleLines.get(15));
+    assertEquals(Long.valueOf(0), exampleLines.get(19));
+    assertEquals(Long.valueOf(1), lines(SubExampleClass.class.getName()).get(13));
+  }
+
+  @Test
+  public void testResetsLeaveTheCountersAlone() throws Exception {
+    int base = GlobalCounters.reserveCounters(2);
+    // probes read the array on every hit, so never write to one replaced as classes load
+    assertTrue(Modifier.isVolatile(GlobalCounters.class.getField("counters").getModifiers()));
+    GlobalCounters.reserveCounters(GlobalCounters.counters.length);
+    GlobalCounters.counters[base] += 2;
+    GlobalCounters.reset();
+    assertEquals(2, GlobalCounters.counters[base]);
+    assertEquals(0, GlobalCounters.copyCounters()[base]);
+
+    GlobalCounters.counters[base]++;
+    assertEquals(1, GlobalCounters.snapshot(true)[base]);
+    assertEquals(0, GlobalCounters.copyCounters()[base]);
+    assertEquals(3, GlobalCounters.copyTotalCounters()[base]);
+  }
+
+  @Test
+  public void testSampledCountersAreClearedOnReset() {
+    InstrumentationProperties.SAMPLE_RATE = 16;
+    int base = GlobalCounters.reserveCounters(1);
+    GlobalCounters.counters[base] = 5;
+    GlobalCounters.reset();
+    // sampled probes record the first hit after a reset by finding the counter at zero
+    assertEquals(0, GlobalCounters.counters[base]);
+    assertEquals(0, GlobalCounters.copyCounters()[base]);
+  }
+
+  private static Map<Integer, Long> lines(String className) {
+    Map<Integer, Long> hits = new HashMap<Integer, Long>();
+    for (Line line : ClassAnalyzer.getCoverableLines(className)) {
+      hits.put(line.getLineNumber(), line.getHits());
+    }
+    return hits;
+  }
+}
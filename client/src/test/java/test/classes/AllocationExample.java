@@ -0,0 +1,24 @@
+package test.classes;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class AllocationExample {
+
+  private final List<Object> kept;
+
+  public AllocationExample() {
+    super();
+    kept = new ArrayList<Object>();
+  }
+
+  public int allocate(int n) {
+    for (int i = 0; i < n; i++) {
+      kept.add(new StringBuilder());
+    }
+    int[] ints = new int[n];
+    String[] strings = new String[2 * n];
+    long[][] grid = new long[n][3];
+    return ints.length + strings.length + grid.length;
+  }
+}
@@ -0,0 +1,8 @@
+package test.classes;
+
+public class EarlyCall extends EarlyCallBase {
+
+  static int value() {
+    return 1;
+  }
+}
@@ -0,0 +1,10 @@
+package test.classes;
+
+/**
+ * Calls a method of its sub class while it is being initialised, which the JVM does before the
+ * static initializer of the sub class has run.
+ */
+public class EarlyCallBase {
+
+  static final int EARLY = EarlyCall.value();
+}
@@ -0,0 +1,31 @@
+package test.classes;
+
+/**
+ * Workload for SamplingBenchmark: a tight loop calling a small method, with lines run at very
+ * different rates.
+ */
+public class HotLoop {
+
+  public static int step(int x) {
+    if ((x & 1) == 0) {
+      return x / 2;
+    }
+    return 3 * x + 1;
+  }
+
+  public static long run(int iterations) {
+    long sum = 0;
+    int x = 27;
+    for (int i = 0; i < iterations; i++) {
+      x = step(x);
+      if (x == 1) {
+        x = 27 + (i & 255);
+      }
+      if ((i & 1023) == 0) {
+        sum -= x;
+      }
+      sum += x;
+    }
+    return sum;
+  }
+}